@@ -1,8 +1,15 @@
 package com.gemalto.jp2;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Half;
 
+import androidx.annotation.NonNull;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
@@ -10,11 +17,23 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -175,6 +194,37 @@ public class TestJp2Decoder {
         }
     }
 
+    /*
+     * Test that the YCC 4:2:0 image converted while being written into an ARGB_8888 bitmap gives the same pixels
+     * as the separate conversion used by the other outputs (here the high bit depth output). The regions start at
+     * even coordinates in the reduced image, color.c doesn't take the skipped resolutions into account otherwise.
+     */
+    @Test
+    public void testYccConversion() throws Throwable {
+        byte[] data = util.loadAssetFile("subsampling_1.jp2");
+        int[][] regions = new int[][] {{0, 0, 0, 0}, {96, 48, 601, 451}, {200, 104, 1000, 800}};
+        for (int[] r : regions) {
+            for (int skip = 0; skip <= 2; skip++) {
+                String msg = "region " + r[0] + "," + r[1] + " - " + r[2] + "," + r[3] + ", skip " + skip;
+                Bitmap bmp = new JP2Decoder(data).setRegion(r[0], r[1], r[2], r[3]).setSkipResolutions(skip).decode();
+                JP2Decoder.HighBitDepthImage image = new JP2Decoder(data).setRegion(r[0], r[1], r[2], r[3]).setSkipResolutions(skip).decodeHighBitDepth();
+                assertNotNull(msg, bmp);
+                assertNotNull(msg, image);
+                assertEquals(msg, image.width, bmp.getWidth());
+                assertEquals(msg, image.height, bmp.getHeight());
+                assertEquals(msg, 3, image.numChannels);
+                for (int i = 0; i < image.width * image.height; i++) {
+                    int pixel = bmp.getPixel(i % image.width, i / image.width);
+                    int expected = 0xFF000000 | (image.pixels.get(i * 3) << 16) | (image.pixels.get(i * 3 + 1) << 8) | image.pixels.get(i * 3 + 2);
+                    if (pixel != expected) {
+                        fail(msg + ", pixel " + (i % image.width) + ", " + (i / image.width) + ": expected "
+                                + Integer.toHexString(expected) + ", got " + Integer.toHexString(pixel));
+                    }
+                }
+            }
+        }
+    }
+
     /*
      * Test reading header information.
      */
@@ -239,6 +289,69 @@ public class TestJp2Decoder {
 
     }
 
+    @Test
+    public void testReadHeaderStructure() throws Exception {
+        //single tile, lossless
+        JP2Decoder.Header header = new JP2Decoder(util.loadAssetFile("lena.jp2")).readHeader();
+        assertEquals(3, header.numComponents);
+        assertEquals(0, header.tileX0);
+        assertEquals(0, header.tileY0);
+        assertEquals(512, header.tileWidth);
+        assertEquals(512, header.tileHeight);
+        assertEquals(1, header.numTilesX);
+        assertEquals(1, header.numTilesY);
+        assertEquals(64, header.codeBlockWidth);
+        assertEquals(64, header.codeBlockHeight);
+        assertEquals(JP2Decoder.ProgressionOrder.LRCP, header.progressionOrder);
+        assertTrue(header.reversible);
+        assertTrue(header.multiComponentTransform);
+        assertFalse(header.hasTLM);
+        assertFalse(header.hasPLT);
+        assertEquals(3, header.components.length);
+        for (JP2Decoder.Component component : header.components) {
+            assertEquals(8, component.precision);
+            assertEquals(1, component.dx);
+            assertEquals(1, component.dy);
+            assertFalse(component.signed);
+        }
+        assertArrayEquals(new int[]{32768, 32768, 32768, 32768, 32768, 32768}, header.precinctWidths);
+        assertArrayEquals(new int[]{32768, 32768, 32768, 32768, 32768, 32768}, header.precinctHeights);
+
+        //tiled, lossy, with precincts
+        final byte[] data = util.loadAssetFile("tiled-r6-l6.jp2");
+        header = new JP2Decoder(data).readHeader();
+        assertEquals(1024, header.tileWidth);
+        assertEquals(1024, header.tileHeight);
+        assertEquals(3, header.numTilesX);
+        assertEquals(4, header.numTilesY);
+        assertEquals(JP2Decoder.ProgressionOrder.RPCL, header.progressionOrder);
+        assertFalse(header.reversible);
+        assertArrayEquals(new int[]{128, 128, 128, 128, 256, 256}, header.precinctWidths);
+        assertArrayEquals(new int[]{128, 128, 128, 128, 256, 256}, header.precinctHeights);
+
+        //a session reports the same structure
+        try (JP2DecoderSession session = new JP2Decoder(data).openSession()) {
+            JP2Decoder.Header sessionHeader = session.getHeader();
+            assertEquals(header.numTilesX, sessionHeader.numTilesX);
+            assertEquals(header.progressionOrder, sessionHeader.progressionOrder);
+            assertArrayEquals(header.precinctWidths, sessionHeader.precinctWidths);
+            //the scan for PLT markers doesn't disturb decoding
+            assertNotNull(session.decodeResolution(3));
+        }
+
+        //subsampled components
+        header = new JP2Decoder(util.loadAssetFile("subsampling_1.jp2")).readHeader();
+        assertEquals(1, header.components[0].dx);
+        assertEquals(2, header.components[1].dx);
+        assertEquals(2, header.components[2].dy);
+        assertFalse(header.reversible);
+
+        //16-bit samples
+        header = new JP2Decoder(util.loadAssetFile("transparent.jp2")).readHeader();
+        assertEquals(4, header.components.length);
+        assertEquals(16, header.components[3].precision);
+    }
+
     @Test
     public void testDisablePremultiplication() throws Exception {
         int[] decodedClean, decodedPremultiplied; //decoded jp2 data, pre-multiplication off and on
@@ -319,6 +432,26 @@ public class TestJp2Decoder {
             fail("Exception should have been thrown");
         } catch (IllegalArgumentException ignored) {
         }
+        try {
+            dec.setRegion(-1, 0, 10, 10);
+            fail("Exception should have been thrown");
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            dec.setRegion(10, 10, 10, 20);
+            fail("Exception should have been thrown");
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            dec.setThreads(0);
+            fail("Exception should have been thrown");
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            dec.setThreads(-2);
+            fail("Exception should have been thrown");
+        } catch (IllegalArgumentException ignored) {
+        }
     }
 
     private static class LRTestParams {
@@ -358,6 +491,1361 @@ public class TestJp2Decoder {
         }
     }
 
+    /*
+     * Decode images using the OpenJPEG thread pool, compare with the single-threaded result.
+     */
+    @Test
+    public void testDecodeThreads() throws Exception {
+        String[] jp2Files = new String[] {"lena.jp2", "tiled-r6-l6.jp2", "tiled-r6-l1.j2k"};
+        for (String jp2File : jp2Files) {
+            byte[] data = util.loadAssetFile(jp2File);
+            Bitmap expected = new JP2Decoder(data).decode();
+            assertNotNull(expected);
+            for (int threads : new int[] {2, 4, JP2Decoder.ALL_CORES}) {
+                Bitmap decoded = new JP2Decoder(data).setThreads(threads).decode();
+                util.assertBitmapsEqual(jp2File + ", " + threads + " threads", expected, decoded);
+
+                //test decode from file
+                File outFile = util.createFile(data);
+                decoded = new JP2Decoder(outFile.getPath()).setThreads(threads).setSkipResolutions(1).decode();
+                util.assertBitmapsEqual(jp2File + ", " + threads + " threads", new JP2Decoder(data).setSkipResolutions(1).decode(), decoded);
+                outFile.delete();
+            }
+        }
+    }
+
+    /*
+     * Decode regions of images at several resolutions, compare with the corresponding part of the whole decoded image.
+     */
+    @Test
+    public void testDecodeRegion() throws Exception {
+        int[][] regions = new int[][] {{0, 0, 64, 64}, {10, 20, 200, 150}, {100, 101, 511, 333}, {5, 7, 100000, 100000}};
+        for (String jp2File : new String[] {"lena.jp2", "tiled-r6-l6.jp2"}) {
+            byte[] data = util.loadAssetFile(jp2File);
+            JP2Decoder.Header header = new JP2Decoder(data).readHeader();
+            File outFile = util.createFile(data);
+            for (int skipResolutions = 0; skipResolutions < 3; skipResolutions++) {
+                Bitmap full = new JP2Decoder(data).setSkipResolutions(skipResolutions).decode();
+                for (int[] region : regions) {
+                    String message = jp2File + ", region " + Arrays.toString(region) + ", skipResolutions " + skipResolutions;
+                    Bitmap decoded = new JP2Decoder(data)
+                            .setSkipResolutions(skipResolutions)
+                            .setRegion(region[0], region[1], region[2], region[3])
+                            .decode();
+                    assertNotNull(message, decoded);
+
+                    //region coordinates at the decoded resolution
+                    int x0 = ceilDiv(region[0], skipResolutions);
+                    int y0 = ceilDiv(region[1], skipResolutions);
+                    int x1 = ceilDiv(Math.min(region[2], header.width), skipResolutions);
+                    int y1 = ceilDiv(Math.min(region[3], header.height), skipResolutions);
+                    Bitmap expected = Bitmap.createBitmap(full, x0, y0, x1 - x0, y1 - y0);
+                    util.assertBitmapsEqual(message, expected, decoded);
+
+                    //test decode from file
+                    decoded = new JP2Decoder(outFile.getPath())
+                            .setSkipResolutions(skipResolutions)
+                            .setRegion(region[0], region[1], region[2], region[3])
+                            .decode();
+                    util.assertBitmapsEqual(message + ", file", expected, decoded);
+                }
+            }
+
+            //region outside of the image
+            assertNull(new JP2Decoder(data).setRegion(50000, 50000, 60000, 60000).decode());
+            assertNull(new JP2Decoder(outFile.getPath()).setRegion(50000, 50000, 60000, 60000).decode());
+            outFile.delete();
+        }
+    }
+
+    /*
+     * Decode for a target size: check the chosen resolution, the output size and the averaged pixels.
+     */
+    @Test
+    public void testTargetSize() throws Exception {
+        byte[] data = util.loadAssetFile("lena.jp2"); //512 x 512, 6 resolutions
+
+        //reduce only: the lowest resolution covering the target
+        util.assertBitmapsEqual(new JP2Decoder(data).setSkipResolutions(1).decode(),
+                new JP2Decoder(data).setTargetSize(200, 200, JP2Decoder.ScaleMode.REDUCE_ONLY).decode());
+        util.assertBitmapsEqual(new JP2Decoder(data).setSkipResolutions(2).decode(),
+                new JP2Decoder(data).setSkipResolutions(4).setTargetSize(100, 300, JP2Decoder.ScaleMode.REDUCE_ONLY).decode());
+        util.assertBitmapsEqual(new JP2Decoder(data).setSkipResolutions(5).decode(),
+                new JP2Decoder(data).setTargetSize(1, 1, JP2Decoder.ScaleMode.REDUCE_ONLY).decode());
+        util.assertBitmapsEqual(new JP2Decoder(data).decode(),
+                new JP2Decoder(data).setTargetSize(1000, 1000, JP2Decoder.ScaleMode.REDUCE_ONLY).decode());
+
+        //fit: keep the aspect ratio, never enlarge
+        Bitmap bmp = new JP2Decoder(data).setTargetSize(200, 100, JP2Decoder.ScaleMode.FIT).decode();
+        assertEquals(100, bmp.getWidth());
+        assertEquals(100, bmp.getHeight());
+        assertMeanColorEquals(new JP2Decoder(data).setSkipResolutions(2).decode(), bmp);
+        bmp = new JP2Decoder(data).setRegion(100, 100, 400, 300).setTargetSize(150, 150, JP2Decoder.ScaleMode.FIT).decode();
+        assertEquals(150, bmp.getWidth());
+        assertEquals(100, bmp.getHeight());
+        assertMeanColorEquals(new JP2Decoder(data).setRegion(100, 100, 400, 300).setSkipResolutions(1).decode(), bmp);
+        util.assertBitmapsEqual(new JP2Decoder(data).decode(), new JP2Decoder(data).setTargetSize(1000, 600, JP2Decoder.ScaleMode.FIT).decode());
+
+        //exact size
+        bmp = new JP2Decoder(data).setTargetSize(300, 150, JP2Decoder.ScaleMode.EXACT).decode();
+        assertEquals(300, bmp.getWidth());
+        assertEquals(150, bmp.getHeight());
+        bmp = new JP2Decoder(data).setTargetSize(1000, 700, JP2Decoder.ScaleMode.EXACT).decode();
+        assertEquals(1000, bmp.getWidth());
+        assertEquals(700, bmp.getHeight());
+
+        //an image with a single resolution scaled by exactly 1/2: each pixel is the mean of 2 x 2 pixels
+        data = util.loadAssetFile("headerTest-r1-l1.jp2"); //335 x 151
+        Bitmap full = new JP2Decoder(data).decode();
+        bmp = new JP2Decoder(data).setRegion(0, 0, 334, 150).setTargetSize(167, 75, JP2Decoder.ScaleMode.EXACT).decode();
+        assertEquals(167, bmp.getWidth());
+        assertEquals(75, bmp.getHeight());
+        for (int y = 0; y < bmp.getHeight(); y++) {
+            for (int x = 0; x < bmp.getWidth(); x++) {
+                int[] block = new int[] {full.getPixel(2 * x, 2 * y), full.getPixel(2 * x + 1, 2 * y), full.getPixel(2 * x, 2 * y + 1), full.getPixel(2 * x + 1, 2 * y + 1)};
+                int expected = 0xFF000000;
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int sum = 0;
+                    for (int pixel : block) sum += (pixel >> shift) & 0xFF;
+                    expected |= ((sum + 2) / 4) << shift;
+                }
+                assertEquals("pixel " + x + ", " + y, Integer.toHexString(expected), Integer.toHexString(bmp.getPixel(x, y)));
+            }
+        }
+
+        //transparency is kept
+        data = util.loadAssetFile("transparent.jp2");
+        bmp = new JP2Decoder(data).setTargetSize(50, 50, JP2Decoder.ScaleMode.FIT).decode();
+        assertEquals(50, bmp.getWidth());
+        assertEquals(19, bmp.getHeight());
+        assertTrue(bmp.hasAlpha());
+
+        //no target size
+        util.assertBitmapsEqual(new JP2Decoder(data).setSkipResolutions(1).decode(),
+                new JP2Decoder(data).setSkipResolutions(1).setTargetSize(10, 10, JP2Decoder.ScaleMode.EXACT).setTargetSize(0, 0, JP2Decoder.ScaleMode.EXACT).decode());
+
+        try {
+            new JP2Decoder(data).setTargetSize(-1, 10, JP2Decoder.ScaleMode.FIT);
+            fail("IllegalArgumentException expected for negative width");
+        } catch (IllegalArgumentException ignored) {}
+        try {
+            new JP2Decoder(data).setTargetSize(10, 0, JP2Decoder.ScaleMode.FIT);
+            fail("IllegalArgumentException expected for zero height");
+        } catch (IllegalArgumentException ignored) {}
+        try {
+            new JP2Decoder(data).setTargetSize(10, 10, null);
+            fail("IllegalArgumentException expected for null scale mode");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    //the mean color of a scaled image is the mean color of the original image
+    private static void assertMeanColorEquals(Bitmap expected, Bitmap actual) {
+        double[] expectedMean = meanColor(expected);
+        double[] actualMean = meanColor(actual);
+        for (int i = 0; i < expectedMean.length; i++) {
+            assertEquals("channel " + i, expectedMean[i], actualMean[i], 1.5);
+        }
+    }
+
+    private static double[] meanColor(Bitmap bmp) {
+        double[] mean = new double[3];
+        for (int y = 0; y < bmp.getHeight(); y++) {
+            for (int x = 0; x < bmp.getWidth(); x++) {
+                int pixel = bmp.getPixel(x, y);
+                for (int i = 0; i < 3; i++) {
+                    mean[i] += (pixel >> (8 * i)) & 0xFF;
+                }
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            mean[i] /= bmp.getWidth() * bmp.getHeight();
+        }
+        return mean;
+    }
+
+    private static int ceilDiv(int value, int log2Divisor) {
+        return (value + (1 << log2Divisor) - 1) >> log2Divisor;
+    }
+
+    /*
+     * Decode selected components only, decode as 8-bit grayscale.
+     */
+    @Test
+    public void testDecodeComponents() throws Exception {
+        //grayscale image: the gray values are the same as in the ARGB bitmap
+        byte[] data = util.loadAssetFile("lena-grey.jp2");
+        Bitmap full = new JP2Decoder(data).decode();
+        Bitmap gray = new JP2Decoder(data).decodeGray();
+        assertEquals(Bitmap.Config.ALPHA_8, gray.getConfig());
+        assertGrayEquals(full, gray);
+
+        //color image: the first component is the luma, all the components in order decode the RGB image
+        data = util.loadAssetFile("lena.jp2");
+        full = new JP2Decoder(data).decode();
+        util.assertBitmapsEqual(full, new JP2Decoder(data).setComponents(0, 1, 2).decode());
+        Bitmap luma = new JP2Decoder(data).setComponents(0).decode();
+        gray = new JP2Decoder(data).decodeGray();
+        assertEquals(full.getWidth(), gray.getWidth());
+        assertEquals(full.getHeight(), gray.getHeight());
+        assertGrayEquals(luma, gray);
+        double difference = 0;
+        for (int y = 0; y < full.getHeight(); y++) {
+            for (int x = 0; x < full.getWidth(); x++) {
+                int pixel = full.getPixel(x, y);
+                double expected = 0.299 * ((pixel >> 16) & 0xFF) + 0.587 * ((pixel >> 8) & 0xFF) + 0.114 * (pixel & 0xFF);
+                difference += Math.abs(expected - (gray.getPixel(x, y) >>> 24));
+            }
+        }
+        assertTrue("mean luma difference " + difference, difference / (full.getWidth() * full.getHeight()) < 8);
+
+        //luma computed from the RGB components; reuse an ALPHA_8 bitmap
+        Bitmap reuse = Bitmap.createBitmap(32, 32, Bitmap.Config.ALPHA_8);
+        gray = new JP2Decoder(data).setSkipResolutions(4).setComponents(0, 1, 2).setInBitmap(reuse).decodeGray();
+        assertSame(reuse, gray);
+        Bitmap small = new JP2Decoder(data).setSkipResolutions(4).decode();
+        for (int y = 0; y < small.getHeight(); y++) {
+            for (int x = 0; x < small.getWidth(); x++) {
+                int pixel = small.getPixel(x, y);
+                int expected = (77 * ((pixel >> 16) & 0xFF) + 150 * ((pixel >> 8) & 0xFF) + 29 * (pixel & 0xFF) + 128) >> 8;
+                assertEquals("pixel " + x + ", " + y, expected, gray.getPixel(x, y) >>> 24);
+            }
+        }
+
+        //gray for a target size
+        gray = new JP2Decoder(data).setTargetSize(100, 100, JP2Decoder.ScaleMode.FIT).decodeGray();
+        assertEquals(100, gray.getWidth());
+        assertEquals(100, gray.getHeight());
+
+        //the alpha channel alone
+        data = util.loadAssetFile("transparent.jp2");
+        full = new JP2Decoder(data).disableBitmapPremultiplication().decode();
+        Bitmap alpha = new JP2Decoder(data).setComponents(3).decode();
+        assertFalse(alpha.hasAlpha());
+        for (int y = 0; y < full.getHeight(); y++) {
+            for (int x = 0; x < full.getWidth(); x++) {
+                assertEquals("pixel " + x + ", " + y, full.getPixel(x, y) >>> 24, alpha.getPixel(x, y) & 0xFF);
+            }
+        }
+
+        //no such component
+        assertNull(new JP2Decoder(data).setComponents(4).decode());
+        assertNull(new JP2Decoder(data).setComponents(4).decodeGray());
+
+        try {
+            new JP2Decoder(data).setComponents(-1);
+            fail("IllegalArgumentException expected for negative component index");
+        } catch (IllegalArgumentException ignored) {}
+        try {
+            new JP2Decoder(data).setComponents(0, 1, 0);
+            fail("IllegalArgumentException expected for duplicate component index");
+        } catch (IllegalArgumentException ignored) {}
+        try {
+            new JP2Decoder(data).setComponents(0, 1, 2, 3, 4);
+            fail("IllegalArgumentException expected for too many components");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    //the gray values of an ALPHA_8 bitmap equal the red channel of a grayscale ARGB bitmap
+    private static void assertGrayEquals(Bitmap expected, Bitmap gray) {
+        assertEquals(expected.getWidth(), gray.getWidth());
+        assertEquals(expected.getHeight(), gray.getHeight());
+        for (int y = 0; y < gray.getHeight(); y++) {
+            for (int x = 0; x < gray.getWidth(); x++) {
+                assertEquals("pixel " + x + ", " + y, (expected.getPixel(x, y) >> 16) & 0xFF, gray.getPixel(x, y) >>> 24);
+            }
+        }
+    }
+
+    /*
+     * Decode into an existing bitmap, both with decode(Bitmap) and setInBitmap().
+     */
+    @Test
+    public void testDecodeIntoBitmap() throws Exception {
+        byte[] data = util.loadAssetFile("lena.jp2");
+        Bitmap expected = util.loadAssetBitmap("lena.png");
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+
+        //target of the same size
+        Bitmap target = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        assertSame(target, new JP2Decoder(data).decode(target));
+        util.assertBitmapsEqual(expected, target);
+
+        //smaller image into a bigger target - the target is reconfigured
+        Bitmap decoded = new JP2Decoder(data).setSkipResolutions(1).decode(target);
+        assertSame(target, decoded);
+        assertEquals(width / 2, target.getWidth());
+        assertEquals(height / 2, target.getHeight());
+        util.assertBitmapsEqual(new JP2Decoder(data).setSkipResolutions(1).decode(), target);
+
+        //target too small
+        try {
+            new JP2Decoder(data).decode(Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888));
+            fail("Exception should have been thrown");
+        } catch (IllegalArgumentException ignored) {
+        }
+        //immutable target
+        try {
+            new JP2Decoder(data).decode(Bitmap.createBitmap(new int[width * height], width, height, Bitmap.Config.ARGB_8888));
+            fail("Exception should have been thrown");
+        } catch (IllegalArgumentException ignored) {
+        }
+        //wrong config
+        try {
+            new JP2Decoder(data).decode(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_4444));
+            fail("Exception should have been thrown");
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        //setInBitmap - bitmap is reused
+        Bitmap inBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        decoded = new JP2Decoder(data).setInBitmap(inBitmap).decode();
+        assertSame(inBitmap, decoded);
+        util.assertBitmapsEqual(expected, decoded);
+
+        //setInBitmap - bitmap too small, a new one is allocated
+        inBitmap = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        decoded = new JP2Decoder(data).setInBitmap(inBitmap).decode();
+        assertNotSame(inBitmap, decoded);
+        util.assertBitmapsEqual(expected, decoded);
+
+        //transparent image into a reused bitmap, with and without pre-multiplication
+        decoded = new JP2Decoder(util.loadAssetFile("transparent.jp2")).decode(target);
+        assertTrue(decoded.hasAlpha());
+        util.assertBitmapsEqual(util.loadAssetRawBitmap("transparent.raw", decoded.getWidth(), decoded.getHeight()), decoded);
+        decoded = new JP2Decoder(util.loadAssetFile("transparent.jp2")).disableBitmapPremultiplication().decode(target);
+        assertFalse(decoded.isPremultiplied());
+        int[] pixels = new int[decoded.getWidth() * decoded.getHeight()];
+        decoded.getPixels(pixels, 0, decoded.getWidth(), 0, 0, decoded.getWidth(), decoded.getHeight());
+        util.assertBitmapsEqual(util.loadAssetRawPixels("transparent.raw"), pixels);
+    }
+
+    /*
+     * Decode into RGB_565 and ALPHA_8 bitmaps, either preferred or as the target bitmap.
+     */
+    @Test
+    public void testPreferredConfig() throws Exception {
+        //opaque color image: RGB_565
+        byte[] data = util.loadAssetFile("lena.jp2");
+        Bitmap full = new JP2Decoder(data).decode();
+        Bitmap bmp = new JP2Decoder(data).setPreferredConfig(Bitmap.Config.RGB_565).decode();
+        assertEquals(Bitmap.Config.RGB_565, bmp.getConfig());
+        assertColorsClose(full, bmp, 8);
+        //a color image cannot be ALPHA_8
+        bmp = new JP2Decoder(data).setPreferredConfig(Bitmap.Config.ALPHA_8).decode();
+        assertEquals(Bitmap.Config.ARGB_8888, bmp.getConfig());
+        util.assertBitmapsEqual(full, bmp);
+        //scaled and session decoding
+        bmp = new JP2Decoder(data).setPreferredConfig(Bitmap.Config.RGB_565).setTargetSize(100, 100, JP2Decoder.ScaleMode.EXACT).decode();
+        assertEquals(Bitmap.Config.RGB_565, bmp.getConfig());
+        assertColorsClose(new JP2Decoder(data).setTargetSize(100, 100, JP2Decoder.ScaleMode.EXACT).decode(), bmp, 8);
+        try (JP2DecoderSession session = new JP2Decoder(data).setPreferredConfig(Bitmap.Config.RGB_565).openSession()) {
+            bmp = session.decodeResolution(2);
+            assertEquals(Bitmap.Config.RGB_565, bmp.getConfig());
+            assertColorsClose(new JP2Decoder(data).setSkipResolutions(2).decode(), bmp, 8);
+        }
+
+        //grayscale image: ALPHA_8 or RGB_565
+        data = util.loadAssetFile("lena-grey.jp2");
+        full = new JP2Decoder(data).decode();
+        bmp = new JP2Decoder(data).setPreferredConfig(Bitmap.Config.ALPHA_8).decode();
+        assertEquals(Bitmap.Config.ALPHA_8, bmp.getConfig());
+        assertGrayEquals(full, bmp);
+        bmp = new JP2Decoder(data).setPreferredConfig(Bitmap.Config.RGB_565).decode();
+        assertEquals(Bitmap.Config.RGB_565, bmp.getConfig());
+        assertColorsClose(full, bmp, 8);
+
+        //transparent image: the alpha channel is kept
+        data = util.loadAssetFile("transparent.jp2");
+        full = new JP2Decoder(data).decode();
+        bmp = new JP2Decoder(data).setPreferredConfig(Bitmap.Config.RGB_565).decode();
+        assertEquals(Bitmap.Config.ARGB_8888, bmp.getConfig());
+        util.assertBitmapsEqual(full, bmp);
+        //unless the target bitmap has no alpha channel
+        Bitmap target = Bitmap.createBitmap(full.getWidth(), full.getHeight(), Bitmap.Config.RGB_565);
+        assertSame(target, new JP2Decoder(data).decode(target));
+        full = new JP2Decoder(data).disableBitmapPremultiplication().decode();
+        assertColorsClose(full, target, 8);
+        target = Bitmap.createBitmap(full.getWidth(), full.getHeight(), Bitmap.Config.ALPHA_8);
+        assertSame(target, new JP2Decoder(data).decode(target));
+
+        //reused bitmap of the preferred config
+        Bitmap inBitmap = Bitmap.createBitmap(full.getWidth(), full.getHeight(), Bitmap.Config.RGB_565);
+        data = util.loadAssetFile("lena.jp2");
+        bmp = new JP2Decoder(data).setSkipResolutions(3).setPreferredConfig(Bitmap.Config.RGB_565).setInBitmap(inBitmap).decode();
+        assertSame(inBitmap, bmp);
+        assertEquals(64, bmp.getWidth());
+
+        try {
+            new JP2Decoder(data).setPreferredConfig(Bitmap.Config.ARGB_4444);
+            fail("IllegalArgumentException expected for unsupported config");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    /*
+     * Decode a 16-bit image at its full precision, into samples and into an RGBA_F16 bitmap.
+     */
+    @Test
+    public void testHighBitDepth() throws Exception {
+        //16-bit RGBA: the 8-bit bitmap holds the highest 8 bits of each sample
+        byte[] data = util.loadAssetFile("transparent.jp2");
+        Bitmap full = new JP2Decoder(data).disableBitmapPremultiplication().decode();
+        JP2Decoder.HighBitDepthImage image = new JP2Decoder(data).decodeHighBitDepth();
+        assertEquals(full.getWidth(), image.width);
+        assertEquals(full.getHeight(), image.height);
+        assertEquals(4, image.numChannels);
+        assertEquals(16, image.bitDepth);
+        assertEquals(image.width * image.height * 4, image.pixels.capacity());
+        boolean lowBitsUsed = false;
+        for (int y = 0; y < image.height; y++) {
+            for (int x = 0; x < image.width; x++) {
+                int pixel = full.getPixel(x, y);
+                int offset = (y * image.width + x) * 4;
+                int[] expected = new int[] {(pixel >> 16) & 0xFF, (pixel >> 8) & 0xFF, pixel & 0xFF, pixel >>> 24};
+                for (int c = 0; c < 4; c++) {
+                    int sample = image.pixels.get(offset + c) & 0xFFFF;
+                    assertEquals("pixel " + x + ", " + y, expected[c], sample >> 8);
+                    lowBitsUsed |= (sample & 0xFF) != 0;
+                }
+            }
+        }
+        assertTrue(lowBitsUsed);
+
+        //8-bit RGB and gray images
+        data = util.loadAssetFile("lena.jp2");
+        full = new JP2Decoder(data).setSkipResolutions(1).decode();
+        image = new JP2Decoder(data).setSkipResolutions(1).decodeHighBitDepth();
+        assertEquals(3, image.numChannels);
+        assertEquals(8, image.bitDepth);
+        for (int i = 0; i < image.width * image.height; i++) {
+            int pixel = full.getPixel(i % image.width, i / image.width);
+            assertEquals((pixel >> 16) & 0xFF, image.pixels.get(i * 3));
+            assertEquals((pixel >> 8) & 0xFF, image.pixels.get(i * 3 + 1));
+            assertEquals(pixel & 0xFF, image.pixels.get(i * 3 + 2));
+        }
+        image = new JP2Decoder(util.loadAssetFile("lena-grey.jp2")).setRegion(10, 10, 110, 60).decodeHighBitDepth();
+        assertEquals(100, image.width);
+        assertEquals(50, image.height);
+        assertEquals(1, image.numChannels);
+        assertEquals(8, image.bitDepth);
+
+        //half-float bitmap: linear colors pre-multiplied by alpha
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            data = util.loadAssetFile("transparent.jp2");
+            image = new JP2Decoder(data).decodeHighBitDepth();
+            Bitmap bmp = new JP2Decoder(data).setPreferredConfig(Bitmap.Config.RGBA_F16).decode();
+            assertEquals(Bitmap.Config.RGBA_F16, bmp.getConfig());
+            ByteBuffer pixels = ByteBuffer.allocate(bmp.getByteCount()).order(ByteOrder.nativeOrder());
+            bmp.copyPixelsToBuffer(pixels);
+            for (int i = 0; i < image.width * image.height; i++) {
+                float alpha = (image.pixels.get(i * 4 + 3) & 0xFFFF) / 65535f;
+                assertEquals(alpha, Half.toFloat(pixels.getShort(i * 8 + 6)), 0.001f);
+                for (int c = 0; c < 3; c++) {
+                    float value = (image.pixels.get(i * 4 + c) & 0xFFFF) / 65535f;
+                    float linear = value <= 0.04045f ? value / 12.92f : (float) Math.pow((value + 0.055f) / 1.055f, 2.4f);
+                    assertEquals("pixel " + i, linear * alpha, Half.toFloat(pixels.getShort(i * 8 + c * 2)), 0.001f);
+                }
+            }
+        }
+    }
+
+    /*
+     * Map the samples to 8 bits with a window, an auto-stretch and a lookup table.
+     */
+    @Test
+    public void testToneMapping() throws Exception {
+        //16-bit image: a window over the whole range and a table dropping the low bits are the same as the default
+        byte[] data = util.loadAssetFile("transparent.jp2");
+        Bitmap full = new JP2Decoder(data).disableBitmapPremultiplication().decode();
+        byte[] table = new byte[65536];
+        for (int i = 0; i < table.length; i++) table[i] = (byte) (i >> 8);
+        util.assertBitmapsEqual(full, new JP2Decoder(data).disableBitmapPremultiplication()
+                .setToneMapping(JP2Decoder.ToneMapping.lookupTable(table)).decode());
+        assertColorsClose(full, new JP2Decoder(data).disableBitmapPremultiplication()
+                .setToneMapping(JP2Decoder.ToneMapping.window(32768, 65536)).decode(), 1);
+        //the alpha channel is not mapped
+        Bitmap bmp = new JP2Decoder(data).disableBitmapPremultiplication()
+                .setToneMapping(JP2Decoder.ToneMapping.lookupTable(new byte[] {0})).decode();
+        for (int y = 0; y < bmp.getHeight(); y++) {
+            for (int x = 0; x < bmp.getWidth(); x++) {
+                assertEquals(full.getPixel(x, y) & 0xFF000000, bmp.getPixel(x, y));
+            }
+        }
+        //RGBA_F16 is not mapped
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            Bitmap f16 = new JP2Decoder(data).setPreferredConfig(Bitmap.Config.RGBA_F16).decode();
+            Bitmap mapped = new JP2Decoder(data).setPreferredConfig(Bitmap.Config.RGBA_F16)
+                    .setToneMapping(JP2Decoder.ToneMapping.lookupTable(new byte[] {0})).decode();
+            util.assertBitmapsEqual(f16, mapped);
+        }
+
+        //lookup table inverting an 8-bit image, also for gray output
+        data = util.loadAssetFile("lena-grey.jp2");
+        full = new JP2Decoder(data).decode();
+        table = new byte[256];
+        for (int i = 0; i < table.length; i++) table[i] = (byte) (255 - i);
+        JP2Decoder.ToneMapping invert = JP2Decoder.ToneMapping.lookupTable(table);
+        bmp = new JP2Decoder(data).setToneMapping(invert).decode();
+        Bitmap gray = new JP2Decoder(data).setToneMapping(invert).decodeGray();
+        for (int y = 0; y < full.getHeight(); y++) {
+            for (int x = 0; x < full.getWidth(); x++) {
+                int value = full.getPixel(x, y) & 0xFF;
+                assertEquals(255 - value, bmp.getPixel(x, y) & 0xFF);
+                assertEquals(255 - value, gray.getPixel(x, y) >>> 24);
+            }
+        }
+
+        //narrow window: black below, white above, linear inside
+        bmp = new JP2Decoder(data).setToneMapping(JP2Decoder.ToneMapping.window(100, 50)).decode();
+        for (int y = 0; y < full.getHeight(); y++) {
+            for (int x = 0; x < full.getWidth(); x++) {
+                int value = full.getPixel(x, y) & 0xFF;
+                int expected = Math.max(0, Math.min(255, Math.round((value - 75) * 255f / 50)));
+                assertEquals("pixel " + x + ", " + y, expected, bmp.getPixel(x, y) & 0xFF, 1);
+            }
+        }
+
+        //auto-stretch uses the full range
+        bmp = new JP2Decoder(data).setRegion(200, 200, 300, 300).setToneMapping(JP2Decoder.ToneMapping.autoStretch()).decode();
+        int min = 255, max = 0;
+        for (int y = 0; y < bmp.getHeight(); y++) {
+            for (int x = 0; x < bmp.getWidth(); x++) {
+                min = Math.min(min, bmp.getPixel(x, y) & 0xFF);
+                max = Math.max(max, bmp.getPixel(x, y) & 0xFF);
+            }
+        }
+        assertEquals(0, min);
+        assertEquals(255, max);
+
+        //the session and the scaled output are mapped too
+        try (JP2DecoderSession session = new JP2Decoder(data).setToneMapping(invert).openSession()) {
+            bmp = session.decodeResolution(0);
+            assertEquals(255 - (full.getPixel(10, 10) & 0xFF), bmp.getPixel(10, 10) & 0xFF);
+        }
+        bmp = new JP2Decoder(data).setToneMapping(invert).setTargetSize(100, 100, JP2Decoder.ScaleMode.EXACT).decode();
+        Bitmap scaled = new JP2Decoder(data).setTargetSize(100, 100, JP2Decoder.ScaleMode.EXACT).decode();
+        assertEquals(255 - (scaled.getPixel(50, 50) & 0xFF), bmp.getPixel(50, 50) & 0xFF, 1);
+
+        try {
+            JP2Decoder.ToneMapping.window(100, 0);
+            fail("IllegalArgumentException expected for zero window width");
+        } catch (IllegalArgumentException ignored) {}
+        try {
+            JP2Decoder.ToneMapping.lookupTable(new byte[0]);
+            fail("IllegalArgumentException expected for empty lookup table");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    //the color channels of two bitmaps differ by at most maxDifference
+    private static void assertColorsClose(Bitmap expected, Bitmap actual, int maxDifference) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                int expectedPixel = expected.getPixel(x, y);
+                int actualPixel = actual.getPixel(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int difference = Math.abs(((expectedPixel >> shift) & 0xFF) - ((actualPixel >> shift) & 0xFF));
+                    assertTrue("pixel " + x + ", " + y + ": " + Integer.toHexString(expectedPixel) + " vs " + Integer.toHexString(actualPixel), difference <= maxDifference);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeByteBuffer() throws Exception {
+        String[] jp2Files = new String[] {"lena.jp2", "tiled-r6-l1.j2k", "transparent.jp2"};
+        for (String jp2File : jp2Files) {
+            byte[] data = util.loadAssetFile(jp2File);
+            Bitmap expected = new JP2Decoder(data).decode();
+            assertNotNull(expected);
+            JP2Decoder.Header expectedHeader = new JP2Decoder(data).readHeader();
+
+            //image data surrounded by garbage, so that position, limit and array offset are relevant
+            byte[] padded = new byte[data.length + 20];
+            System.arraycopy(data, 0, padded, 10, data.length);
+            ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+            direct.put(padded);
+
+            ByteBuffer[] buffers = new ByteBuffer[] {
+                    ByteBuffer.wrap(data),
+                    ByteBuffer.wrap(padded, 10, data.length),
+                    ByteBuffer.wrap(padded, 5, data.length + 10).slice(),
+                    ByteBuffer.wrap(padded, 10, data.length).asReadOnlyBuffer(),
+                    direct
+            };
+            //the slice starts at offset 5 of the padded array
+            buffers[2].position(5).limit(5 + data.length);
+            direct.position(10).limit(10 + data.length);
+
+            for (int i = 0; i < buffers.length; i++) {
+                ByteBuffer buffer = buffers[i];
+                int position = buffer.position();
+                String message = jp2File + ", buffer " + i;
+                util.assertBitmapsEqual(message, expected, new JP2Decoder(buffer).decode());
+                JP2Decoder.Header header = new JP2Decoder(buffer).readHeader();
+                assertNotNull(message, header);
+                assertEquals(message, expectedHeader.width, header.width);
+                assertEquals(message, expectedHeader.height, header.height);
+                assertEquals(message, expectedHeader.hasAlpha, header.hasAlpha);
+                assertEquals(message, expectedHeader.numResolutions, header.numResolutions);
+                assertEquals(message, expectedHeader.numQualityLayers, header.numQualityLayers);
+                assertEquals(message, position, buffer.position());
+            }
+        }
+
+        //truncated and empty data
+        byte[] data = util.loadAssetFile("lena.jp2");
+        assertNull(new JP2Decoder(ByteBuffer.wrap(data, 0, 100)).decode());
+        assertNull(new JP2Decoder(ByteBuffer.allocateDirect(0)).decode());
+        assertNull(new JP2Decoder(ByteBuffer.allocateDirect(0)).readHeader());
+    }
+
+    @Test
+    public void testDecodeFileDescriptor() throws Exception {
+        String[] jp2Files = new String[] {"lena.jp2", "tiled-r6-l6.jp2", "tiled-r6-l1.j2k", "transparent.jp2"};
+        for (String jp2File : jp2Files) {
+            byte[] data = util.loadAssetFile(jp2File);
+            Bitmap expected = new JP2Decoder(data).decode();
+            Bitmap expectedReduced = new JP2Decoder(data).setSkipResolutions(2).setRegion(10, 20, 100, 90).decode();
+            JP2Decoder.Header expectedHeader = new JP2Decoder(data).readHeader();
+
+            //the whole file
+            File file = util.createFile(data);
+            try (ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY)) {
+                FileDescriptor fd = pfd.getFileDescriptor();
+                util.assertBitmapsEqual(jp2File, expected, new JP2Decoder(fd).decode());
+                util.assertBitmapsEqual(jp2File, expectedReduced, new JP2Decoder(fd).setSkipResolutions(2).setRegion(10, 20, 100, 90).decode());
+                JP2Decoder.Header header = new JP2Decoder(fd).readHeader();
+                assertEquals(jp2File, expectedHeader.width, header.width);
+                assertEquals(jp2File, expectedHeader.numResolutions, header.numResolutions);
+            }
+            file.delete();
+
+            //image data in the middle of a file
+            byte[] padded = new byte[data.length + 300];
+            System.arraycopy(data, 0, padded, 100, data.length);
+            file = util.createFile(padded);
+            try (ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY)) {
+                FileDescriptor fd = pfd.getFileDescriptor();
+                util.assertBitmapsEqual(jp2File, expected, new JP2Decoder(fd, 100, data.length).decode());
+                JP2Decoder.Header header = new JP2Decoder(fd, 100, data.length).readHeader();
+                assertEquals(jp2File, expectedHeader.height, header.height);
+                assertEquals(jp2File, expectedHeader.numQualityLayers, header.numQualityLayers);
+
+                AssetFileDescriptor afd = new AssetFileDescriptor(pfd, 100, data.length);
+                util.assertBitmapsEqual(jp2File, expected, new JP2Decoder(afd).setThreads(2).decode());
+                assertNotNull(jp2File, new JP2Decoder(afd).readHeader());
+
+                //wrong ranges
+                assertNull(new JP2Decoder(fd, 0, data.length).decode());
+                assertNull(new JP2Decoder(fd, 100, data.length / 2).decode());
+                assertNull(new JP2Decoder(fd, padded.length + 100, data.length).decode());
+            }
+            file.delete();
+        }
+
+        try {
+            new JP2Decoder(new FileDescriptor(), -1, 100);
+            fail("IllegalArgumentException expected for negative offset");
+        } catch (IllegalArgumentException ignored) {}
+        try {
+            new JP2Decoder(new FileDescriptor(), 0, -1);
+            fail("IllegalArgumentException expected for negative length");
+        } catch (IllegalArgumentException ignored) {}
+        //invalid file descriptor
+        assertNull(new JP2Decoder(new FileDescriptor()).decode());
+    }
+
+    @Test
+    public void testDecodeStream() throws Exception {
+        String[] jp2Files = new String[] {"lena.jp2", "tiled-r6-l6.jp2", "tiled-r6-l1.j2k", "transparent.jp2"};
+        for (String jp2File : jp2Files) {
+            byte[] data = util.loadAssetFile(jp2File);
+            Bitmap expected = new JP2Decoder(data).decode();
+            Bitmap expectedReduced = new JP2Decoder(data).setSkipResolutions(2).setRegion(10, 20, 100, 90).decode();
+            JP2Decoder.Header expectedHeader = new JP2Decoder(data).readHeader();
+
+            //stream that doesn't support mark/reset, returns few bytes at a time and refuses to skip
+            util.assertBitmapsEqual(jp2File, expected, new JP2Decoder(new SlowInputStream(data)).decode());
+            util.assertBitmapsEqual(jp2File, expectedReduced, new JP2Decoder(new SlowInputStream(data)).setSkipResolutions(2).setRegion(10, 20, 100, 90).decode());
+            //known length, followed by other data
+            byte[] padded = Arrays.copyOf(data, data.length + 100);
+            util.assertBitmapsEqual(jp2File, expected, new JP2Decoder(new ByteArrayInputStream(padded), data.length).decode());
+
+            //read header, then decode from the same markable stream
+            JP2Decoder decoder = new JP2Decoder(new ByteArrayInputStream(data));
+            JP2Decoder.Header header = decoder.readHeader();
+            assertEquals(jp2File, expectedHeader.width, header.width);
+            assertEquals(jp2File, expectedHeader.numResolutions, header.numResolutions);
+            util.assertBitmapsEqual(jp2File, expected, decoder.decode());
+
+            //read header, then decode from the same non-markable stream
+            decoder = new JP2Decoder(new SlowInputStream(data));
+            header = decoder.readHeader();
+            assertEquals(jp2File, expectedHeader.height, header.height);
+            assertEquals(jp2File, expectedHeader.numQualityLayers, header.numQualityLayers);
+            util.assertBitmapsEqual(jp2File, expected, decoder.decode());
+        }
+
+        //truncated data and failing stream
+        byte[] data = util.loadAssetFile("lena.jp2");
+        assertNull(new JP2Decoder(new ByteArrayInputStream(data, 0, 1000)).decode());
+        assertNull(new JP2Decoder(new ByteArrayInputStream(new byte[0])).decode());
+        assertNull(new JP2Decoder(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("test");
+            }
+        }).decode());
+        try {
+            new JP2Decoder(new ByteArrayInputStream(data), -1);
+            fail("IllegalArgumentException expected for negative length");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    @Test
+    public void testDecodeStreamLastTilePartToEnd() throws Exception {
+        for (String j2kFile : new String[] {"lena.j2k", "tiled-r6-l1.j2k"}) {
+            byte[] data = util.loadAssetFile(j2kFile);
+            Bitmap expected = new JP2Decoder(data).decode();
+            //the last tile-part extends to the end of the codestream (Psot = 0)
+            byte[] psotZero = data.clone();
+            int sot = lastTilePart(psotZero);
+            Arrays.fill(psotZero, sot + 6, sot + 10, (byte) 0);
+
+            util.assertBitmapsEqual(j2kFile, expected, new JP2Decoder(psotZero).decode());
+            util.assertBitmapsEqual(j2kFile, expected, new JP2Decoder(new ByteArrayInputStream(psotZero)).decode());
+            util.assertBitmapsEqual(j2kFile, expected, new JP2Decoder(new SlowInputStream(psotZero)).decode());
+            util.assertBitmapsEqual(j2kFile, expected, new JP2Decoder(new SlowInputStream(psotZero), psotZero.length).decode());
+
+            //a truncated stream is decoded up to the last complete packet
+            byte[] truncated = Arrays.copyOf(psotZero, sot + (psotZero.length - sot) / 2);
+            JP2Decoder decoder = new JP2Decoder(new SlowInputStream(truncated)).setAllowTruncated(true);
+            assertNotNull(j2kFile, decoder.decode());
+            assertTrue(j2kFile, decoder.getDecodeInfo().truncated);
+        }
+    }
+
+    //offset of the SOT marker of the last tile-part of a codestream
+    private static int lastTilePart(final byte[] j2k) {
+        //skip SOC and the main header markers
+        int offset = 2;
+        while ((j2k[offset] & 0xFF) != 0xFF || (j2k[offset + 1] & 0xFF) != 0x90) {
+            offset += 2 + ((j2k[offset + 2] & 0xFF) << 8 | (j2k[offset + 3] & 0xFF));
+        }
+        //follow the tile-part lengths (Psot) to the last SOT marker
+        while (true) {
+            int psot = ByteBuffer.wrap(j2k, offset + 6, 4).getInt();
+            int next = offset + psot;
+            if (psot == 0 || next + 1 >= j2k.length || (j2k[next] & 0xFF) != 0xFF || (j2k[next + 1] & 0xFF) != 0x90) {
+                return offset;
+            }
+            offset = next;
+        }
+    }
+
+    //input stream returning at most 7 bytes per read, not supporting skip nor mark/reset
+    private static class SlowInputStream extends ByteArrayInputStream {
+        SlowInputStream(final byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off, final int len) {
+            return super.read(b, off, Math.min(len, 7));
+        }
+
+        @Override
+        public synchronized long skip(final long n) {
+            return 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /*
+     * Decode several regions and resolutions with one session, compare with a new decoder for each decoding.
+     */
+    @Test
+    public void testDecodeSession() throws Exception {
+        int[][] regions = new int[][] {{10, 20, 60, 50}, {0, 0, 32, 32}, {33, 17, 100000, 60}};
+        int[] resolutions = new int[] {0, 2, 1};
+        String[] jp2Files = new String[] {"lena.jp2", "lena.j2k", "tiled-r6-l6.jp2", "tiled-r6-l1.j2k", "transparent.jp2", "lena-grey.jp2"};
+        for (String jp2File : jp2Files) {
+            byte[] data = util.loadAssetFile(jp2File);
+            File file = util.createFile(data);
+            ByteBuffer directBuffer = ByteBuffer.allocateDirect(data.length);
+            directBuffer.put(data);
+            directBuffer.rewind();
+            JP2Decoder[] decoders = new JP2Decoder[] {
+                    new JP2Decoder(data), new JP2Decoder(file.getPath()), new JP2Decoder(directBuffer),
+                    new JP2Decoder(new ByteArrayInputStream(data)), new JP2Decoder(data).setLayersToDecode(1).setThreads(2)};
+            Map<String, Bitmap> expectedBitmaps = new HashMap<>();
+            for (int i = 0; i < decoders.length; i++) {
+                String message = jp2File + ", decoder " + i;
+                try (JP2DecoderSession session = decoders[i].openSession()) {
+                    assertNotNull(message, session);
+                    JP2Decoder.Header header = session.getHeader();
+                    JP2Decoder.Header expectedHeader = new JP2Decoder(data).readHeader();
+                    assertEquals(message, expectedHeader.width, header.width);
+                    assertEquals(message, expectedHeader.height, header.height);
+                    assertEquals(message, expectedHeader.hasAlpha, header.hasAlpha);
+                    assertEquals(message, expectedHeader.numResolutions, header.numResolutions);
+
+                    int layers = i == 4 ? 1 : 0;
+                    for (int skipResolutions : resolutions) {
+                        for (int[] region : regions) {
+                            String regionMessage = message + ", region " + Arrays.toString(region) + ", skipResolutions " + skipResolutions;
+                            String key = layers + "/" + skipResolutions + "/" + Arrays.toString(region);
+                            Bitmap expected = expectedBitmaps.get(key);
+                            if (expected == null) {
+                                expected = new JP2Decoder(data)
+                                        .setLayersToDecode(layers)
+                                        .setSkipResolutions(skipResolutions)
+                                        .setRegion(region[0], region[1], region[2], region[3])
+                                        .decode();
+                                expectedBitmaps.put(key, expected);
+                            }
+                            Bitmap decoded = session.decodeRegion(region[0], region[1], region[2], region[3], skipResolutions);
+                            util.assertBitmapsEqual(regionMessage, expected, decoded);
+                        }
+                    }
+                    String key = layers + "/3";
+                    if (!expectedBitmaps.containsKey(key)) {
+                        expectedBitmaps.put(key, new JP2Decoder(data).setLayersToDecode(layers).setSkipResolutions(3).decode());
+                    }
+                    util.assertBitmapsEqual(message, expectedBitmaps.get(key), session.decodeResolution(3));
+
+                    //errors don't break the session
+                    assertNull(message, session.decodeRegion(50000, 50000, 60000, 60000, 0));
+                    try {
+                        session.decodeRegion(10, 10, 5, 5, 0);
+                        fail("IllegalArgumentException expected for empty region");
+                    } catch (IllegalArgumentException ignored) {}
+                    try {
+                        session.decodeResolution(-1);
+                        fail("IllegalArgumentException expected for negative skipResolutions");
+                    } catch (IllegalArgumentException ignored) {}
+                    util.assertBitmapsEqual(message, expectedBitmaps.get(key), session.decodeResolution(3));
+
+                    session.close();
+                    session.close();
+                    try {
+                        session.decodeResolution(0);
+                        fail("IllegalStateException expected for closed session");
+                    } catch (IllegalStateException ignored) {}
+                }
+            }
+
+            //file descriptor
+            try (ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY)) {
+                JP2DecoderSession session = new JP2Decoder(pfd.getFileDescriptor()).openSession();
+                assertNotNull(jp2File, session);
+                pfd.close();
+                //the session has its own file descriptor
+                util.assertBitmapsEqual(jp2File, new JP2Decoder(data).setRegion(10, 20, 100, 90).decode(), session.decodeRegion(10, 20, 100, 90, 0));
+                util.assertBitmapsEqual(jp2File, new JP2Decoder(data).setSkipResolutions(2).decode(), session.decodeResolution(2));
+                session.close();
+            }
+            file.delete();
+        }
+
+        //invalid data
+        assertNull(new JP2Decoder(Arrays.copyOf(util.loadAssetFile("lena.jp2"), 100)).openSession());
+        assertNull(new JP2Decoder(new byte[0]).openSession());
+        assertNull(new JP2Decoder("/nonexistent/file.jp2").openSession());
+    }
+
+    /*
+     * Decode images tile by tile, compare each tile with the corresponding part of the whole decoded image.
+     */
+    @Test
+    public void testDecodeTiles() throws Exception {
+        String[] jp2Files = new String[] {"lena.jp2", "tiled-r6-l6.jp2", "tiled-r6-l1.j2k", "transparent.jp2"};
+        for (String jp2File : jp2Files) {
+            final byte[] data = util.loadAssetFile(jp2File);
+            for (int skipResolutions : new int[] {0, 2}) {
+                final String message = jp2File + ", skipResolutions " + skipResolutions;
+                final Bitmap full = new JP2Decoder(data).setSkipResolutions(skipResolutions).decode();
+                final List<Integer> tileIndices = new ArrayList<>();
+                final long[] area = new long[1];
+                JP2Decoder.TileListener listener = new JP2Decoder.TileListener() {
+                    @Override
+                    public boolean onTile(final int tileIndex, final int x, final int y, @NonNull final Bitmap tile) {
+                        tileIndices.add(tileIndex);
+                        area[0] += tile.getWidth() * tile.getHeight();
+                        Bitmap expected = Bitmap.createBitmap(full, x, y, tile.getWidth(), tile.getHeight());
+                        util.assertBitmapsEqual(message + ", tile " + tileIndex, expected, tile);
+                        return true;
+                    }
+                };
+                assertTrue(message, new JP2Decoder(data).setSkipResolutions(skipResolutions).decodeTiles(listener));
+                assertEquals(message, (long)full.getWidth() * full.getHeight(), area[0]);
+                for (int i = 0; i < tileIndices.size(); i++) {
+                    assertEquals(message, i, (int)tileIndices.get(i));
+                }
+
+                //sequential stream
+                tileIndices.clear();
+                area[0] = 0;
+                assertTrue(message, new JP2Decoder(new SlowInputStream(data)).setSkipResolutions(skipResolutions).decodeTiles(listener));
+                assertEquals(message, (long)full.getWidth() * full.getHeight(), area[0]);
+            }
+        }
+
+        //only the tiles intersecting the region: tiles 1, 2, 4 and 5 of the 3x4 tiles
+        byte[] data = util.loadAssetFile("tiled-r6-l6.jp2");
+        final List<Integer> tileIndices = new ArrayList<>();
+        File file = util.createFile(data);
+        assertTrue(new JP2Decoder(file.getPath()).setRegion(1500, 1000, 2100, 1100).setSkipResolutions(1).decodeTiles(new JP2Decoder.TileListener() {
+            @Override
+            public boolean onTile(final int tileIndex, final int x, final int y, @NonNull final Bitmap tile) {
+                tileIndices.add(tileIndex);
+                return true;
+            }
+        }));
+        assertEquals(Arrays.asList(1, 2, 4, 5), tileIndices);
+        file.delete();
+
+        //stop after the first tile
+        tileIndices.clear();
+        assertFalse(new JP2Decoder(data).decodeTiles(new JP2Decoder.TileListener() {
+            @Override
+            public boolean onTile(final int tileIndex, final int x, final int y, @NonNull final Bitmap tile) {
+                tileIndices.add(tileIndex);
+                return false;
+            }
+        }));
+        assertEquals(1, tileIndices.size());
+
+        //invalid data
+        assertFalse(new JP2Decoder(Arrays.copyOf(data, 100)).decodeTiles(new JP2Decoder.TileListener() {
+            @Override
+            public boolean onTile(final int tileIndex, final int x, final int y, @NonNull final Bitmap tile) {
+                return true;
+            }
+        }));
+    }
+
+    @Test
+    public void testDecodeProgressive() throws Exception {
+        final byte[] data = util.loadAssetFile("headerTest-r7-l5.jp2");
+        final List<Bitmap> passes = new ArrayList<>();
+        final int[] numPasses = new int[1];
+        JP2Decoder.ProgressiveListener listener = new JP2Decoder.ProgressiveListener() {
+            @Override
+            public boolean onPass(final int pass, final int total, @NonNull final Bitmap image) {
+                assertEquals(passes.size() + 1, pass);
+                numPasses[0] = total;
+                passes.add(image);
+                return true;
+            }
+        };
+
+        //quality layers by default: each pass is the image decoded with one more layer
+        assertTrue(new JP2Decoder(data).decodeProgressive(listener));
+        assertEquals(5, numPasses[0]);
+        assertEquals(5, passes.size());
+        for (int i = 0; i < passes.size(); i++) {
+            util.assertBitmapsEqual("layers " + (i + 1), new JP2Decoder(data).setLayersToDecode(i + 1).decode(), passes.get(i));
+        }
+
+        //a region of a single-tile image, the codec is reused with a different number of layers in each pass
+        passes.clear();
+        assertTrue(new JP2Decoder(data).setRegion(20, 10, 220, 110).setLayersToDecode(3).setSkipResolutions(1).decodeProgressive(listener));
+        assertEquals(3, passes.size());
+        for (int i = 0; i < passes.size(); i++) {
+            Bitmap expected = new JP2Decoder(data).setRegion(20, 10, 220, 110).setLayersToDecode(i + 1).setSkipResolutions(1).decode();
+            util.assertBitmapsEqual("region, layers " + (i + 1), expected, passes.get(i));
+        }
+
+        //resolutions: from the lowest one up to the skipped resolutions
+        passes.clear();
+        assertTrue(new JP2Decoder(data).setSkipResolutions(2).decodeProgressive(JP2Decoder.Progression.RESOLUTIONS, listener));
+        assertEquals(5, passes.size());
+        for (int i = 0; i < passes.size(); i++) {
+            util.assertBitmapsEqual("skip " + (6 - i), new JP2Decoder(data).setSkipResolutions(6 - i).decode(), passes.get(i));
+        }
+
+        //images with a single quality layer are refined by resolutions
+        passes.clear();
+        assertTrue(new JP2Decoder(util.loadAssetFile("lena.jp2")).decodeProgressive(listener));
+        assertEquals(6, passes.size());
+        assertEquals(16, passes.get(0).getWidth());
+        assertEquals(512, passes.get(5).getWidth());
+
+        //stop after the first pass
+        passes.clear();
+        assertFalse(new JP2Decoder(data).decodeProgressive(new JP2Decoder.ProgressiveListener() {
+            @Override
+            public boolean onPass(final int pass, final int total, @NonNull final Bitmap image) {
+                passes.add(image);
+                return false;
+            }
+        }));
+        assertEquals(1, passes.size());
+    }
+
+    @Test
+    public void testDecodeTruncated() throws Exception {
+        final byte[] data = util.loadAssetFile("headerTest-r7-l5.jp2");
+        JP2Decoder decoder = new JP2Decoder(data).setAllowTruncated(true);
+        assertNull(decoder.getDecodeInfo());
+        assertNotNull(decoder.decode());
+        JP2Decoder.DecodeInfo info = decoder.getDecodeInfo();
+        assertNotNull(info);
+        assertFalse(info.truncated);
+        assertEquals(5, info.layersUsed);
+        assertTrue(info.bytesUsed > 0 && info.bytesUsed <= data.length);
+
+        //a partially downloaded file cannot be decoded by default
+        final byte[] truncated = Arrays.copyOf(data, data.length / 2);
+        assertNull(new JP2Decoder(truncated).decode());
+
+        //the complete packets are decoded: the image has its full size, but fewer quality layers
+        decoder = new JP2Decoder(truncated).setAllowTruncated(true);
+        Bitmap bmp = decoder.decode();
+        assertNotNull(bmp);
+        assertEquals(335, bmp.getWidth());
+        assertEquals(151, bmp.getHeight());
+        info = decoder.getDecodeInfo();
+        assertTrue(info.truncated);
+        assertTrue(info.layersUsed < 5);
+        assertTrue(info.bytesUsed <= truncated.length);
+
+        //from a stream
+        decoder = new JP2Decoder(new ByteArrayInputStream(truncated)).setAllowTruncated(true);
+        assertNotNull(decoder.decode());
+        assertTrue(decoder.getDecodeInfo().truncated);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final byte[] data = util.loadAssetFile("tiled-r6-l1.j2k");
+
+        //a signal which is not cancelled doesn't change anything
+        CancellationSignal signal = new CancellationSignal();
+        assertNotNull(new JP2Decoder(data).setSkipResolutions(3).setCancellationSignal(signal).decode());
+        assertNotNull(new JP2Decoder(data).setSkipResolutions(3).setDeadline(SystemClock.uptimeMillis() + 60000).decode());
+
+        //cancelled before decoding
+        signal.cancel();
+        JP2Decoder decoder = new JP2Decoder(data).setSkipResolutions(3).setCancellationSignal(signal);
+        assertNull(decoder.decode());
+        assertNull(decoder.getDecodeInfo());
+        assertFalse(decoder.decodeProgressive(new JP2Decoder.ProgressiveListener() {
+            @Override
+            public boolean onPass(final int pass, final int numPasses, @NonNull final Bitmap image) {
+                fail("a cancelled decoding must not produce any pass");
+                return true;
+            }
+        }));
+        JP2DecoderSession session = decoder.openSession();
+        assertNotNull(session);
+        assertNull(session.decodeResolution(3));
+        session.close();
+        //the decoder works again without the signal
+        assertNotNull(decoder.setCancellationSignal(null).decode());
+
+        //a deadline which has passed
+        assertNull(new JP2Decoder(data).setDeadline(1).decode());
+
+        //cancelled from the first tile: the other tiles are not decoded
+        final CancellationSignal tileSignal = new CancellationSignal();
+        final int[] tiles = new int[1];
+        assertFalse(new JP2Decoder(data).setSkipResolutions(3).setCancellationSignal(tileSignal).decodeTiles(new JP2Decoder.TileListener() {
+            @Override
+            public boolean onTile(final int tileIndex, final int x, final int y, @NonNull final Bitmap tile) {
+                tiles[0]++;
+                tileSignal.cancel();
+                return true;
+            }
+        }));
+        assertEquals(1, tiles[0]);
+
+        //the encoder is cancelled the same way
+        Bitmap bmp = util.loadAssetBitmap("lena.png");
+        assertNull(new JP2Encoder(bmp).setCancellationSignal(signal).encode());
+        assertNull(new JP2Encoder(bmp).setDeadline(1).encode());
+        assertNotNull(new JP2Encoder(bmp).setCancellationSignal(new CancellationSignal()).encode());
+    }
+
+    @Test
+    public void testProgress() throws Exception {
+        final byte[] data = util.loadAssetFile("tiled-r6-l1.j2k");
+        final List<int[]> reports = new ArrayList<>();
+        ProgressListener listener = new ProgressListener() {
+            @Override
+            public void onProgress(final int tilesDone, final int totalTiles) {
+                reports.add(new int[] {tilesDone, totalTiles});
+            }
+        };
+
+        //the reports are rate-limited, but the last tile is always reported
+        assertNotNull(new JP2Decoder(data).setSkipResolutions(2).setProgressListener(listener).decode());
+        checkProgress(reports, 12);
+
+        //only the tiles intersecting the region are decoded (1024x1024 tiles)
+        reports.clear();
+        assertNotNull(new JP2Decoder(data).setRegion(500, 500, 1500, 1500).setProgressListener(listener).decode());
+        checkProgress(reports, 4);
+
+        reports.clear();
+        final int[] tiles = new int[1];
+        assertTrue(new JP2Decoder(data).setSkipResolutions(2).setProgressListener(listener).decodeTiles(new JP2Decoder.TileListener() {
+            @Override
+            public boolean onTile(final int tileIndex, final int x, final int y, @NonNull final Bitmap tile) {
+                tiles[0]++;
+                return true;
+            }
+        }));
+        checkProgress(reports, tiles[0]);
+
+        //an exception thrown by the listener stops the decoding
+        try {
+            new JP2Decoder(data).setSkipResolutions(2).setProgressListener(new ProgressListener() {
+                @Override
+                public void onProgress(final int tilesDone, final int totalTiles) {
+                    throw new IllegalStateException("stop");
+                }
+            }).decode();
+            fail("the exception of the listener was not thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("stop", e.getMessage());
+        }
+
+        //the encoder creates a single tile, encoded in 100 steps; the first one is always reported
+        reports.clear();
+        assertNotNull(new JP2Encoder(util.loadAssetBitmap("lena.png")).setProgressListener(listener).encode());
+        checkProgress(reports, 100);
+        assertTrue(reports.size() > 1);
+    }
+
+    private void checkProgress(final List<int[]> reports, final int totalTiles) {
+        assertFalse(reports.isEmpty());
+        int last = 0;
+        for (int[] report : reports) {
+            assertTrue(report[0] > last);
+            assertEquals(totalTiles, report[1]);
+            last = report[0];
+        }
+        assertEquals(totalTiles, last);
+    }
+
+    @Test
+    public void testDecodeBatch() throws Exception {
+        String[] jp2Files = {"lena.jp2", "lena-rotated90.jp2", "lena-rotated180.jp2", "lena-rotated270.jp2"};
+        String[] pngFiles = {"lena.png", "lena-rotated90.png", "lena-rotated180.png", "lena-rotated270.png"};
+        final List<JP2Decoder.Source> sources = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < jp2Files.length; i++) {
+            sources.add(JP2Decoder.Source.fromBytes(util.loadAssetFile(jp2Files[i])));
+        }
+        for (int i = 0; i < jp2Files.length; i++) {
+            File file = util.createFile(util.loadAssetFile(jp2Files[i]));
+            files.add(file);
+            sources.add(JP2Decoder.Source.fromFile(file.getPath()));
+        }
+        //errors are reported as null images
+        sources.add(JP2Decoder.Source.fromBytes(util.loadAssetFile("lena.png")));
+        sources.add(JP2Decoder.Source.fromFile("/nonexistent/file.jp2"));
+
+        try {
+            final Bitmap[] decoded = new Bitmap[sources.size()];
+            final int[] calls = new int[1];
+            assertTrue(JP2Decoder.decodeBatch(sources, new JP2Decoder.Options(), 3, new JP2Decoder.BatchListener() {
+                @Override
+                public boolean onDecoded(final int index, final Bitmap image) {
+                    assertNull("image " + index + " delivered twice", decoded[index]);
+                    calls[0]++;
+                    decoded[index] = image;
+                    return true;
+                }
+            }));
+            assertEquals(sources.size(), calls[0]);
+            for (int i = 0; i < 2 * jp2Files.length; i++) {
+                util.assertBitmapsEqual("batch image " + i, util.loadAssetBitmap(pngFiles[i % jp2Files.length]), decoded[i]);
+            }
+            assertNull(decoded[sources.size() - 2]);
+            assertNull(decoded[sources.size() - 1]);
+
+            //the options apply to all the images
+            calls[0] = 0;
+            assertTrue(JP2Decoder.decodeBatch(sources.subList(0, jp2Files.length), new JP2Decoder.Options().setSkipResolutions(1),
+                    JP2Decoder.ALL_CORES, new JP2Decoder.BatchListener() {
+                @Override
+                public boolean onDecoded(final int index, final Bitmap image) {
+                    calls[0]++;
+                    assertEquals(ceilDiv(decoded[index].getWidth(), 1), image.getWidth());
+                    assertEquals(ceilDiv(decoded[index].getHeight(), 1), image.getHeight());
+                    return true;
+                }
+            }));
+            assertEquals(jp2Files.length, calls[0]);
+
+            //returning false stops the batch
+            calls[0] = 0;
+            assertFalse(JP2Decoder.decodeBatch(sources, new JP2Decoder.Options(), 2, new JP2Decoder.BatchListener() {
+                @Override
+                public boolean onDecoded(final int index, final Bitmap image) {
+                    calls[0]++;
+                    return false;
+                }
+            }));
+            assertEquals(1, calls[0]);
+        } finally {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeAsync() throws Exception {
+        final byte[] tiled = util.loadAssetFile("tiled-r6-l1.j2k");
+        final byte[] lena = util.loadAssetFile("lena.jp2");
+        Bitmap expected = util.loadAssetBitmap("lena.png");
+        JP2Scheduler scheduler = new JP2Scheduler(1, Long.MAX_VALUE);
+
+        //the only thread is blocked in the first decoding until the other requests are queued
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Bitmap> blocker = blockScheduler(scheduler, release);
+
+        List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch callbacks = new CountDownLatch(3);
+        Future<Bitmap> prefetch = new JP2Decoder(lena).setSkipResolutions(1).setScheduler(scheduler)
+                .decodeAsync(JP2Scheduler.Priority.PREFETCH, recordResult(results, "prefetch", callbacks));
+        Future<Bitmap> visible = new JP2Decoder(lena).setScheduler(scheduler)
+                .decodeAsync(JP2Scheduler.Priority.VISIBLE, recordResult(results, "visible", callbacks));
+        //identical to the previous request, it's decoded only once
+        Future<Bitmap> duplicate = new JP2Decoder(lena).setScheduler(scheduler)
+                .decodeAsync(JP2Scheduler.Priority.PREFETCH, recordResult(results, "duplicate", callbacks));
+        Future<Bitmap> cancelled = new JP2Decoder(tiled).setScheduler(scheduler)
+                .decodeAsync(JP2Scheduler.Priority.VISIBLE, recordResult(results, "cancelled", callbacks));
+        assertTrue(cancelled.cancel(false));
+        release.countDown();
+
+        assertNotNull(blocker.get());
+        util.assertBitmapsEqual(expected, visible.get());
+        assertSame(visible.get(), duplicate.get());
+        assertEquals(ceilDiv(expected.getWidth(), 1), prefetch.get().getWidth());
+        assertTrue(cancelled.isCancelled());
+        try {
+            cancelled.get();
+            fail("a cancelled request returned a result");
+        } catch (CancellationException ignored) {
+        }
+        //the visible requests are started first; the callback of the cancelled request is not called
+        assertTrue(callbacks.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("visible", "duplicate", "prefetch"), results);
+
+        byte[] encoded = new JP2Encoder(expected).setScheduler(scheduler).encodeAsync(JP2Scheduler.Priority.VISIBLE).get();
+        util.assertBitmapsEqual(expected, new JP2Decoder(encoded).decode());
+    }
+
+    /*
+     * Block the only thread of the scheduler in a decoding until the latch is released, so that the next requests
+     * are queued. Return the handle of the blocking decoding once it has started.
+     */
+    private Future<Bitmap> blockScheduler(final JP2Scheduler scheduler, final CountDownLatch release) throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        Future<Bitmap> blocker = new JP2Decoder(util.loadAssetFile("tiled-r6-l1.j2k")).setSkipResolutions(2).setScheduler(scheduler)
+                .setProgressListener(new ProgressListener() {
+                    @Override
+                    public void onProgress(final int tilesDone, final int totalTiles) {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                }).decodeAsync(JP2Scheduler.Priority.VISIBLE);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        return blocker;
+    }
+
+    private static JP2Scheduler.Callback<Bitmap> recordResult(final List<String> results, final String name, final CountDownLatch latch) {
+        return new JP2Scheduler.Callback<Bitmap>() {
+            @Override
+            public void onResult(final Bitmap result) {
+                assertNotNull(result);
+                results.add(name);
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void testBitmapPool() throws Exception {
+        byte[] data = util.loadAssetFile("lena.jp2");
+        Bitmap expected = util.loadAssetBitmap("lena.png");
+        long bitmapSize = expected.getWidth() * expected.getHeight() * 4L;
+        LruBitmapPool pool = new LruBitmapPool(2 * bitmapSize);
+
+        //an empty pool, a new bitmap is allocated
+        Bitmap first = new JP2Decoder(data).setBitmapPool(pool).decode();
+        util.assertBitmapsEqual(expected, first);
+        assertEquals(0, pool.getSize());
+
+        //the returned bitmap is used for the next image of the same size
+        first.eraseColor(0);
+        pool.put(first);
+        pool.put(first);
+        assertEquals(bitmapSize, pool.getSize());
+        Bitmap decoded = new JP2Decoder(data).setBitmapPool(pool).decode();
+        assertSame(first, decoded);
+        util.assertBitmapsEqual(expected, decoded);
+        assertEquals(0, pool.getSize());
+
+        //a smaller image reconfigures the pooled bitmap (API 19+)
+        pool.put(decoded);
+        Bitmap reduced = new JP2Decoder(data).setSkipResolutions(1).setBitmapPool(pool).decode();
+        assertEquals(ceilDiv(expected.getWidth(), 1), reduced.getWidth());
+        assertEquals(ceilDiv(expected.getHeight(), 1), reduced.getHeight());
+        assertEquals(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT, reduced == first);
+        util.assertBitmapsEqual(new JP2Decoder(data).setSkipResolutions(1).decode(), reduced);
+
+        //a bitmap of another config is not used
+        pool.clear();
+        pool.put(Bitmap.createBitmap(expected.getWidth(), expected.getHeight(), Bitmap.Config.RGB_565));
+        assertEquals(Bitmap.Config.ARGB_8888, new JP2Decoder(data).setBitmapPool(pool).decode().getConfig());
+        assertEquals(bitmapSize / 2, pool.getSize());
+
+        //the least recently returned bitmaps are recycled when the pool is full; immutable bitmaps are ignored
+        pool.clear();
+        Bitmap[] bitmaps = new Bitmap[3];
+        for (int i = 0; i < bitmaps.length; i++) {
+            bitmaps[i] = Bitmap.createBitmap(expected.getWidth(), expected.getHeight(), Bitmap.Config.ARGB_8888);
+            pool.put(bitmaps[i]);
+        }
+        pool.put(expected);
+        assertEquals(2 * bitmapSize, pool.getSize());
+        assertTrue(bitmaps[0].isRecycled());
+        assertFalse(bitmaps[1].isRecycled());
+        assertFalse(expected.isRecycled());
+        //the most recently returned bitmap is used first
+        assertSame(bitmaps[2], new JP2Decoder(data).setBitmapPool(pool).decode());
+        pool.clear();
+        assertTrue(bitmaps[1].isRecycled());
+        assertEquals(0, pool.getSize());
+
+        //identical asynchronous requests with a pool are not de-duplicated, each one gets its own bitmap
+        JP2Scheduler scheduler = new JP2Scheduler(1, Long.MAX_VALUE);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Bitmap> blocker = blockScheduler(scheduler, release);
+        Future<Bitmap> pooled1 = new JP2Decoder(data).setBitmapPool(pool).setScheduler(scheduler).decodeAsync(JP2Scheduler.Priority.VISIBLE);
+        Future<Bitmap> pooled2 = new JP2Decoder(data).setBitmapPool(pool).setScheduler(scheduler).decodeAsync(JP2Scheduler.Priority.VISIBLE);
+        release.countDown();
+        assertNotNull(blocker.get());
+        assertNotSame(pooled1.get(), pooled2.get());
+        util.assertBitmapsEqual(expected, pooled1.get());
+        util.assertBitmapsEqual(expected, pooled2.get());
+    }
+
     @Test
     public void testDecodeMultithreaded() throws Throwable {
         //test decoding in multiple (4) threads.
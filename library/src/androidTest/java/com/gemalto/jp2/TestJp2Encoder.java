@@ -219,6 +219,13 @@ public class TestJp2Encoder {
                 fail("Exception should have been thrown");
             } catch (IllegalArgumentException ignored) {}
         }
+
+        for (int threads : new int[]{0, -2}) {
+            try {
+                new JP2Encoder(expected).setThreads(threads);
+                fail("Exception should have been thrown");
+            } catch (IllegalArgumentException ignored) {}
+        }
     }
 
     /*
@@ -493,6 +500,31 @@ public class TestJp2Encoder {
         return acc * 1.0 / (pixels1.length * 3); //3 channels
     }
 
+    /*
+      Encode images using the OpenJPEG thread pool, check that the output is identical to the single-threaded output.
+     */
+    @Test
+    public void testEncodeThreads() throws Exception {
+        String[] images = new String[] {"lena.png", "fullrgb.png", "transparent.raw"};
+        for (String image : images) {
+            Bitmap bmp = image.endsWith(".raw") ? util.loadAssetRawBitmap(image, 175, 65) : util.loadAssetBitmap(image);
+            byte[] lossless = new JP2Encoder(bmp).encode();
+            byte[] lossy = new JP2Encoder(bmp).setVisualQuality(30, 50).encode();
+            assertNotNull(lossless);
+            assertNotNull(lossy);
+            for (int threads : new int[] {2, 4, JP2Encoder.ALL_CORES}) {
+                //byte array
+                assertArrayEquals(image + ", " + threads + " threads", lossless, new JP2Encoder(bmp).setThreads(threads).encode());
+                assertArrayEquals(image + ", " + threads + " threads", lossy, new JP2Encoder(bmp).setThreads(threads).setVisualQuality(30, 50).encode());
+
+                //file
+                File outFile = File.createTempFile("testjp2", "tmp", ctx.getFilesDir());
+                assertTrue(new JP2Encoder(bmp).setThreads(threads).encode(outFile.getPath()));
+                assertArrayEquals(image + ", " + threads + " threads", lossless, util.loadFile(outFile.getPath()));
+                outFile.delete();
+            }
+        }
+    }
 
     @Test
     public void testEncodeMultithreaded() throws Throwable {
@@ -0,0 +1,186 @@
+/*
+ Worker pool decoding a batch of images (see JP2Decoder.decodeBatch()).
+
+ The calling thread reads the sources one after another and queues them, while the worker threads decode the
+ images read before; reading the next source thus overlaps with decoding the previous ones. The decoded images are
+ handed back to the calling thread in the order in which they are finished, so that only the calling thread calls
+ back into Java. At most BATCH_READ_AHEAD sources per worker are read and not yet handed back, which bounds the memory
+ used by a batch of any length.
+
+ The functions reading, decoding and handing back the images are supplied by the caller; the pool doesn't depend on
+ JNI and is also used by the host benchmark (benchmark/batch_benchmark.cpp).
+ */
+
+#ifndef BATCH_DECODE_H
+#define BATCH_DECODE_H
+
+#include <pthread.h>
+#include <stdbool.h>
+#include <stddef.h>
+#include <stdlib.h>
+
+#define BATCH_READ_AHEAD 2
+
+typedef struct batch_job_t {
+    int index; //index of the source in the batch
+    char *data; //the encoded image, freed by the pool once decoded
+    size_t length;
+    void *result; //the decoded image, set by the decode function
+    bool ok; //the image has been read and decoded
+    struct batch_job_t *next;
+} batch_job_t;
+
+typedef struct batch_functions_t {
+    //read the source job->index into job->data (malloc'ed), in the calling thread; return false in case of an error
+    bool (*read)(batch_job_t *job, void *context);
+    //decode job->data into job->result, in a worker thread; return false in case of an error
+    bool (*decode)(batch_job_t *job, void *context);
+    //hand back a finished job, in the calling thread; return false to stop the batch. The job's result is then
+    //owned by the callee.
+    bool (*deliver)(batch_job_t *job, void *context);
+    //free the result of a job which won't be delivered because the batch was stopped
+    void (*discard)(batch_job_t *job, void *context);
+} batch_functions_t;
+
+typedef struct batch_pool_t {
+    pthread_mutex_t mutex;
+    pthread_cond_t changed; //a job was queued or finished, or the pool is closing
+    batch_job_t *queued; //read, waiting for a worker (FIFO)
+    batch_job_t *queuedTail;
+    batch_job_t *finished; //decoded, waiting to be delivered (FIFO)
+    batch_job_t *finishedTail;
+    bool closing;
+    const batch_functions_t *functions;
+    void *context;
+} batch_pool_t;
+
+static inline void batchAppend(batch_job_t **head, batch_job_t **tail, batch_job_t *job) {
+    job->next = NULL;
+    if (*tail) (*tail)->next = job; else *head = job;
+    *tail = job;
+}
+
+static void* batchWorker(void *arg) {
+    batch_pool_t *pool = (batch_pool_t *)arg;
+    for (;;) {
+        pthread_mutex_lock(&pool->mutex);
+        while (!pool->queued && !pool->closing) pthread_cond_wait(&pool->changed, &pool->mutex);
+        //when the pool is closing early, the queued jobs are discarded instead of decoded
+        if (pool->closing) {
+            pthread_mutex_unlock(&pool->mutex);
+            return NULL;
+        }
+        batch_job_t *job = pool->queued;
+        pool->queued = job->next;
+        if (!pool->queued) pool->queuedTail = NULL;
+        pthread_mutex_unlock(&pool->mutex);
+
+        job->ok = pool->functions->decode(job, pool->context);
+        free(job->data);
+        job->data = NULL;
+
+        pthread_mutex_lock(&pool->mutex);
+        batchAppend(&pool->finished, &pool->finishedTail, job);
+        pthread_cond_broadcast(&pool->changed);
+        pthread_mutex_unlock(&pool->mutex);
+    }
+}
+
+//take all the finished jobs; if wait is true, wait for one first
+static batch_job_t* batchTakeFinished(batch_pool_t *pool, bool wait) {
+    pthread_mutex_lock(&pool->mutex);
+    while (wait && !pool->finished) pthread_cond_wait(&pool->changed, &pool->mutex);
+    batch_job_t *jobs = pool->finished;
+    pool->finished = pool->finishedTail = NULL;
+    pthread_mutex_unlock(&pool->mutex);
+    return jobs;
+}
+
+static void batchDiscard(batch_pool_t *pool, batch_job_t *jobs) {
+    while (jobs) {
+        batch_job_t *next = jobs->next;
+        if (jobs->result) pool->functions->discard(jobs, pool->context);
+        free(jobs->data);
+        free(jobs);
+        jobs = next;
+    }
+}
+
+/*
+ Decode count sources with the given number of worker threads. Return true if all the images have been delivered,
+ false if the batch was stopped by the deliver function or the pool could not be started.
+ */
+static bool batchRun(int count, int threads, const batch_functions_t *functions, void *context) {
+    batch_pool_t pool;
+    pthread_t *workers;
+    int started = 0, next = 0, outstanding = 0, i;
+    int maxOutstanding;
+    bool goOn;
+
+    if (threads < 1) threads = 1;
+    maxOutstanding = threads * BATCH_READ_AHEAD;
+    workers = (pthread_t *)malloc(threads * sizeof(pthread_t));
+    if (!workers) return false;
+    pool.queued = pool.queuedTail = pool.finished = pool.finishedTail = NULL;
+    pool.closing = false;
+    pool.functions = functions;
+    pool.context = context;
+    pthread_mutex_init(&pool.mutex, NULL);
+    pthread_cond_init(&pool.changed, NULL);
+    for (i = 0; i < threads; i++) {
+        if (pthread_create(&workers[i], NULL, batchWorker, &pool) != 0) break;
+        started++;
+    }
+
+    goOn = started > 0;
+    while (goOn && (next < count || outstanding > 0)) {
+        bool canRead = next < count && outstanding < maxOutstanding;
+        //hand back the finished images first; wait for one if no more sources can be read now
+        batch_job_t *jobs = batchTakeFinished(&pool, !canRead);
+        while (jobs && goOn) {
+            batch_job_t *job = jobs;
+            jobs = job->next;
+            outstanding--;
+            goOn = functions->deliver(job, context);
+            free(job);
+        }
+        batchDiscard(&pool, jobs);
+        if (!goOn || !canRead) continue;
+
+        //read the next source while the workers decode
+        batch_job_t *job = (batch_job_t *)calloc(1, sizeof(batch_job_t));
+        if (!job) {
+            goOn = false;
+            break;
+        }
+        job->index = next++;
+        if (!functions->read(job, context)) {
+            //nothing to decode, hand back the error right away
+            goOn = functions->deliver(job, context);
+            free(job->data);
+            free(job);
+            continue;
+        }
+        pthread_mutex_lock(&pool.mutex);
+        batchAppend(&pool.queued, &pool.queuedTail, job);
+        outstanding++;
+        pthread_cond_broadcast(&pool.changed);
+        pthread_mutex_unlock(&pool.mutex);
+    }
+
+    pthread_mutex_lock(&pool.mutex);
+    pool.closing = true;
+    pthread_cond_broadcast(&pool.changed);
+    pthread_mutex_unlock(&pool.mutex);
+    for (i = 0; i < started; i++) pthread_join(workers[i], NULL);
+    //the jobs left over by a stopped batch
+    batchDiscard(&pool, pool.queued);
+    batchDiscard(&pool, pool.finished);
+
+    pthread_cond_destroy(&pool.changed);
+    pthread_mutex_destroy(&pool.mutex);
+    free(workers);
+    return goOn && next == count && outstanding == 0;
+}
+
+#endif
@@ -0,0 +1,187 @@
+/*
+ Benchmark of the batch decoding in batch_decode.h: decodes a list of images one by one (without and with the
+ OpenJPEG thread pool decoding each image in parallel) and then by the batch worker pool, and prints the throughput
+ in images per second. The files are read from disk in every run, as JP2Decoder.decodeBatch() does.
+
+ Build with -DJP2_BUILD_BENCHMARKS=ON and run the batch_benchmark executable on the device, e.g.
+   adb push batch_benchmark /data/local/tmp && adb shell /data/local/tmp/batch_benchmark -t 4 /sdcard/a.jp2 /sdcard/b.jp2
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include "openjpeg.h"
+#include "batch_decode.h"
+
+#define DEFAULT_JOBS 200
+
+typedef struct benchmark_t {
+    char **files;
+    int numFiles;
+    int decoded;
+} benchmark_t;
+
+typedef struct memory_stream_t {
+    const char *data;
+    size_t length;
+    size_t offset;
+} memory_stream_t;
+
+static double nowMs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+static bool readFile(const char *name, char **data, size_t *length) {
+    FILE *f = fopen(name, "rb");
+    long size;
+    if (!f) return false;
+    fseek(f, 0, SEEK_END);
+    size = ftell(f);
+    fseek(f, 0, SEEK_SET);
+    *data = (char *)malloc(size > 0 ? size : 1);
+    *length = *data && size > 0 ? fread(*data, 1, size, f) : 0;
+    fclose(f);
+    if (*length != (size_t)size || size <= 0) {
+        free(*data);
+        *data = NULL;
+        return false;
+    }
+    return true;
+}
+
+static OPJ_SIZE_T streamRead(void *buffer, OPJ_SIZE_T size, void *userData) {
+    memory_stream_t *stream = (memory_stream_t *)userData;
+    OPJ_SIZE_T count = stream->length - stream->offset;
+    if (count == 0) return (OPJ_SIZE_T)-1;
+    if (count > size) count = size;
+    memcpy(buffer, stream->data + stream->offset, count);
+    stream->offset += count;
+    return count;
+}
+
+static OPJ_OFF_T streamSkip(OPJ_OFF_T count, void *userData) {
+    memory_stream_t *stream = (memory_stream_t *)userData;
+    if (count < 0 || (size_t)count > stream->length - stream->offset) return -1;
+    stream->offset += count;
+    return count;
+}
+
+static OPJ_BOOL streamSeek(OPJ_OFF_T offset, void *userData) {
+    memory_stream_t *stream = (memory_stream_t *)userData;
+    if (offset < 0 || (size_t)offset > stream->length) return OPJ_FALSE;
+    stream->offset = offset;
+    return OPJ_TRUE;
+}
+
+//decode an image from memory with the given number of OpenJPEG threads; return the decoded image or NULL
+static opj_image_t* decode(const char *data, size_t length, int threads) {
+    static const unsigned char JP2_MAGIC[] = {0x00, 0x00, 0x00, 0x0C, 0x6A, 0x50};
+    memory_stream_t source = {data, length, 0};
+    opj_dparameters_t parameters;
+    opj_image_t *image = NULL;
+    opj_stream_t *stream;
+    opj_codec_t *codec;
+    bool jp2 = length >= sizeof(JP2_MAGIC) && memcmp(data, JP2_MAGIC, sizeof(JP2_MAGIC)) == 0;
+
+    stream = opj_stream_create(OPJ_J2K_STREAM_CHUNK_SIZE, OPJ_TRUE);
+    if (!stream) return NULL;
+    opj_stream_set_user_data(stream, &source, NULL);
+    opj_stream_set_user_data_length(stream, length);
+    opj_stream_set_read_function(stream, streamRead);
+    opj_stream_set_skip_function(stream, streamSkip);
+    opj_stream_set_seek_function(stream, streamSeek);
+
+    opj_set_default_decoder_parameters(&parameters);
+    codec = opj_create_decompress(jp2 ? OPJ_CODEC_JP2 : OPJ_CODEC_J2K);
+    if (!opj_setup_decoder(codec, &parameters) || (threads > 1 && !opj_codec_set_threads(codec, threads))
+            || !opj_read_header(stream, codec, &image) || !opj_decode(codec, stream, image)
+            || !opj_end_decompress(codec, stream)) {
+        opj_image_destroy(image);
+        image = NULL;
+    }
+    opj_destroy_codec(codec);
+    opj_stream_destroy(stream);
+    return image;
+}
+
+static bool batchRead(batch_job_t *job, void *context) {
+    benchmark_t *benchmark = (benchmark_t *)context;
+    return readFile(benchmark->files[job->index % benchmark->numFiles], &job->data, &job->length);
+}
+
+static bool batchDecode(batch_job_t *job, void *) {
+    job->result = decode(job->data, job->length, 1);
+    return job->result != NULL;
+}
+
+static bool batchDeliver(batch_job_t *job, void *context) {
+    benchmark_t *benchmark = (benchmark_t *)context;
+    if (job->ok) benchmark->decoded++;
+    opj_image_destroy((opj_image_t *)job->result);
+    return true;
+}
+
+static void batchDiscardResult(batch_job_t *job, void *) {
+    opj_image_destroy((opj_image_t *)job->result);
+}
+
+//read and decode the images one after another; return the number of decoded images
+static int runSequential(benchmark_t *benchmark, int jobs, int threads) {
+    int decoded = 0, i;
+    for (i = 0; i < jobs; i++) {
+        char *data;
+        size_t length;
+        if (!readFile(benchmark->files[i % benchmark->numFiles], &data, &length)) continue;
+        opj_image_t *image = decode(data, length, threads);
+        free(data);
+        if (image) decoded++;
+        opj_image_destroy(image);
+    }
+    return decoded;
+}
+
+static void report(const char *name, int jobs, int decoded, double ms) {
+    printf("%-28s %8.1f ms   %7.1f images/s   %d/%d decoded\n", name, ms, jobs * 1000.0 / ms, decoded, jobs);
+}
+
+int main(int argc, char **argv) {
+    static const batch_functions_t functions = {batchRead, batchDecode, batchDeliver, batchDiscardResult};
+    benchmark_t benchmark;
+    int threads = (int)sysconf(_SC_NPROCESSORS_ONLN), jobs = DEFAULT_JOBS, decoded, opt;
+    double start, ms;
+    char name[64];
+
+    while ((opt = getopt(argc, argv, "t:n:")) != -1) {
+        if (opt == 't') threads = atoi(optarg);
+        else if (opt == 'n') jobs = atoi(optarg);
+        else break;
+    }
+    if (optind >= argc || threads < 1 || jobs < 1) {
+        fprintf(stderr, "usage: %s [-t threads] [-n images] file...\n", argv[0]);
+        return 1;
+    }
+    benchmark.files = argv + optind;
+    benchmark.numFiles = argc - optind;
+    printf("%d images from %d file(s), %d threads\n", jobs, benchmark.numFiles, threads);
+
+    start = nowMs();
+    decoded = runSequential(&benchmark, jobs, 1);
+    report("loop, 1 thread", jobs, decoded, nowMs() - start);
+
+    start = nowMs();
+    decoded = runSequential(&benchmark, jobs, threads);
+    snprintf(name, sizeof(name), "loop, %d threads per image", threads);
+    report(name, jobs, decoded, nowMs() - start);
+
+    benchmark.decoded = 0;
+    start = nowMs();
+    batchRun(jobs, threads, &functions, &benchmark);
+    ms = nowMs() - start;
+    snprintf(name, sizeof(name), "batch, %d workers", threads);
+    report(name, jobs, benchmark.decoded, ms);
+    return 0;
+}
@@ -0,0 +1,89 @@
+/*
+ Microbenchmark of the pixel packing in pixel_pack.h: compares the scalar code with the SIMD code (NEON or SSE2,
+ depending on the target) on a 24 Mpx image and checks that both give the same pixels.
+
+ Build with -DJP2_BUILD_BENCHMARKS=ON and run the pack_benchmark executable on the device, e.g.
+   adb push pack_benchmark /data/local/tmp && adb shell /data/local/tmp/pack_benchmark
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "pixel_pack.h"
+
+#define WIDTH 6000
+#define HEIGHT 4000
+#define ROUNDS 5
+
+typedef void (*pack_func_t)(const int32_t *, const int32_t *, const int32_t *, const int32_t *, uint8_t *, int, bool);
+
+static double nowMs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+//pack the whole image row by row, as imagetoargb() does; return the best time of several rounds
+static double run(pack_func_t pack, int32_t **comps, bool gray, bool alpha, bool premultiply, uint8_t *out) {
+    double best = 1e30;
+    int round, y;
+    for (round = 0; round < ROUNDS; round++) {
+        double start = nowMs();
+        for (y = 0; y < HEIGHT; y++) {
+            size_t offset = (size_t)y * WIDTH;
+            const int32_t *r = comps[0] + offset;
+            const int32_t *g = gray ? r : comps[1] + offset;
+            const int32_t *b = gray ? r : comps[2] + offset;
+            const int32_t *a = alpha ? comps[3] + offset : NULL;
+            pack(r, g, b, a, out + offset * 4, WIDTH, premultiply);
+        }
+        double time = nowMs() - start;
+        if (time < best) best = time;
+    }
+    return best;
+}
+
+int main() {
+    size_t count = (size_t)WIDTH * HEIGHT;
+    int32_t *comps[4];
+    int i;
+    size_t j;
+    srand(1);
+    for (i = 0; i < 4; i++) {
+        comps[i] = (int32_t *)malloc(count * sizeof(int32_t));
+        for (j = 0; j < count; j++) {
+            comps[i][j] = rand() & 0xFF;
+        }
+    }
+    uint8_t *expected = (uint8_t *)malloc(count * 4);
+    uint8_t *actual = (uint8_t *)malloc(count * 4);
+    if (!expected || !actual) return 1;
+
+    static const struct {
+        const char *name;
+        bool gray, alpha, premultiply;
+    } cases[] = {
+        {"RGB", false, false, false},
+        {"RGBA", false, true, false},
+        {"RGBA premultiplied", false, true, true},
+        {"gray", true, false, false},
+    };
+#if defined(PIXEL_PACK_NEON)
+    printf("%d x %d pixels, NEON\n", WIDTH, HEIGHT);
+#elif defined(PIXEL_PACK_SSE2)
+    printf("%d x %d pixels, SSE2\n", WIDTH, HEIGHT);
+#else
+    printf("%d x %d pixels, no SIMD\n", WIDTH, HEIGHT);
+#endif
+    int result = 0;
+    for (i = 0; i < (int)(sizeof(cases) / sizeof(cases[0])); i++) {
+        double scalar = run(packRGBA8Scalar, comps, cases[i].gray, cases[i].alpha, cases[i].premultiply, expected);
+        double simd = run(packRGBA8, comps, cases[i].gray, cases[i].alpha, cases[i].premultiply, actual);
+        bool same = memcmp(expected, actual, count * 4) == 0;
+        printf("%-20s scalar %7.2f ms   simd %7.2f ms   speedup %5.2fx   %s\n", cases[i].name, scalar, simd,
+               scalar / simd, same ? "OK" : "MISMATCH");
+        if (!same) result = 1;
+    }
+    return result;
+}
@@ -278,6 +278,16 @@ void OPJ_CALLCONV opj_stream_set_user_data_length(opj_stream_t* p_stream,
     l_stream->m_user_data_length = data_length;
 }
 
+void OPJ_CALLCONV opj_stream_set_user_data_length_function(
+    opj_stream_t* p_stream, opj_stream_length_fn p_function)
+{
+    opj_stream_private_t* l_stream = (opj_stream_private_t*) p_stream;
+    if (!l_stream) {
+        return;
+    }
+    l_stream->m_length_fn = p_function;
+}
+
 OPJ_SIZE_T opj_stream_read_data(opj_stream_private_t * p_stream,
                                 OPJ_BYTE * p_buffer, OPJ_SIZE_T p_size, opj_event_mgr_t * p_event_mgr)
 {
@@ -590,6 +600,22 @@ OPJ_OFF_T opj_stream_get_number_byte_left(const opj_stream_private_t * p_stream)
            0;
 }
 
+OPJ_OFF_T opj_stream_get_exact_number_byte_left(opj_stream_private_t *
+        p_stream, opj_event_mgr_t * p_event_mgr)
+{
+    if (p_stream->m_length_fn) {
+        OPJ_UINT64 l_length;
+        if (!p_stream->m_length_fn(&l_length, p_stream->m_user_data) ||
+                l_length < (OPJ_UINT64)p_stream->m_byte_offset) {
+            opj_event_msg(p_event_mgr, EVT_ERROR,
+                          "Cannot determine the length of the stream\n");
+            return -1;
+        }
+        p_stream->m_user_data_length = l_length;
+    }
+    return opj_stream_get_number_byte_left(p_stream);
+}
+
 OPJ_OFF_T opj_stream_skip(opj_stream_private_t * p_stream, OPJ_OFF_T p_size,
                           opj_event_mgr_t * p_event_mgr)
 {
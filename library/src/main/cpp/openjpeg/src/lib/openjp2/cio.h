@@ -96,6 +96,11 @@ typedef struct opj_stream_private {
      */
     OPJ_UINT64              m_user_data_length;
 
+    /**
+     * Pointer to the function determining the exact user data length (if available).
+     */
+    opj_stream_length_fn    m_length_fn;
+
     /**
      * Pointer to actual read function (NULL at the initialization of the cio.
      */
@@ -325,6 +330,18 @@ OPJ_OFF_T opj_stream_tell(const opj_stream_private_t * p_stream);
 OPJ_OFF_T opj_stream_get_number_byte_left(const opj_stream_private_t *
         p_stream);
 
+/**
+ * Get the exact number of bytes left before the end of the stream. If the stream
+ * length is only an upper bound, the length function determines it first.
+ *
+ * @param       p_stream    the stream to get the information from.
+ * @param       p_event_mgr the user event manager to be notified of special events.
+ *
+ * @return      Number of bytes left before the end of the stream, -1 in case of an error.
+ */
+OPJ_OFF_T opj_stream_get_exact_number_byte_left(opj_stream_private_t *
+        p_stream, opj_event_mgr_t * p_event_mgr);
+
 /**
  * Skips a number of bytes from the stream.
  * @param       p_stream    the stream to skip data from.
@@ -147,5 +147,25 @@ void opj_set_default_event_handler(opj_event_mgr_t * p_manager)
     p_manager->error_handler = opj_default_callback;
     p_manager->info_handler = opj_default_callback;
     p_manager->warning_handler = opj_default_callback;
+    p_manager->m_abort_data = 00;
+    p_manager->abort_handler = 00;
+    p_manager->m_progress_data = 00;
+    p_manager->progress_handler = 00;
+}
+
+OPJ_BOOL opj_event_abort(opj_event_mgr_t* p_event_mgr)
+{
+    return p_event_mgr != 00 && p_event_mgr->abort_handler != 00 &&
+           p_event_mgr->abort_handler(p_event_mgr->m_abort_data);
+}
+
+OPJ_BOOL opj_event_progress(opj_event_mgr_t* p_event_mgr, OPJ_UINT32 done,
+                            OPJ_UINT32 total)
+{
+    if (p_event_mgr == 00 || p_event_mgr->progress_handler == 00) {
+        return OPJ_TRUE;
+    }
+    return p_event_mgr->progress_handler(done, total,
+                                         p_event_mgr->m_progress_data);
 }
 
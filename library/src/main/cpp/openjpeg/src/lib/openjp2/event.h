@@ -60,6 +60,14 @@ typedef struct opj_event_mgr {
     opj_msg_callback warning_handler;
     /** Debug message callback if available, NULL otherwise */
     opj_msg_callback info_handler;
+    /** Data to call the abort handler upon */
+    void *          m_abort_data;
+    /** Abort callback if available, NULL otherwise */
+    opj_abort_callback abort_handler;
+    /** Data to call the progress handler upon */
+    void *          m_progress_data;
+    /** Progress callback if available, NULL otherwise */
+    opj_progress_callback progress_handler;
 } opj_event_mgr_t;
 
 
@@ -95,6 +103,26 @@ OPJ_BOOL opj_event_msg(opj_event_mgr_t* event_mgr, OPJ_INT32 event_type,
  */
 void opj_set_default_event_handler(opj_event_mgr_t * p_manager);
 
+/**
+ * Poll the abort handler of an event manager.
+ *
+ * @param event_mgr the event manager, can be NULL
+ * @return OPJ_TRUE if the decoding or encoding must be aborted
+ */
+OPJ_BOOL opj_event_abort(opj_event_mgr_t* event_mgr);
+
+/**
+ * Report the progress of a decoding or an encoding to the progress handler
+ * of an event manager.
+ *
+ * @param event_mgr the event manager, can be NULL
+ * @param done      number of tiles decoded or encoded so far
+ * @param total     number of tiles to decode or encode
+ * @return OPJ_FALSE if the decoding or encoding must be aborted
+ */
+OPJ_BOOL opj_event_progress(opj_event_mgr_t* event_mgr, OPJ_UINT32 done,
+                            OPJ_UINT32 total);
+
 /*
 #ifdef __GNUC__
 #pragma GCC poison printf fprintf
@@ -4873,6 +4873,7 @@ static OPJ_BOOL opj_j2k_read_sod(opj_j2k_t *p_j2k,
     opj_tcp_t * l_tcp = 00;
     OPJ_UINT32 * l_tile_len = 00;
     OPJ_BOOL l_sot_length_pb_detected = OPJ_FALSE;
+    OPJ_BOOL l_truncated = OPJ_FALSE;
 
     /* preconditions */
     assert(p_j2k != 00);
@@ -4886,8 +4887,15 @@ static OPJ_BOOL opj_j2k_read_sod(opj_j2k_t *p_j2k,
         // but we are in the last tile part,
         // so its result will fit on OPJ_UINT32 unless we find
         // a file with a single tile part of more than 4 GB...*/
+        /* The tile-part extends to the end of the codestream: the length */
+        /* of a stream whose length is only an upper bound must be exact. */
+        OPJ_OFF_T l_byte_left = opj_stream_get_exact_number_byte_left(p_stream,
+                                p_manager);
+        if (l_byte_left < 0) {
+            return OPJ_FALSE;
+        }
         p_j2k->m_specific_param.m_decoder.m_sot_length = (OPJ_UINT32)(
-                    opj_stream_get_number_byte_left(p_stream) - 2);
+                    l_byte_left - 2);
     } else {
         /* Check to avoid pass the limit of OPJ_UINT32 */
         if (p_j2k->m_specific_param.m_decoder.m_sot_length >= 2) {
@@ -4906,9 +4914,17 @@ static OPJ_BOOL opj_j2k_read_sod(opj_j2k_t *p_j2k,
         /* Check enough bytes left in stream before allocation */
         if ((OPJ_OFF_T)p_j2k->m_specific_param.m_decoder.m_sot_length >
                 opj_stream_get_number_byte_left(p_stream)) {
-            opj_event_msg(p_manager, EVT_ERROR,
+            if (p_j2k->m_cp.strict) {
+                opj_event_msg(p_manager, EVT_ERROR,
+                              "Tile part length size inconsistent with stream length\n");
+                return OPJ_FALSE;
+            }
+            /* Truncated codestream: read what is left of the tile-part */
+            opj_event_msg(p_manager, EVT_WARNING,
                           "Tile part length size inconsistent with stream length\n");
-            return OPJ_FALSE;
+            p_j2k->m_specific_param.m_decoder.m_sot_length = (OPJ_UINT32)
+                    opj_stream_get_number_byte_left(p_stream);
+            l_truncated = OPJ_TRUE;
         }
         if (p_j2k->m_specific_param.m_decoder.m_sot_length >
                 UINT_MAX - OPJ_COMMON_CBLK_DATA_EXTRA) {
@@ -4994,7 +5010,8 @@ static OPJ_BOOL opj_j2k_read_sod(opj_j2k_t *p_j2k,
         l_current_read_size = 0;
     }
 
-    if (l_current_read_size != p_j2k->m_specific_param.m_decoder.m_sot_length) {
+    if (l_current_read_size != p_j2k->m_specific_param.m_decoder.m_sot_length ||
+            l_truncated) {
         p_j2k->m_specific_param.m_decoder.m_state = J2K_STATE_NEOC;
     } else {
         p_j2k->m_specific_param.m_decoder.m_state = J2K_STATE_TPHSOT;
@@ -9405,6 +9422,13 @@ OPJ_BOOL opj_j2k_read_tile_header(opj_j2k_t * p_j2k,
     if (p_j2k->m_specific_param.m_decoder.m_state == J2K_STATE_EOC) {
         l_current_marker = J2K_MS_EOC;
     }
+    /* Without strict mode, the end of a truncated codestream is handled */
+    /* like an EOC marker: the tiles read so far are decoded */
+    else if (!p_j2k->m_cp.strict &&
+             p_j2k->m_specific_param.m_decoder.m_state == J2K_STATE_NEOC &&
+             opj_stream_get_number_byte_left(p_stream) == 0) {
+        l_current_marker = J2K_MS_EOC;
+    }
     /* We need to encounter a SOT marker (a new tile-part header) */
     else if (p_j2k->m_specific_param.m_decoder.m_state != J2K_STATE_TPHSOT) {
         return OPJ_FALSE;
@@ -9592,6 +9616,11 @@ OPJ_BOOL opj_j2k_read_tile_header(opj_j2k_t * p_j2k,
         }
 
         if (! p_j2k->m_specific_param.m_decoder.m_can_decode) {
+            if (!p_j2k->m_cp.strict && opj_stream_get_number_byte_left(p_stream) == 0) {
+                p_j2k->m_specific_param.m_decoder.m_state = J2K_STATE_NEOC;
+                break;
+            }
+
             /* Try to read 2 bytes (the next marker ID) from stream and copy them into the buffer */
             if (opj_stream_read_data(p_stream,
                                      p_j2k->m_specific_param.m_decoder.m_header_data, 2, p_manager) != 2) {
@@ -9630,6 +9659,12 @@ OPJ_BOOL opj_j2k_read_tile_header(opj_j2k_t * p_j2k,
         }
     }
 
+    if (!p_j2k->m_cp.strict && !p_j2k->m_specific_param.m_decoder.m_can_decode &&
+            p_j2k->m_specific_param.m_decoder.m_state == J2K_STATE_NEOC &&
+            opj_stream_get_number_byte_left(p_stream) == 0) {
+        l_current_marker = J2K_MS_EOC;
+    }
+
     /* Current marker is the EOC marker ?*/
     if (l_current_marker == J2K_MS_EOC) {
         if (p_j2k->m_specific_param.m_decoder.m_state != J2K_STATE_EOC) {
@@ -9765,6 +9800,12 @@ OPJ_BOOL opj_j2k_decode_tile(opj_j2k_t * p_j2k,
     }
 
     if (p_j2k->m_specific_param.m_decoder.m_state != J2K_STATE_EOC) {
+        if (!p_j2k->m_cp.strict && opj_stream_get_number_byte_left(p_stream) == 0) {
+            p_j2k->m_specific_param.m_decoder.m_state = J2K_STATE_NEOC;
+            opj_event_msg(p_manager, EVT_WARNING, "Stream does not end with EOC\n");
+            return OPJ_TRUE;
+        }
+
         if (opj_stream_read_data(p_stream, l_data, 2, p_manager) != 2) {
             opj_event_msg(p_manager, EVT_ERROR, "Stream too short\n");
             return OPJ_FALSE;
@@ -10058,6 +10099,13 @@ static OPJ_BOOL opj_j2k_update_image_dimensions(opj_image_t* p_image,
     return OPJ_TRUE;
 }
 
+void opj_j2k_decoder_set_strict_mode(opj_j2k_t *p_j2k, OPJ_BOOL strict)
+{
+    if (p_j2k) {
+        p_j2k->m_cp.strict = strict;
+    }
+}
+
 OPJ_BOOL opj_j2k_set_decoded_components(opj_j2k_t *p_j2k,
                                         OPJ_UINT32 numcomps,
                                         const OPJ_UINT32* comps_indices,
@@ -10285,6 +10333,8 @@ opj_j2k_t* opj_j2k_create_decompress(void)
     /* in the absence of JP2 boxes, consider different bit depth / sign */
     /* per component is allowed */
     l_j2k->m_cp.allow_different_bit_depth_sign = 1;
+    l_j2k->m_cp.strict = OPJ_TRUE;
+    l_j2k->m_cp.m_specific_param.m_dec.m_complete_layers = UINT_MAX;
 
 #ifdef OPJ_DISABLE_TPSOT_FIX
     l_j2k->m_specific_param.m_decoder.m_nb_tile_parts_correction_checked = 1;
@@ -11289,8 +11339,10 @@ opj_codestream_info_v2_t* j2k_get_cstr_info(opj_j2k_t* p_j2k)
         l_tccp_info->cblksty = l_tccp->cblksty;
         l_tccp_info->qmfbid = l_tccp->qmfbid;
         if (l_tccp->numresolutions < OPJ_J2K_MAXRLVLS) {
-            memcpy(l_tccp_info->prch, l_tccp->prch, l_tccp->numresolutions);
-            memcpy(l_tccp_info->prcw, l_tccp->prcw, l_tccp->numresolutions);
+            memcpy(l_tccp_info->prch, l_tccp->prch,
+                   l_tccp->numresolutions * sizeof(OPJ_UINT32));
+            memcpy(l_tccp_info->prcw, l_tccp->prcw,
+                   l_tccp->numresolutions * sizeof(OPJ_UINT32));
         }
 
         /* quantization style*/
@@ -11363,6 +11415,12 @@ opj_codestream_index_t* j2k_get_cstr_index(opj_j2k_t* p_j2k)
             l_cstr_index->tile_index[it_tile].marknum =
                 p_j2k->cstr_index->tile_index[it_tile].marknum;
 
+            /* No marker nor tile-part is read before decoding */
+            if (l_cstr_index->tile_index[it_tile].marknum == 0 &&
+                    p_j2k->cstr_index->tile_index[it_tile].nb_tps == 0) {
+                continue;
+            }
+
             l_cstr_index->tile_index[it_tile].marker =
                 (opj_marker_info_t*)opj_malloc(l_cstr_index->tile_index[it_tile].marknum *
                                                sizeof(opj_marker_info_t));
@@ -11538,10 +11596,19 @@ static OPJ_BOOL opj_j2k_decode_tiles(opj_j2k_t *p_j2k,
             p_j2k->m_tcd->tcd_image->tiles->comps[i].data = NULL;
         }
 
+        if (! opj_event_progress(p_manager, 1, 1)) {
+            opj_event_msg(p_manager, EVT_ERROR, "Decoding aborted\n");
+            return OPJ_FALSE;
+        }
         return OPJ_TRUE;
     }
 
     for (;;) {
+        if (opj_event_abort(p_manager)) {
+            opj_event_msg(p_manager, EVT_ERROR, "Decoding aborted\n");
+            return OPJ_FALSE;
+        }
+
         if (p_j2k->m_cp.tw == 1 && p_j2k->m_cp.th == 1 &&
                 p_j2k->m_cp.tcps[0].m_data != NULL) {
             l_current_tile_no = 0;
@@ -11593,7 +11660,19 @@ static OPJ_BOOL opj_j2k_decode_tiles(opj_j2k_t *p_j2k,
         opj_event_msg(p_manager, EVT_INFO,
                       "Image data has been updated with tile %d.\n\n", l_current_tile_no + 1);
 
-        if (opj_stream_get_number_byte_left(p_stream) == 0
+        /* Only the tiles of the decoded area are decoded */
+        if (! opj_event_progress(p_manager, nr_tiles + 1,
+                                 (p_j2k->m_specific_param.m_decoder.m_end_tile_x -
+                                  p_j2k->m_specific_param.m_decoder.m_start_tile_x) *
+                                 (p_j2k->m_specific_param.m_decoder.m_end_tile_y -
+                                  p_j2k->m_specific_param.m_decoder.m_start_tile_y))) {
+            opj_event_msg(p_manager, EVT_ERROR, "Decoding aborted\n");
+            return OPJ_FALSE;
+        }
+
+        /* Without strict mode, go on with the other tiles read before the */
+        /* end of a truncated codestream */
+        if (p_j2k->m_cp.strict && opj_stream_get_number_byte_left(p_stream) == 0
                 && p_j2k->m_specific_param.m_decoder.m_state == J2K_STATE_NEOC) {
             break;
         }
@@ -11602,6 +11681,15 @@ static OPJ_BOOL opj_j2k_decode_tiles(opj_j2k_t *p_j2k,
         }
     }
 
+    /* Tiles of the decoded area missing from a truncated codestream */
+    if (!p_j2k->m_cp.strict && nr_tiles <
+            (p_j2k->m_specific_param.m_decoder.m_end_tile_x -
+             p_j2k->m_specific_param.m_decoder.m_start_tile_x) *
+            (p_j2k->m_specific_param.m_decoder.m_end_tile_y -
+             p_j2k->m_specific_param.m_decoder.m_start_tile_y)) {
+        p_j2k->m_cp.m_specific_param.m_dec.m_complete_layers = 0;
+    }
+
     if (! opj_j2k_are_all_used_components_decoded(p_j2k, p_manager)) {
         return OPJ_FALSE;
     }
@@ -12092,6 +12180,14 @@ OPJ_BOOL opj_j2k_encode(opj_j2k_t * p_j2k,
 #endif
     }
     for (i = 0; i < l_nb_tiles; ++i) {
+        if (opj_event_abort(p_manager)) {
+            opj_event_msg(p_manager, EVT_ERROR, "Encoding aborted\n");
+            if (l_current_data) {
+                opj_free(l_current_data);
+            }
+            return OPJ_FALSE;
+        }
+
         if (! opj_j2k_pre_write_tile(p_j2k, i, p_stream, p_manager)) {
             if (l_current_data) {
                 opj_free(l_current_data);
@@ -12160,6 +12256,16 @@ OPJ_BOOL opj_j2k_encode(opj_j2k_t * p_j2k,
             }
             return OPJ_FALSE;
         }
+
+        /* the tile is done, see opj_tcd_encode_progress() for the steps within it */
+        if (! opj_event_progress(p_manager, (i + 1) * OPJ_TCD_ENCODE_STEPS,
+                                 l_nb_tiles * OPJ_TCD_ENCODE_STEPS)) {
+            opj_event_msg(p_manager, EVT_ERROR, "Encoding aborted\n");
+            if (l_current_data) {
+                opj_free(l_current_data);
+            }
+            return OPJ_FALSE;
+        }
     }
 
     if (l_current_data) {
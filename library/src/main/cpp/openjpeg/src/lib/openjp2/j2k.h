@@ -337,6 +337,8 @@ typedef struct opj_decoding_param {
     OPJ_UINT32 m_reduce;
     /** if != 0, then only the first "layer" layers are decoded; if == 0 or not used, all the quality layers are decoded */
     OPJ_UINT32 m_layer;
+    /** without strict mode: number of leading quality layers received completely in the decoded packets; UINT_MAX if no packet was missing */
+    OPJ_UINT32 m_complete_layers;
 }
 opj_decoding_param_t;
 
@@ -450,6 +452,8 @@ typedef struct opj_cp {
     OPJ_BITFIELD m_is_decoder : 1;
     /** whether different bit depth or sign per component is allowed. Decoder only for ow */
     OPJ_BITFIELD allow_different_bit_depth_sign : 1;
+    /** whether a truncated codestream fails to decode (decoder only), see opj_decoder_set_strict_mode() */
+    OPJ_BOOL strict;
     /* <<UniPG */
 } opj_cp_t;
 
@@ -733,6 +737,13 @@ OPJ_BOOL opj_j2k_set_decoded_components(opj_j2k_t *p_j2k,
                                         const OPJ_UINT32* comps_indices,
                                         opj_event_mgr_t * p_manager);
 
+/** Enables or disables strict decoding.
+ *
+ * @param p_j2k         the jpeg2000 codec.
+ * @param strict        OPJ_FALSE to decode a truncated codestream up to its last complete packet.
+ */
+void opj_j2k_decoder_set_strict_mode(opj_j2k_t *p_j2k, OPJ_BOOL strict);
+
 /**
  * Sets the given area to be decoded. This function should be called right after opj_read_header and before any tile header reading.
  *
@@ -3087,6 +3087,11 @@ OPJ_BOOL opj_jp2_set_decoded_components(opj_jp2_t *p_jp2,
                                           p_manager);
 }
 
+void opj_jp2_decoder_set_strict_mode(opj_jp2_t *p_jp2, OPJ_BOOL strict)
+{
+    opj_j2k_decoder_set_strict_mode(p_jp2->j2k, strict);
+}
+
 OPJ_BOOL opj_jp2_set_decode_area(opj_jp2_t *p_jp2,
                                  opj_image_t* p_image,
                                  OPJ_INT32 p_start_x, OPJ_INT32 p_start_y,
@@ -348,6 +348,13 @@ OPJ_BOOL opj_jp2_set_decoded_components(opj_jp2_t *jp2,
                                         const OPJ_UINT32* comps_indices,
                                         opj_event_mgr_t * p_manager);
 
+/** Enables or disables strict decoding.
+ *
+ * @param jp2 JP2 decompressor handle
+ * @param strict OPJ_FALSE to decode a truncated codestream up to its last complete packet.
+ */
+void opj_jp2_decoder_set_strict_mode(opj_jp2_t *jp2, OPJ_BOOL strict);
+
 /**
  * Reads a tile header.
  * @param  p_jp2         the jpeg2000 codec.
@@ -342,6 +342,25 @@ typedef enum CODEC_FORMAT {
  * */
 typedef void (*opj_msg_callback)(const char *msg, void *client_data);
 
+/**
+ * Callback function prototype for aborting a decoding or an encoding.
+ * It can be called from several threads at once.
+ * @param client_data       Client object given to opj_set_abort_handler()
+ * @return OPJ_TRUE to abort
+ * */
+typedef OPJ_BOOL(*opj_abort_callback)(void *client_data);
+
+/**
+ * Callback function prototype for the progress of a decoding or an encoding.
+ * It is called by the thread running opj_decode() or opj_encode().
+ * @param done              number of tiles decoded or encoded so far
+ * @param total             number of tiles to decode or encode
+ * @param client_data       Client object given to opj_set_progress_handler()
+ * @return OPJ_FALSE to abort
+ * */
+typedef OPJ_BOOL(*opj_progress_callback)(OPJ_UINT32 done, OPJ_UINT32 total,
+        void *client_data);
+
 /*
 ==========================================================
    codec typedef definitions
@@ -654,6 +673,12 @@ typedef OPJ_BOOL(* opj_stream_seek_fn)(OPJ_OFF_T p_nb_bytes,
  */
 typedef void (* opj_stream_free_user_data_fn)(void * p_user_data) ;
 
+/*
+ * Callback function prototype for the function determining the exact length of the user data
+ */
+typedef OPJ_BOOL(* opj_stream_length_fn)(OPJ_UINT64 * p_length,
+        void * p_user_data) ;
+
 /*
  * JPEG2000 Stream.
  */
@@ -1238,6 +1263,19 @@ OPJ_API void OPJ_CALLCONV opj_stream_set_user_data(opj_stream_t* p_stream,
 OPJ_API void OPJ_CALLCONV opj_stream_set_user_data_length(
     opj_stream_t* p_stream, OPJ_UINT64 data_length);
 
+/**
+ * Sets the function determining the exact length of the user data, for a stream
+ * whose length is not known in advance and was set to an upper bound with
+ * opj_stream_set_user_data_length(). The decoder calls it when it needs the exact
+ * number of bytes left, i.e. for a last tile-part extending to the end of the
+ * codestream (Psot = 0). The returned length replaces the length of the user data.
+ *
+ * @param p_stream    the stream to modify
+ * @param p_function  the function to use; it returns OPJ_FALSE in case of an error.
+*/
+OPJ_API void OPJ_CALLCONV opj_stream_set_user_data_length_function(
+    opj_stream_t* p_stream, opj_stream_length_fn p_function);
+
 /**
  * Create a stream from a file identified with its filename with default parameters (helper function)
  * @param fname             the filename of the file to stream
@@ -1289,6 +1327,33 @@ OPJ_API OPJ_BOOL OPJ_CALLCONV opj_set_error_handler(opj_codec_t * p_codec,
         opj_msg_callback p_callback,
         void * p_user_data);
 
+/**
+ * Set the abort handler used by openjpeg. The handler is polled between
+ * tiles and code-blocks; when it returns OPJ_TRUE, the decoding or encoding
+ * stops and fails.
+ * @param p_codec       the codec previously initialise
+ * @param p_callback    the callback function which will be used, or NULL
+ * @param p_user_data   client object passed to the callback
+*/
+OPJ_API OPJ_BOOL OPJ_CALLCONV opj_set_abort_handler(opj_codec_t * p_codec,
+        opj_abort_callback p_callback,
+        void * p_user_data);
+
+/**
+ * Set the progress handler used by openjpeg. The handler is called after
+ * each decoded tile; an encoding reports OPJ_TCD_ENCODE_STEPS (100) steps per
+ * tile, as the transforms, the code-blocks, the rate allocation and the tile
+ * are done. The handler is always called by the thread calling openjpeg, not
+ * by its worker threads. When it returns OPJ_FALSE, the decoding or encoding
+ * stops and fails.
+ * @param p_codec       the codec previously initialise
+ * @param p_callback    the callback function which will be used, or NULL
+ * @param p_user_data   client object passed to the callback
+*/
+OPJ_API OPJ_BOOL OPJ_CALLCONV opj_set_progress_handler(opj_codec_t * p_codec,
+        opj_progress_callback p_callback,
+        void * p_user_data);
+
 /*
 ==========================================================
    codec functions definitions
@@ -1404,6 +1469,23 @@ OPJ_API OPJ_BOOL OPJ_CALLCONV opj_set_decoded_components(opj_codec_t *p_codec,
         const OPJ_UINT32* comps_indices,
         OPJ_BOOL apply_color_transforms);
 
+/**
+ * Set strict decoding parameter for this decoder. If strict decoding is enabled, partial bit
+ * streams will fail to decode. If strict decoding is disabled, the decoder will decode partial
+ * bitstreams as much as possible without erroring: the packets cut off by the end of a
+ * truncated codestream and all the packets after them are ignored.
+ *
+ * Strict decoding is enabled by default. This function should be called after
+ * opj_setup_decoder() and before decoding any tile.
+ *
+ * @param p_codec       decompressor handler
+ * @param strict        OPJ_TRUE to enable strict decoding, OPJ_FALSE to disable
+ *
+ * @return true         if the decoder is correctly set
+ */
+OPJ_API OPJ_BOOL OPJ_CALLCONV opj_decoder_set_strict_mode(opj_codec_t *p_codec,
+        OPJ_BOOL strict);
+
 /**
  * Sets the given area to be decoded. This function should be called right after opj_read_header and before any tile header reading.
  *
@@ -116,6 +116,9 @@ typedef struct opj_codec_private {
                                                   OPJ_UINT32 num_comps,
                                                   const OPJ_UINT32* comps_indices,
                                                   opj_event_mgr_t * p_manager);
+
+            /** Enable or disable strict decoding */
+            void (*opj_decoder_set_strict_mode)(void * p_codec, OPJ_BOOL strict);
         } m_decompression;
 
         /**
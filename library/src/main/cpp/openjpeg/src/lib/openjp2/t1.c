@@ -1639,7 +1639,9 @@ static void opj_t1_clbl_decode_processor(void* user_data, opj_tls_t* tls)
                           -
                           tilec->resolutions[tilec->minimum_num_resolutions - 1].x0);
 
-    if (!*(job->pret)) {
+    /* Stop if another code-block failed or the decoding is aborted */
+    if (!*(job->pret) || opj_event_abort(job->p_manager)) {
+        *(job->pret) = OPJ_FALSE;
         opj_free(job);
         return;
     }
@@ -2116,7 +2118,9 @@ typedef struct {
     const OPJ_FLOAT64 * mct_norms;
     OPJ_UINT32 mct_numcomps;
     volatile OPJ_BOOL* pret;
+    volatile OPJ_UINT32* pdone;
     opj_mutex_t* mutex;
+    opj_event_mgr_t *p_manager;
 } opj_t1_cblk_encode_processing_job_t;
 
 /** Procedure to deal with a asynchronous code-block encoding job.
@@ -2144,7 +2148,9 @@ static void opj_t1_cblk_encode_processor(void* user_data, opj_tls_t* tls)
     OPJ_INT32 x = cblk->x0 - band->x0;
     OPJ_INT32 y = cblk->y0 - band->y0;
 
-    if (!*(job->pret)) {
+    /* Stop if the encoding is aborted */
+    if (!*(job->pret) || opj_event_abort(job->p_manager)) {
+        *(job->pret) = OPJ_FALSE;
         opj_free(job);
         return;
     }
@@ -2255,6 +2261,7 @@ static void opj_t1_cblk_encode_processor(void* user_data, opj_tls_t* tls)
             opj_mutex_lock(job->mutex);
         }
         job->tile->distotile += cumwmsedec;
+        (*job->pdone)++;
         if (job->mutex) {
             opj_mutex_unlock(job->mutex);
         }
@@ -2263,21 +2270,80 @@ static void opj_t1_cblk_encode_processor(void* user_data, opj_tls_t* tls)
     opj_free(job);
 }
 
+/** Number of code-blocks encoded so far by the jobs of opj_t1_encode_cblks() */
+static OPJ_UINT32 opj_t1_encoded_cblks(volatile OPJ_UINT32* pdone,
+                                       opj_mutex_t* mutex)
+{
+    OPJ_UINT32 done;
+    if (mutex) {
+        opj_mutex_lock(mutex);
+    }
+    done = *pdone;
+    if (mutex) {
+        opj_mutex_unlock(mutex);
+    }
+    return done;
+}
+
+/**
+ * Report the code-blocks encoded so far as a progress step of the tile, from
+ * OPJ_TCD_ENCODE_STEP_DWT to OPJ_TCD_ENCODE_STEP_T1. Only a new step is reported.
+ * Called by the thread calling opj_t1_encode_cblks(), never by the workers.
+ */
+static OPJ_BOOL opj_t1_encode_progress(opj_tcd_t* tcd,
+                                       OPJ_UINT32 done,
+                                       OPJ_UINT32 total,
+                                       OPJ_UINT32* p_step,
+                                       opj_event_mgr_t *p_manager)
+{
+    OPJ_UINT32 step = OPJ_TCD_ENCODE_STEP_DWT + (OPJ_UINT32)((OPJ_UINT64)(
+                          OPJ_TCD_ENCODE_STEP_T1 - OPJ_TCD_ENCODE_STEP_DWT) * done / total);
+    if (step == *p_step) {
+        return OPJ_TRUE;
+    }
+    *p_step = step;
+    return opj_tcd_encode_progress(tcd, step, p_manager);
+}
+
 
 OPJ_BOOL opj_t1_encode_cblks(opj_tcd_t* tcd,
                              opj_tcd_tile_t *tile,
                              opj_tcp_t *tcp,
                              const OPJ_FLOAT64 * mct_norms,
-                             OPJ_UINT32 mct_numcomps
+                             OPJ_UINT32 mct_numcomps,
+                             opj_event_mgr_t *p_manager
                             )
 {
     volatile OPJ_BOOL ret = OPJ_TRUE;
+    volatile OPJ_UINT32 done = 0;
     opj_thread_pool_t* tp = tcd->thread_pool;
     OPJ_UINT32 compno, resno, bandno, precno, cblkno;
     opj_mutex_t* mutex = opj_mutex_create();
+    /* the progress is reported as the code-blocks are encoded */
+    OPJ_BOOL report = p_manager != 00 && p_manager->progress_handler != 00;
+    OPJ_UINT32 total = 0, submitted = 0, step = OPJ_TCD_ENCODE_STEP_DWT;
 
     tile->distotile = 0;        /* fixed_quality */
 
+    if (report) {
+        for (compno = 0; compno < tile->numcomps; ++compno) {
+            opj_tcd_tilecomp_t* tilec = &tile->comps[compno];
+            for (resno = 0; resno < tilec->numresolutions; ++resno) {
+                opj_tcd_resolution_t *res = &tilec->resolutions[resno];
+                for (bandno = 0; bandno < res->numbands; ++bandno) {
+                    opj_tcd_band_t* band = &res->bands[bandno];
+                    if (opj_tcd_is_band_empty(band)) {
+                        continue;
+                    }
+                    for (precno = 0; precno < res->pw * res->ph; ++precno) {
+                        total += band->precincts[precno].cw * band->precincts[precno].ch;
+                    }
+                }
+            }
+        }
+        report = total > 0;
+    }
+
     for (compno = 0; compno < tile->numcomps; ++compno) {
         opj_tcd_tilecomp_t* tilec = &tile->comps[compno];
         opj_tccp_t* tccp = &tcp->tccps[compno];
@@ -2315,8 +2381,21 @@ OPJ_BOOL opj_t1_encode_cblks(opj_tcd_t* tcd,
                         job->mct_norms = mct_norms;
                         job->mct_numcomps = mct_numcomps;
                         job->pret = &ret;
+                        job->pdone = &done;
                         job->mutex = mutex;
+                        job->p_manager = p_manager;
                         opj_thread_pool_submit_job(tp, opj_t1_cblk_encode_processor, job);
+                        if (!ret) {
+                            goto end;
+                        }
+                        submitted++;
+                        /* without worker threads the job has just been run */
+                        if (report && !opj_t1_encode_progress(tcd,
+                                                              opj_t1_encoded_cblks(&done, mutex),
+                                                              total, &step, p_manager)) {
+                            ret = OPJ_FALSE;
+                            goto end;
+                        }
 
                     } /* cblkno */
                 } /* precno */
@@ -2325,6 +2404,19 @@ OPJ_BOOL opj_t1_encode_cblks(opj_tcd_t* tcd,
     } /* compno  */
 
 end:
+    /* Report the last code-blocks while the worker threads encode them: */
+    /* each wait returns once at least one more code-block is done */
+    while (ret && report) {
+        OPJ_UINT32 l_done = opj_t1_encoded_cblks(&done, mutex);
+        if (l_done >= submitted) {
+            break;
+        }
+        opj_thread_pool_wait_completion(tp, (int)(submitted - l_done - 1));
+        if (!opj_t1_encode_progress(tcd, opj_t1_encoded_cblks(&done, mutex), total,
+                                    &step, p_manager)) {
+            ret = OPJ_FALSE;
+        }
+    }
     opj_thread_pool_wait_completion(tcd->thread_pool, 0);
     if (mutex) {
         opj_mutex_destroy(mutex);
@@ -220,12 +220,14 @@ Encode the code-blocks of a tile
 @param tcp Tile coding parameters
 @param mct_norms  FIXME DOC
 @param mct_numcomps Number of components used for MCT
+@param p_manager the user event manager, polled for aborting the encoding and told the code-blocks encoded
 */
 OPJ_BOOL opj_t1_encode_cblks(opj_tcd_t* tcd,
                              opj_tcd_tile_t *tile,
                              opj_tcp_t *tcp,
                              const OPJ_FLOAT64 * mct_norms,
-                             OPJ_UINT32 mct_numcomps);
+                             OPJ_UINT32 mct_numcomps,
+                             opj_event_mgr_t *p_manager);
 
 /**
 Decode the code-blocks of a tile
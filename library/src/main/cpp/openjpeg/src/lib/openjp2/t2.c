@@ -157,6 +157,19 @@ static OPJ_BOOL opj_t2_init_seg(opj_tcd_cblk_dec_t* cblk,
                                 OPJ_UINT32 cblksty,
                                 OPJ_UINT32 first);
 
+/**
+Forget what the header of a packet cut off by the end of a truncated codestream
+announced for the code-blocks whose data is missing.
+@param p_res    Resolution of the packet
+@param p_precno Precinct of the packet
+@param p_bandno Band of the first code-block to discard
+@param p_cblkno First code-block to discard in this band
+*/
+static void opj_t2_discard_packet_data(opj_tcd_resolution_t *p_res,
+                                       OPJ_UINT32 p_precno,
+                                       OPJ_UINT32 p_bandno,
+                                       OPJ_UINT32 p_cblkno);
+
 /*@}*/
 
 /*@}*/
@@ -424,6 +437,8 @@ OPJ_BOOL opj_t2_decode_packets(opj_tcd_t* tcd,
     }
 #endif
 
+    p_t2->truncated = OPJ_FALSE;
+
     /* create a packet iterator */
     l_pi = opj_pi_create_decode(l_image, l_cp, p_tile_no, p_manager);
     if (!l_pi) {
@@ -503,13 +518,24 @@ OPJ_BOOL opj_t2_decode_packets(opj_tcd_t* tcd,
                 */
             }
 
+            /* Without strict mode, a packet header cannot start past the end */
+            /* of the tile data, unless packet headers are stored in PPM/PPT */
+            if (!l_cp->strict && p_max_len == 0 && l_cp->ppm != 1 &&
+                    l_tcp->ppt != 1) {
+                p_t2->truncated = OPJ_TRUE;
+            }
+
+            /* Once truncated, the rest of the tile is missing: the packets are */
+            /* neither read nor skipped, the resolutions count as decoded with */
+            /* no data */
             if (!skip_packet) {
                 l_nb_bytes_read = 0;
 
                 first_pass_failed[l_current_pi->compno] = OPJ_FALSE;
 
-                if (! opj_t2_decode_packet(p_t2, p_tile, l_tcp, l_current_pi, l_current_data,
-                                           &l_nb_bytes_read, p_max_len, l_pack_info, p_manager)) {
+                if (!p_t2->truncated &&
+                        ! opj_t2_decode_packet(p_t2, p_tile, l_tcp, l_current_pi, l_current_data,
+                                               &l_nb_bytes_read, p_max_len, l_pack_info, p_manager)) {
                     opj_pi_destroy(l_pi, l_nb_pocs);
                     opj_free(first_pass_failed);
                     return OPJ_FALSE;
@@ -520,14 +546,20 @@ OPJ_BOOL opj_t2_decode_packets(opj_tcd_t* tcd,
                                             l_img_comp->resno_decoded);
             } else {
                 l_nb_bytes_read = 0;
-                if (! opj_t2_skip_packet(p_t2, p_tile, l_tcp, l_current_pi, l_current_data,
-                                         &l_nb_bytes_read, p_max_len, l_pack_info, p_manager)) {
+                if (!p_t2->truncated &&
+                        ! opj_t2_skip_packet(p_t2, p_tile, l_tcp, l_current_pi, l_current_data,
+                                             &l_nb_bytes_read, p_max_len, l_pack_info, p_manager)) {
                     opj_pi_destroy(l_pi, l_nb_pocs);
                     opj_free(first_pass_failed);
                     return OPJ_FALSE;
                 }
             }
 
+            if (p_t2->truncated && !skip_packet) {
+                l_cp->m_specific_param.m_dec.m_complete_layers = opj_uint_min(
+                            l_cp->m_specific_param.m_dec.m_complete_layers, l_current_pi->layno);
+            }
+
             if (first_pass_failed[l_current_pi->compno]) {
                 l_img_comp = &(l_image->comps[l_current_pi->compno]);
                 if (l_img_comp->resno_decoded == 0) {
@@ -1227,6 +1259,18 @@ static OPJ_BOOL opj_t2_read_packet_header(opj_t2_t* p_t2,
 
                 while (!opj_tgt_decode(l_bio, l_prc->imsbtree, cblkno, (OPJ_INT32)i)) {
                     ++i;
+                    /* Without strict mode, the header may be cut off by the end of a */
+                    /* truncated codestream: the bits read past the end are zeros */
+                    if (!l_cp->strict && i > (OPJ_UINT32)l_band->numbps + 1) {
+                        opj_event_msg(p_manager, EVT_WARNING,
+                                      "Packet header cut off by the end of the codestream\n");
+                        opj_bio_destroy(l_bio);
+                        opj_t2_discard_packet_data(l_res, p_pi->precno, 0, 0);
+                        p_t2->truncated = OPJ_TRUE;
+                        *p_is_data_present = OPJ_FALSE;
+                        *p_data_read = 0;
+                        return OPJ_TRUE;
+                    }
                 }
 
                 l_cblk->numbps = (OPJ_UINT32)l_band->numbps + 1 - i;
@@ -1296,6 +1340,21 @@ static OPJ_BOOL opj_t2_read_packet_header(opj_t2_t* p_t2,
         return OPJ_FALSE;
     }
 
+    /* Without strict mode, a header using all the remaining data of the tile */
+    /* leaves no room for the packet body: it is cut off by the end of a */
+    /* truncated codestream */
+    if (!l_cp->strict && l_cp->ppm != 1 && p_tcp->ppt != 1 &&
+            opj_bio_numbytes(l_bio) >= *l_modified_length_ptr) {
+        opj_event_msg(p_manager, EVT_WARNING,
+                      "Packet header cut off by the end of the codestream\n");
+        opj_bio_destroy(l_bio);
+        opj_t2_discard_packet_data(l_res, p_pi->precno, 0, 0);
+        p_t2->truncated = OPJ_TRUE;
+        *p_is_data_present = OPJ_FALSE;
+        *p_data_read = 0;
+        return OPJ_TRUE;
+    }
+
     l_header_data += opj_bio_numbytes(l_bio);
     opj_bio_destroy(l_bio);
 
@@ -1390,6 +1449,21 @@ static OPJ_BOOL opj_t2_read_packet_data(opj_t2_t* p_t2,
                 if ((((OPJ_SIZE_T)l_current_data + (OPJ_SIZE_T)l_seg->newlen) <
                         (OPJ_SIZE_T)l_current_data) ||
                         (l_current_data + l_seg->newlen > p_src_data + p_max_length)) {
+                    if (!p_t2->cp->strict) {
+                        /* Truncated codestream: keep the segments read so far */
+                        opj_event_msg(p_manager, EVT_WARNING,
+                                      "read: segment too long (%d) with max (%d) for codeblock %d (p=%d, b=%d, r=%d, c=%d), the codestream is truncated\n",
+                                      l_seg->newlen, p_max_length, cblkno, p_pi->precno, bandno, p_pi->resno,
+                                      p_pi->compno);
+                        if (!l_seg->numpasses) {
+                            --l_cblk->numsegs;
+                        }
+                        l_cblk->real_num_segs = l_cblk->numsegs;
+                        opj_t2_discard_packet_data(l_res, p_pi->precno, bandno, cblkno);
+                        p_t2->truncated = OPJ_TRUE;
+                        *(p_data_read) = (OPJ_UINT32)(l_current_data - p_src_data);
+                        return OPJ_TRUE;
+                    }
                     opj_event_msg(p_manager, EVT_ERROR,
                                   "read: segment too long (%d) with max (%d) for codeblock %d (p=%d, b=%d, r=%d, c=%d)\n",
                                   l_seg->newlen, p_max_length, cblkno, p_pi->precno, bandno, p_pi->resno,
@@ -1519,6 +1593,15 @@ static OPJ_BOOL opj_t2_skip_packet_data(opj_t2_t* p_t2,
                 /* Check possible overflow then size */
                 if (((*p_data_read + l_seg->newlen) < (*p_data_read)) ||
                         ((*p_data_read + l_seg->newlen) > p_max_length)) {
+                    if (!p_t2->cp->strict) {
+                        opj_event_msg(p_manager, EVT_WARNING,
+                                      "skip: segment too long (%d) with max (%d) for codeblock %d (p=%d, b=%d, r=%d, c=%d), the codestream is truncated\n",
+                                      l_seg->newlen, p_max_length, cblkno, p_pi->precno, bandno, p_pi->resno,
+                                      p_pi->compno);
+                        opj_t2_discard_packet_data(l_res, p_pi->precno, bandno, cblkno);
+                        p_t2->truncated = OPJ_TRUE;
+                        return OPJ_TRUE;
+                    }
                     opj_event_msg(p_manager, EVT_ERROR,
                                   "skip: segment too long (%d) with max (%d) for codeblock %d (p=%d, b=%d, r=%d, c=%d)\n",
                                   l_seg->newlen, p_max_length, cblkno, p_pi->precno, bandno, p_pi->resno,
@@ -1568,6 +1651,36 @@ static OPJ_BOOL opj_t2_skip_packet_data(opj_t2_t* p_t2,
 }
 
 
+static void opj_t2_discard_packet_data(opj_tcd_resolution_t *p_res,
+                                       OPJ_UINT32 p_precno,
+                                       OPJ_UINT32 p_bandno,
+                                       OPJ_UINT32 p_cblkno)
+{
+    OPJ_UINT32 bandno, cblkno;
+
+    for (bandno = p_bandno; bandno < p_res->numbands; ++bandno) {
+        opj_tcd_band_t *l_band = &p_res->bands[bandno];
+        opj_tcd_precinct_t *l_prc;
+
+        if (opj_tcd_is_band_empty(l_band)) {
+            continue;
+        }
+
+        l_prc = &l_band->precincts[p_precno];
+        for (cblkno = (bandno == p_bandno) ? p_cblkno : 0;
+                cblkno < l_prc->cw * l_prc->ch; ++cblkno) {
+            opj_tcd_cblk_dec_t *l_cblk = &l_prc->cblks.dec[cblkno];
+
+            l_cblk->numnewpasses = 0;
+            /* The number of zero bit-planes of a code-block never received */
+            /* may come from the truncated header */
+            if (!l_cblk->real_num_segs) {
+                l_cblk->numbps = 0;
+            }
+        }
+    }
+}
+
 static OPJ_BOOL opj_t2_init_seg(opj_tcd_cblk_dec_t* cblk,
                                 OPJ_UINT32 index,
                                 OPJ_UINT32 cblksty,
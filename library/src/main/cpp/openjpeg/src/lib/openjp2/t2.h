@@ -57,6 +57,8 @@ typedef struct opj_t2 {
     opj_image_t *image;
     /** pointer to the image coding parameters */
     opj_cp_t *cp;
+    /** Decoding without strict mode: the packets of the current tile are cut off by the end of a truncated codestream */
+    OPJ_BOOL truncated;
 } opj_t2_t;
 
 /** @name Exported functions */
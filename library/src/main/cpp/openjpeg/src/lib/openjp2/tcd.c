@@ -175,7 +175,8 @@ static OPJ_BOOL opj_tcd_mct_encode(opj_tcd_t *p_tcd);
 
 static OPJ_BOOL opj_tcd_dwt_encode(opj_tcd_t *p_tcd);
 
-static OPJ_BOOL opj_tcd_t1_encode(opj_tcd_t *p_tcd);
+static OPJ_BOOL opj_tcd_t1_encode(opj_tcd_t *p_tcd,
+                                  opj_event_mgr_t *p_manager);
 
 static OPJ_BOOL opj_tcd_t2_encode(opj_tcd_t *p_tcd,
                                   OPJ_BYTE * p_dest_data,
@@ -1378,6 +1379,21 @@ OPJ_UINT32 opj_tcd_get_decoded_tile_size(opj_tcd_t *p_tcd,
     return l_data_size;
 }
 
+OPJ_BOOL opj_tcd_encode_progress(opj_tcd_t *p_tcd,
+                                 OPJ_UINT32 p_step,
+                                 opj_event_mgr_t *p_manager)
+{
+    OPJ_UINT32 l_nb_tiles = p_tcd->cp->tw * p_tcd->cp->th;
+
+    if (! opj_event_progress(p_manager,
+                             p_tcd->tcd_tileno * OPJ_TCD_ENCODE_STEPS + p_step,
+                             l_nb_tiles * OPJ_TCD_ENCODE_STEPS)) {
+        opj_event_msg(p_manager, EVT_ERROR, "Encoding aborted\n");
+        return OPJ_FALSE;
+    }
+    return OPJ_TRUE;
+}
+
 OPJ_BOOL opj_tcd_encode_tile(opj_tcd_t *p_tcd,
                              OPJ_UINT32 p_tile_no,
                              OPJ_BYTE *p_dest,
@@ -1441,8 +1457,15 @@ OPJ_BOOL opj_tcd_encode_tile(opj_tcd_t *p_tcd,
         }
         /* FIXME  _ProfStop(PGROUP_DWT); */
 
+        if (! opj_tcd_encode_progress(p_tcd, OPJ_TCD_ENCODE_STEP_DWT, p_manager)) {
+            return OPJ_FALSE;
+        }
+
         /* FIXME  _ProfStart(PGROUP_T1); */
-        if (! opj_tcd_t1_encode(p_tcd)) {
+        if (! opj_tcd_t1_encode(p_tcd, p_manager)) {
+            if (opj_event_abort(p_manager)) {
+                opj_event_msg(p_manager, EVT_ERROR, "Encoding aborted\n");
+            }
             return OPJ_FALSE;
         }
         /* FIXME _ProfStop(PGROUP_T1); */
@@ -1454,6 +1477,10 @@ OPJ_BOOL opj_tcd_encode_tile(opj_tcd_t *p_tcd,
         }
         /* FIXME _ProfStop(PGROUP_RATE); */
 
+        if (! opj_tcd_encode_progress(p_tcd, OPJ_TCD_ENCODE_STEP_RATE, p_manager)) {
+            return OPJ_FALSE;
+        }
+
     }
     /*--------------TIER2------------------*/
 
@@ -1652,6 +1679,9 @@ OPJ_BOOL opj_tcd_decode_tile(opj_tcd_t *p_tcd,
 
     /* FIXME _ProfStart(PGROUP_T1); */
     if (! opj_tcd_t1_decode(p_tcd, p_manager)) {
+        if (opj_event_abort(p_manager)) {
+            opj_event_msg(p_manager, EVT_ERROR, "Decoding aborted\n");
+        }
         return OPJ_FALSE;
     }
     /* FIXME _ProfStop(PGROUP_T1); */
@@ -2519,7 +2549,8 @@ static OPJ_BOOL opj_tcd_dwt_encode(opj_tcd_t *p_tcd)
     return OPJ_TRUE;
 }
 
-static OPJ_BOOL opj_tcd_t1_encode(opj_tcd_t *p_tcd)
+static OPJ_BOOL opj_tcd_t1_encode(opj_tcd_t *p_tcd,
+                                  opj_event_mgr_t *p_manager)
 {
     const OPJ_FLOAT64 * l_mct_norms;
     OPJ_UINT32 l_mct_numcomps = 0U;
@@ -2540,7 +2571,7 @@ static OPJ_BOOL opj_tcd_t1_encode(opj_tcd_t *p_tcd)
 
     return opj_t1_encode_cblks(p_tcd,
                                p_tcd->tcd_image->tiles, l_tcp, l_mct_norms,
-                               l_mct_numcomps);
+                               l_mct_numcomps, p_manager);
 
     return OPJ_TRUE;
 }
@@ -387,6 +387,29 @@ OPJ_BOOL opj_tcd_rateallocate(opj_tcd_t *tcd,
 OPJ_UINT32 opj_tcd_get_decoded_tile_size(opj_tcd_t *p_tcd,
         OPJ_BOOL take_into_account_partial_decoding);
 
+/**
+ * Progress steps of the encoding of each tile, reported by opj_tcd_encode_progress().
+ * The encoding of n tiles reports up to n * OPJ_TCD_ENCODE_STEPS steps.
+ */
+#define OPJ_TCD_ENCODE_STEPS        100
+/** Step reached when the DC level shift, the MCT and the DWT are done */
+#define OPJ_TCD_ENCODE_STEP_DWT     10
+/** Step reached when all the code-blocks are encoded (T1), from OPJ_TCD_ENCODE_STEP_DWT */
+#define OPJ_TCD_ENCODE_STEP_T1      85
+/** Step reached when the rate allocation is done; the tile is done once it is written (T2) */
+#define OPJ_TCD_ENCODE_STEP_RATE    95
+
+/**
+ * Reports the progress of the encoding of the current tile to the progress handler.
+ * @param   p_tcd           Tile Coder handle
+ * @param   p_step          the step of the current tile, at most OPJ_TCD_ENCODE_STEPS
+ * @param   p_manager       the user event manager
+ * @return  OPJ_FALSE if the encoding must be aborted
+ */
+OPJ_BOOL opj_tcd_encode_progress(opj_tcd_t *p_tcd,
+                                 OPJ_UINT32 p_step,
+                                 opj_event_mgr_t *p_manager);
+
 /**
  * Encodes a tile from the raw image into the given buffer.
  * @param   p_tcd           Tile Coder handle
@@ -396,7 +419,7 @@ OPJ_UINT32 opj_tcd_get_decoded_tile_size(opj_tcd_t *p_tcd,
  * @param   p_len           Maximum length of the destination buffer
  * @param   p_cstr_info     Codestream information structure
  * @param   p_marker_info   Marker information structure
- * @param   p_manager       the user event manager
+ * @param   p_manager       the user event manager, told the progress of the encoding
  * @return  true if the coding is successful.
 */
 OPJ_BOOL opj_tcd_encode_tile(opj_tcd_t *p_tcd,
@@ -5,17 +5,34 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <errno.h>
+#include <math.h>
+#include <limits.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <time.h>
 #include "openjpeg.h"
 typedef unsigned int OPJ_BITFIELD;
+extern "C" {
 #include "event.h"
 #include "function_list.h"
 #include "thread.h"
 #include "cio.h"
+#include "image.h"
 #include "j2k.h"
 #include "jp2.h"
 #include "opj_codec.h"
+#include "bio.h"
+#include "tgt.h"
+#include "tcd.h"
+}
 
 #include <android/log.h>
+#include <android/bitmap.h>
+#include "pixel_pack.h"
+#include "batch_decode.h"
 
 #define LOGV(...) __android_log_print(ANDROID_LOG_VERBOSE, "OpenJPEG",__VA_ARGS__)
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG  , "OpenJPEG",__VA_ARGS__)
@@ -37,14 +54,23 @@ extern "C" {
 #define MIN(a,b) ((a) > (b) ? (b) : (a))
 #define MAX(a,b) ((a) < (b) ? (b) : (a))
 
-//stores decoded image data
+//stores decoded image data; a pointer to it is handed over to Java until the pixels are written into a Bitmap
 typedef struct image_data {
     jint width;
     jint height;
     jint hasAlpha; //0 = false; 1 = true
-    int* pixels;
+    jint isGray; //0 = RGB(A); 1 = grayscale(A)
+    jint layersUsed; //number of quality layers decoded completely
+    jint truncated; //0 = false; 1 = the source ended before all the packets to decode (see JP2Decoder.DecodeInfo)
+    jlong bytesUsed; //number of bytes of the source read by the decoder
+    jint colorLow; //lowest color sample value (see getColorRange()), computed on the first auto-stretch
+    jint colorHigh; //highest color sample value; -1 = not computed yet
+    opj_image_t* image;
 } image_data_t;
 
+//the maximum number of components described by the header (see JP2Decoder.Header.components)
+#define MAX_HEADER_COMPONENTS 16
+
 //stores decoded image header
 typedef struct image_header {
     jint width;
@@ -52,14 +78,68 @@ typedef struct image_header {
     jint hasAlpha; //0 = false; 1 = true
     jint numResolutions;
     jint numQualityLayers;
+    //codestream structure, only filled by readCodestreamInfo()
+    jint numComponents;
+    jint tileX0;
+    jint tileY0;
+    jint tileWidth;
+    jint tileHeight;
+    jint numTilesX;
+    jint numTilesY;
+    jint codeBlockWidth;
+    jint codeBlockHeight;
+    jint progressionOrder; //OPJ_PROG_ORDER
+    jint reversible; //0 = irreversible 9-7 wavelet; 1 = reversible 5-3 wavelet
+    jint multiComponentTransform; //0 = none; 1 = RCT or ICT applied to the first three components
+    jint hasTLM; //0 = false; 1 = TLM markers in the main header
+    jint hasPLT; //0 = false (or unknown); 1 = PLT markers in the first tile-part header
+    jint components[MAX_HEADER_COMPONENTS][4]; //precision, dx, dy, signed
+    jint precincts[OPJ_J2K_MAXRLVLS][2]; //precinct width and height of the first component, from the lowest resolution
 } image_header_t;
 
+//the maximum number of components selected by JP2Decoder.setComponents()
+#define MAX_DECODED_COMPONENTS 4
+
+//decoding parameters, passed from Java as an integer array (see JP2Decoder.getDecodeParams())
+typedef struct decode_params {
+    jint reduce;
+    jint layers;
+    jint threads;
+    //region to decode in full-resolution image coordinates; all zeros = whole image
+    jint regionX0;
+    jint regionY0;
+    jint regionX1;
+    jint regionY1;
+    //output size; 0 = no target size, the image is decoded at the resolution given by reduce
+    jint targetWidth;
+    jint targetHeight;
+    jint scaleMode; //SCALE_* constants, see JP2Decoder.ScaleMode
+    //indices of the components to decode; numComponents = 0 means all components
+    jint numComponents;
+    jint components[MAX_DECODED_COMPONENTS];
+    jint allowTruncated; //1 = decode a truncated codestream up to its last complete packet; 0 = fail
+} decode_params_t;
+
+//how the target size is reached (see JP2Decoder.ScaleMode)
+#define SCALE_REDUCE_ONLY 0
+#define SCALE_FIT 1
+#define SCALE_EXACT 2
+
+//how the color components are mapped to 8 bits (see JP2Decoder.ToneMapping)
+#define TONE_MAPPING_NONE 0
+#define TONE_MAPPING_WINDOW 1
+#define TONE_MAPPING_AUTO_STRETCH 2
+#define TONE_MAPPING_LOOKUP_TABLE 3
+
 #define J2K_CFMT 0
 #define JP2_CFMT 1
 
 #define EXIT_SUCCESS 0
 #define EXIT_FAILURE 1
 
+//special value of the "threads" parameter: use one thread per CPU core (see JP2Decoder.ALL_CORES and JP2Encoder.ALL_CORES)
+#define ALL_CORES -1
+
 int get_file_format(const char *filename) {
     unsigned int i;
     static const char *extension[] = {"j2k", "jp2", "j2c", "jpc" };
@@ -79,12 +159,12 @@ int get_file_format(const char *filename) {
     return -1;
 }
 
-static int get_magic_format(char *buf) {
+static int get_magic_format(const char *buf, size_t length) {
     int magic_format;
-    if (memcmp(buf, JP2_RFC3745_MAGIC, 12) == 0 || memcmp(buf, JP2_MAGIC, 4) == 0) {
+    if ((length >= 12 && memcmp(buf, JP2_RFC3745_MAGIC, 12) == 0) || (length >= 4 && memcmp(buf, JP2_MAGIC, 4) == 0)) {
         magic_format = JP2_CFMT;
     }
-    else if (memcmp(buf, J2K_CODESTREAM_MAGIC, 4) == 0) {
+    else if (length >= 4 && memcmp(buf, J2K_CODESTREAM_MAGIC, 4) == 0) {
         magic_format = J2K_CFMT;
     } else {
         return -1;
@@ -119,7 +199,7 @@ static int infile_format(const char *fname)
 
     ext_format = get_file_format(fname);
 
-    magic_format = get_magic_format((char *)buf);
+    magic_format = get_magic_format((char *)buf, sizeof(buf));
     if (magic_format == JP2_CFMT) {
         magic_s = ".jp2";
     } else if (magic_format == J2K_CFMT) {
@@ -139,103 +219,282 @@ static int infile_format(const char *fname)
     return magic_format;
 }
 
-static int imagetoargb(opj_image_t *image, image_data_t *outImage) {
-    int w, h;
-    int i;
-    int adjustR, adjustG, adjustB, adjustA;
+static inline OPJ_INT32 ceilDiv(OPJ_INT32 a, OPJ_INT32 b) {
+    return (OPJ_INT32)(((OPJ_INT64)a + b - 1) / b);
+}
 
-    outImage->hasAlpha = false;
+static inline OPJ_INT32 ceilDivPow2(OPJ_INT32 a, OPJ_INT32 b) {
+    return (OPJ_INT32)(((OPJ_INT64)a + ((OPJ_INT64)1 << b) - 1) >> b);
+}
 
-    if (image->comps[0].prec < 8) {
-        LOGE("Unsupported number of components: %d\n", image->comps[0].prec);
-        return 1;
-    }
-    
-    if (image->numcomps >= 3 && image->comps[0].dx == image->comps[1].dx
+//true if the image can be converted as RGB(A); otherwise it is converted as grayscale(A)
+static bool isRGBImage(opj_image_t *image) {
+    return image->numcomps >= 3 && image->comps[0].dx == image->comps[1].dx
         && image->comps[1].dx == image->comps[2].dx
         && image->comps[0].dy == image->comps[1].dy
         && image->comps[1].dy == image->comps[2].dy
         && image->comps[0].prec == image->comps[1].prec
-        && image->comps[1].prec == image->comps[2].prec) {
-        
-        /* -->> -->> -->> -->>    
-        24/32 bits color
-        <<-- <<-- <<-- <<-- */
-        
-        w = image->comps[0].w;        
-        h = image->comps[0].h;
-        
-        outImage->pixels = (int *) malloc(sizeof(int) * w * h);
-        outImage->height = h;
-        outImage->width = w;
-        
-        if (!outImage->pixels) {
-            LOGE("Could not allocate %d bytes of memory.\n", w * h * sizeof(int));
-            return 1;
-        }
-        
-        if (image->comps[0].prec > 8) {
-            adjustR = image->comps[0].prec - 8;
-            printf("RGB CONVERSION: Truncating component 0 from %d bits to 8 bits\n", image->comps[0].prec);
+        && image->comps[1].prec == image->comps[2].prec;
+}
+
+//true if the component can be packed by packRGBA8(): unsigned 8-bit with the size of the image
+static inline bool isPackable8(opj_image_t *image, int component) {
+    opj_image_comp_t *comp = &image->comps[component];
+    return comp->prec == 8 && !comp->sgnd && comp->w == image->comps[0].w && comp->h == image->comps[0].h;
+}
+
+/*
+ True for sYCC and e-sYCC images left in YCC by convertToRGB(): unsigned 8-bit luma at full resolution, 8-bit chroma
+ in 4:4:4, 4:2:2 or 4:2:0 (e-sYCC: 4:4:4 only) and an optional 8-bit alpha. They are converted to RGB while being
+ written into an ARGB_8888 bitmap by ycctoargb(); the other outputs call convertDeferredYCC() first.
+ */
+static bool isDeferredYCC(opj_image_t *image) {
+    bool extended = image->color_space == OPJ_CLRSPC_EYCC;
+    OPJ_UINT32 i;
+
+    if ((image->color_space != OPJ_CLRSPC_SYCC && !extended) || (image->numcomps != 3 && image->numcomps != 4)
+            || image->comps[0].dx != 1 || image->comps[0].dy != 1 || !isPackable8(image, 0)) {
+        return false;
+    }
+    for (i = 1; i <= 2; i++) {
+        opj_image_comp_t *comp = &image->comps[i];
+        if (comp->prec != 8 || comp->dx != image->comps[1].dx || comp->dy != image->comps[1].dy
+                || comp->w != image->comps[1].w || comp->h != image->comps[1].h || comp->w == 0 || comp->h == 0) {
+            return false;
         }
-        else 
-            adjustR = 0;
-        if (image->comps[1].prec > 8) {
-            adjustG = image->comps[1].prec - 8;
-            printf("RGB CONVERSION: Truncating component 1 from %d bits to 8 bits\n", image->comps[1].prec);
+        if (extended ? comp->dx != 1 || comp->dy != 1
+                     : comp->sgnd || comp->dx > 2 || comp->dy > 2 || comp->dy > comp->dx) {
+            return false;
         }
-        else 
-            adjustG = 0;
-        if (image->comps[2].prec > 8) {
-            adjustB = image->comps[2].prec - 8;
-            printf("RGB CONVERSION: Truncating component 2 from %d bits to 8 bits\n", image->comps[2].prec);
+    }
+    return image->numcomps == 3 || isPackable8(image, 3);
+}
+
+//convert an image left in YCC by convertToRGB() to RGB with no subsampling
+static void convertDeferredYCC(opj_image_t *image) {
+    if (!isDeferredYCC(image)) return;
+    if (image->color_space == OPJ_CLRSPC_SYCC) {
+        color_sycc_to_rgb(image);
+    } else {
+        color_esycc_to_rgb(image);
+    }
+}
+
+//check that the decoded image can be converted to ARGB, fill in the output dimensions
+static int checkImageFormat(opj_image_t *image, image_data_t *outImage) {
+    if (image->comps[0].prec < 8) {
+        LOGE("Unsupported number of components: %d\n", image->comps[0].prec);
+        return EXIT_FAILURE;
+    }
+    outImage->width = image->comps[0].w;
+    outImage->height = image->comps[0].h;
+    bool rgb = isRGBImage(image) || isDeferredYCC(image);
+    outImage->hasAlpha = rgb ? image->numcomps >= 4 : image->numcomps >= 2;
+    outImage->isGray = rgb ? 0 : 1;
+    outImage->colorLow = 0;
+    outImage->colorHigh = -1;
+    if (outImage->width <= 0 || outImage->height <= 0) {
+        LOGE("Invalid image dimensions: %d x %d", outImage->width, outImage->height);
+        return EXIT_FAILURE;
+    }
+    return EXIT_SUCCESS;
+}
+
+//number of bits of a component value read by componentToUnsigned(): the precision, at most 16 bits
+static inline int componentBits(opj_image_comp_t *comp) {
+    return comp->prec > 16 ? 16 : (int)comp->prec;
+}
+
+//convert a component value to an unsigned number of componentBits() bits
+static inline OPJ_UINT32 componentToUnsigned(opj_image_comp_t *comp, int index) {
+    int v = comp->data[index];
+    v += (comp->sgnd ? 1 << (comp->prec - 1) : 0);
+    if (comp->prec > 16) v >>= comp->prec - 16;
+    if (v < 0) return 0;
+    if (v > (1 << componentBits(comp)) - 1) return (1 << componentBits(comp)) - 1;
+    return (OPJ_UINT32)v;
+}
+
+//convert a component value to 8 bits
+static inline OPJ_UINT8 componentTo8Bits(opj_image_comp_t *comp, int index, int adjust) {
+    int v = comp->data[index];
+    v += (comp->sgnd ? 1 << (comp->prec - 1) : 0);
+    v = ((v >> adjust)/*+((v >> (adjust-1))%2)*/);
+    if (v > 255) v = 255; else if (v < 0) v = 0;
+    return (OPJ_UINT8)v;
+}
+
+/*
+ Map a component value to 8 bits with a tone mapping table (see buildToneMap()), which has an entry for every unsigned
+ value of componentBits() bits. Unsigned components of up to 16 bits, 8-bit ones in particular, index it directly.
+ */
+static inline OPJ_UINT8 toneMapComponent(opj_image_comp_t *comp, int index, const OPJ_UINT8 *toneMap) {
+    if (comp->sgnd || comp->prec > 16) return toneMap[componentToUnsigned(comp, index)];
+    int v = comp->data[index];
+    //the table has at least 256 entries, an 8-bit value needs no range check
+    if (comp->prec == 8) return toneMap[(OPJ_UINT8)v];
+    return toneMap[v < 0 ? 0 : MIN(v, (1 << comp->prec) - 1)];
+}
+
+//convert a color component value to 8 bits, through the tone mapping table if there is one
+static inline OPJ_UINT8 colorTo8Bits(opj_image_comp_t *comp, int index, int adjust, const OPJ_UINT8 *toneMap) {
+    return toneMap ? toneMapComponent(comp, index, toneMap) : componentTo8Bits(comp, index, adjust);
+}
+
+/*
+ Convert a YCC image (see isDeferredYCC()) to RGB and write it straight into the memory of an ARGB_8888 bitmap in one
+ pass, without the full-size RGB planes of color_sycc_to_rgb(). The results are the same as with color.c: the chroma
+ is upsampled by repeating the nearest sample, and the color terms of a chroma row are computed once for all the luma
+ rows it covers. Returns false if the row buffer cannot be allocated.
+ */
+static bool ycctoargb(image_data_t *imageData, OPJ_UINT8 *pixels, uint32_t stride, bool premultiply) {
+    opj_image_t *image = imageData->image;
+    opj_image_comp_t *luma = &image->comps[0];
+    opj_image_comp_t *cbComp = &image->comps[1];
+    opj_image_comp_t *crComp = &image->comps[2];
+    const OPJ_INT32 *alpha = image->numcomps > 3 ? image->comps[3].data : NULL;
+    bool extended = image->color_space == OPJ_CLRSPC_EYCC;
+    int w = (int)luma->w;
+    int h = (int)luma->h;
+    int cw = (int)cbComp->w;
+    int ch = (int)cbComp->h;
+    int xShift = cbComp->dx == 2 ? 1 : 0;
+    int yShift = cbComp->dy == 2 ? 1 : 0;
+    int x, y, lastRow = -1;
+    int *terms = NULL;
+
+    //coordinates of the first luma and chroma samples in the reduced image
+    OPJ_INT32 lx0 = ceilDivPow2((OPJ_INT32)image->x0, (OPJ_INT32)luma->factor);
+    OPJ_INT32 ly0 = ceilDivPow2((OPJ_INT32)image->y0, (OPJ_INT32)luma->factor);
+    OPJ_INT32 cx0 = ceilDivPow2(ceilDiv((OPJ_INT32)image->x0, (OPJ_INT32)cbComp->dx), (OPJ_INT32)luma->factor);
+    OPJ_INT32 cy0 = ceilDivPow2(ceilDiv((OPJ_INT32)image->y0, (OPJ_INT32)cbComp->dy), (OPJ_INT32)luma->factor);
+
+    if (!extended) {
+        //red, green and blue terms of each chroma sample of the current chroma row
+        terms = (int *)malloc(sizeof(int) * 3 * cw);
+        if (terms == NULL) {
+            LOGE("Could not allocate memory for the YCC conversion");
+            return false;
         }
-        else 
-            adjustB = 0;
-
-        if (image->numcomps >= 4) { //alpha
-            outImage->hasAlpha = true;
-            if (image->comps[3].prec > 8) {
-                adjustA = image->comps[3].prec - 8;
-                printf("RGB CONVERSION: Truncating component 3 from %d bits to 8 bits\n", image->comps[3].prec);
+    }
+    for (y = 0; y < h; y++) {
+        int row = ((ly0 + y) >> yShift) - cy0;
+        if (row < 0) row = 0; else if (row >= ch) row = ch - 1;
+        const OPJ_INT32 *yRow = luma->data + (size_t)y * w;
+        const OPJ_INT32 *cbRow = cbComp->data + (size_t)row * cw;
+        const OPJ_INT32 *crRow = crComp->data + (size_t)row * cw;
+        const OPJ_INT32 *aRow = alpha ? alpha + (size_t)y * w : NULL;
+        OPJ_UINT8 *out = pixels + (size_t)y * stride;
+
+        if (!extended && row != lastRow) {
+            //the same arithmetic as sycc_to_rgb() in color.c
+            for (x = 0; x < cw; x++) {
+                int cb = cbRow[x] - 128;
+                int cr = crRow[x] - 128;
+                terms[3 * x] = (int)(1.402 * (float)cr);
+                terms[3 * x + 1] = (int)(0.344 * (float)cb + 0.714 * (float)cr);
+                terms[3 * x + 2] = (int)(1.772 * (float)cb);
             }
-            else
-                adjustA = 0;
+            lastRow = row;
         }
-
-        for (i = 0; i < w * h; i++) {
+        for (x = 0; x < w; x++) {
+            int col = ((lx0 + x) >> xShift) - cx0;
+            if (col < 0) col = 0; else if (col >= cw) col = cw - 1;
+            int yv = yRow[x];
             OPJ_UINT8 rc, gc, bc, ac;
-            int r, g, b, a;
-                            
-            r = image->comps[0].data[i];
-            r += (image->comps[0].sgnd ? 1 << (image->comps[0].prec - 1) : 0);
-            r = ((r >> adjustR)/*+((r >> (adjustR-1))%2)*/);
-            if(r > 255) r = 255; else if(r < 0) r = 0;
-            rc = (OPJ_UINT8)r;
-
-            g = image->comps[1].data[i];
-            g += (image->comps[1].sgnd ? 1 << (image->comps[1].prec - 1) : 0);
-            g = ((g >> adjustG)/*+((g >> (adjustG-1))%2)*/);
-            if(g > 255) g = 255; else if(g < 0) g = 0;
-            gc = (OPJ_UINT8)g;
-
-            b = image->comps[2].data[i];
-            b += (image->comps[2].sgnd ? 1 << (image->comps[2].prec - 1) : 0);
-            b = ((b >> adjustB)/*+((b >> (adjustB-1))%2)*/);
-            if(b > 255) b = 255; else if(b < 0) b = 0;
-            bc = (OPJ_UINT8)b;
-
-            if (outImage->hasAlpha) {
-                a = image->comps[3].data[i];
-                a += (image->comps[3].sgnd ? 1 << (image->comps[3].prec - 1) : 0);
-                a = ((a >> adjustA)/*+((a >> (adjustA-1))%2)*/);
-                if (a > 255) a = 255; else if (a < 0) a = 0;
-                ac = (OPJ_UINT8) a;
+            if (extended) {
+                //the same arithmetic as color_esycc_to_rgb() in color.c
+                int cb = cbRow[col] - (cbComp->sgnd ? 0 : 128);
+                int cr = crRow[col] - (crComp->sgnd ? 0 : 128);
+                rc = clampSample8((int)((float)yv - (float)0.0000368 * (float)cb + (float)1.40199 * (float)cr + (float)0.5));
+                gc = clampSample8((int)((float)1.0003 * (float)yv - (float)0.344125 * (float)cb
+                                        - (float)0.7141128 * (float)cr + (float)0.5));
+                bc = clampSample8((int)((float)0.999823 * (float)yv + (float)1.77204 * (float)cb
+                                        - (float)0.000008 * (float)cr + (float)0.5));
             } else {
-                ac = 0xFF;
+                const int *t = terms + 3 * col;
+                rc = clampSample8(yv + t[0]);
+                gc = clampSample8(yv - t[1]);
+                bc = clampSample8(yv + t[2]);
+            }
+            ac = aRow ? clampSample8(aRow[x]) : 0xFF;
+            if (premultiply && ac != 0xFF) {
+                rc = mulDiv255Round(rc, ac);
+                gc = mulDiv255Round(gc, ac);
+                bc = mulDiv255Round(bc, ac);
             }
+            *out++ = rc;
+            *out++ = gc;
+            *out++ = bc;
+            *out++ = ac;
+        }
+    }
+    free(terms);
+    return true;
+}
+
+/*
+ Convert the decoded image to 32-bit pixels, writing them straight into the memory of an ARGB_8888 bitmap
+ (byte order R, G, B, A). If premultiply is true, color components are pre-multiplied by alpha.
+ If toneMap is not NULL, the color components are mapped through it (see buildToneMap()).
+ */
+static void imagetoargb(image_data_t *imageData, OPJ_UINT8 *pixels, uint32_t stride, bool premultiply, const OPJ_UINT8 *toneMap) {
+    opj_image_t *image = imageData->image;
+    int w = imageData->width;
+    int h = imageData->height;
+    int x, y, i;
+    int adjustR, adjustG, adjustB, adjustA = 0;
+    bool hasAlpha = imageData->hasAlpha != 0;
+    bool rgb;
+
+    if (isDeferredYCC(image)) {
+        if (!toneMap && ycctoargb(imageData, pixels, stride, premultiply)) return;
+        convertDeferredYCC(image);
+    }
+    rgb = isRGBImage(image);
+    if (!toneMap && isPackable8(image, 0) && (!rgb || (isPackable8(image, 1) && isPackable8(image, 2)))
+            && (!hasAlpha || isPackable8(image, rgb ? 3 : 1))) {
+        //the common case: unsigned 8-bit components, packed with SIMD instructions if available
+        const OPJ_INT32 *r = image->comps[0].data;
+        const OPJ_INT32 *g = rgb ? image->comps[1].data : r;
+        const OPJ_INT32 *b = rgb ? image->comps[2].data : r;
+        const OPJ_INT32 *a = hasAlpha ? image->comps[rgb ? 3 : 1].data : NULL;
+        for (y = 0; y < h; y++) {
+            size_t offset = (size_t)y * w;
+            packRGBA8(r + offset, g + offset, b + offset, a ? a + offset : NULL, pixels + (size_t)y * stride, w, premultiply);
+        }
+    } else if (rgb) {
+
+        /* -->> -->> -->> -->>
+        24/32 bits color
+        <<-- <<-- <<-- <<-- */
+
+        adjustR = image->comps[0].prec > 8 ? image->comps[0].prec - 8 : 0;
+        adjustG = image->comps[1].prec > 8 ? image->comps[1].prec - 8 : 0;
+        adjustB = image->comps[2].prec > 8 ? image->comps[2].prec - 8 : 0;
+        if (adjustR > 0) LOGD("RGB CONVERSION: Truncating components from %d bits to 8 bits\n", image->comps[0].prec);
+        if (hasAlpha) {
+            adjustA = image->comps[3].prec > 8 ? image->comps[3].prec - 8 : 0;
+        }
 
-            outImage->pixels[i] = (ac << 24) | (rc << 16) | (gc << 8) | bc;
+        for (y = 0; y < h; y++) {
+            OPJ_UINT8 *out = pixels + (size_t)y * stride;
+            for (x = 0, i = y * w; x < w; x++, i++) {
+                OPJ_UINT8 rc, gc, bc, ac;
+                rc = colorTo8Bits(&image->comps[0], i, adjustR, toneMap);
+                gc = colorTo8Bits(&image->comps[1], i, adjustG, toneMap);
+                bc = colorTo8Bits(&image->comps[2], i, adjustB, toneMap);
+                ac = hasAlpha ? componentTo8Bits(&image->comps[3], i, adjustA) : 0xFF;
+                if (premultiply && ac != 0xFF) {
+                    rc = mulDiv255Round(rc, ac);
+                    gc = mulDiv255Round(gc, ac);
+                    bc = mulDiv255Round(bc, ac);
+                }
+                *out++ = rc;
+                *out++ = gc;
+                *out++ = bc;
+                *out++ = ac;
+            }
         }
     } else {            /* Gray-scale */
 
@@ -243,56 +502,490 @@ static int imagetoargb(opj_image_t *image, image_data_t *outImage) {
         8 bits non code (Gray scale)
         <<-- <<-- <<-- <<-- */
 
-        w = image->comps[0].w;        
-        h = image->comps[0].h;
-        
-        outImage->pixels = (int *) malloc(sizeof(int) * w * h);
-        outImage->height = h;
-        outImage->width = w;
-        
-        if (!outImage->pixels) {
-            LOGE("Could not allocate %d bytes of memory.\n", w * h * sizeof(int));
-            return 1;
+        adjustR = image->comps[0].prec > 8 ? image->comps[0].prec - 8 : 0;
+        if (adjustR > 0) LOGD("BMP CONVERSION: Truncating component 0 from %d bits to 8 bits\n", image->comps[0].prec);
+        if (hasAlpha) {
+            adjustA = image->comps[1].prec > 8 ? image->comps[1].prec - 8 : 0;
+        }
+
+        for (y = 0; y < h; y++) {
+            OPJ_UINT8 *out = pixels + (size_t)y * stride;
+            for (x = 0, i = y * w; x < w; x++, i++) {
+                OPJ_UINT8 r, a;
+                r = colorTo8Bits(&image->comps[0], i, adjustR, toneMap);
+                a = hasAlpha ? componentTo8Bits(&image->comps[1], i, adjustA) : 0xFF;
+                if (premultiply && a != 0xFF) {
+                    r = mulDiv255Round(r, a);
+                }
+                *out++ = r;
+                *out++ = r;
+                *out++ = r;
+                *out++ = a;
+            }
+        }
+    }
+}
+
+//8-bit gray value of an RGB color (ITU-R BT.601 luma, the weights add up to 256)
+static inline OPJ_UINT8 rgbToGray(OPJ_UINT8 r, OPJ_UINT8 g, OPJ_UINT8 b) {
+    return (OPJ_UINT8)((77 * r + 150 * g + 29 * b + 128) >> 8);
+}
+
+/*
+ Convert the decoded image to 8-bit gray pixels, writing them straight into the memory of an ALPHA_8 bitmap.
+ A grayscale image is copied as is, the luma of an RGB image is computed. The alpha channel is ignored.
+ If toneMap is not NULL, the color components are mapped through it.
+ */
+static void imagetogray(image_data_t *imageData, OPJ_UINT8 *pixels, uint32_t stride, const OPJ_UINT8 *toneMap) {
+    opj_image_t *image = imageData->image;
+    int w = imageData->width;
+    int h = imageData->height;
+    int x, y, i;
+    int adjustR, adjustG, adjustB;
+
+    adjustR = image->comps[0].prec > 8 ? image->comps[0].prec - 8 : 0;
+    if (isRGBImage(image)) {
+        adjustG = image->comps[1].prec > 8 ? image->comps[1].prec - 8 : 0;
+        adjustB = image->comps[2].prec > 8 ? image->comps[2].prec - 8 : 0;
+        for (y = 0; y < h; y++) {
+            OPJ_UINT8 *out = pixels + (size_t)y * stride;
+            for (x = 0, i = y * w; x < w; x++, i++) {
+                *out++ = rgbToGray(colorTo8Bits(&image->comps[0], i, adjustR, toneMap),
+                                   colorTo8Bits(&image->comps[1], i, adjustG, toneMap),
+                                   colorTo8Bits(&image->comps[2], i, adjustB, toneMap));
+            }
+        }
+    } else {
+        for (y = 0; y < h; y++) {
+            OPJ_UINT8 *out = pixels + (size_t)y * stride;
+            for (x = 0, i = y * w; x < w; x++, i++) {
+                *out++ = colorTo8Bits(&image->comps[0], i, adjustR, toneMap);
+            }
+        }
+    }
+}
+
+//16-bit RGB_565 pixel of an RGB color, truncated the same way Android does it (SkPack888ToRGB16)
+static inline OPJ_UINT16 rgbTo565(OPJ_UINT8 r, OPJ_UINT8 g, OPJ_UINT8 b) {
+    return (OPJ_UINT16)(((r >> 3) << 11) | ((g >> 2) << 5) | (b >> 3));
+}
+
+/*
+ Convert the decoded image to 16-bit pixels, writing them straight into the memory of an RGB_565 bitmap.
+ The alpha channel is dropped, the colors are written as they are (not pre-multiplied).
+ If toneMap is not NULL, the color components are mapped through it.
+ */
+static void imagetorgb565(image_data_t *imageData, OPJ_UINT8 *pixels, uint32_t stride, const OPJ_UINT8 *toneMap) {
+    opj_image_t *image = imageData->image;
+    int w = imageData->width;
+    int h = imageData->height;
+    int x, y, i;
+    int adjustR, adjustG, adjustB;
+
+    adjustR = image->comps[0].prec > 8 ? image->comps[0].prec - 8 : 0;
+    if (isRGBImage(image)) {
+        adjustG = image->comps[1].prec > 8 ? image->comps[1].prec - 8 : 0;
+        adjustB = image->comps[2].prec > 8 ? image->comps[2].prec - 8 : 0;
+        for (y = 0; y < h; y++) {
+            OPJ_UINT16 *out = (OPJ_UINT16 *)(pixels + (size_t)y * stride);
+            for (x = 0, i = y * w; x < w; x++, i++) {
+                *out++ = rgbTo565(colorTo8Bits(&image->comps[0], i, adjustR, toneMap),
+                                  colorTo8Bits(&image->comps[1], i, adjustG, toneMap),
+                                  colorTo8Bits(&image->comps[2], i, adjustB, toneMap));
+            }
+        }
+    } else {
+        for (y = 0; y < h; y++) {
+            OPJ_UINT16 *out = (OPJ_UINT16 *)(pixels + (size_t)y * stride);
+            for (x = 0, i = y * w; x < w; x++, i++) {
+                OPJ_UINT8 v = colorTo8Bits(&image->comps[0], i, adjustR, toneMap);
+                *out++ = rgbTo565(v, v, v);
+            }
+        }
+    }
+}
+
+//indices of the image components written as R, G, B, A (gray images: gray, alpha); -1 = no such channel
+static void getOutputComponents(image_data_t *imageData, int *channels) {
+    bool rgb = imageData->isGray == 0;
+    channels[0] = 0;
+    channels[1] = rgb ? 1 : -1;
+    channels[2] = rgb ? 2 : -1;
+    channels[3] = imageData->hasAlpha ? (rgb ? 3 : 1) : -1;
+}
+
+//number of bits per sample of the high bit depth output: the highest precision of the output components, at most 16
+static int getOutputBitDepth(image_data_t *imageData) {
+    int channels[4], c, bitDepth = 1;
+    getOutputComponents(imageData, channels);
+    for (c = 0; c < 4; c++) {
+        if (channels[c] >= 0) bitDepth = MAX(bitDepth, componentBits(&imageData->image->comps[channels[c]]));
+    }
+    return bitDepth;
+}
+
+/*
+ Convert the decoded image to 16-bit samples at the full precision of the image (at most 16 bits), without
+ truncation to 8 bits. The samples are interleaved: gray, gray + alpha, RGB or RGBA. Components with a lower
+ precision than bitDepth are rescaled to bitDepth bits.
+ */
+static void imagetoshorts(image_data_t *imageData, OPJ_UINT16 *out, int bitDepth) {
+    opj_image_t *image = imageData->image;
+    int w = (int)image->comps[0].w;
+    int h = (int)image->comps[0].h;
+    int channels[4], numChannels = 0, c, i;
+    OPJ_UINT32 maxOut = (1U << bitDepth) - 1;
+    OPJ_UINT32 maxIn[4];
+    opj_image_comp_t *comps[4];
+
+    getOutputComponents(imageData, channels);
+    for (c = 0; c < 4; c++) {
+        if (channels[c] < 0) continue;
+        comps[numChannels] = &image->comps[channels[c]];
+        maxIn[numChannels] = (1U << componentBits(comps[numChannels])) - 1;
+        numChannels++;
+    }
+
+    for (i = 0; i < w * h; i++) {
+        for (c = 0; c < numChannels; c++) {
+            OPJ_UINT32 v = componentToUnsigned(comps[c], i);
+            if (maxIn[c] != maxOut) v = (v * maxOut + maxIn[c] / 2) / maxIn[c];
+            *out++ = (OPJ_UINT16)v;
+        }
+    }
+}
+
+//IEEE 754 half-precision value of a non-negative float, rounded to the nearest
+static OPJ_UINT16 floatToHalf(float f) {
+    OPJ_UINT32 bits, h, rem;
+    memcpy(&bits, &f, sizeof(bits));
+    bits &= 0x7FFFFFFF;
+    if (bits >= 0x47800000) return 0x7C00; //too large, infinity
+    if (bits < 0x38800000) {
+        //subnormal half: the value in units of 2^-24
+        int exponent = (int)(bits >> 23);
+        int shift = 126 - exponent;
+        OPJ_UINT32 mantissa = (bits & 0x7FFFFF) | 0x800000;
+        if (shift > 24) return 0;
+        h = mantissa >> shift;
+        rem = mantissa & ((1U << shift) - 1);
+        if (rem > (1U << (shift - 1)) || (rem == (1U << (shift - 1)) && (h & 1))) h++;
+        return (OPJ_UINT16)h;
+    }
+    //rebias the exponent from 127 to 15, keep the 10 highest bits of the mantissa
+    h = (bits >> 13) - (112 << 10);
+    rem = bits & 0x1FFF;
+    if (rem > 0x1000 || (rem == 0x1000 && (h & 1))) h++;
+    return (OPJ_UINT16)h;
+}
+
+//linear light intensity of a normalized sRGB-encoded value
+static inline float srgbToLinear(float v) {
+    return v <= 0.04045f ? v / 12.92f : powf((v + 0.055f) / 1.055f, 2.4f);
+}
+
+//linear values of all the possible sample values of each precision (1 to 16 bits), built on first use and kept
+static float *linearTables[17];
+static pthread_mutex_t linearTablesMutex = PTHREAD_MUTEX_INITIALIZER;
+
+static const float* getLinearTable(int bits) {
+    pthread_mutex_lock(&linearTablesMutex);
+    float *table = linearTables[bits];
+    if (!table) {
+        table = (float *)malloc(((size_t)1 << bits) * sizeof(float));
+        if (table) {
+            for (int i = 0; i < (1 << bits); i++) {
+                table[i] = srgbToLinear((float)i / (float)((1U << bits) - 1));
+            }
+            linearTables[bits] = table;
         }
+    }
+    pthread_mutex_unlock(&linearTablesMutex);
+    return table;
+}
 
-        if (image->comps[0].prec > 8) {
-            adjustR = image->comps[0].prec - 8;
-            printf("BMP CONVERSION: Truncating component 0 from %d bits to 8 bits\n", image->comps[0].prec);
-        }else 
-            adjustR = 0;
-
-        if (image->numcomps >= 2) { //alpha
-            outImage->hasAlpha = true;
-            if (image->comps[1].prec > 8) {
-                adjustA = image->comps[1].prec - 8;
-                printf("RGB CONVERSION: Truncating component 1 from %d bits to 8 bits\n", image->comps[1].prec);
+/*
+ Convert the decoded image to half-float pixels, writing them straight into the memory of an RGBA_F16 bitmap
+ (R, G, B, A). The components are read at their full precision. RGBA_F16 bitmaps are in the extended linear
+ sRGB color space, so the colors are linearized. If premultiply is true, they are pre-multiplied by alpha.
+ */
+static bool imagetorgbaf16(image_data_t *imageData, OPJ_UINT8 *pixels, uint32_t stride, bool premultiply) {
+    opj_image_t *image = imageData->image;
+    int w = imageData->width;
+    int h = imageData->height;
+    int channels[4], x, y, i, c;
+    float alphaScale = 1.0f;
+
+    getOutputComponents(imageData, channels);
+    if (channels[3] >= 0) alphaScale = 1.0f / (float)((1U << componentBits(&image->comps[channels[3]])) - 1);
+
+    //the color components have the same precision
+    const float *linear = getLinearTable(componentBits(&image->comps[0]));
+    if (!linear) {
+        LOGE("Out of memory");
+        return false;
+    }
+
+    for (y = 0; y < h; y++) {
+        OPJ_UINT16 *out = (OPJ_UINT16 *)(pixels + (size_t)y * stride);
+        for (x = 0, i = y * w; x < w; x++, i++) {
+            float rgb[3];
+            float a = channels[3] >= 0 ? (float)componentToUnsigned(&image->comps[channels[3]], i) * alphaScale : 1.0f;
+            for (c = 0; c < 3; c++) {
+                rgb[c] = linear[componentToUnsigned(&image->comps[channels[c] >= 0 ? channels[c] : 0], i)];
+                if (premultiply) rgb[c] *= a;
+                *out++ = floatToHalf(rgb[c]);
             }
-            else
-                adjustA = 0;
+            *out++ = floatToHalf(a);
         }
+    }
+    return true;
+}
 
-        for (i = 0; i < w * h; i++) {
-            int r, a;
-            
-            r = image->comps[0].data[i];
-            r += (image->comps[0].sgnd ? 1 << (image->comps[0].prec - 1) : 0);
-            r = ((r >> adjustR)/*+((r >> (adjustR-1))%2)*/);
-            if(r > 255) r = 255; else if(r < 0) r = 0;
-
-            if (outImage->hasAlpha) {
-                a = image->comps[1].data[i];
-                a += (image->comps[1].sgnd ? 1 << (image->comps[1].prec - 1) : 0);
-                a = ((a >> adjustA)/*+((a >> (adjustA-1))%2)*/);
-                if (a > 255) a = 255; else if (a < 0) a = 0;
+/*
+ Lowest and highest color sample values of the decoded image, read as componentToUnsigned() does. Computed by a scan
+ of the color components on the first call and kept in imageData, so that converting the image again doesn't rescan it.
+ */
+static void getColorRange(image_data_t *imageData, OPJ_UINT32 *low, OPJ_UINT32 *high) {
+    opj_image_t *image = imageData->image;
+    int channels[4], c;
+    OPJ_UINT32 i;
+
+    if (imageData->colorHigh < 0) {
+        OPJ_UINT32 lowest = 0xFFFF, highest = 0;
+        getOutputComponents(imageData, channels);
+        for (c = 0; c < 3; c++) {
+            if (channels[c] < 0) continue;
+            opj_image_comp_t *comp = &image->comps[channels[c]];
+            OPJ_UINT32 count = comp->w * comp->h;
+            if (!comp->sgnd && comp->prec <= 16) {
+                //the values are the unsigned ones, only clamped to the range of the precision
+                OPJ_INT32 min = comp->data[0], max = comp->data[0];
+                for (i = 1; i < count; i++) {
+                    min = MIN(min, comp->data[i]);
+                    max = MAX(max, comp->data[i]);
+                }
+                lowest = MIN(lowest, (OPJ_UINT32)MAX(min, 0));
+                highest = MAX(highest, (OPJ_UINT32)MIN(MAX(max, 0), (1 << comp->prec) - 1));
             } else {
-                a = 0xFF;
+                for (i = 0; i < count; i++) {
+                    OPJ_UINT32 v = componentToUnsigned(comp, (int)i);
+                    lowest = MIN(lowest, v);
+                    highest = MAX(highest, v);
+                }
             }
+        }
+        if (highest < lowest) highest = lowest;
+        imageData->colorLow = (jint)lowest;
+        imageData->colorHigh = (jint)highest;
+    }
+    *low = (OPJ_UINT32)imageData->colorLow;
+    *high = (OPJ_UINT32)imageData->colorHigh;
+}
 
-            outImage->pixels[i] = (a << 24) | (r << 16) | (r << 8) | r;
+/*
+ Build the table mapping the color components of the decoded image to 8 bits with a window (center and width in
+ sample values), an auto-stretch (a window from the lowest to the highest sample value of the image) or a lookup
+ table. It has an 8-bit value for every unsigned sample value of at most 16 bits (componentToUnsigned()), so the
+ pixel converters map a sample with a single lookup whatever the precision. The alpha channel is not mapped.
+ The decoded image is left as it is. Returns NULL if the table cannot be allocated; the caller frees it.
+ */
+static OPJ_UINT8* buildToneMap(image_data_t *imageData, jint type, jfloat center, jfloat width, const OPJ_UINT8 *table, jsize tableLength) {
+    opj_image_t *image = imageData->image;
+    int channels[4], bits = 8, c;
+    OPJ_UINT32 size, v;
+    OPJ_UINT8 *map;
+
+    getOutputComponents(imageData, channels);
+    for (c = 0; c < 3; c++) {
+        if (channels[c] >= 0) bits = MAX(bits, componentBits(&image->comps[channels[c]]));
+    }
+    size = 1U << bits;
+
+    if (type == TONE_MAPPING_AUTO_STRETCH) {
+        //the window covering all the color sample values
+        OPJ_UINT32 low, high;
+        getColorRange(imageData, &low, &high);
+        center = (low + high) / 2.0f;
+        width = (jfloat)(high - low);
+    }
+
+    map = (OPJ_UINT8 *)malloc(size);
+    if (!map) {
+        LOGE("Out of memory");
+        return NULL;
+    }
+    if (type == TONE_MAPPING_LOOKUP_TABLE) {
+        //values beyond the end of the table use its last entry
+        for (v = 0; v < size; v++) {
+            map[v] = table[MIN(v, (OPJ_UINT32)tableLength - 1)];
+        }
+    } else {
+        //linear from 0 at the lower edge of the window to 255 at its upper edge
+        float lower = center - width / 2.0f;
+        float scale = width > 0 ? 255.0f / width : 0;
+        for (v = 0; v < size; v++) {
+            float mapped = width > 0 ? (v - lower) * scale : (v > center ? 255.0f : 0.0f);
+            map[v] = mapped <= 0 ? 0 : mapped >= 255.0f ? 255 : (OPJ_UINT8)(mapped + 0.5f);
         }
     }
+    return map;
+}
 
-    return 0;
+//read a pixel of the decoded image as 8-bit R, G, B, A, mapping the colors through toneMap if it is not NULL
+static inline void readPixel8(opj_image_t *image, bool rgb, bool hasAlpha, const int *adjust, const OPJ_UINT8 *toneMap, int index, OPJ_UINT8 *rgba) {
+    if (rgb) {
+        rgba[0] = colorTo8Bits(&image->comps[0], index, adjust[0], toneMap);
+        rgba[1] = colorTo8Bits(&image->comps[1], index, adjust[1], toneMap);
+        rgba[2] = colorTo8Bits(&image->comps[2], index, adjust[2], toneMap);
+        rgba[3] = hasAlpha ? componentTo8Bits(&image->comps[3], index, adjust[3]) : 0xFF;
+    } else {
+        rgba[0] = rgba[1] = rgba[2] = colorTo8Bits(&image->comps[0], index, adjust[0], toneMap);
+        rgba[3] = hasAlpha ? componentTo8Bits(&image->comps[1], index, adjust[3]) : 0xFF;
+    }
+}
+
+/*
+ Source pixels covered by each output pixel along one axis when scaling srcSize pixels to dstSize pixels: output pixel i
+ covers taps[i * maxTaps ...] starting at source pixel start[i]. The weights of each output pixel add up to 256.
+ */
+typedef struct scale_axis {
+    int *start;
+    int *count;
+    OPJ_UINT16 *weights;
+    int maxTaps;
+} scale_axis_t;
+
+static bool initScaleAxis(scale_axis_t *axis, int srcSize, int dstSize) {
+    int i, j;
+    axis->maxTaps = (srcSize + dstSize - 1) / dstSize + 1;
+    axis->start = (int *)malloc(dstSize * sizeof(int));
+    axis->count = (int *)malloc(dstSize * sizeof(int));
+    axis->weights = (OPJ_UINT16 *)malloc((size_t)dstSize * axis->maxTaps * sizeof(OPJ_UINT16));
+    if (!axis->start || !axis->count || !axis->weights) return false;
+
+    for (i = 0; i < dstSize; i++) {
+        //in units of 1/dstSize source pixels, output pixel i covers [i * srcSize, (i + 1) * srcSize)
+        OPJ_INT64 from = (OPJ_INT64)i * srcSize;
+        OPJ_INT64 to = from + srcSize;
+        int first = (int)(from / dstSize);
+        int last = (int)MIN((to + dstSize - 1) / dstSize, (OPJ_INT64)srcSize);
+        OPJ_UINT16 *weights = axis->weights + (size_t)i * axis->maxTaps;
+        int total = 0, largest = 0;
+        axis->start[i] = first;
+        axis->count[i] = last - first;
+        for (j = first; j < last; j++) {
+            OPJ_INT64 overlap = MIN(to, (OPJ_INT64)(j + 1) * dstSize) - MAX(from, (OPJ_INT64)j * dstSize);
+            weights[j - first] = (OPJ_UINT16)((overlap * 256 + srcSize / 2) / srcSize);
+            total += weights[j - first];
+            if (weights[j - first] > weights[largest]) largest = j - first;
+        }
+        //make the weights add up to exactly 256 despite rounding
+        weights[largest] = (OPJ_UINT16)(weights[largest] + 256 - total);
+    }
+    return true;
+}
+
+static void freeScaleAxis(scale_axis_t *axis) {
+    free(axis->start);
+    free(axis->count);
+    free(axis->weights);
+}
+
+/*
+ Same as imagetoargb(), imagetogray() or imagetorgb565() depending on the bitmap format (ANDROID_BITMAP_FORMAT_*),
+ but the decoded image is scaled to the output size (imageData->width x imageData->height) by area averaging while
+ the pixels are converted. Colors are averaged pre-multiplied by alpha, after the tone mapping if toneMap is not NULL.
+ */
+static bool imagetopixelsScaled(image_data_t *imageData, OPJ_UINT8 *pixels, uint32_t stride, int32_t format, bool premultiply, const OPJ_UINT8 *toneMap) {
+    opj_image_t *image = imageData->image;
+    int srcWidth = (int)image->comps[0].w;
+    int srcHeight = (int)image->comps[0].h;
+    int w = imageData->width;
+    int h = imageData->height;
+    bool hasAlpha = imageData->hasAlpha != 0;
+    bool rgb = isRGBImage(image);
+    //only ARGB_8888 keeps the 8-bit pre-multiplied colors; RGBA_F16 is pre-multiplied after linearization
+    bool keepPremultiplied = premultiply && format == ANDROID_BITMAP_FORMAT_RGBA_8888;
+    int adjust[4] = {0, 0, 0, 0};
+    scale_axis_t xAxis = {NULL, NULL, NULL, 0}, yAxis = {NULL, NULL, NULL, 0};
+    int x, y, i, j, c;
+
+    for (c = 0; c < (rgb ? 3 : 1); c++) {
+        adjust[c] = image->comps[c].prec > 8 ? image->comps[c].prec - 8 : 0;
+    }
+    if (hasAlpha) {
+        opj_image_comp_t *alpha = &image->comps[rgb ? 3 : 1];
+        adjust[3] = alpha->prec > 8 ? alpha->prec - 8 : 0;
+    }
+
+    if (!initScaleAxis(&xAxis, srcWidth, w) || !initScaleAxis(&yAxis, srcHeight, h)) {
+        LOGE("Out of memory");
+        freeScaleAxis(&xAxis);
+        freeScaleAxis(&yAxis);
+        return false;
+    }
+
+    for (y = 0; y < h; y++) {
+        OPJ_UINT8 *out = pixels + (size_t)y * stride;
+        const OPJ_UINT16 *yWeights = yAxis.weights + (size_t)y * yAxis.maxTaps;
+        for (x = 0; x < w; x++) {
+            const OPJ_UINT16 *xWeights = xAxis.weights + (size_t)x * xAxis.maxTaps;
+            //sums of the components weighted by 65536 in total
+            OPJ_UINT32 sum[4] = {0, 0, 0, 0};
+            for (j = 0; j < yAxis.count[y]; j++) {
+                int row = (yAxis.start[y] + j) * srcWidth;
+                for (i = 0; i < xAxis.count[x]; i++) {
+                    OPJ_UINT32 weight = (OPJ_UINT32)yWeights[j] * xWeights[i];
+                    OPJ_UINT8 rgba[4];
+                    readPixel8(image, rgb, hasAlpha, adjust, toneMap, row + xAxis.start[x] + i, rgba);
+                    if (rgba[3] != 0xFF) {
+                        rgba[0] = mulDiv255Round(rgba[0], rgba[3]);
+                        rgba[1] = mulDiv255Round(rgba[1], rgba[3]);
+                        rgba[2] = mulDiv255Round(rgba[2], rgba[3]);
+                    }
+                    for (c = 0; c < 4; c++) sum[c] += weight * rgba[c];
+                }
+            }
+            OPJ_UINT8 rgba[4];
+            rgba[3] = (OPJ_UINT8)((sum[3] + 32768) >> 16);
+            for (c = 0; c < 3; c++) {
+                OPJ_UINT32 v;
+                if (keepPremultiplied || rgba[3] == 0xFF) {
+                    v = (sum[c] + 32768) >> 16;
+                    if (v > rgba[3]) v = rgba[3];
+                } else {
+                    //back to non-premultiplied colors
+                    v = sum[3] ? (OPJ_UINT32)(((OPJ_UINT64)sum[c] * 255 + sum[3] / 2) / sum[3]) : 0;
+                    if (v > 255) v = 255;
+                }
+                rgba[c] = (OPJ_UINT8)v;
+            }
+            if (format == ANDROID_BITMAP_FORMAT_A_8) {
+                *out++ = rgb ? rgbToGray(rgba[0], rgba[1], rgba[2]) : rgba[0];
+            } else if (format == ANDROID_BITMAP_FORMAT_RGB_565) {
+                OPJ_UINT16 pixel = rgbTo565(rgba[0], rgba[1], rgba[2]);
+                memcpy(out, &pixel, sizeof(pixel));
+                out += sizeof(pixel);
+            } else if (format == ANDROID_BITMAP_FORMAT_RGBA_F16) {
+                //the averaging is done with 8-bit precision
+                OPJ_UINT16 pixel[4];
+                float a = rgba[3] / 255.0f;
+                for (c = 0; c < 3; c++) {
+                    pixel[c] = floatToHalf(srgbToLinear(rgba[c] / 255.0f) * (premultiply ? a : 1.0f));
+                }
+                pixel[3] = floatToHalf(a);
+                memcpy(out, pixel, sizeof(pixel));
+                out += sizeof(pixel);
+            } else {
+                for (c = 0; c < 4; c++) *out++ = rgba[c];
+            }
+        }
+    }
+
+    freeScaleAxis(&xAxis);
+    freeScaleAxis(&yAxis);
+    return true;
 }
 
 /**
@@ -317,6 +1010,103 @@ static void info_callback(const char *msg, void *client_data) {
     LOGI("[INFO] %s", msg);
 }
 
+//set the number of threads used by the codec; must be called before opj_read_header() / opj_start_compress()
+static void setCodecThreads(opj_codec_t* l_codec, jint threads) {
+    if (threads == ALL_CORES) {
+        threads = opj_get_num_cpus();
+    }
+    if (threads <= 1) return;
+    if (!opj_has_thread_support()) {
+        LOGW("OpenJPEG was built without thread support, using a single thread");
+        return;
+    }
+    if (!opj_codec_set_threads(l_codec, threads)) {
+        LOGW("Failed to set the number of threads to %d", threads);
+    }
+}
+
+/*
+ Cancellation token of one decoding or encoding (see Cancellation.java). OpenJPEG polls it through the abort handler
+ between tiles and before each code-block job, possibly from its worker threads, so the flag is accessed atomically.
+ */
+typedef struct cancel_token_t {
+    int cancelled;
+    jlong deadline; //SystemClock.uptimeMillis() time after which the operation is cancelled, 0 = no deadline
+} cancel_token_t;
+
+//milliseconds since boot, not counting deep sleep; the same clock as SystemClock.uptimeMillis()
+static jlong uptimeMillis() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (jlong)now.tv_sec * 1000 + now.tv_nsec / 1000000;
+}
+
+//the abort handler of the codec: has the operation been cancelled or has its deadline passed?
+static OPJ_BOOL isCancelled(void *data) {
+    cancel_token_t *token = (cancel_token_t *)data;
+    if (__atomic_load_n(&token->cancelled, __ATOMIC_RELAXED)) return OPJ_TRUE;
+    if (token->deadline > 0 && uptimeMillis() >= token->deadline) {
+        __atomic_store_n(&token->cancelled, 1, __ATOMIC_RELAXED);
+        LOGW("The deadline has passed, cancelling");
+        return OPJ_TRUE;
+    }
+    return OPJ_FALSE;
+}
+
+//let the codec poll the cancellation token; NULL removes the token from the codec
+static void setCodecCancel(opj_codec_t* l_codec, cancel_token_t *cancel) {
+    opj_set_abort_handler(l_codec, cancel ? isCancelled : NULL, cancel);
+}
+
+//minimum time between two progress reports; the first and the last step are always reported
+#define PROGRESS_INTERVAL_MS 50
+
+/*
+ Progress of one decoding or encoding, reported to a Java ProgressListener by the thread running the operation.
+ OpenJPEG reports each decoded tile and the steps of each encoded tile (see opj_set_progress_handler()); the reports
+ are rate-limited, so that images with many small tiles don't spend their time calling Java.
+ */
+typedef struct progress_t {
+    JNIEnv *env;
+    jobject listener;
+    jmethodID onProgress;
+    jlong lastReport; //uptimeMillis() of the last report
+} progress_t;
+
+//prepare reporting the progress to a listener; return NULL if there's no listener
+static progress_t* initProgress(JNIEnv *env, jobject listener, progress_t *progress) {
+    if (listener == NULL) return NULL;
+    jclass listenerClass = env->GetObjectClass(listener);
+    progress->onProgress = env->GetMethodID(listenerClass, "onProgress", "(II)V");
+    env->DeleteLocalRef(listenerClass);
+    if (progress->onProgress == NULL) {
+        LOGE("Invalid progress listener");
+        env->ExceptionClear();
+        return NULL;
+    }
+    progress->env = env;
+    progress->listener = listener;
+    //the first step is reported right away
+    progress->lastReport = uptimeMillis() - PROGRESS_INTERVAL_MS;
+    return progress;
+}
+
+//the progress handler of the codec; abort if the listener has thrown an exception
+static OPJ_BOOL reportProgress(OPJ_UINT32 done, OPJ_UINT32 total, void *data) {
+    progress_t *progress = (progress_t *)data;
+    jlong now = uptimeMillis();
+    if (done < total && now - progress->lastReport < PROGRESS_INTERVAL_MS) return OPJ_TRUE;
+    progress->lastReport = now;
+    progress->env->CallVoidMethod(progress->listener, progress->onProgress, (jint)done, (jint)total);
+    //the exception is thrown when the JNI call returns
+    return progress->env->ExceptionCheck() ? OPJ_FALSE : OPJ_TRUE;
+}
+
+//let the codec report its progress; NULL removes the listener from the codec
+static void setCodecProgress(opj_codec_t* l_codec, progress_t *progress) {
+    opj_set_progress_handler(l_codec, progress ? reportProgress : NULL, progress);
+}
+
 jint JNI_OnLoad(JavaVM* vm, void* reserved)
 {
     JNIEnv* env;
@@ -388,6 +1178,80 @@ int readJ2KHeader(opj_codec_t* l_codec, int decod_format, image_header_t *outHea
     return EXIT_SUCCESS;
 }
 
+//look for PLT markers in the header of the first tile-part; the stream must be positioned after the main header
+//and the SOT marker, which opj_read_header() reads to find the end of the main header
+static bool hasFirstTilePartPLT(opj_stream_t *l_stream) {
+    opj_stream_private_t *stream = (opj_stream_private_t *)l_stream;
+    OPJ_BYTE data[2];
+    OPJ_UINT32 marker = J2K_MS_SOT, length;
+    //the SOT segment, the tile-part header markers, then SOD; give up after a reasonable number of markers
+    for (int count = 0; count < 64 && marker != J2K_MS_SOD && marker != J2K_MS_EOC; count++) {
+        if (marker == J2K_MS_PLT) return true;
+        if (opj_stream_read_data(stream, data, 2, NULL) != 2) return false;
+        opj_read_bytes(data, &length, 2);
+        if (length < 2 || opj_stream_skip(stream, length - 2, NULL) != (OPJ_OFF_T)(length - 2)) return false;
+        if (opj_stream_read_data(stream, data, 2, NULL) != 2) return false;
+        opj_read_bytes(data, &marker, 2);
+    }
+    return false;
+}
+
+//Fill the codestream structure of a header read by readJ2KHeader(). The first tile-part header is scanned for PLT
+//markers if the stream can be rewound to where the main header ends, or if rewind is false (the stream is not read
+//any more).
+static void readCodestreamInfo(opj_codec_t* l_codec, int decod_format, opj_stream_t *l_stream, bool rewind, image_header_t *outHeader) {
+    opj_codec_private_t *codec = (opj_codec_private_t *)l_codec;
+    opj_j2k *j2k = decod_format == JP2_CFMT ? ((opj_jp2_t *)codec->m_codec)->j2k : (opj_j2k *)codec->m_codec;
+    opj_codestream_info_v2_t *info = opj_get_cstr_info(l_codec);
+    if (info) {
+        outHeader->numComponents = (jint)info->nbcomps;
+        outHeader->tileX0 = (jint)info->tx0;
+        outHeader->tileY0 = (jint)info->ty0;
+        outHeader->tileWidth = (jint)info->tdx;
+        outHeader->tileHeight = (jint)info->tdy;
+        outHeader->numTilesX = (jint)info->tw;
+        outHeader->numTilesY = (jint)info->th;
+        outHeader->progressionOrder = (jint)info->m_default_tile_info.prg;
+        outHeader->multiComponentTransform = info->m_default_tile_info.mct ? 1 : 0;
+        opj_tccp_info_t *tccp = info->m_default_tile_info.tccp_info;
+        if (tccp && info->nbcomps > 0) {
+            outHeader->codeBlockWidth = 1 << tccp->cblkw;
+            outHeader->codeBlockHeight = 1 << tccp->cblkh;
+            outHeader->reversible = tccp->qmfbid == 1;
+            for (OPJ_UINT32 resno = 0; resno < tccp->numresolutions && resno < OPJ_J2K_MAXRLVLS; resno++) {
+                outHeader->precincts[resno][0] = 1 << MIN(tccp->prcw[resno], 30U);
+                outHeader->precincts[resno][1] = 1 << MIN(tccp->prch[resno], 30U);
+            }
+        }
+        opj_destroy_cstr_info(&info);
+    }
+
+    opj_image_t *image = j2k->m_private_image;
+    for (OPJ_UINT32 compno = 0; image && compno < image->numcomps && compno < MAX_HEADER_COMPONENTS; compno++) {
+        outHeader->components[compno][0] = (jint)image->comps[compno].prec;
+        outHeader->components[compno][1] = (jint)image->comps[compno].dx;
+        outHeader->components[compno][2] = (jint)image->comps[compno].dy;
+        outHeader->components[compno][3] = image->comps[compno].sgnd ? 1 : 0;
+    }
+
+    opj_codestream_index_t *index = opj_get_cstr_index(l_codec);
+    if (index) {
+        for (OPJ_UINT32 i = 0; index->marker && i < index->marknum; i++) {
+            if (index->marker[i].type == J2K_MS_TLM) outHeader->hasTLM = 1;
+        }
+        opj_destroy_cstr_index(&index);
+    }
+
+    opj_stream_private_t *stream = (opj_stream_private_t *)l_stream;
+    if (!rewind) {
+        outHeader->hasPLT = hasFirstTilePartPLT(l_stream);
+    } else if (stream->m_seek_fn != opj_stream_default_seek) {
+        OPJ_OFF_T position = opj_stream_tell(stream);
+        outHeader->hasPLT = hasFirstTilePartPLT(l_stream);
+        opj_stream_read_seek(stream, position, NULL);
+    }
+}
+
 int decodeJP2Header(opj_stream_t *l_stream, opj_dparameters_t *parameters, image_header_t *outHeader) {
     opj_codec_t* l_codec = NULL;                /* Handle to a decompressor */
     opj_image_t* image = NULL;
@@ -439,6 +1303,7 @@ int decodeJP2Header(opj_stream_t *l_stream, opj_dparameters_t *parameters, image
         LOGE("Could not read header");
         return EXIT_FAILURE;
     }
+    readCodestreamInfo(l_codec, parameters->decod_format, l_stream, false, outHeader);
 
     /* free remaining structures */
     if (l_codec) {
@@ -452,10 +1317,84 @@ int decodeJP2Header(opj_stream_t *l_stream, opj_dparameters_t *parameters, image
 }
 
 
-int decodeJP2Stream(opj_stream_t *l_stream, opj_dparameters_t *parameters, image_data_t *outImage, jint reduce) {
+//copy the decoding parameters from the Java integer array into decode_params_t
+static void readDecodeParams(JNIEnv *env, jintArray params, decode_params_t *outParams) {
+    memset(outParams, 0, sizeof(decode_params_t));
+    outParams->threads = 1;
+    if (params == NULL) return;
+    jsize length = MIN(env->GetArrayLength(params), (jsize)(sizeof(decode_params_t) / sizeof(jint)));
+    env->GetIntArrayRegion(params, 0, length, (jint*)outParams);
+}
+
+//full-resolution bounds of the area to decode on the reference grid: the region clipped to the image, or the whole image
+static void getDecodeBounds(opj_image_t *image, decode_params_t *params, OPJ_UINT32 *x0, OPJ_UINT32 *y0, OPJ_UINT32 *x1, OPJ_UINT32 *y1) {
+    if (params->regionX1 <= params->regionX0 || params->regionY1 <= params->regionY0) {
+        *x0 = image->x0;
+        *y0 = image->y0;
+        *x1 = image->x1;
+        *y1 = image->y1;
+    } else {
+        *x0 = MIN(image->x0 + (OPJ_UINT32)params->regionX0, image->x1);
+        *y0 = MIN(image->y0 + (OPJ_UINT32)params->regionY0, image->y1);
+        *x1 = MIN(image->x0 + (OPJ_UINT32)params->regionX1, image->x1);
+        *y1 = MIN(image->y0 + (OPJ_UINT32)params->regionY1, image->y1);
+    }
+}
+
+//convert the region requested by the user (relative to the image origin) to the reference grid coordinates
+static int setDecodeRegion(opj_image_t *image, decode_params_t *params, opj_dparameters_t *parameters) {
+    if (params->regionX1 <= params->regionX0 || params->regionY1 <= params->regionY0) {
+        //no region, decode the whole image
+        parameters->DA_x0 = parameters->DA_y0 = parameters->DA_x1 = parameters->DA_y1 = 0;
+        return EXIT_SUCCESS;
+    }
+    getDecodeBounds(image, params, &parameters->DA_x0, &parameters->DA_y0, &parameters->DA_x1, &parameters->DA_y1);
+    if (parameters->DA_x0 >= parameters->DA_x1 || parameters->DA_y0 >= parameters->DA_y1) {
+        LOGE("The region to decode [%d, %d, %d, %d] is outside of the image (%d x %d)", params->regionX0, params->regionY0,
+             params->regionX1, params->regionY1, image->x1 - image->x0, image->y1 - image->y0);
+        return EXIT_FAILURE;
+    }
+    return EXIT_SUCCESS;
+}
+
+//size of the output image for the target size: the target size itself, or the image fitted into it (never enlarged)
+static void getTargetOutputSize(decode_params_t *params, jint width, jint height, jint *outWidth, jint *outHeight) {
+    jint tw = params->targetWidth, th = params->targetHeight;
+    if (params->scaleMode == SCALE_EXACT) {
+        *outWidth = tw;
+        *outHeight = th;
+    } else if (width <= tw && height <= th) {
+        *outWidth = width;
+        *outHeight = height;
+    } else if ((OPJ_INT64)width * th <= (OPJ_INT64)height * tw) {
+        //the height is the limiting dimension
+        *outHeight = th;
+        *outWidth = MAX(1, (jint)(((OPJ_INT64)width * th + height / 2) / height));
+    } else {
+        *outWidth = tw;
+        *outHeight = MAX(1, (jint)(((OPJ_INT64)height * tw + width / 2) / width));
+    }
+}
+
+//the number of resolutions to skip so that the decoded area still covers the output size for the target size
+static jint getTargetReduce(opj_image_t *image, decode_params_t *params, jint numResolutions) {
+    OPJ_UINT32 x0, y0, x1, y1;
+    jint outWidth, outHeight, reduce = 0;
+
+    getDecodeBounds(image, params, &x0, &y0, &x1, &y1);
+    if (x1 <= x0 || y1 <= y0) return 0;
+    getTargetOutputSize(params, (jint)(x1 - x0), (jint)(y1 - y0), &outWidth, &outHeight);
+    while (reduce + 1 < numResolutions
+           && ceilDivPow2((OPJ_INT32)x1, reduce + 1) - ceilDivPow2((OPJ_INT32)x0, reduce + 1) >= outWidth
+           && ceilDivPow2((OPJ_INT32)y1, reduce + 1) - ceilDivPow2((OPJ_INT32)y0, reduce + 1) >= outHeight) {
+        reduce++;
+    }
+    return reduce;
+}
+
+//create a decoder for the data format, set it up and read the image header; return NULL in case of an error
+static opj_codec_t* openDecoder(opj_stream_t *l_stream, opj_dparameters_t *parameters, jint threads, opj_image_t **image) {
     opj_codec_t* l_codec = NULL;                /* Handle to a decompressor */
-    opj_image_t* image = NULL;
-    image_header_t outHeader;
 
     /* decode the JPEG2000 stream */
     /* ---------------------- */
@@ -475,7 +1414,7 @@ int decodeJP2Stream(opj_stream_t *l_stream, opj_dparameters_t *parameters, image
         }
         default:
             LOGE("Unknown file format");
-            return EXIT_FAILURE;
+            return NULL;
     }
 
     /* catch events using our callbacks and give a local context */        
@@ -487,60 +1426,50 @@ int decodeJP2Stream(opj_stream_t *l_stream, opj_dparameters_t *parameters, image
     if ( !opj_setup_decoder(l_codec, parameters) ){
         LOGE("ERROR -> j2k_dump: failed to setup the decoder\n");
         opj_destroy_codec(l_codec);
-        return EXIT_FAILURE;
+        return NULL;
     }
 
+    /* The thread pool must be set up before the header is read */
+    setCodecThreads(l_codec, threads);
+
     /* Read the main header of the codestream and if necessary the JP2 boxes*/
-    if(! opj_read_header(l_stream, l_codec, &image)){
+    *image = NULL;
+    if(! opj_read_header(l_stream, l_codec, image)){
         LOGE("ERROR -> opj_decompress: failed to read the header\n");
         opj_destroy_codec(l_codec);
-        opj_image_destroy(image);
-        return EXIT_FAILURE;
-    }
-
-    parameters->cp_reduce = reduce;
-
-    //check the decode parameters against the header - fix them if necessary
-    if (readJ2KHeader(l_codec, parameters->decod_format, &outHeader) == EXIT_SUCCESS) {
-        if (parameters->cp_reduce >= outHeader.numResolutions) {
-            LOGE("The number of resolutions to remove (%d) is greater or equal than the number of resolutions of this image (%d). Changing to %d.", parameters->cp_reduce, outHeader.numResolutions, outHeader.numResolutions - 1);
-            parameters->cp_reduce = outHeader.numResolutions - 1;
-        }
-        if (parameters->cp_layer > 0 && parameters->cp_layer > outHeader.numQualityLayers) {
-            /* It's too late to change the cp_layer value; it was already used in opj_read_header().
-             * But in this case we don't actually need to change it, because OpenJPEG quietly ignores it
-             * if the value is too high. So we just log this.
-             */
-            LOGE("The number of quality layers to decode (%d) is greater than the number of quality layers of this image (%d). Changing to %d.", parameters->cp_layer, outHeader.numQualityLayers, outHeader.numQualityLayers);
-        }
-    }
-
-    /* Setup the decoder again with fixed parameters */
-    if ( !opj_setup_decoder(l_codec, parameters) ){
-        LOGE("ERROR -> j2k_dump: failed to setup the decoder\n");
-        opj_destroy_codec(l_codec);
-        return EXIT_FAILURE;
-    }
-
-
-    /* Optional if you want decode the entire image */
-    if (!opj_set_decode_area(l_codec, image, parameters->DA_x0,
-            parameters->DA_y0, parameters->DA_x1, parameters->DA_y1)){
-        LOGE("ERROR -> opj_decompress: failed to set the decoded area\n");
-        opj_destroy_codec(l_codec);
-        opj_image_destroy(image);
-        return EXIT_FAILURE;
+        opj_image_destroy(*image);
+        *image = NULL;
+        return NULL;
     }
+    return l_codec;
+}
 
-    /* Get the decoded image */
-    if (!(opj_decode(l_codec, l_stream, image) && opj_end_decompress(l_codec,    l_stream))) {
-        LOGE("ERROR -> opj_decompress: failed to decode image!\n");
-        opj_destroy_codec(l_codec);
-        opj_image_destroy(image);
+/*
+ Restrict decoding to the components selected by JP2Decoder.setComponents(). OpenJPEG then skips the inverse
+ multi-component transform, so the selected components are e.g. Y, Cb, Cr instead of R, G, B; selecting all the
+ components in their original order is therefore the same as decoding without a selection.
+ */
+static int setDecodedComponents(opj_codec_t *l_codec, opj_image_t *image, decode_params_t *params) {
+    OPJ_UINT32 indices[MAX_DECODED_COMPONENTS];
+    jint count = MIN(params->numComponents, MAX_DECODED_COMPONENTS);
+    bool all = (OPJ_UINT32)count == image->numcomps;
+    jint i;
+
+    if (count <= 0) return EXIT_SUCCESS;
+    for (i = 0; i < count; i++) {
+        indices[i] = (OPJ_UINT32)params->components[i];
+        if (indices[i] != (OPJ_UINT32)i) all = false;
+    }
+    if (all) return EXIT_SUCCESS;
+    if (!opj_set_decoded_components(l_codec, (OPJ_UINT32)count, indices, OPJ_FALSE)) {
+        LOGE("ERROR -> opj_decompress: failed to set the components to decode\n");
         return EXIT_FAILURE;
     }
+    return EXIT_SUCCESS;
+}
 
-    /* Convert the decoded image data to RGB with no subsampling */
+/* Convert the decoded image data to RGB with no subsampling */
+static void convertToRGB(opj_image_t *image) {
     if (image->color_space != OPJ_CLRSPC_SYCC
         && image->numcomps == 3 && image->comps[0].dx == image->comps[0].dy
         && image->comps[1].dx != 1) {
@@ -549,7 +1478,9 @@ int decodeJP2Stream(opj_stream_t *l_stream, opj_dparameters_t *parameters, image
         image->color_space = OPJ_CLRSPC_GRAY;
     }
 
-    if (image->color_space == OPJ_CLRSPC_SYCC) {
+    if (isDeferredYCC(image)) {
+        //converted while the pixels are written into the bitmap, see ycctoargb()
+    } else if (image->color_space == OPJ_CLRSPC_SYCC) {
         color_sycc_to_rgb(image);
     } else if ((image->color_space == OPJ_CLRSPC_CMYK)/* &&
                (parameters.cod_format != TIF_DFMT)*/) {
@@ -570,19 +1501,127 @@ int decodeJP2Stream(opj_stream_t *l_stream, opj_dparameters_t *parameters, image
         image->icc_profile_buf = NULL;
         image->icc_profile_len = 0;
     }
-    
-    //convert the image data to image_data_t which will be returned to Java
-    imagetoargb(image, outImage);
+}
 
-    /* free remaining structures */
-    if (l_codec) {
-        opj_destroy_codec(l_codec);
-    }
+//store the number of bytes read and of quality layers decoded completely by the codec (see JP2Decoder.DecodeInfo)
+static void getDecodeInfo(opj_codec_t *l_codec, int decod_format, opj_stream_t *l_stream, image_data_t *outImage) {
+    opj_codec_private_t *codec = (opj_codec_private_t *)l_codec;
+    opj_j2k *j2k = decod_format == JP2_CFMT ? ((opj_jp2_t *)codec->m_codec)->j2k : (opj_j2k *)codec->m_codec;
+    opj_tcp_t *tcp = j2k->m_specific_param.m_decoder.m_default_tcp;
+    //lowered by OpenJPEG when packets are missing from a truncated codestream (non-strict mode only)
+    OPJ_UINT32 completeLayers = j2k->m_cp.m_specific_param.m_dec.m_complete_layers;
 
-    /* free image data structure */
-    opj_image_destroy(image);
-    
-    return EXIT_SUCCESS;
+    outImage->bytesUsed = (jlong)opj_stream_tell((opj_stream_private_t *)l_stream);
+    outImage->layersUsed = tcp != NULL ? (jint)MIN(tcp->numlayers, tcp->num_layers_to_decode) : 1;
+    outImage->truncated = completeLayers != UINT_MAX;
+    if (outImage->truncated) {
+        outImage->layersUsed = MIN(outImage->layersUsed, (jint)completeLayers);
+    }
+}
+
+int decodeJP2Stream(opj_stream_t *l_stream, opj_dparameters_t *parameters, image_data_t *outImage, decode_params_t *params, cancel_token_t *cancel, progress_t *progress) {
+    opj_codec_t* l_codec = NULL;                /* Handle to a decompressor */
+    opj_image_t* image = NULL;
+    image_header_t outHeader;
+    jint outWidth = 0, outHeight = 0;
+
+    parameters->cp_layer = params->layers;
+    //We don't set the reduce parameter yet, because if it's too high, it would throw an error.
+    //We will set it after we read the image header and find out actual number of resolutions.
+
+    l_codec = openDecoder(l_stream, parameters, params->threads, &image);
+    if (!l_codec) {
+        return EXIT_FAILURE;
+    }
+    setCodecCancel(l_codec, cancel);
+    setCodecProgress(l_codec, progress);
+
+    parameters->cp_reduce = params->reduce;
+
+    //check the decode parameters against the header - fix them if necessary
+    if (readJ2KHeader(l_codec, parameters->decod_format, &outHeader) == EXIT_SUCCESS) {
+        if (params->targetWidth > 0 && params->targetHeight > 0) {
+            //the target size replaces the number of resolutions to skip
+            parameters->cp_reduce = getTargetReduce(image, params, outHeader.numResolutions);
+        }
+        if (parameters->cp_reduce >= outHeader.numResolutions) {
+            LOGE("The number of resolutions to remove (%d) is greater or equal than the number of resolutions of this image (%d). Changing to %d.", parameters->cp_reduce, outHeader.numResolutions, outHeader.numResolutions - 1);
+            parameters->cp_reduce = outHeader.numResolutions - 1;
+        }
+        if (parameters->cp_layer > 0 && parameters->cp_layer > outHeader.numQualityLayers) {
+            /* It's too late to change the cp_layer value; it was already used in opj_read_header().
+             * But in this case we don't actually need to change it, because OpenJPEG quietly ignores it
+             * if the value is too high. So we just log this.
+             */
+            LOGE("The number of quality layers to decode (%d) is greater than the number of quality layers of this image (%d). Changing to %d.", parameters->cp_layer, outHeader.numQualityLayers, outHeader.numQualityLayers);
+        }
+    }
+
+    /* Setup the decoder again with fixed parameters */
+    if ( !opj_setup_decoder(l_codec, parameters) ){
+        LOGE("ERROR -> j2k_dump: failed to setup the decoder\n");
+        opj_destroy_codec(l_codec);
+        return EXIT_FAILURE;
+    }
+
+    //like opj_decompress on a partial download: use the complete packets, ignore the missing ones
+    opj_decoder_set_strict_mode(l_codec, params->allowTruncated ? OPJ_FALSE : OPJ_TRUE);
+
+    if (setDecodedComponents(l_codec, image, params) != EXIT_SUCCESS) {
+        opj_destroy_codec(l_codec);
+        opj_image_destroy(image);
+        return EXIT_FAILURE;
+    }
+
+    //size of the output bitmap if the image is scaled to the target size
+    if (params->targetWidth > 0 && params->targetHeight > 0 && params->scaleMode != SCALE_REDUCE_ONLY) {
+        OPJ_UINT32 x0, y0, x1, y1;
+        getDecodeBounds(image, params, &x0, &y0, &x1, &y1);
+        getTargetOutputSize(params, (jint)(x1 - x0), (jint)(y1 - y0), &outWidth, &outHeight);
+    }
+
+    /* Restrict decoding to the requested region (all zeros = the entire image) */
+    if (setDecodeRegion(image, params, parameters) != EXIT_SUCCESS
+            || !opj_set_decode_area(l_codec, image, parameters->DA_x0,
+            parameters->DA_y0, parameters->DA_x1, parameters->DA_y1)){
+        LOGE("ERROR -> opj_decompress: failed to set the decoded area\n");
+        opj_destroy_codec(l_codec);
+        opj_image_destroy(image);
+        return EXIT_FAILURE;
+    }
+
+    /* Get the decoded image */
+    if (!(opj_decode(l_codec, l_stream, image) && opj_end_decompress(l_codec,    l_stream))) {
+        LOGE("ERROR -> opj_decompress: failed to decode image!\n");
+        opj_destroy_codec(l_codec);
+        opj_image_destroy(image);
+        return EXIT_FAILURE;
+    }
+    getDecodeInfo(l_codec, parameters->decod_format, l_stream, outImage);
+    if (outImage->truncated) {
+        LOGW("The data is truncated: %d complete quality layers decoded from %lld bytes", outImage->layersUsed, (long long)outImage->bytesUsed);
+    }
+
+    convertToRGB(image);
+    
+    /* free remaining structures */
+    if (l_codec) {
+        opj_destroy_codec(l_codec);
+    }
+
+    //check the image and hand it over in image_data_t; it will be converted directly into the output Bitmap
+    if (checkImageFormat(image, outImage) != EXIT_SUCCESS) {
+        opj_image_destroy(image);
+        return EXIT_FAILURE;
+    }
+    if (outWidth > 0) {
+        //the decoded image is scaled when it's written into the bitmap
+        outImage->width = outWidth;
+        outImage->height = outHeight;
+    }
+    outImage->image = image;
+
+    return EXIT_SUCCESS;
 }
 
 #define BYTE_ARRAY_SRC_CHUNK_LENGTH 4096
@@ -705,6 +1744,441 @@ opj_stream_t* OPJ_CALLCONV opj_stream_create_byte_array_stream (    char * data,
     return l_stream;
 }
 
+/*
+ Read-only stream over memory that is not owned by the stream (a pinned Java array, a direct buffer).
+ Unlike opj_byte_array_source, the data is never copied or reallocated.
+ */
+typedef struct opj_memory_source {
+    const OPJ_UINT8 * data;
+    OPJ_UINT64 offset;
+    OPJ_UINT64 length;
+} opj_memory_source;
+
+static OPJ_SIZE_T opj_read_from_memory (void * p_buffer, OPJ_SIZE_T p_nb_bytes, opj_memory_source * p_user_data)
+{
+    OPJ_UINT64 toRead = MIN((OPJ_UINT64)p_nb_bytes, p_user_data->length - p_user_data->offset);
+    if (toRead == 0) return (OPJ_SIZE_T)-1;
+    memcpy(p_buffer, p_user_data->data + p_user_data->offset, (size_t)toRead);
+    p_user_data->offset += toRead;
+    return (OPJ_SIZE_T)toRead;
+}
+
+static OPJ_OFF_T opj_skip_from_memory (OPJ_OFF_T p_nb_bytes, opj_memory_source * p_user_data)
+{
+    if (p_nb_bytes < 0) return -1;
+    OPJ_UINT64 toSkip = MIN((OPJ_UINT64)p_nb_bytes, p_user_data->length - p_user_data->offset);
+    p_user_data->offset += toSkip;
+    return (OPJ_OFF_T)toSkip;
+}
+
+static OPJ_BOOL opj_seek_from_memory (OPJ_OFF_T p_nb_bytes, opj_memory_source * p_user_data)
+{
+    if (p_nb_bytes < 0 || (OPJ_UINT64)p_nb_bytes > p_user_data->length) {
+        return OPJ_FALSE;
+    }
+    p_user_data->offset = (OPJ_UINT64)p_nb_bytes;
+    return OPJ_TRUE;
+}
+
+static opj_stream_t* createMemoryStream (const void * data, OPJ_UINT64 length, OPJ_SIZE_T p_size, opj_stream_free_user_data_fn p_free)
+{
+    opj_stream_t* l_stream = opj_stream_create(p_size, OPJ_TRUE);
+    if (! l_stream) {
+        return NULL;
+    }
+
+    opj_memory_source * data_src = (opj_memory_source *)malloc(sizeof(opj_memory_source));
+    if (! data_src) {
+        opj_stream_destroy(l_stream);
+        return NULL;
+    }
+    data_src->data = (const OPJ_UINT8 *)data;
+    data_src->offset = 0;
+    data_src->length = length;
+
+    opj_stream_set_user_data(l_stream, data_src, p_free);
+    opj_stream_set_user_data_length(l_stream, length);
+    opj_stream_set_read_function(l_stream, (opj_stream_read_fn) opj_read_from_memory);
+    opj_stream_set_skip_function(l_stream, (opj_stream_skip_fn) opj_skip_from_memory);
+    opj_stream_set_seek_function(l_stream, (opj_stream_seek_fn) opj_seek_from_memory);
+
+    return l_stream;
+}
+
+opj_stream_t* OPJ_CALLCONV opj_stream_create_memory_stream (const void * data, OPJ_UINT64 length, OPJ_SIZE_T p_size)
+{
+    return createMemoryStream(data, length, p_size, free);
+}
+
+/*
+ Stream over a memory-mapped file. Skips and seeks are just pointer arithmetic, so the pages of skipped data
+ (other tiles, higher resolutions, more quality layers) are never read from the storage.
+ */
+#define MAPPED_FILE_CHUNK_SIZE 0x10000
+
+static void opj_free_mapped_file (void * p_user_data)
+{
+    opj_memory_source * data_src = (opj_memory_source *)p_user_data;
+    munmap((void *)data_src->data, (size_t)data_src->length);
+    free(data_src);
+}
+
+//map the file into memory and create a stream reading it; NULL if the file cannot be mapped
+opj_stream_t* OPJ_CALLCONV opj_stream_create_mapped_file_stream (const char *fname)
+{
+    struct stat st;
+    void *data = MAP_FAILED;
+
+    int fd = open(fname, O_RDONLY | O_CLOEXEC);
+    if (fd < 0) {
+        return NULL;
+    }
+    //files too large for the address space are left to the regular file stream
+    if (fstat(fd, &st) == 0 && S_ISREG(st.st_mode) && st.st_size > 0 && (OPJ_UINT64)st.st_size <= SIZE_MAX) {
+        data = mmap(NULL, (size_t)st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    }
+    //the mapping remains valid after closing the descriptor
+    close(fd);
+    if (data == MAP_FAILED) {
+        return NULL;
+    }
+
+    opj_stream_t* l_stream = createMemoryStream(data, (OPJ_UINT64)st.st_size, MAPPED_FILE_CHUNK_SIZE, opj_free_mapped_file);
+    if (! l_stream) {
+        munmap(data, (size_t)st.st_size);
+    }
+    return l_stream;
+}
+
+//create a stream reading a file: memory-mapped if possible, buffered reads otherwise
+static opj_stream_t* createFileStream(const char *fname) {
+    opj_stream_t* l_stream = opj_stream_create_mapped_file_stream(fname);
+    if (!l_stream) {
+        l_stream = opj_stream_create_default_file_stream(fname, 1);
+    }
+    return l_stream;
+}
+
+/*
+ Stream reading a range of a file descriptor with pread(), which leaves the descriptor's file offset untouched.
+ Skips and seeks only move the position, the skipped data are never read.
+ */
+#define FD_STREAM_CHUNK_SIZE 0x10000
+
+typedef struct opj_fd_source {
+    int fd;
+    OPJ_UINT64 start; //offset of the data in the file
+    OPJ_UINT64 length;
+    OPJ_UINT64 offset; //current position relative to start
+} opj_fd_source;
+
+static OPJ_SIZE_T opj_read_from_fd (void * p_buffer, OPJ_SIZE_T p_nb_bytes, opj_fd_source * p_user_data)
+{
+    OPJ_UINT64 toRead = MIN((OPJ_UINT64)p_nb_bytes, p_user_data->length - p_user_data->offset);
+    if (toRead == 0) return (OPJ_SIZE_T)-1;
+    ssize_t count;
+    do {
+        count = pread(p_user_data->fd, p_buffer, (size_t)toRead, (off_t)(p_user_data->start + p_user_data->offset));
+    } while (count < 0 && errno == EINTR);
+    if (count <= 0) {
+        if (count < 0) LOGE("Error reading the file descriptor: %s", strerror(errno));
+        return (OPJ_SIZE_T)-1;
+    }
+    p_user_data->offset += count;
+    return (OPJ_SIZE_T)count;
+}
+
+static OPJ_OFF_T opj_skip_from_fd (OPJ_OFF_T p_nb_bytes, opj_fd_source * p_user_data)
+{
+    if (p_nb_bytes < 0) return -1;
+    OPJ_UINT64 toSkip = MIN((OPJ_UINT64)p_nb_bytes, p_user_data->length - p_user_data->offset);
+    p_user_data->offset += toSkip;
+    return (OPJ_OFF_T)toSkip;
+}
+
+static OPJ_BOOL opj_seek_from_fd (OPJ_OFF_T p_nb_bytes, opj_fd_source * p_user_data)
+{
+    if (p_nb_bytes < 0 || (OPJ_UINT64)p_nb_bytes > p_user_data->length) {
+        return OPJ_FALSE;
+    }
+    p_user_data->offset = (OPJ_UINT64)p_nb_bytes;
+    return OPJ_TRUE;
+}
+
+//create a stream reading length bytes of the file descriptor from start; length < 0 means up to the end of the file
+opj_stream_t* OPJ_CALLCONV opj_stream_create_fd_stream (int fd, OPJ_INT64 start, OPJ_INT64 length)
+{
+    struct stat st;
+    if (fstat(fd, &st) != 0) {
+        LOGE("Cannot access the file descriptor: %s", strerror(errno));
+        return NULL;
+    }
+    if (start < 0 || (S_ISREG(st.st_mode) && start > st.st_size)) {
+        LOGE("Invalid offset %lld in a file of %lld bytes", (long long)start, (long long)st.st_size);
+        return NULL;
+    }
+    if (length < 0) {
+        if (!S_ISREG(st.st_mode)) {
+            LOGE("The length of the data must be specified for a file descriptor which is not a regular file");
+            return NULL;
+        }
+        length = st.st_size - start;
+    }
+
+    opj_stream_t* l_stream = opj_stream_create(FD_STREAM_CHUNK_SIZE, OPJ_TRUE);
+    if (! l_stream) {
+        return NULL;
+    }
+
+    opj_fd_source * data_src = (opj_fd_source *)malloc(sizeof(opj_fd_source));
+    if (! data_src) {
+        opj_stream_destroy(l_stream);
+        return NULL;
+    }
+    data_src->fd = fd;
+    data_src->start = (OPJ_UINT64)start;
+    data_src->length = (OPJ_UINT64)length;
+    data_src->offset = 0;
+
+    opj_stream_set_user_data(l_stream, data_src, free);
+    opj_stream_set_user_data_length(l_stream, data_src->length);
+    opj_stream_set_read_function(l_stream, (opj_stream_read_fn) opj_read_from_fd);
+    opj_stream_set_skip_function(l_stream, (opj_stream_skip_fn) opj_skip_from_fd);
+    opj_stream_set_seek_function(l_stream, (opj_stream_seek_fn) opj_seek_from_fd);
+
+    return l_stream;
+}
+
+//read the first bytes of the data to detect the data format
+static int fd_format(int fd, OPJ_INT64 start) {
+    char buf[12];
+    ssize_t count;
+    do {
+        count = pread(fd, buf, sizeof(buf), (off_t)start);
+    } while (count < 0 && errno == EINTR);
+    return get_magic_format(buf, count > 0 ? (size_t)count : 0);
+}
+
+/*
+ Stream reading a Java InputStream in chunks through a reusable byte array, so the data never have to be
+ stored in memory as a whole. The stream is forward-only: no seek function is registered, which makes OpenJPEG
+ skip the optional backward seeks (tile-part count correction), and everything else is read sequentially.
+ */
+#define INPUT_STREAM_CHUNK_SIZE 0x10000
+//number of bytes read ahead to detect the data format
+#define INPUT_STREAM_MAGIC_LENGTH 12
+//stream length reported to OpenJPEG while the real length is unknown. Kept under 4 GB, OpenJPEG rejects
+//a last JP2 box of unspecified length otherwise. It is corrected when the end of the stream is reached, or
+//when OpenJPEG needs the exact length (last tile-part of unspecified length): the rest of the stream is then
+//read ahead into memory.
+#define INPUT_STREAM_UNKNOWN_LENGTH ((OPJ_UINT64)0xF0000000U)
+
+typedef struct opj_input_stream_source {
+    JNIEnv *env;
+    jobject inputStream;
+    jbyteArray chunk;
+    jmethodID readMethod;
+    jmethodID skipMethod;
+    opj_stream_t *stream;
+    OPJ_UINT64 position; //number of bytes consumed from the Java stream
+    OPJ_UINT64 length; //stream length as reported to OpenJPEG
+    bool lengthKnown;
+    OPJ_BYTE magic[INPUT_STREAM_MAGIC_LENGTH];
+    OPJ_SIZE_T magicLength;
+    OPJ_SIZE_T magicOffset;
+    OPJ_BYTE *readAhead; //the rest of the stream read to determine its length, served after the magic bytes
+    OPJ_SIZE_T readAheadLength;
+    OPJ_SIZE_T readAheadOffset;
+} opj_input_stream_source;
+
+//account for bytes consumed from the Java stream; keep the reported length ahead of the position while it's unknown
+static void advanceInputStream(opj_input_stream_source *src, OPJ_UINT64 count) {
+    src->position += count;
+    if (!src->lengthKnown && src->position >= src->length) {
+        src->length = src->position * 2;
+        if (src->stream) opj_stream_set_user_data_length(src->stream, src->length);
+    }
+}
+
+//read up to length bytes from the Java stream into the chunk array; return the number of bytes read, -1 at the end of the stream or in case of an error
+static jint readInputStreamChunk(opj_input_stream_source *src, jint length) {
+    JNIEnv *env = src->env;
+    //never read beyond the known end of the image data
+    if (src->lengthKnown) {
+        if (src->position >= src->length) return -1;
+        length = (jint)MIN((OPJ_UINT64)length, src->length - src->position);
+    }
+    jint count = env->CallIntMethod(src->inputStream, src->readMethod, src->chunk, 0, length);
+    if (env->ExceptionCheck()) {
+        LOGE("Error reading the input stream");
+        env->ExceptionDescribe();
+        env->ExceptionClear();
+        return -1;
+    }
+    if (count < 0) {
+        if (!src->lengthKnown) {
+            //now we know the real length
+            src->length = src->position;
+            src->lengthKnown = true;
+            if (src->stream) opj_stream_set_user_data_length(src->stream, src->length);
+        }
+        return -1;
+    }
+    advanceInputStream(src, count);
+    return count;
+}
+
+//consume up to count bytes read ahead into p_buffer (skipped if p_buffer is NULL); return the number of bytes consumed
+static OPJ_SIZE_T consumeReadAhead(opj_input_stream_source *src, void *p_buffer, OPJ_SIZE_T count) {
+    if (src->magicOffset < src->magicLength) {
+        count = MIN(count, src->magicLength - src->magicOffset);
+        if (p_buffer) memcpy(p_buffer, src->magic + src->magicOffset, count);
+        src->magicOffset += count;
+        return count;
+    }
+    if (src->readAheadOffset < src->readAheadLength) {
+        count = MIN(count, src->readAheadLength - src->readAheadOffset);
+        if (p_buffer) memcpy(p_buffer, src->readAhead + src->readAheadOffset, count);
+        src->readAheadOffset += count;
+        if (src->readAheadOffset == src->readAheadLength) {
+            free(src->readAhead);
+            src->readAhead = NULL;
+        }
+        return count;
+    }
+    return 0;
+}
+
+static OPJ_SIZE_T opj_read_from_input_stream (void * p_buffer, OPJ_SIZE_T p_nb_bytes, opj_input_stream_source * p_user_data)
+{
+    //serve the bytes read ahead first
+    OPJ_SIZE_T consumed = consumeReadAhead(p_user_data, p_buffer, p_nb_bytes);
+    if (consumed > 0) return consumed;
+    jint count = readInputStreamChunk(p_user_data, (jint)MIN(p_nb_bytes, (OPJ_SIZE_T)INPUT_STREAM_CHUNK_SIZE));
+    if (count <= 0) return (OPJ_SIZE_T)-1;
+    p_user_data->env->GetByteArrayRegion(p_user_data->chunk, 0, count, (jbyte *)p_buffer);
+    return (OPJ_SIZE_T)count;
+}
+
+static OPJ_OFF_T opj_skip_from_input_stream (OPJ_OFF_T p_nb_bytes, opj_input_stream_source * p_user_data)
+{
+    JNIEnv *env = p_user_data->env;
+    OPJ_OFF_T skipped = 0;
+
+    if (p_nb_bytes <= 0) return 0;
+    while (skipped < p_nb_bytes) {
+        OPJ_SIZE_T consumed = consumeReadAhead(p_user_data, NULL, (OPJ_SIZE_T)MIN(p_nb_bytes - skipped, (OPJ_OFF_T)SIZE_MAX));
+        if (consumed == 0) break;
+        skipped += consumed;
+    }
+    if (p_user_data->lengthKnown) {
+        p_nb_bytes = MIN(p_nb_bytes, skipped + (OPJ_OFF_T)(p_user_data->length - MIN(p_user_data->position, p_user_data->length)));
+    }
+    while (skipped < p_nb_bytes) {
+        jlong count = env->CallLongMethod(p_user_data->inputStream, p_user_data->skipMethod, (jlong)(p_nb_bytes - skipped));
+        if (env->ExceptionCheck()) {
+            LOGE("Error skipping in the input stream");
+            env->ExceptionDescribe();
+            env->ExceptionClear();
+            break;
+        }
+        if (count > 0) {
+            advanceInputStream(p_user_data, count);
+        } else {
+            //InputStream.skip() may skip nothing even before the end of the stream, reading tells us for sure
+            count = readInputStreamChunk(p_user_data, (jint)MIN(p_nb_bytes - skipped, (OPJ_OFF_T)INPUT_STREAM_CHUNK_SIZE));
+            if (count < 0) break;
+        }
+        skipped += count;
+    }
+    return skipped ? skipped : (OPJ_OFF_T)-1;
+}
+
+//determine the exact length of the stream for OpenJPEG: if it's unknown, read the rest of the stream ahead
+static OPJ_BOOL opj_length_of_input_stream (OPJ_UINT64 * p_length, opj_input_stream_source * p_user_data)
+{
+    JNIEnv *env = p_user_data->env;
+    OPJ_SIZE_T capacity = p_user_data->readAheadLength;
+    //the bytes not consumed yet are kept, the read ahead buffer only grows at the end
+    while (!p_user_data->lengthKnown) {
+        if (p_user_data->readAheadLength + INPUT_STREAM_CHUNK_SIZE > capacity) {
+            capacity = MAX(capacity * 2, (OPJ_SIZE_T)INPUT_STREAM_CHUNK_SIZE);
+            OPJ_BYTE *readAhead = (OPJ_BYTE *)realloc(p_user_data->readAhead, capacity);
+            if (!readAhead) {
+                LOGE("Out of memory reading the rest of the input stream");
+                return OPJ_FALSE;
+            }
+            p_user_data->readAhead = readAhead;
+        }
+        jint count = readInputStreamChunk(p_user_data, INPUT_STREAM_CHUNK_SIZE);
+        if (count < 0) {
+            //a read error ends the stream like its end does
+            p_user_data->length = p_user_data->position;
+            p_user_data->lengthKnown = true;
+            break;
+        }
+        env->GetByteArrayRegion(p_user_data->chunk, 0, count, (jbyte *)p_user_data->readAhead + p_user_data->readAheadLength);
+        p_user_data->readAheadLength += count;
+    }
+    *p_length = p_user_data->length;
+    return OPJ_TRUE;
+}
+
+//create the source for a Java InputStream and read the first bytes to detect the data format; length < 0 if unknown
+static opj_input_stream_source* createInputStreamSource(JNIEnv *env, jobject inputStream, jlong length) {
+    opj_input_stream_source *src = (opj_input_stream_source *)calloc(1, sizeof(opj_input_stream_source));
+    if (!src) return NULL;
+
+    jclass inputStreamClass = env->GetObjectClass(inputStream);
+    src->env = env;
+    src->inputStream = inputStream;
+    src->readMethod = env->GetMethodID(inputStreamClass, "read", "([BII)I");
+    src->skipMethod = env->GetMethodID(inputStreamClass, "skip", "(J)J");
+    env->DeleteLocalRef(inputStreamClass);
+    src->chunk = env->NewByteArray(INPUT_STREAM_CHUNK_SIZE);
+    if (src->readMethod == NULL || src->skipMethod == NULL || src->chunk == NULL) {
+        LOGE("Could not prepare the input stream for reading");
+        env->ExceptionClear();
+        free(src);
+        return NULL;
+    }
+    src->lengthKnown = length >= 0;
+    src->length = src->lengthKnown ? (OPJ_UINT64)length : INPUT_STREAM_UNKNOWN_LENGTH;
+
+    while (src->magicLength < INPUT_STREAM_MAGIC_LENGTH) {
+        jint count = readInputStreamChunk(src, (jint)(INPUT_STREAM_MAGIC_LENGTH - src->magicLength));
+        if (count < 0) break;
+        env->GetByteArrayRegion(src->chunk, 0, count, (jbyte *)src->magic + src->magicLength);
+        src->magicLength += count;
+    }
+    return src;
+}
+
+static void freeInputStreamSource(void *p_user_data) {
+    opj_input_stream_source *src = (opj_input_stream_source *)p_user_data;
+    free(src->readAhead);
+    free(src);
+}
+
+//create an OpenJPEG stream for the source; the source is freed with the stream
+opj_stream_t* OPJ_CALLCONV opj_stream_create_input_stream (opj_input_stream_source *src)
+{
+    opj_stream_t* l_stream = opj_stream_create(INPUT_STREAM_CHUNK_SIZE, OPJ_TRUE);
+    if (! l_stream) {
+        freeInputStreamSource(src);
+        return NULL;
+    }
+
+    src->stream = l_stream;
+    opj_stream_set_user_data(l_stream, src, freeInputStreamSource);
+    opj_stream_set_user_data_length(l_stream, src->length);
+    opj_stream_set_user_data_length_function(l_stream, (opj_stream_length_fn) opj_length_of_input_stream);
+    opj_stream_set_read_function(l_stream, (opj_stream_read_fn) opj_read_from_input_stream);
+    opj_stream_set_skip_function(l_stream, (opj_stream_skip_fn) opj_skip_from_input_stream);
+
+    return l_stream;
+}
+
 int setEncoderParameters(opj_cparameters_t *parameters, JNIEnv *env, jint fileFormat, jint numResolutions, jfloatArray compressionRates, jfloatArray qualityValues) {
     int i;
     jfloat *bufferPtr;
@@ -853,7 +2327,8 @@ opj_image_t * getImage(JNIEnv *env, jintArray pixels, jboolean hasAlpha, jint wi
 }
 
 //encode a opj_image_t (prepared from the raw bitmap data) into a JPEG-2000 byte array
-int encodeJP2(opj_cparameters_t *parameters, opj_image_t *image, opj_byte_array_source ** outByteArray) {
+int encodeJP2(opj_cparameters_t *parameters, opj_image_t *image, opj_byte_array_source ** outByteArray, jint threads, cancel_token_t *cancel,
+              progress_t *progress) {
     int i, j;
     opj_stream_private_t * l_stream = NULL;
 	opj_codec_t* l_codec = NULL;
@@ -890,8 +2365,13 @@ int encodeJP2(opj_cparameters_t *parameters, opj_image_t *image, opj_byte_array_
     opj_set_info_handler(l_codec, info_callback,00);
     opj_set_warning_handler(l_codec, warning_callback,00);
     opj_set_error_handler(l_codec, error_callback,00);
+    setCodecCancel(l_codec, cancel);
+    setCodecProgress(l_codec, progress);
 
     opj_setup_encoder(l_codec, parameters, image);
+
+    /* The thread pool must be set up before opj_start_compress() */
+    setCodecThreads(l_codec, threads);
     //LOGD("7");
     
     /* open a byte stream for writing and allocate memory for all tiles */
@@ -939,6 +2419,11 @@ int encodeJP2(opj_cparameters_t *parameters, opj_image_t *image, opj_byte_array_
     opj_destroy_codec(l_codec);
     //LOGD("13");
 
+    //don't leave a partial file behind a cancelled encoding
+    if (!bSuccess && cancel && parameters->outfile[0] != 0 && __atomic_load_n(&cancel->cancelled, __ATOMIC_RELAXED)) {
+        remove(parameters->outfile);
+    }
+
     /* free image data */
     opj_image_destroy(image);
     //LOGD("14");
@@ -957,10 +2442,12 @@ int encodeJP2(opj_cparameters_t *parameters, opj_image_t *image, opj_byte_array_
 
 //encode a raw bitmap into JPEG-2000, return the result in a byte array
 JNIEXPORT jbyteArray JNICALL Java_com_gemalto_jp2_JP2Encoder_encodeJP2ByteArray(JNIEnv *env, jclass thiz, jintArray pixels, jboolean hasAlpha, jint width, jint height,
-                                                                             jint fileFormat, jint numResolutions, jfloatArray compressionRates, jfloatArray qualityValues) {
+                                                                             jint fileFormat, jint numResolutions, jfloatArray compressionRates, jfloatArray qualityValues, jint threads, jlong cancel,
+                                                                             jobject progressListener) {
     opj_byte_array_source * jp2data = NULL;
     opj_cparameters_t parameters;    /* compression parameters */
     opj_image_t *image = NULL;
+    progress_t progress;
     
     if (setEncoderParameters(&parameters, env, fileFormat, numResolutions, compressionRates, qualityValues) != EXIT_SUCCESS) {
         return NULL;
@@ -972,7 +2459,8 @@ JNIEXPORT jbyteArray JNICALL Java_com_gemalto_jp2_JP2Encoder_encodeJP2ByteArray(
         return NULL;
     }
     
-    if (encodeJP2(&parameters, image, &jp2data) != EXIT_SUCCESS) {
+    if (encodeJP2(&parameters, image, &jp2data, threads, (cancel_token_t *)(intptr_t)cancel,
+                  initProgress(env, progressListener, &progress)) != EXIT_SUCCESS) {
         LOGE("Error encoding JP2 data");
         return NULL;
     }
@@ -991,9 +2479,11 @@ JNIEXPORT jbyteArray JNICALL Java_com_gemalto_jp2_JP2Encoder_encodeJP2ByteArray(
 
 //encode a raw bitmap into JPEG-2000, store the result into a file, return success/failure
 JNIEXPORT jint JNICALL Java_com_gemalto_jp2_JP2Encoder_encodeJP2File(JNIEnv *env, jclass thiz, jstring fileName, jintArray pixels, jboolean hasAlpha, jint width, jint height,
-                                                                        jint fileFormat, jint numResolutions, jfloatArray compressionRates, jfloatArray qualityValues) {
+                                                                        jint fileFormat, jint numResolutions, jfloatArray compressionRates, jfloatArray qualityValues, jint threads, jlong cancel,
+                                                                        jobject progressListener) {
     opj_cparameters_t parameters;    /* compression parameters */
     opj_image_t *image = NULL;
+    progress_t progress;
     const char *c_file;
     
     if (setEncoderParameters(&parameters, env, fileFormat, numResolutions, compressionRates, qualityValues) != EXIT_SUCCESS) {
@@ -1009,18 +2499,20 @@ JNIEXPORT jint JNICALL Java_com_gemalto_jp2_JP2Encoder_encodeJP2File(JNIEnv *env
         return EXIT_FAILURE;
     }
     
-    return encodeJP2(&parameters, image, NULL);
+    return encodeJP2(&parameters, image, NULL, threads, (cancel_token_t *)(intptr_t)cancel,
+                     initProgress(env, progressListener, &progress));
 }
 
-//convert the image_data_t to integer array (use first 3 integers for width, height, and alpha information, then append the raw pixel data)
-jintArray prepareReturnData(JNIEnv *env, image_data_t *outImage) {
-    //prepare return data: first three integers in the array are width, height, hasAlpha, then image pixels
-    jintArray ret = env->NewIntArray(outImage->width * outImage->height + 3);
-    env->SetIntArrayRegion(ret, 0, 3, (jint*)outImage);
-    env->SetIntArrayRegion(ret, 3, outImage->width * outImage->height, outImage->pixels);
-    free(outImage->pixels);
-    outImage->pixels = NULL;
-    return ret;
+//move the image_data_t to the heap and return its address as a handle for Java
+static jlong prepareReturnData(image_data_t *outImage) {
+    image_data_t *ret = (image_data_t *)malloc(sizeof(image_data_t));
+    if (ret == NULL) {
+        LOGE("Could not allocate memory for the decoded image");
+        opj_image_destroy(outImage->image);
+        return 0;
+    }
+    memcpy(ret, outImage, sizeof(image_data_t));
+    return (jlong)(intptr_t)ret;
 }
 
 //convert a image_header_t to an integer array
@@ -1032,17 +2524,19 @@ jintArray prepareReturnHeaderData(JNIEnv *env, image_header_t *outHeader) {
     return ret;
 }
 
-//decode a JPEG-2000 encoded file, return in 32-bit raw RGBA pixels
-JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_decodeJP2File(JNIEnv *env, jclass thiz, jstring fileName, jint reduce, jint layers) {
+//decode a JPEG-2000 encoded file, return a handle to the decoded image (0 in case of an error)
+JNIEXPORT jlong JNICALL Java_com_gemalto_jp2_JP2Decoder_decodeJP2File(JNIEnv *env, jclass thiz, jstring fileName, jintArray params, jlong cancel, jobject progressListener) {
     opj_stream_t *l_stream = NULL;                /* Stream */
     opj_dparameters_t parameters;            /* decompression parameters */
+    decode_params_t decodeParams;
     image_data_t outImage; //output data
-    jintArray ret = NULL;
+    progress_t progress;
+    jlong ret = 0;
 
     //sanity check
     if (fileName == NULL) {
         LOGE("fileName is NULL!");
-        return NULL;
+        return 0;
     }
 
     /* set decoding parameters to default values */
@@ -1053,20 +2547,19 @@ JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_decodeJP2File(JNIEnv
     env->ReleaseStringUTFChars(fileName, c_file);
     
     parameters.decod_format = infile_format(parameters.infile);
-    parameters.cp_layer = layers;
-    //We don't set the reduce parameter yet, because if it's too high, it would throw an error.
-    //We will set it after we read the image header and find out actual number of resolutions.
+    readDecodeParams(env, params, &decodeParams);
 
-    /* read the input file and put it in memory */
-    /* ---------------------------------------- */
-    l_stream = opj_stream_create_default_file_stream(parameters.infile,1);
+    /* open the input file */
+    /* ------------------- */
+    l_stream = createFileStream(parameters.infile);
     if (!l_stream){
         LOGE("ERROR -> failed to create the stream from the file\n");
-        return NULL;
+        return 0;
     }
     
-    if (decodeJP2Stream(l_stream, &parameters, &outImage, reduce) == EXIT_SUCCESS) {
-        ret = prepareReturnData(env, &outImage);
+    if (decodeJP2Stream(l_stream, &parameters, &outImage, &decodeParams, (cancel_token_t *)(intptr_t)cancel,
+            initProgress(env, progressListener, &progress)) == EXIT_SUCCESS) {
+        ret = prepareReturnData(&outImage);
     }
     
     /* Close the byte stream */
@@ -1075,71 +2568,311 @@ JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_decodeJP2File(JNIEnv
     return ret;
 }
 
-//decode a JPEG-2000 encoded byte array, return in 32-bit raw RGBA pixels
-JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_decodeJP2ByteArray(JNIEnv *env, jclass thiz, jbyteArray data, jint reduce, jint layers) {
+//decode JPEG-2000 encoded data in memory, return a handle to the decoded image (0 in case of an error)
+static jlong decodeJP2Memory(JNIEnv *env, const char *data, size_t dataLength, jintArray params, jlong cancel, jobject progressListener) {
     opj_stream_t *l_stream = NULL;                /* Stream */
     opj_dparameters_t parameters;            /* decompression parameters */
-    char *imgData;
-    jbyte *bufferPtr;
-    jsize dataLength;
-    opj_byte_array_source * streamData = NULL;
+    decode_params_t decodeParams;
     image_data_t outImage; //output data
-    jintArray ret = NULL;
-
-    //sanity check
-    if (data == NULL) {
-        LOGE("data is NULL!");
-        return NULL;
-    }
+    progress_t progress;
+    jlong ret = 0;
 
     /* set decoding parameters to default values */
     opj_set_default_decoder_parameters(&parameters);
 
-    //copy bytes from java
-    dataLength = env->GetArrayLength(data);
-    bufferPtr = env->GetByteArrayElements(data, NULL);
-    imgData = (char *)malloc(dataLength * sizeof(char));
-    memcpy(imgData, bufferPtr, dataLength);
-    env->ReleaseByteArrayElements(data, bufferPtr, JNI_ABORT);
-    
-    
-    parameters.decod_format = get_magic_format(imgData);
-    parameters.cp_layer = layers;
-    //We don't set the reduce parameter yet, because if it's too high, it would throw an error.
-    //We will set it after we read the image header and find out actual number of resolutions.
+    parameters.decod_format = get_magic_format(data, dataLength);
+    readDecodeParams(env, params, &decodeParams);
 
-    l_stream = opj_stream_create_byte_array_stream(imgData,dataLength,OPJ_J2K_STREAM_CHUNK_SIZE,1);
+    //the data is read in place, without copying the whole buffer
+    l_stream = opj_stream_create_memory_stream(data, dataLength, OPJ_J2K_STREAM_CHUNK_SIZE);
     if (!l_stream){
         LOGE("ERROR -> failed to create the stream from the byte array");
-        free(imgData);
-        return NULL;
+        return 0;
     }
-    
-    streamData = (opj_byte_array_source *)((opj_stream_private_t *)l_stream)->m_user_data;
-    
-    if (decodeJP2Stream(l_stream, &parameters, &outImage, reduce) == EXIT_SUCCESS) {
-        ret = prepareReturnData(env, &outImage);
+
+    if (decodeJP2Stream(l_stream, &parameters, &outImage, &decodeParams, (cancel_token_t *)(intptr_t)cancel,
+            initProgress(env, progressListener, &progress)) == EXIT_SUCCESS) {
+        ret = prepareReturnData(&outImage);
     }
-    
+
     /* Close the byte stream */
     opj_stream_destroy(l_stream);
-    free(streamData->data); //this is where the imgData is stored now
-    free(streamData);
 
     return ret;
 }
 
-//read meta-data information from a JPEG-2000 encoded file, return in an integer array (image_header_t representation)
-JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_readJP2HeaderFile(JNIEnv *env, jclass thiz, jstring fileName) {
-    opj_stream_t *l_stream = NULL;                /* Stream */
-    opj_dparameters_t parameters;            /* decompression parameters */
-    image_header_t outHeader; //output data
-    jintArray ret = NULL;
-
-    //sanity check
-    if (fileName == NULL) {
-        LOGE("fileName is NULL!");
-        return NULL;
+//check that [offset, offset + length) lies within a buffer of the given size
+static bool checkBounds(jlong size, jint offset, jint length) {
+    if (offset < 0 || length < 0 || (jlong)offset + length > size) {
+        LOGE("Invalid data range: offset %d, length %d, size %lld", offset, length, (long long)size);
+        return false;
+    }
+    return true;
+}
+
+//decode a JPEG-2000 encoded byte array, return a handle to the decoded image (0 in case of an error)
+JNIEXPORT jlong JNICALL Java_com_gemalto_jp2_JP2Decoder_decodeJP2ByteArray(JNIEnv *env, jclass thiz, jbyteArray data, jint offset, jint length, jintArray params, jlong cancel, jobject progressListener) {
+    jbyte *bufferPtr;
+    jlong ret;
+
+    //sanity check
+    if (data == NULL) {
+        LOGE("data is NULL!");
+        return 0;
+    }
+    if (!checkBounds(env->GetArrayLength(data), offset, length)) return 0;
+
+    //the array elements are used directly for the whole decoding; no private copy is made
+    bufferPtr = env->GetByteArrayElements(data, NULL);
+    if (bufferPtr == NULL) {
+        LOGE("Could not access the byte array");
+        return 0;
+    }
+    ret = decodeJP2Memory(env, (const char *)bufferPtr + offset, length, params, cancel, progressListener);
+    env->ReleaseByteArrayElements(data, bufferPtr, JNI_ABORT);
+
+    return ret;
+}
+
+//decode a JPEG-2000 encoded direct ByteBuffer, return a handle to the decoded image (0 in case of an error)
+JNIEXPORT jlong JNICALL Java_com_gemalto_jp2_JP2Decoder_decodeJP2DirectBuffer(JNIEnv *env, jclass thiz, jobject buffer, jint offset, jint length, jintArray params, jlong cancel, jobject progressListener) {
+    char *bufferPtr;
+
+    //sanity check
+    if (buffer == NULL) {
+        LOGE("buffer is NULL!");
+        return 0;
+    }
+    bufferPtr = (char *)env->GetDirectBufferAddress(buffer);
+    if (bufferPtr == NULL) {
+        LOGE("Could not access the direct buffer");
+        return 0;
+    }
+    if (!checkBounds(env->GetDirectBufferCapacity(buffer), offset, length)) return 0;
+
+    return decodeJP2Memory(env, bufferPtr + offset, length, params, cancel, progressListener);
+}
+
+//decode a JPEG-2000 image from a Java InputStream, return a handle to the decoded image (0 in case of an error)
+JNIEXPORT jlong JNICALL Java_com_gemalto_jp2_JP2Decoder_decodeJP2InputStream(JNIEnv *env, jclass thiz, jobject inputStream, jlong length, jintArray params, jlong cancel, jobject progressListener) {
+    opj_stream_t *l_stream = NULL;                /* Stream */
+    opj_dparameters_t parameters;            /* decompression parameters */
+    decode_params_t decodeParams;
+    image_data_t outImage; //output data
+    progress_t progress;
+    opj_input_stream_source *src;
+    jlong ret = 0;
+
+    //sanity check
+    if (inputStream == NULL) {
+        LOGE("inputStream is NULL!");
+        return 0;
+    }
+
+    /* set decoding parameters to default values */
+    opj_set_default_decoder_parameters(&parameters);
+    readDecodeParams(env, params, &decodeParams);
+
+    src = createInputStreamSource(env, inputStream, length);
+    if (!src) return 0;
+    parameters.decod_format = get_magic_format((const char *)src->magic, src->magicLength);
+
+    l_stream = opj_stream_create_input_stream(src);
+    if (!l_stream){
+        LOGE("ERROR -> failed to create the stream from the input stream");
+        return 0;
+    }
+
+    if (decodeJP2Stream(l_stream, &parameters, &outImage, &decodeParams, (cancel_token_t *)(intptr_t)cancel,
+            initProgress(env, progressListener, &progress)) == EXIT_SUCCESS) {
+        ret = prepareReturnData(&outImage);
+    }
+
+    /* Close the byte stream */
+    opj_stream_destroy(l_stream);
+
+    return ret;
+}
+
+//decode a JPEG-2000 image from a range of a file descriptor, return a handle to the decoded image (0 in case of an error)
+JNIEXPORT jlong JNICALL Java_com_gemalto_jp2_JP2Decoder_decodeJP2FileDescriptor(JNIEnv *env, jclass thiz, jint fd, jlong offset, jlong length, jintArray params, jlong cancel, jobject progressListener) {
+    opj_stream_t *l_stream = NULL;                /* Stream */
+    opj_dparameters_t parameters;            /* decompression parameters */
+    decode_params_t decodeParams;
+    image_data_t outImage; //output data
+    progress_t progress;
+    jlong ret = 0;
+
+    /* set decoding parameters to default values */
+    opj_set_default_decoder_parameters(&parameters);
+    readDecodeParams(env, params, &decodeParams);
+
+    parameters.decod_format = fd_format(fd, offset);
+
+    l_stream = opj_stream_create_fd_stream(fd, offset, length);
+    if (!l_stream){
+        LOGE("ERROR -> failed to create the stream from the file descriptor");
+        return 0;
+    }
+
+    if (decodeJP2Stream(l_stream, &parameters, &outImage, &decodeParams, (cancel_token_t *)(intptr_t)cancel,
+            initProgress(env, progressListener, &progress)) == EXIT_SUCCESS) {
+        ret = prepareReturnData(&outImage);
+    }
+
+    /* Close the byte stream */
+    opj_stream_destroy(l_stream);
+
+    return ret;
+}
+
+/*
+ Batch decoding, see batch_decode.h: the calling thread reads the sources (file names or byte arrays) and calls
+ callback.onImage(index, imageHandle) for each decoded image, the worker threads only decode the data in memory.
+ */
+typedef struct batch_context_t {
+    JNIEnv *env;
+    jobjectArray sources;
+    jclass stringClass;
+    jobject callback;
+    jmethodID onImageMethod;
+    decode_params_t params;
+    cancel_token_t cancel; //cancelled when the callback stops the batch, aborts the decodings in progress
+} batch_context_t;
+
+//read a whole file into memory
+static bool readFile(const char *fileName, char **data, size_t *length) {
+    struct stat st;
+    size_t done = 0;
+    int fd = open(fileName, O_RDONLY | O_CLOEXEC);
+    if (fd < 0) {
+        LOGE("Cannot open %s: %s", fileName, strerror(errno));
+        return false;
+    }
+    if (fstat(fd, &st) != 0 || st.st_size <= 0 || (*data = (char *)malloc((size_t)st.st_size)) == NULL) {
+        close(fd);
+        return false;
+    }
+    while (done < (size_t)st.st_size) {
+        ssize_t count = read(fd, *data + done, (size_t)st.st_size - done);
+        if (count < 0 && errno == EINTR) continue;
+        if (count <= 0) break;
+        done += (size_t)count;
+    }
+    close(fd);
+    *length = done;
+    return done > 0;
+}
+
+static bool readBatchSource(batch_job_t *job, void *context) {
+    batch_context_t *batch = (batch_context_t *)context;
+    JNIEnv *env = batch->env;
+    bool ok = false;
+    jobject source = env->GetObjectArrayElement(batch->sources, job->index);
+    if (source == NULL) {
+        LOGE("Source %d is NULL!", job->index);
+    } else if (env->IsInstanceOf(source, batch->stringClass)) {
+        const char *c_file = env->GetStringUTFChars((jstring)source, NULL);
+        ok = readFile(c_file, &job->data, &job->length);
+        env->ReleaseStringUTFChars((jstring)source, c_file);
+    } else {
+        //a private copy: the array cannot be accessed from the worker threads
+        job->length = (size_t)env->GetArrayLength((jbyteArray)source);
+        job->data = (char *)malloc(job->length > 0 ? job->length : 1);
+        if (job->data) {
+            env->GetByteArrayRegion((jbyteArray)source, 0, (jsize)job->length, (jbyte *)job->data);
+            ok = job->length > 0;
+        }
+    }
+    env->DeleteLocalRef(source);
+    return ok;
+}
+
+static bool decodeBatchJob(batch_job_t *job, void *context) {
+    batch_context_t *batch = (batch_context_t *)context;
+    opj_dparameters_t parameters;
+    decode_params_t params = batch->params; //decodeJP2Stream() may change the parameters
+    image_data_t outImage;
+    bool ok = false;
+
+    opj_set_default_decoder_parameters(&parameters);
+    parameters.decod_format = get_magic_format(job->data, job->length);
+    opj_stream_t *l_stream = opj_stream_create_memory_stream(job->data, job->length, OPJ_J2K_STREAM_CHUNK_SIZE);
+    if (!l_stream) return false;
+    if (decodeJP2Stream(l_stream, &parameters, &outImage, &params, &batch->cancel, NULL) == EXIT_SUCCESS) {
+        job->result = (void *)(intptr_t)prepareReturnData(&outImage);
+        ok = job->result != NULL;
+    }
+    opj_stream_destroy(l_stream);
+    return ok;
+}
+
+static bool deliverBatchJob(batch_job_t *job, void *context) {
+    batch_context_t *batch = (batch_context_t *)context;
+    JNIEnv *env = batch->env;
+    //the callback takes over the decoded image
+    jboolean goOn = env->CallBooleanMethod(batch->callback, batch->onImageMethod, (jint)job->index, (jlong)(intptr_t)job->result);
+    job->result = NULL;
+    if (env->ExceptionCheck() || !goOn) {
+        __atomic_store_n(&batch->cancel.cancelled, 1, __ATOMIC_RELAXED);
+        return false;
+    }
+    return true;
+}
+
+static void discardBatchJob(batch_job_t *job, void *context) {
+    image_data_t *imageData = (image_data_t *)job->result;
+    opj_image_destroy(imageData->image);
+    free(imageData);
+    job->result = NULL;
+}
+
+//decode a batch of JPEG-2000 files and byte arrays with a pool of worker threads; return JNI_TRUE if all the images
+//have been passed to the callback (decoded or not), JNI_FALSE if the callback stopped the batch
+JNIEXPORT jboolean JNICALL Java_com_gemalto_jp2_JP2Decoder_decodeJP2Batch(JNIEnv *env, jclass thiz, jobjectArray sources, jintArray params,
+                                                                        jint threads, jobject callback) {
+    static const batch_functions_t functions = {readBatchSource, decodeBatchJob, deliverBatchJob, discardBatchJob};
+    batch_context_t batch;
+
+    //sanity check
+    if (sources == NULL || callback == NULL) {
+        LOGE("sources or callback is NULL!");
+        return JNI_FALSE;
+    }
+    memset(&batch, 0, sizeof(batch_context_t));
+    batch.env = env;
+    batch.sources = sources;
+    batch.callback = callback;
+    jclass callbackClass = env->GetObjectClass(callback);
+    batch.onImageMethod = env->GetMethodID(callbackClass, "onImage", "(IJ)Z");
+    env->DeleteLocalRef(callbackClass);
+    if (batch.onImageMethod == NULL) {
+        LOGE("Invalid batch callback");
+        env->ExceptionClear();
+        return JNI_FALSE;
+    }
+    batch.stringClass = env->FindClass("java/lang/String");
+    readDecodeParams(env, params, &batch.params);
+    //the images are decoded in parallel, each of them in one thread
+    batch.params.threads = 1;
+    if (threads == ALL_CORES) threads = opj_get_num_cpus();
+
+    bool ret = batchRun(env->GetArrayLength(sources), threads, &functions, &batch);
+    env->DeleteLocalRef(batch.stringClass);
+    return ret ? JNI_TRUE : JNI_FALSE;
+}
+
+//read meta-data information from a JPEG-2000 encoded file, return in an integer array (image_header_t representation)
+JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_readJP2HeaderFile(JNIEnv *env, jclass thiz, jstring fileName) {
+    opj_stream_t *l_stream = NULL;                /* Stream */
+    opj_dparameters_t parameters;            /* decompression parameters */
+    image_header_t outHeader; //output data
+    jintArray ret = NULL;
+
+    //sanity check
+    if (fileName == NULL) {
+        LOGE("fileName is NULL!");
+        return NULL;
     }
 
     /* set decoding parameters to default values */
@@ -1152,9 +2885,9 @@ JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_readJP2HeaderFile(JN
 
     parameters.decod_format = infile_format(parameters.infile);
 
-    /* read the input file and put it in memory */
-    /* ---------------------------------------- */
-    l_stream = opj_stream_create_default_file_stream(parameters.infile,1);
+    /* open the input file */
+    /* ------------------- */
+    l_stream = createFileStream(parameters.infile);
     if (!l_stream){
         LOGE("ERROR -> failed to create the stream from the file\n");
         return NULL;
@@ -1170,20 +2903,46 @@ JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_readJP2HeaderFile(JN
     return ret;
 }
 
-//read meta-data information from a JPEG-2000 encoded byte array, return in an integer array (image_header_t representation)
-JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_readJP2HeaderByteArray(JNIEnv *env, jclass thiz, jbyteArray data) {
+//read meta-data information from a range of a file descriptor, return in an integer array (image_header_t representation)
+JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_readJP2HeaderFileDescriptor(JNIEnv *env, jclass thiz, jint fd, jlong offset, jlong length) {
+    opj_stream_t *l_stream = NULL;                /* Stream */
+    opj_dparameters_t parameters;            /* decompression parameters */
+    image_header_t outHeader; //output data
+    jintArray ret = NULL;
+
+    /* set decoding parameters to default values */
+    opj_set_default_decoder_parameters(&parameters);
+    parameters.flags |= OPJ_DPARAMETERS_DUMP_FLAG;
+
+    parameters.decod_format = fd_format(fd, offset);
+
+    l_stream = opj_stream_create_fd_stream(fd, offset, length);
+    if (!l_stream){
+        LOGE("ERROR -> failed to create the stream from the file descriptor");
+        return NULL;
+    }
+
+    if (decodeJP2Header(l_stream, &parameters, &outHeader) == EXIT_SUCCESS) {
+        ret = prepareReturnHeaderData(env, &outHeader);
+    }
+
+    /* Close the byte stream */
+    opj_stream_destroy(l_stream);
+
+    return ret;
+}
+
+//read meta-data information from a Java InputStream, return in an integer array (image_header_t representation)
+JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_readJP2HeaderInputStream(JNIEnv *env, jclass thiz, jobject inputStream, jlong length) {
     opj_stream_t *l_stream = NULL;                /* Stream */
     opj_dparameters_t parameters;            /* decompression parameters */
-    char *imgData;
-    jbyte *bufferPtr;
-    jsize dataLength;
-    opj_byte_array_source * streamData = NULL;
     image_header_t outHeader; //output data
+    opj_input_stream_source *src;
     jintArray ret = NULL;
 
     //sanity check
-    if (data == NULL) {
-        LOGE("data is NULL!");
+    if (inputStream == NULL) {
+        LOGE("inputStream is NULL!");
         return NULL;
     }
 
@@ -1191,37 +2950,856 @@ JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_readJP2HeaderByteArr
     opj_set_default_decoder_parameters(&parameters);
     parameters.flags |= OPJ_DPARAMETERS_DUMP_FLAG;
 
-    //copy bytes from java
-    dataLength = env->GetArrayLength(data);
-    bufferPtr = env->GetByteArrayElements(data, NULL);
-    imgData = (char *)malloc(dataLength * sizeof(char));
-    memcpy(imgData, bufferPtr, dataLength);
-    env->ReleaseByteArrayElements(data, bufferPtr, JNI_ABORT);
+    src = createInputStreamSource(env, inputStream, length);
+    if (!src) return NULL;
+    parameters.decod_format = get_magic_format((const char *)src->magic, src->magicLength);
 
+    l_stream = opj_stream_create_input_stream(src);
+    if (!l_stream){
+        LOGE("ERROR -> failed to create the stream from the input stream");
+        return NULL;
+    }
 
-    parameters.decod_format = get_magic_format(imgData);
+    if (decodeJP2Header(l_stream, &parameters, &outHeader) == EXIT_SUCCESS) {
+        ret = prepareReturnHeaderData(env, &outHeader);
+    }
 
-    l_stream = opj_stream_create_byte_array_stream(imgData,dataLength,OPJ_J2K_STREAM_CHUNK_SIZE,1);
+    /* Close the byte stream */
+    opj_stream_destroy(l_stream);
+
+    return ret;
+}
+
+//read meta-data information from JPEG-2000 encoded data in memory, return in an integer array (image_header_t representation)
+static jintArray readJP2HeaderMemory(JNIEnv *env, const char *data, size_t dataLength) {
+    opj_stream_t *l_stream = NULL;                /* Stream */
+    opj_dparameters_t parameters;            /* decompression parameters */
+    image_header_t outHeader; //output data
+    jintArray ret = NULL;
+
+    /* set decoding parameters to default values */
+    opj_set_default_decoder_parameters(&parameters);
+    parameters.flags |= OPJ_DPARAMETERS_DUMP_FLAG;
+
+    parameters.decod_format = get_magic_format(data, dataLength);
+
+    l_stream = opj_stream_create_memory_stream(data, dataLength, OPJ_J2K_STREAM_CHUNK_SIZE);
     if (!l_stream){
         LOGE("ERROR -> failed to create the stream from the byte array");
-        free(imgData);
         return NULL;
     }
 
-    streamData = (opj_byte_array_source *)((opj_stream_private_t *)l_stream)->m_user_data;
-
     if (decodeJP2Header(l_stream, &parameters, &outHeader) == EXIT_SUCCESS) {
         ret = prepareReturnHeaderData(env, &outHeader);
     }
 
     /* Close the byte stream */
     opj_stream_destroy(l_stream);
-    free(streamData->data); //this is where the imgData is stored now
-    free(streamData);
 
     return ret;
 }
 
+//read meta-data information from a JPEG-2000 encoded byte array, return in an integer array (image_header_t representation)
+JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_readJP2HeaderByteArray(JNIEnv *env, jclass thiz, jbyteArray data, jint offset, jint length) {
+    jbyte *bufferPtr;
+    jintArray ret;
+
+    //sanity check
+    if (data == NULL) {
+        LOGE("data is NULL!");
+        return NULL;
+    }
+    if (!checkBounds(env->GetArrayLength(data), offset, length)) return NULL;
+
+    bufferPtr = env->GetByteArrayElements(data, NULL);
+    if (bufferPtr == NULL) {
+        LOGE("Could not access the byte array");
+        return NULL;
+    }
+    ret = readJP2HeaderMemory(env, (const char *)bufferPtr + offset, length);
+    env->ReleaseByteArrayElements(data, bufferPtr, JNI_ABORT);
+
+    return ret;
+}
+
+//read meta-data information from a JPEG-2000 encoded direct ByteBuffer, return in an integer array (image_header_t representation)
+JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_readJP2HeaderDirectBuffer(JNIEnv *env, jclass thiz, jobject buffer, jint offset, jint length) {
+    char *bufferPtr;
+
+    //sanity check
+    if (buffer == NULL) {
+        LOGE("buffer is NULL!");
+        return NULL;
+    }
+    bufferPtr = (char *)env->GetDirectBufferAddress(buffer);
+    if (bufferPtr == NULL) {
+        LOGE("Could not access the direct buffer");
+        return NULL;
+    }
+    if (!checkBounds(env->GetDirectBufferCapacity(buffer), offset, length)) return NULL;
+
+    return readJP2HeaderMemory(env, bufferPtr + offset, length);
+}
+
+
+//return the width, height, alpha and grayscale information of a decoded image
+JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_getImageInfo(JNIEnv *env, jclass thiz, jlong imageHandle) {
+    image_data_t *imageData = (image_data_t *)(intptr_t)imageHandle;
+    if (imageData == NULL) return NULL;
+    jintArray ret = env->NewIntArray(4);
+    env->SetIntArrayRegion(ret, 0, 4, (jint*)imageData);
+    return ret;
+}
+
+//return the number of bytes read, the number of complete quality layers and the truncation flag of a decoded image
+JNIEXPORT jlongArray JNICALL Java_com_gemalto_jp2_JP2Decoder_getDecodeInfo(JNIEnv *env, jclass thiz, jlong imageHandle) {
+    image_data_t *imageData = (image_data_t *)(intptr_t)imageHandle;
+    if (imageData == NULL) return NULL;
+    jlong info[3] = {imageData->bytesUsed, imageData->layersUsed, imageData->truncated};
+    jlongArray ret = env->NewLongArray(3);
+    env->SetLongArrayRegion(ret, 0, 3, info);
+    return ret;
+}
+
+//convert a decoded image directly into the pixels of an ARGB_8888, RGB_565, ALPHA_8 (gray) or RGBA_F16 Bitmap with the output dimensions
+JNIEXPORT jboolean JNICALL Java_com_gemalto_jp2_JP2Decoder_writeToBitmap(JNIEnv *env, jclass thiz, jlong imageHandle, jobject bitmap, jboolean premultiply,
+                                                                         jint toneMapping, jfloat center, jfloat width, jbyteArray table) {
+    image_data_t *imageData = (image_data_t *)(intptr_t)imageHandle;
+    AndroidBitmapInfo info;
+    void *pixels = NULL;
+
+    if (imageData == NULL || bitmap == NULL) {
+        LOGE("No image or bitmap");
+        return JNI_FALSE;
+    }
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        LOGE("Could not get the bitmap info");
+        return JNI_FALSE;
+    }
+    if ((info.format != ANDROID_BITMAP_FORMAT_RGBA_8888 && info.format != ANDROID_BITMAP_FORMAT_RGB_565
+            && info.format != ANDROID_BITMAP_FORMAT_A_8 && info.format != ANDROID_BITMAP_FORMAT_RGBA_F16)
+            || (jint)info.width != imageData->width || (jint)info.height != imageData->height) {
+        LOGE("Bitmap (format %d, %d x %d) does not match the image (%d x %d)", info.format, info.width, info.height, imageData->width, imageData->height);
+        return JNI_FALSE;
+    }
+    bool scaled = imageData->width != (jint)imageData->image->comps[0].w || imageData->height != (jint)imageData->image->comps[0].h;
+    //only the unscaled ARGB_8888 output converts YCC images on the fly
+    if (info.format != ANDROID_BITMAP_FORMAT_RGBA_8888 || scaled || toneMapping != TONE_MAPPING_NONE) {
+        convertDeferredYCC(imageData->image);
+    }
+    //the tone mapping is for 8-bit output, RGBA_F16 keeps the full precision
+    OPJ_UINT8 *toneMap = NULL;
+    if (toneMapping != TONE_MAPPING_NONE && info.format != ANDROID_BITMAP_FORMAT_RGBA_F16) {
+        jbyte *tableData = NULL;
+        jsize tableLength = 0;
+        if (toneMapping == TONE_MAPPING_LOOKUP_TABLE) {
+            tableLength = table ? env->GetArrayLength(table) : 0;
+            tableData = tableLength > 0 ? env->GetByteArrayElements(table, NULL) : NULL;
+            if (tableData == NULL) {
+                LOGE("No lookup table");
+                return JNI_FALSE;
+            }
+        }
+        toneMap = buildToneMap(imageData, toneMapping, center, width, (const OPJ_UINT8 *)tableData, tableLength);
+        if (tableData) env->ReleaseByteArrayElements(table, tableData, JNI_ABORT);
+        if (!toneMap) return JNI_FALSE;
+    }
+    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) != ANDROID_BITMAP_RESULT_SUCCESS || pixels == NULL) {
+        LOGE("Could not lock the bitmap pixels");
+        free(toneMap);
+        return JNI_FALSE;
+    }
+    bool ret = true;
+    if (scaled) {
+        //the output size has been set by JP2Decoder.setTargetSize()
+        ret = imagetopixelsScaled(imageData, (OPJ_UINT8 *)pixels, info.stride, info.format, premultiply != JNI_FALSE, toneMap);
+    } else if (info.format == ANDROID_BITMAP_FORMAT_A_8) {
+        imagetogray(imageData, (OPJ_UINT8 *)pixels, info.stride, toneMap);
+    } else if (info.format == ANDROID_BITMAP_FORMAT_RGB_565) {
+        imagetorgb565(imageData, (OPJ_UINT8 *)pixels, info.stride, toneMap);
+    } else if (info.format == ANDROID_BITMAP_FORMAT_RGBA_F16) {
+        ret = imagetorgbaf16(imageData, (OPJ_UINT8 *)pixels, info.stride, premultiply != JNI_FALSE);
+    } else {
+        imagetoargb(imageData, (OPJ_UINT8 *)pixels, info.stride, premultiply != JNI_FALSE, toneMap);
+    }
+    AndroidBitmap_unlockPixels(env, bitmap);
+    free(toneMap);
+    return ret ? JNI_TRUE : JNI_FALSE;
+}
+
+//return the width, height, number of channels and bit depth of the high bit depth output of a decoded image
+JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2Decoder_getHighBitDepthInfo(JNIEnv *env, jclass thiz, jlong imageHandle) {
+    image_data_t *imageData = (image_data_t *)(intptr_t)imageHandle;
+    int channels[4], c;
+    jint info[4];
+    if (imageData == NULL) return NULL;
+    convertDeferredYCC(imageData->image);
+    getOutputComponents(imageData, channels);
+    //the high bit depth output is never scaled, its size is the decoded size
+    info[0] = (jint)imageData->image->comps[0].w;
+    info[1] = (jint)imageData->image->comps[0].h;
+    info[2] = 0;
+    for (c = 0; c < 4; c++) {
+        if (channels[c] >= 0) info[2]++;
+    }
+    info[3] = getOutputBitDepth(imageData);
+    jintArray ret = env->NewIntArray(4);
+    env->SetIntArrayRegion(ret, 0, 4, info);
+    return ret;
+}
+
+//convert a decoded image into 16-bit samples in a direct ShortBuffer (see getHighBitDepthInfo for its size)
+JNIEXPORT jboolean JNICALL Java_com_gemalto_jp2_JP2Decoder_writeToShortBuffer(JNIEnv *env, jclass thiz, jlong imageHandle, jobject buffer) {
+    image_data_t *imageData = (image_data_t *)(intptr_t)imageHandle;
+    int channels[4], c, numChannels = 0;
+
+    if (imageData == NULL || buffer == NULL) {
+        LOGE("No image or buffer");
+        return JNI_FALSE;
+    }
+    convertDeferredYCC(imageData->image);
+    getOutputComponents(imageData, channels);
+    for (c = 0; c < 4; c++) {
+        if (channels[c] >= 0) numChannels++;
+    }
+    OPJ_UINT16 *samples = (OPJ_UINT16 *)env->GetDirectBufferAddress(buffer);
+    jlong capacity = env->GetDirectBufferCapacity(buffer);
+    if (samples == NULL || capacity < (jlong)imageData->image->comps[0].w * imageData->image->comps[0].h * numChannels) {
+        LOGE("The buffer is not a direct buffer or it is too small");
+        return JNI_FALSE;
+    }
+    imagetoshorts(imageData, samples, getOutputBitDepth(imageData));
+    return JNI_TRUE;
+}
+
+//free a decoded image returned by decodeJP2File or decodeJP2ByteArray
+JNIEXPORT void JNICALL Java_com_gemalto_jp2_JP2Decoder_freeImage(JNIEnv *env, jclass thiz, jlong imageHandle) {
+    image_data_t *imageData = (image_data_t *)(intptr_t)imageHandle;
+    if (imageData == NULL) return;
+    opj_image_destroy(imageData->image);
+    free(imageData);
+}
+
+/*
+ Decoder session: the source stays open and the codec with the parsed main header is kept between decodings.
+ */
+typedef struct decoder_session_t {
+    opj_stream_t *stream;
+    opj_codec_t *codec;
+    opj_image_t *header; //image returned by opj_read_header, used as a template for the decoded images
+    opj_dparameters_t parameters;
+    jint threads;
+    image_header_t info;
+    bool codecUsed; //opj_decode was called with the codec
+    bool codecReusable; //the codec can decode again without reading the header again
+    jint codecReduce; //the resolution factor used by the codec
+    jbyteArray array; //global reference to the byte array source
+    jbyte *arrayElements;
+    jobject buffer; //global reference to the direct buffer source
+    int fd; //duplicate of the file descriptor source, -1 if none
+    opj_input_stream_source *inputStreamSource; //InputStream source, freed with the stream
+    bool streamUsed; //the stream has been read, it must be rewound before reading the header again
+} decoder_session_t;
+
+//Can the codec decode another area after opj_decode? OpenJPEG keeps the compressed data of single-tiled
+//images only. JP2 palette, channel definitions and ICC profile are consumed by the first decoding as well.
+static bool isCodecReusable(opj_codec_t *l_codec, int decod_format) {
+    opj_j2k *j2k;
+    if (decod_format == JP2_CFMT) {
+        opj_jp2_t *jp2 = (opj_jp2_t *)((opj_codec_private_t *)l_codec)->m_codec;
+        if (jp2->color.jp2_pclr || jp2->color.jp2_cdef || jp2->color.icc_profile_buf) return false;
+        j2k = jp2->j2k;
+    } else {
+        j2k = (opj_j2k *)((opj_codec_private_t *)l_codec)->m_codec;
+    }
+    return j2k->m_cp.tw == 1 && j2k->m_cp.th == 1;
+}
+
+static inline void setTcpLayers(opj_tcp_t *tcp, jint layers) {
+    if (tcp == NULL) return;
+    tcp->num_layers_to_decode = layers > 0 && (OPJ_UINT32)layers < tcp->numlayers ? (OPJ_UINT32)layers : tcp->numlayers;
+}
+
+//Change the number of quality layers to decode (0 = all) of a codec which has read the header. OpenJPEG copies
+//the number into the coding parameters of the main header and of each tile, so these are updated as well.
+static void setCodecLayers(opj_codec_t *l_codec, int decod_format, jint layers) {
+    opj_codec_private_t *codec = (opj_codec_private_t *)l_codec;
+    opj_j2k *j2k;
+    OPJ_UINT32 i;
+    if (decod_format == JP2_CFMT) {
+        j2k = ((opj_jp2_t *)codec->m_codec)->j2k;
+    } else {
+        j2k = (opj_j2k *)codec->m_codec;
+    }
+    j2k->m_cp.m_specific_param.m_dec.m_layer = (OPJ_UINT32)layers;
+    setTcpLayers(j2k->m_specific_param.m_decoder.m_default_tcp, layers);
+    for (i = 0; j2k->m_cp.tcps != NULL && i < j2k->m_cp.tw * j2k->m_cp.th; i++) {
+        setTcpLayers(&j2k->m_cp.tcps[i], layers);
+    }
+    //the code-blocks of a decoded single tile keep their data and decoded samples for the next region, start over
+    if (j2k->m_tcd != NULL && j2k->m_tcd->tcd_image != NULL && j2k->m_tcd->tcd_image->tiles != NULL
+            && j2k->m_cp.tcps != NULL && j2k->m_cp.tcps[0].m_data != NULL) {
+        opj_tcd_init_decode_tile(j2k->m_tcd, 0, &codec->m_event_mgr);
+    }
+}
+
+//(re)create the codec of a session, reading the header from the beginning of the source
+static bool openSessionDecoder(decoder_session_t *session) {
+    if (session->codec) {
+        opj_destroy_codec(session->codec);
+        session->codec = NULL;
+    }
+    if (session->header) {
+        opj_image_destroy(session->header);
+        session->header = NULL;
+    }
+    //an InputStream source cannot be rewound, it can only be read once
+    if (session->streamUsed && !opj_stream_read_seek((opj_stream_private_t *)session->stream, 0, NULL)) {
+        LOGE("Could not rewind the source");
+        return false;
+    }
+    session->streamUsed = true;
+    session->codec = openDecoder(session->stream, &session->parameters, session->threads, &session->header);
+    if (!session->codec) {
+        return false;
+    }
+    if (readJ2KHeader(session->codec, session->parameters.decod_format, &session->info) != EXIT_SUCCESS) {
+        //the codec has been destroyed by readJ2KHeader
+        session->codec = NULL;
+        return false;
+    }
+    readCodestreamInfo(session->codec, session->parameters.decod_format, session->stream, true, &session->info);
+    session->codecUsed = false;
+    session->codecReusable = isCodecReusable(session->codec, session->parameters.decod_format);
+    return true;
+}
+
+static decoder_session_t* createSession() {
+    decoder_session_t *session = (decoder_session_t *)calloc(1, sizeof(decoder_session_t));
+    if (session) {
+        session->fd = -1;
+        opj_set_default_decoder_parameters(&session->parameters);
+    }
+    return session;
+}
+
+static void freeSession(JNIEnv *env, decoder_session_t *session) {
+    if (session->codec) opj_destroy_codec(session->codec);
+    if (session->header) opj_image_destroy(session->header);
+    if (session->inputStreamSource) {
+        env->DeleteGlobalRef(session->inputStreamSource->inputStream);
+        env->DeleteGlobalRef(session->inputStreamSource->chunk);
+    }
+    //the stream reads the source, destroy it first
+    if (session->stream) opj_stream_destroy(session->stream);
+    if (session->array) {
+        if (session->arrayElements) env->ReleaseByteArrayElements(session->array, session->arrayElements, JNI_ABORT);
+        env->DeleteGlobalRef(session->array);
+    }
+    if (session->buffer) env->DeleteGlobalRef(session->buffer);
+    if (session->fd >= 0) close(session->fd);
+    free(session);
+}
+
+//read the header of a session whose source stream has been created, return the session as a handle (0 in case of an error)
+static jlong startSession(JNIEnv *env, decoder_session_t *session, jintArray params) {
+    decode_params_t decodeParams;
+
+    readDecodeParams(env, params, &decodeParams);
+    session->parameters.cp_layer = decodeParams.layers;
+    session->threads = decodeParams.threads;
+
+    if (!session->stream) {
+        LOGE("ERROR -> failed to create the stream");
+        freeSession(env, session);
+        return 0;
+    }
+    if (!openSessionDecoder(session)) {
+        freeSession(env, session);
+        return 0;
+    }
+    return (jlong)(intptr_t)session;
+}
+
+//open a decoder session for a JPEG-2000 file
+JNIEXPORT jlong JNICALL Java_com_gemalto_jp2_JP2DecoderSession_openFile(JNIEnv *env, jclass thiz, jstring fileName, jintArray params) {
+    decoder_session_t *session;
+
+    //sanity check
+    if (fileName == NULL) {
+        LOGE("fileName is NULL!");
+        return 0;
+    }
+    session = createSession();
+    if (!session) return 0;
+
+    const char *c_file = env->GetStringUTFChars(fileName, NULL);
+    strcpy(session->parameters.infile, c_file);
+    env->ReleaseStringUTFChars(fileName, c_file);
+
+    session->parameters.decod_format = infile_format(session->parameters.infile);
+    session->stream = createFileStream(session->parameters.infile);
+
+    return startSession(env, session, params);
+}
+
+//open a decoder session for a JPEG-2000 encoded byte array; the array is used in place until the session is closed
+JNIEXPORT jlong JNICALL Java_com_gemalto_jp2_JP2DecoderSession_openByteArray(JNIEnv *env, jclass thiz, jbyteArray data, jint offset, jint length, jintArray params) {
+    decoder_session_t *session;
+
+    //sanity check
+    if (data == NULL) {
+        LOGE("data is NULL!");
+        return 0;
+    }
+    if (!checkBounds(env->GetArrayLength(data), offset, length)) return 0;
+    session = createSession();
+    if (!session) return 0;
+
+    session->array = (jbyteArray)env->NewGlobalRef(data);
+    session->arrayElements = env->GetByteArrayElements(session->array, NULL);
+    if (session->arrayElements == NULL) {
+        LOGE("Could not access the byte array");
+        freeSession(env, session);
+        return 0;
+    }
+    const char *bufferPtr = (const char *)session->arrayElements + offset;
+    session->parameters.decod_format = get_magic_format(bufferPtr, length);
+    session->stream = opj_stream_create_memory_stream(bufferPtr, length, OPJ_J2K_STREAM_CHUNK_SIZE);
+
+    return startSession(env, session, params);
+}
+
+//open a decoder session for a JPEG-2000 encoded direct ByteBuffer; the buffer is used in place until the session is closed
+JNIEXPORT jlong JNICALL Java_com_gemalto_jp2_JP2DecoderSession_openDirectBuffer(JNIEnv *env, jclass thiz, jobject buffer, jint offset, jint length, jintArray params) {
+    decoder_session_t *session;
+    char *bufferPtr;
+
+    //sanity check
+    if (buffer == NULL) {
+        LOGE("buffer is NULL!");
+        return 0;
+    }
+    bufferPtr = (char *)env->GetDirectBufferAddress(buffer);
+    if (bufferPtr == NULL) {
+        LOGE("Could not access the direct buffer");
+        return 0;
+    }
+    if (!checkBounds(env->GetDirectBufferCapacity(buffer), offset, length)) return 0;
+    session = createSession();
+    if (!session) return 0;
+
+    //keep the buffer alive while the session reads it
+    session->buffer = env->NewGlobalRef(buffer);
+    session->parameters.decod_format = get_magic_format(bufferPtr + offset, length);
+    session->stream = opj_stream_create_memory_stream(bufferPtr + offset, length, OPJ_J2K_STREAM_CHUNK_SIZE);
+
+    return startSession(env, session, params);
+}
+
+//open a decoder session for a range of a file descriptor; the session uses its own duplicate of the descriptor
+JNIEXPORT jlong JNICALL Java_com_gemalto_jp2_JP2DecoderSession_openFileDescriptor(JNIEnv *env, jclass thiz, jint fd, jlong offset, jlong length, jintArray params) {
+    decoder_session_t *session = createSession();
+    if (!session) return 0;
+
+    session->fd = fcntl(fd, F_DUPFD_CLOEXEC, 0);
+    if (session->fd < 0) {
+        LOGE("Cannot duplicate the file descriptor: %s", strerror(errno));
+        freeSession(env, session);
+        return 0;
+    }
+    session->parameters.decod_format = fd_format(session->fd, offset);
+    session->stream = opj_stream_create_fd_stream(session->fd, offset, length);
+
+    return startSession(env, session, params);
+}
+
+//open a decoder session for a Java InputStream. The stream cannot be rewound: the session can decode only once.
+JNIEXPORT jlong JNICALL Java_com_gemalto_jp2_JP2DecoderSession_openInputStream(JNIEnv *env, jclass thiz, jobject inputStream, jlong length, jintArray params) {
+    decoder_session_t *session;
+    opj_input_stream_source *src;
+
+    //sanity check
+    if (inputStream == NULL) {
+        LOGE("inputStream is NULL!");
+        return 0;
+    }
+    session = createSession();
+    if (!session) return 0;
+
+    src = createInputStreamSource(env, inputStream, length);
+    if (!src) {
+        freeSession(env, session);
+        return 0;
+    }
+    //the stream is read in later JNI calls, keep global references
+    src->inputStream = env->NewGlobalRef(src->inputStream);
+    src->chunk = (jbyteArray)env->NewGlobalRef(src->chunk);
+    session->parameters.decod_format = get_magic_format((const char *)src->magic, src->magicLength);
+    session->stream = opj_stream_create_input_stream(src);
+    if (session->stream) {
+        session->inputStreamSource = src;
+    } else {
+        env->DeleteGlobalRef(src->inputStream);
+        env->DeleteGlobalRef(src->chunk);
+    }
+
+    return startSession(env, session, params);
+}
+
+//get the session from its handle in a JNI call
+static decoder_session_t* getSession(JNIEnv *env, jlong sessionHandle) {
+    decoder_session_t *session = (decoder_session_t *)(intptr_t)sessionHandle;
+    //an InputStream source calls back to Java with the JNIEnv of the current call
+    if (session && session->inputStreamSource) session->inputStreamSource->env = env;
+    return session;
+}
+
+//return the header of the session's image in an integer array (image_header_t representation)
+JNIEXPORT jintArray JNICALL Java_com_gemalto_jp2_JP2DecoderSession_getHeader(JNIEnv *env, jclass thiz, jlong sessionHandle) {
+    decoder_session_t *session = (decoder_session_t *)(intptr_t)sessionHandle;
+    if (session == NULL) return NULL;
+    return prepareReturnHeaderData(env, &session->info);
+}
+
+//decode a region at a reduced resolution with the session's codec, return a handle to the decoded image (0 in case of an error)
+JNIEXPORT jlong JNICALL Java_com_gemalto_jp2_JP2DecoderSession_decode(JNIEnv *env, jclass thiz, jlong sessionHandle, jint reduce, jint layers, jint x0, jint y0, jint x1, jint y1, jlong cancel,
+                                                                        jobject progressListener) {
+    decoder_session_t *session = getSession(env, sessionHandle);
+    decode_params_t params;
+    image_data_t outImage; //output data
+    progress_t progress;
+    opj_image_t *image;
+
+    if (session == NULL) return 0;
+
+    memset(&params, 0, sizeof(decode_params_t));
+    params.reduce = reduce;
+    params.regionX0 = x0;
+    params.regionY0 = y0;
+    params.regionX1 = x1;
+    params.regionY1 = y1;
+
+    if (params.reduce >= session->info.numResolutions) {
+        LOGE("The number of resolutions to remove (%d) is greater or equal than the number of resolutions of this image (%d). Changing to %d.", params.reduce, session->info.numResolutions, session->info.numResolutions - 1);
+        params.reduce = session->info.numResolutions - 1;
+    }
+
+    //the header only has to be read again if OpenJPEG cannot decode twice with the codec
+    if (session->codec == NULL || (session->codecUsed && (!session->codecReusable || session->codecReduce != params.reduce))) {
+        if (!openSessionDecoder(session)) return 0;
+    }
+    //a reusable codec decodes the compressed data it has already read again, with any number of layers
+    if ((OPJ_UINT32)layers != session->parameters.cp_layer) {
+        session->parameters.cp_layer = (OPJ_UINT32)layers;
+        setCodecLayers(session->codec, session->parameters.decod_format, layers);
+    }
+    if (!opj_set_decoded_resolution_factor(session->codec, (OPJ_UINT32)params.reduce)) {
+        LOGE("ERROR -> failed to set the resolution factor");
+        return 0;
+    }
+
+    //decode into a copy of the header image
+    image = opj_image_create0();
+    if (!image) return 0;
+    opj_copy_image_header(session->header, image);
+
+    /* Restrict decoding to the requested region (all zeros = the entire image) */
+    if (setDecodeRegion(image, &params, &session->parameters) != EXIT_SUCCESS
+            || !opj_set_decode_area(session->codec, image, session->parameters.DA_x0,
+            session->parameters.DA_y0, session->parameters.DA_x1, session->parameters.DA_y1)){
+        LOGE("ERROR -> opj_decompress: failed to set the decoded area\n");
+        opj_image_destroy(image);
+        return 0;
+    }
+
+    session->codecUsed = true;
+    session->codecReduce = params.reduce;
+    //the token and the listener are valid during this call only
+    setCodecCancel(session->codec, (cancel_token_t *)(intptr_t)cancel);
+    setCodecProgress(session->codec, initProgress(env, progressListener, &progress));
+    bool decoded = opj_decode(session->codec, session->stream, image);
+    setCodecCancel(session->codec, NULL);
+    setCodecProgress(session->codec, NULL);
+    if (!decoded) {
+        LOGE("ERROR -> opj_decompress: failed to decode image!\n");
+        opj_image_destroy(image);
+        //the codec state is unknown, start over next time
+        session->codecReusable = false;
+        return 0;
+    }
+
+    //OpenJPEG keeps the compressed data of a single tile only when a part of the image has been decoded
+    if (session->parameters.DA_x0 <= session->header->x0 && session->parameters.DA_y0 <= session->header->y0
+            && (session->parameters.DA_x1 == 0 || session->parameters.DA_x1 >= session->header->x1)
+            && (session->parameters.DA_y1 == 0 || session->parameters.DA_y1 >= session->header->y1)) {
+        session->codecReusable = false;
+    }
+
+    convertToRGB(image);
+
+    if (checkImageFormat(image, &outImage) != EXIT_SUCCESS) {
+        opj_image_destroy(image);
+        return 0;
+    }
+    outImage.image = image;
+    return prepareReturnData(&outImage);
+}
+
+/*
+ Create an image for a tile decoded by opj_decode_tile_data(): the components have the dimensions of the tile
+ [tx0, ty0, tx1, ty1) at the decoded resolution. The component data is allocated, but not filled.
+ */
+static opj_image_t* createTileImage(opj_image_t *header, OPJ_UINT32 reduce, OPJ_INT32 tx0, OPJ_INT32 ty0, OPJ_INT32 tx1, OPJ_INT32 ty1) {
+    opj_image_cmptparm_t *cmptparms;
+    opj_image_t *image;
+    OPJ_UINT32 i;
+
+    cmptparms = (opj_image_cmptparm_t *)calloc(header->numcomps, sizeof(opj_image_cmptparm_t));
+    if (!cmptparms) return NULL;
+    for (i = 0; i < header->numcomps; i++) {
+        opj_image_comp_t *comp = &header->comps[i];
+        OPJ_INT32 x0 = ceilDivPow2(ceilDiv(tx0, (OPJ_INT32)comp->dx), (OPJ_INT32)reduce);
+        OPJ_INT32 y0 = ceilDivPow2(ceilDiv(ty0, (OPJ_INT32)comp->dy), (OPJ_INT32)reduce);
+        OPJ_INT32 x1 = ceilDivPow2(ceilDiv(tx1, (OPJ_INT32)comp->dx), (OPJ_INT32)reduce);
+        OPJ_INT32 y1 = ceilDivPow2(ceilDiv(ty1, (OPJ_INT32)comp->dy), (OPJ_INT32)reduce);
+        cmptparms[i].dx = comp->dx;
+        cmptparms[i].dy = comp->dy;
+        cmptparms[i].w = (OPJ_UINT32)(x1 - x0);
+        cmptparms[i].h = (OPJ_UINT32)(y1 - y0);
+        cmptparms[i].x0 = (OPJ_UINT32)x0;
+        cmptparms[i].y0 = (OPJ_UINT32)y0;
+        cmptparms[i].prec = comp->prec;
+        cmptparms[i].sgnd = comp->sgnd;
+    }
+    image = opj_image_create(header->numcomps, cmptparms, header->color_space);
+    free(cmptparms);
+    if (!image) return NULL;
+
+    image->x0 = (OPJ_UINT32)tx0;
+    image->y0 = (OPJ_UINT32)ty0;
+    image->x1 = (OPJ_UINT32)tx1;
+    image->y1 = (OPJ_UINT32)ty1;
+    for (i = 0; i < image->numcomps; i++) {
+        image->comps[i].factor = reduce;
+    }
+    return image;
+}
+
+/*
+ Copy the output of opj_decode_tile_data() into the components of a tile image. The tile data holds the components
+ one after another, each sample stored in 1, 2 or 4 bytes depending on the precision.
+ */
+static bool copyTileData(opj_image_t *image, const OPJ_BYTE *data, OPJ_UINT32 dataSize) {
+    OPJ_SIZE_T offset = 0;
+    OPJ_UINT32 i;
+    OPJ_SIZE_T j;
+
+    for (i = 0; i < image->numcomps; i++) {
+        opj_image_comp_t *comp = &image->comps[i];
+        OPJ_SIZE_T count = (OPJ_SIZE_T)comp->w * comp->h;
+        OPJ_UINT32 sampleSize = (comp->prec + 7) >> 3;
+        if (sampleSize == 3) sampleSize = 4;
+        if (offset + count * sampleSize > dataSize) {
+            LOGE("Unexpected tile data size %u", dataSize);
+            return false;
+        }
+        const OPJ_BYTE *src = data + offset;
+        switch (sampleSize) {
+            case 1:
+                if (comp->sgnd) {
+                    for (j = 0; j < count; j++) comp->data[j] = (OPJ_INT8)src[j];
+                } else {
+                    for (j = 0; j < count; j++) comp->data[j] = src[j];
+                }
+                break;
+            case 2:
+                for (j = 0; j < count; j++) {
+                    OPJ_INT16 v;
+                    memcpy(&v, src + j * 2, sizeof(v));
+                    comp->data[j] = comp->sgnd ? v : (OPJ_UINT16)v;
+                }
+                break;
+            default:
+                memcpy(comp->data, src, count * sizeof(OPJ_INT32));
+                break;
+        }
+        offset += count * sampleSize;
+    }
+    return true;
+}
+
+/*
+ Decode the image tile by tile with opj_read_tile_header()/opj_decode_tile_data(). Each tile is converted to RGB and
+ passed to callback.onTile(tileIndex, x, y, imageHandle) before the next one is decoded, so that only one tile is
+ held in memory. Only the tiles intersecting the region are decoded. Return JNI_TRUE if all tiles were decoded and
+ the callback accepted them and the decoding was not cancelled. The progress is reported after each tile.
+ */
+JNIEXPORT jboolean JNICALL Java_com_gemalto_jp2_JP2DecoderSession_decodeTiles(JNIEnv *env, jclass thiz, jlong sessionHandle, jint reduce, jint x0, jint y0, jint x1, jint y1, jobject callback, jlong cancel,
+                                                                                 jobject progressListener) {
+    decoder_session_t *session = getSession(env, sessionHandle);
+    decode_params_t params;
+    opj_image_t *area;
+    OPJ_BYTE *tileData = NULL;
+    OPJ_UINT32 tileDataSize = 0;
+    OPJ_UINT32 tilesDone = 0, numTiles;
+    progress_t progress;
+    jboolean ret = JNI_FALSE;
+
+    if (session == NULL || callback == NULL) return JNI_FALSE;
+    jclass callbackClass = env->GetObjectClass(callback);
+    jmethodID onTileMethod = env->GetMethodID(callbackClass, "onTile", "(IIIJ)Z");
+    env->DeleteLocalRef(callbackClass);
+    if (onTileMethod == NULL) {
+        LOGE("Invalid tile callback");
+        env->ExceptionClear();
+        return JNI_FALSE;
+    }
+
+    memset(&params, 0, sizeof(decode_params_t));
+    params.reduce = reduce;
+    params.regionX0 = x0;
+    params.regionY0 = y0;
+    params.regionX1 = x1;
+    params.regionY1 = y1;
+
+    //tiles are read from the beginning of the codestream
+    if (session->codec == NULL || session->codecUsed) {
+        if (!openSessionDecoder(session)) return JNI_FALSE;
+    }
+    if (session->parameters.decod_format == JP2_CFMT
+            && ((opj_jp2_t *)((opj_codec_private_t *)session->codec)->m_codec)->color.jp2_pclr) {
+        LOGE("Images with a palette cannot be decoded by tiles");
+        return JNI_FALSE;
+    }
+    session->codecUsed = true;
+    session->codecReusable = false;
+
+    if (params.reduce >= session->info.numResolutions) {
+        LOGE("The number of resolutions to remove (%d) is greater or equal than the number of resolutions of this image (%d). Changing to %d.", params.reduce, session->info.numResolutions, session->info.numResolutions - 1);
+        params.reduce = session->info.numResolutions - 1;
+    }
+    if (!opj_set_decoded_resolution_factor(session->codec, (OPJ_UINT32)params.reduce)) {
+        LOGE("ERROR -> failed to set the resolution factor");
+        return JNI_FALSE;
+    }
+
+    //the area only selects the tiles, each tile is decoded whole
+    area = opj_image_create0();
+    if (!area) return JNI_FALSE;
+    opj_copy_image_header(session->header, area);
+    bool areaSet = setDecodeRegion(area, &params, &session->parameters) == EXIT_SUCCESS
+            && opj_set_decode_area(session->codec, area, session->parameters.DA_x0,
+            session->parameters.DA_y0, session->parameters.DA_x1, session->parameters.DA_y1);
+    opj_image_destroy(area);
+    if (!areaSet) {
+        LOGE("ERROR -> opj_decompress: failed to set the decoded area\n");
+        return JNI_FALSE;
+    }
+
+    //tile position relative to the image at the decoded resolution
+    opj_image_comp_t *comp0 = &session->header->comps[0];
+    OPJ_INT32 originX = ceilDivPow2(ceilDiv((OPJ_INT32)session->header->x0, (OPJ_INT32)comp0->dx), params.reduce);
+    OPJ_INT32 originY = ceilDivPow2(ceilDiv((OPJ_INT32)session->header->y0, (OPJ_INT32)comp0->dy), params.reduce);
+
+    //the tiles intersecting the area
+    opj_j2k *j2k = session->parameters.decod_format == JP2_CFMT
+            ? ((opj_jp2_t *)((opj_codec_private_t *)session->codec)->m_codec)->j2k
+            : (opj_j2k *)((opj_codec_private_t *)session->codec)->m_codec;
+    numTiles = (j2k->m_specific_param.m_decoder.m_end_tile_x - j2k->m_specific_param.m_decoder.m_start_tile_x)
+            * (j2k->m_specific_param.m_decoder.m_end_tile_y - j2k->m_specific_param.m_decoder.m_start_tile_y);
+
+    //the token and the listener are valid during this call only
+    cancel_token_t *cancelToken = (cancel_token_t *)(intptr_t)cancel;
+    progress_t *tileProgress = initProgress(env, progressListener, &progress);
+    setCodecCancel(session->codec, cancelToken);
+    for (;;) {
+        OPJ_UINT32 tileIndex, dataSize, numComps;
+        OPJ_INT32 tx0, ty0, tx1, ty1;
+        OPJ_BOOL goOn;
+        image_data_t outImage;
+        opj_image_t *tile;
+
+        if (cancelToken && isCancelled(cancelToken)) {
+            LOGW("Decoding cancelled");
+            break;
+        }
+        if (!opj_read_tile_header(session->codec, session->stream, &tileIndex, &dataSize, &tx0, &ty0, &tx1, &ty1, &numComps, &goOn)) {
+            LOGE("ERROR -> failed to read the tile header");
+            break;
+        }
+        if (!goOn) {
+            ret = JNI_TRUE;
+            break;
+        }
+        if (dataSize > tileDataSize) {
+            free(tileData);
+            tileData = (OPJ_BYTE *)malloc(dataSize);
+            tileDataSize = tileData ? dataSize : 0;
+            if (!tileData) {
+                LOGE("Out of memory");
+                break;
+            }
+        }
+        if (!opj_decode_tile_data(session->codec, tileIndex, tileData, dataSize, session->stream)) {
+            LOGE("ERROR -> failed to decode tile %u", tileIndex);
+            break;
+        }
+
+        tile = createTileImage(session->header, (OPJ_UINT32)params.reduce, tx0, ty0, tx1, ty1);
+        if (!tile) break;
+        if (!copyTileData(tile, tileData, dataSize)) {
+            opj_image_destroy(tile);
+            break;
+        }
+        convertToRGB(tile);
+        if (checkImageFormat(tile, &outImage) != EXIT_SUCCESS) {
+            opj_image_destroy(tile);
+            break;
+        }
+        outImage.image = tile;
+
+        //the callback takes over the decoded tile
+        jboolean goOnTiles = env->CallBooleanMethod(callback, onTileMethod, (jint)tileIndex,
+                (jint)(tile->comps[0].x0 - originX), (jint)(tile->comps[0].y0 - originY), prepareReturnData(&outImage));
+        if (env->ExceptionCheck() || !goOnTiles) break;
+        if (tileProgress && !reportProgress(++tilesDone, numTiles, tileProgress)) break;
+    }
+
+    setCodecCancel(session->codec, NULL);
+    free(tileData);
+    return ret;
+}
+
+//close a decoder session and release its source
+JNIEXPORT void JNICALL Java_com_gemalto_jp2_JP2DecoderSession_close(JNIEnv *env, jclass thiz, jlong sessionHandle) {
+    decoder_session_t *session = getSession(env, sessionHandle);
+    if (session == NULL) return;
+    freeSession(env, session);
+}
+
+//create a cancellation token, return its address as a handle (0 in case of an error)
+JNIEXPORT jlong JNICALL Java_com_gemalto_jp2_Cancellation_createToken(JNIEnv *env, jclass thiz, jlong deadline) {
+    cancel_token_t *token = (cancel_token_t *)calloc(1, sizeof(cancel_token_t));
+    if (token == NULL) {
+        LOGE("Could not allocate memory for the cancellation token");
+        return 0;
+    }
+    token->deadline = deadline;
+    return (jlong)(intptr_t)token;
+}
+
+//cancel the operation using the token; may be called from any thread while the operation is running
+JNIEXPORT void JNICALL Java_com_gemalto_jp2_Cancellation_cancelToken(JNIEnv *env, jclass thiz, jlong tokenHandle) {
+    cancel_token_t *token = (cancel_token_t *)(intptr_t)tokenHandle;
+    if (token == NULL) return;
+    __atomic_store_n(&token->cancelled, 1, __ATOMIC_RELAXED);
+}
+
+//free a token after the operation using it has finished
+JNIEXPORT void JNICALL Java_com_gemalto_jp2_Cancellation_freeToken(JNIEnv *env, jclass thiz, jlong tokenHandle) {
+    free((cancel_token_t *)(intptr_t)tokenHandle);
+}
 
 #ifdef __cplusplus
 }
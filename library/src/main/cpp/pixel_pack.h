@@ -0,0 +1,147 @@
+/*
+ Packing of decoded 8-bit samples into the pixels of an ARGB_8888 bitmap (byte order R, G, B, A).
+
+ OpenJPEG stores the decoded image as one array of 32-bit samples per component. For the common case of unsigned
+ 8-bit components without subsampling, the samples are converted to bytes and interleaved 16 pixels at a time with
+ NEON (armeabi-v7a, arm64-v8a) or SSE2 (x86, x86_64). The remaining pixels, and all pixels on other architectures,
+ are packed by the scalar code, which gives exactly the same result.
+ */
+
+#ifndef PIXEL_PACK_H
+#define PIXEL_PACK_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define PIXEL_PACK_NEON 1
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define PIXEL_PACK_SSE2 1
+#endif
+
+//clamp a sample to 0..255
+static inline uint8_t clampSample8(int32_t v) {
+    return v < 0 ? 0 : v > 255 ? 255 : (uint8_t)v;
+}
+
+//multiply a color component by alpha the same way Android does it (SkMulDiv255Round)
+static inline uint8_t mulDiv255Round(uint8_t c, uint8_t a) {
+    unsigned int prod = c * a + 128;
+    return (uint8_t)((prod + (prod >> 8)) >> 8);
+}
+
+/*
+ Scalar packing of count pixels. g and b are the same array as r for grayscale images, a is NULL for opaque images.
+ If premultiply is true, the colors are pre-multiplied by alpha.
+ */
+static inline void packRGBA8Scalar(const int32_t *r, const int32_t *g, const int32_t *b, const int32_t *a,
+                                   uint8_t *out, int count, bool premultiply) {
+    int i;
+    for (i = 0; i < count; i++) {
+        uint8_t rc = clampSample8(r[i]);
+        uint8_t gc = clampSample8(g[i]);
+        uint8_t bc = clampSample8(b[i]);
+        uint8_t ac = a ? clampSample8(a[i]) : 0xFF;
+        if (premultiply && ac != 0xFF) {
+            rc = mulDiv255Round(rc, ac);
+            gc = mulDiv255Round(gc, ac);
+            bc = mulDiv255Round(bc, ac);
+        }
+        *out++ = rc;
+        *out++ = gc;
+        *out++ = bc;
+        *out++ = ac;
+    }
+}
+
+#if defined(PIXEL_PACK_NEON)
+
+//16 samples to 16 bytes with saturation
+static inline uint8x16_t loadSamples8x16(const int32_t *p) {
+    uint16x8_t lo = vcombine_u16(vqmovun_s32(vld1q_s32(p)), vqmovun_s32(vld1q_s32(p + 4)));
+    uint16x8_t hi = vcombine_u16(vqmovun_s32(vld1q_s32(p + 8)), vqmovun_s32(vld1q_s32(p + 12)));
+    return vcombine_u8(vqmovn_u16(lo), vqmovn_u16(hi));
+}
+
+static inline uint8x8_t mulDiv255Round8x8(uint8x8_t c, uint8x8_t a) {
+    uint16x8_t prod = vaddq_u16(vmull_u8(c, a), vdupq_n_u16(128));
+    return vshrn_n_u16(vsraq_n_u16(prod, prod, 8), 8);
+}
+
+static inline uint8x16_t mulDiv255Round8x16(uint8x16_t c, uint8x16_t a) {
+    return vcombine_u8(mulDiv255Round8x8(vget_low_u8(c), vget_low_u8(a)),
+                       mulDiv255Round8x8(vget_high_u8(c), vget_high_u8(a)));
+}
+
+#elif defined(PIXEL_PACK_SSE2)
+
+//16 samples to 16 bytes with saturation
+static inline __m128i loadSamples8x16(const int32_t *p) {
+    __m128i lo = _mm_packs_epi32(_mm_loadu_si128((const __m128i *)p), _mm_loadu_si128((const __m128i *)(p + 4)));
+    __m128i hi = _mm_packs_epi32(_mm_loadu_si128((const __m128i *)(p + 8)), _mm_loadu_si128((const __m128i *)(p + 12)));
+    return _mm_packus_epi16(lo, hi);
+}
+
+static inline __m128i mulDiv255Round16x8(__m128i c, __m128i a) {
+    __m128i prod = _mm_add_epi16(_mm_mullo_epi16(c, a), _mm_set1_epi16(128));
+    return _mm_srli_epi16(_mm_add_epi16(prod, _mm_srli_epi16(prod, 8)), 8);
+}
+
+static inline __m128i mulDiv255Round8x16(__m128i c, __m128i a) {
+    __m128i zero = _mm_setzero_si128();
+    __m128i lo = mulDiv255Round16x8(_mm_unpacklo_epi8(c, zero), _mm_unpacklo_epi8(a, zero));
+    __m128i hi = mulDiv255Round16x8(_mm_unpackhi_epi8(c, zero), _mm_unpackhi_epi8(a, zero));
+    return _mm_packus_epi16(lo, hi);
+}
+
+#endif
+
+/*
+ Same as packRGBA8Scalar(), vectorized where possible.
+ */
+static inline void packRGBA8(const int32_t *r, const int32_t *g, const int32_t *b, const int32_t *a,
+                             uint8_t *out, int count, bool premultiply) {
+    int i = 0;
+#if defined(PIXEL_PACK_NEON) || defined(PIXEL_PACK_SSE2)
+    bool gray = g == r && b == r;
+    for (; i + 16 <= count; i += 16, out += 64) {
+#if defined(PIXEL_PACK_NEON)
+        uint8x16x4_t px;
+        px.val[0] = loadSamples8x16(r + i);
+        px.val[1] = gray ? px.val[0] : loadSamples8x16(g + i);
+        px.val[2] = gray ? px.val[0] : loadSamples8x16(b + i);
+        px.val[3] = a ? loadSamples8x16(a + i) : vdupq_n_u8(0xFF);
+        if (premultiply && a) {
+            px.val[0] = mulDiv255Round8x16(px.val[0], px.val[3]);
+            px.val[1] = gray ? px.val[0] : mulDiv255Round8x16(px.val[1], px.val[3]);
+            px.val[2] = gray ? px.val[0] : mulDiv255Round8x16(px.val[2], px.val[3]);
+        }
+        vst4q_u8(out, px);
+#else
+        __m128i rv = loadSamples8x16(r + i);
+        __m128i gv = gray ? rv : loadSamples8x16(g + i);
+        __m128i bv = gray ? rv : loadSamples8x16(b + i);
+        __m128i av = a ? loadSamples8x16(a + i) : _mm_set1_epi8((char)0xFF);
+        if (premultiply && a) {
+            rv = mulDiv255Round8x16(rv, av);
+            gv = gray ? rv : mulDiv255Round8x16(gv, av);
+            bv = gray ? rv : mulDiv255Round8x16(bv, av);
+        }
+        //interleave to R, G, B, A
+        __m128i rgLo = _mm_unpacklo_epi8(rv, gv);
+        __m128i rgHi = _mm_unpackhi_epi8(rv, gv);
+        __m128i baLo = _mm_unpacklo_epi8(bv, av);
+        __m128i baHi = _mm_unpackhi_epi8(bv, av);
+        _mm_storeu_si128((__m128i *)out, _mm_unpacklo_epi16(rgLo, baLo));
+        _mm_storeu_si128((__m128i *)(out + 16), _mm_unpackhi_epi16(rgLo, baLo));
+        _mm_storeu_si128((__m128i *)(out + 32), _mm_unpacklo_epi16(rgHi, baHi));
+        _mm_storeu_si128((__m128i *)(out + 48), _mm_unpackhi_epi16(rgHi, baHi));
+#endif
+    }
+#endif
+    packRGBA8Scalar(r + i, g + i, b + i, a ? a + i : NULL, out, count - i, premultiply);
+}
+
+#endif //PIXEL_PACK_H
@@ -0,0 +1,34 @@
+package com.gemalto.jp2;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A pool of bitmaps which the decoder reuses for its output instead of allocating a new bitmap for each image, see
+ * {@link JP2Decoder#setBitmapPool(BitmapPool)}. Return the decoded bitmaps to the pool by {@link #put(Bitmap)} once
+ * they are no longer used, e.g. when a view of a list is recycled.<br><br>
+ *
+ * {@link LruBitmapPool} is the default implementation. The methods of a pool may be called from several threads at
+ * the same time.
+ */
+public interface BitmapPool {
+    /**
+     * Take a bitmap out of the pool. The bitmap must be mutable and have the given config; it's either of the given
+     * dimensions, or (on API 19+) its allocation is large enough to be reconfigured to them. The decoder checks the
+     * bitmap and allocates a new one if it cannot be used.
+     * @param width the width of the decoded image
+     * @param height the height of the decoded image
+     * @param config the config of the decoded image
+     * @return a bitmap to reuse; {@code null} if the pool has none
+     */
+    Bitmap get(int width, int height, @NonNull Config config);
+
+    /**
+     * Give a bitmap to the pool. The caller must not use the bitmap afterwards; the pool may keep it for reuse or
+     * recycle it.
+     * @param bitmap the bitmap which is no longer used
+     */
+    void put(@NonNull Bitmap bitmap);
+}
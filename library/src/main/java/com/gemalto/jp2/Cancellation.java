@@ -0,0 +1,129 @@
+package com.gemalto.jp2;
+
+import android.os.Build;
+import android.os.CancellationSignal;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    The native cancellation token of one decoding or encoding. OpenJPEG polls the token between tiles and code-blocks,
+    the operation then stops and returns its error value. The token is cancelled by a CancellationSignal or when the
+    deadline (a SystemClock.uptimeMillis() time) has passed. It must be closed when the operation has finished.
+
+    The signals are polled by a watcher thread, which runs only while there are operations with a signal. Setting an
+    OnCancelListener instead would replace the listener the caller may have set on their own signal.
+ */
+final class Cancellation implements Closeable {
+    private static final long POLL_INTERVAL_MS = 10;
+
+    //the running operations with a signal, polled by the watcher
+    private static final List<Cancellation> watched = new ArrayList<>();
+    private static Thread watcher = null;
+
+    private final CancellationSignal signal;
+    private long token;
+
+    private Cancellation(final CancellationSignal signal, final long token) {
+        this.signal = signal;
+        this.token = token;
+    }
+
+    /*
+        Create the token of an operation. Return null if the operation can be neither cancelled nor time out, the
+        native code then doesn't poll anything.
+     */
+    static Cancellation create(final CancellationSignal signal, final long deadline) {
+        return create(signal, deadline, false);
+    }
+
+    /*
+        Same as above; if cancellable is true, the token is always created so that it can be cancelled by cancel(),
+        e.g. by JP2Scheduler.
+     */
+    static Cancellation create(final CancellationSignal signal, final long deadline, final boolean cancellable) {
+        //the signal can only be set on API 16+, where CancellationSignal exists
+        boolean hasSignal = signal != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+        if (!hasSignal && deadline <= 0 && !cancellable) return null;
+        Cancellation cancellation = new Cancellation(hasSignal ? signal : null, createToken(deadline));
+        if (hasSignal) cancellation.register();
+        return cancellation;
+    }
+
+    //the token handle for the native code; 0 if there's no token
+    static long handle(final Cancellation cancellation) {
+        return cancellation != null ? cancellation.token : 0;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    private void register() {
+        if (signal.isCanceled()) {
+            cancel();
+            return;
+        }
+        synchronized (watched) {
+            watched.add(this);
+            if (watcher == null) {
+                watcher = new Watcher();
+                watcher.start();
+            }
+        }
+    }
+
+    synchronized void cancel() {
+        if (token != 0) cancelToken(token);
+    }
+
+    @Override
+    public void close() {
+        if (signal != null) {
+            synchronized (watched) {
+                watched.remove(this);
+            }
+        }
+        synchronized (this) {
+            if (token != 0) freeToken(token);
+            token = 0;
+        }
+    }
+
+    /*
+        Polls the signals of the running operations, exits when there are none.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    private static final class Watcher extends Thread {
+        Watcher() {
+            super("JP2Cancellation");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<Cancellation> operations = new ArrayList<>();
+            for (;;) {
+                synchronized (watched) {
+                    if (watched.isEmpty()) {
+                        watcher = null;
+                        return;
+                    }
+                    operations.clear();
+                    operations.addAll(watched);
+                }
+                for (Cancellation operation : operations) {
+                    if (operation.signal.isCanceled()) operation.cancel();
+                }
+                try {
+                    Thread.sleep(POLL_INTERVAL_MS);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    private static native long createToken(long deadline);
+    private static native void cancelToken(long token);
+    private static native void freeToken(long token);
+}
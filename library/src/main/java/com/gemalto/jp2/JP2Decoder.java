@@ -1,17 +1,27 @@
 package com.gemalto.jp2;
 
+import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * JPEG-2000 bitmap decoder. The supported data formats are: JP2 (standard JPEG-2000 file format) and J2K
@@ -30,8 +40,402 @@ public class JP2Decoder {
         public boolean hasAlpha;
         public int numResolutions;
         public int numQualityLayers;
+        /**
+         * Number of components (channels) of the image.
+         */
+        public int numComponents;
+        /**
+         * Offset of the tile grid on the reference grid; the first tile starts at {@code [tileX0, tileY0]}.
+         */
+        public int tileX0;
+        public int tileY0;
+        /**
+         * Nominal size of a tile; tiles in the last row and column can be smaller. An image with a single tile has
+         * the size of the image.
+         */
+        public int tileWidth;
+        public int tileHeight;
+        /**
+         * Number of tile columns and rows.
+         */
+        public int numTilesX;
+        public int numTilesY;
+        /**
+         * Nominal code-block size of the first component.
+         */
+        public int codeBlockWidth;
+        public int codeBlockHeight;
+        /**
+         * Progression order of the packets in the main header; {@code null} if unknown. Tiles can override it.
+         */
+        public ProgressionOrder progressionOrder;
+        /**
+         * Precinct sizes of the first component, from the lowest resolution up. A resolution without explicit
+         * precincts has a single precinct of 32768 x 32768.
+         */
+        public int[] precinctWidths;
+        public int[] precinctHeights;
+        /**
+         * {@code true} if the image is compressed with the reversible 5-3 wavelet (lossless compression is
+         * possible), {@code false} for the irreversible 9-7 wavelet.
+         */
+        public boolean reversible;
+        /**
+         * {@code true} if a multi-component transform (RCT for reversible, ICT for irreversible compression) is
+         * applied to the first three components.
+         */
+        public boolean multiComponentTransform;
+        /**
+         * {@code true} if the main header contains TLM markers (tile-part lengths), which allow finding the tiles
+         * without reading the whole codestream.
+         */
+        public boolean hasTLM;
+        /**
+         * {@code true} if the first tile-part header contains PLT markers (packet lengths), which allow skipping
+         * the packets outside of a decoded region. Always {@code false} for a {@link JP2DecoderSession} reading an
+         * {@link InputStream}, whose source cannot be rewound.
+         */
+        public boolean hasPLT;
+        /**
+         * Description of the components; at most the first 16 components are described.
+         */
+        public Component[] components;
     }
 
+    /**
+     * A component (channel) of the image, see {@link Header#components}.
+     */
+    public static class Component {
+        /**
+         * Number of bits of the samples.
+         */
+        public int precision;
+        /**
+         * Horizontal and vertical subsampling; 1 if the component has the full resolution.
+         */
+        public int dx;
+        public int dy;
+        /**
+         * {@code true} if the samples are signed.
+         */
+        public boolean signed;
+    }
+
+    /**
+     * Order of the packets in a codestream, see {@link Header#progressionOrder}. The letters stand for Layer,
+     * Resolution, Component and Position, from the slowest to the fastest changing.
+     */
+    public enum ProgressionOrder {
+        LRCP, RLCP, RPCL, PCRL, CPRL
+    }
+
+    /**
+     * An image decoded at its full precision by {@link #decodeHighBitDepth()}.
+     */
+    public static class HighBitDepthImage {
+        public int width;
+        public int height;
+        /**
+         * Number of samples per pixel: 1 - gray, 2 - gray + alpha, 3 - RGB, 4 - RGBA.
+         */
+        public int numChannels;
+        /**
+         * Number of significant bits of each sample, 1 to 16.
+         */
+        public int bitDepth;
+        /**
+         * The samples as unsigned 16-bit values, interleaved and row by row without padding. The buffer is direct
+         * and in the native byte order. Use {@code pixels.get(i) & 0xFFFF} to read a sample.
+         */
+        public ShortBuffer pixels;
+    }
+
+    /**
+     * Information about the data used by the last decoding, see {@link #getDecodeInfo()}.
+     */
+    public static class DecodeInfo {
+        /**
+         * Number of bytes of the source read by the decoder.
+         */
+        public long bytesUsed;
+        /**
+         * Number of quality layers decoded completely. It's lower than the number of layers to decode if the data
+         * is truncated.
+         */
+        public int layersUsed;
+        /**
+         * {@code true} if the data ended before all the packets to decode, see {@link #setAllowTruncated(boolean)}.
+         */
+        public boolean truncated;
+    }
+
+    /**
+     * Special value for {@link #setThreads(int)}: use as many decoding threads as there are CPU cores.
+     */
+    public static final int ALL_CORES = -1;
+
+    /**
+     * How the decoded image is brought to the target size set by {@link #setTargetSize(int, int, ScaleMode)}.
+     */
+    public enum ScaleMode {
+        /**
+         * Only skip resolutions. The image is decoded at the lowest resolution that still fills the target size
+         * when fitted into it, keeping its aspect ratio. The output is not scaled.
+         */
+        REDUCE_ONLY,
+        /**
+         * Fit the image into the target size, keeping its aspect ratio. The image is never enlarged.
+         */
+        FIT,
+        /**
+         * Scale the image to exactly the target size, regardless of its aspect ratio.
+         */
+        EXACT
+    }
+
+    /**
+     * How the samples of images with more than 8 bits per component are mapped to the 8 bits of a bitmap, set by
+     * {@link #setToneMapping(ToneMapping)}. The sample values are unsigned (signed samples are offset by half of their
+     * range) and at most 16-bit: samples with a higher precision are truncated to 16 bits first.
+     */
+    public static final class ToneMapping {
+        //must match the TONE_MAPPING_* constants in openjpg.cpp
+        static final int WINDOW = 1;
+        static final int AUTO_STRETCH = 2;
+        static final int LOOKUP_TABLE = 3;
+
+        final int type;
+        final float center;
+        final float width;
+        final byte[] table;
+
+        private ToneMapping(final int type, final float center, final float width, final byte[] table) {
+            this.type = type;
+            this.center = center;
+            this.width = width;
+            this.table = table;
+        }
+
+        /**
+         * Map a window of sample values linearly to the full 8-bit range, e.g. the window of a DICOM image. Samples
+         * below the window are black, samples above it are white.
+         * @param center the sample value in the middle of the window
+         * @param width the width of the window in sample values
+         * @return the tone mapping
+         */
+        public static ToneMapping window(final float center, final float width) {
+            if (!(width > 0)) throw new IllegalArgumentException("window width must be a positive number!");
+            return new ToneMapping(WINDOW, center, width, null);
+        }
+
+        /**
+         * Stretch the range from the lowest to the highest sample value of the decoded image to the full 8-bit range.
+         * The range is found in the decoded samples, the image is not decoded twice.
+         * @return the tone mapping
+         */
+        public static ToneMapping autoStretch() {
+            return new ToneMapping(AUTO_STRETCH, 0, 0, null);
+        }
+
+        /**
+         * Map the samples by a lookup table: entry {@code i} is the 8-bit output value (unsigned) for the sample value
+         * {@code i}. Samples beyond the end of the table use its last entry. The table is copied.
+         * @param table the lookup table, typically of 2 to the power of the sample precision entries
+         * @return the tone mapping
+         */
+        public static ToneMapping lookupTable(@NonNull final byte[] table) {
+            if (table == null || table.length == 0) throw new IllegalArgumentException("lookup table must not be empty!");
+            return new ToneMapping(LOOKUP_TABLE, 0, 0, table.clone());
+        }
+    }
+
+    /**
+     * Receives the tiles decoded by {@link #decodeTiles(TileListener)}.
+     */
+    public interface TileListener {
+        /**
+         * Called when a tile has been decoded. The bitmap is reused for the next tile, copy it if you need to keep
+         * its content after this method returns.
+         * @param tileIndex index of the tile in the image, in row-major order
+         * @param x left edge of the tile in the image at the decoded resolution
+         * @param y top edge of the tile in the image at the decoded resolution
+         * @param tile the decoded pixels of the tile
+         * @return {@code true} to continue with the next tile; {@code false} to stop decoding
+         */
+        boolean onTile(int tileIndex, int x, int y, @NonNull Bitmap tile);
+    }
+
+    /**
+     * How the image is refined by {@link #decodeProgressive(Progression, ProgressiveListener)}.
+     */
+    public enum Progression {
+        /**
+         * Decode with 1, 2, ... quality layers, up to the number of layers to decode. Each pass has the same size.
+         */
+        QUALITY_LAYERS,
+        /**
+         * Decode from the lowest resolution up to the resolution set by {@link #setSkipResolutions(int)}. Each pass
+         * doubles the width and height of the image.
+         */
+        RESOLUTIONS
+    }
+
+    /**
+     * Receives the images decoded by {@link #decodeProgressive(ProgressiveListener)}.
+     */
+    public interface ProgressiveListener {
+        /**
+         * Called after each decoding pass with the image refined so far. Each pass creates a new bitmap, the
+         * previous one can still be displayed while the next pass is decoded.
+         * @param pass the number of the pass, starting from 1
+         * @param numPasses the total number of passes; the image of the last pass is the fully decoded image
+         * @param image the image decoded in this pass
+         * @return {@code true} to continue with the next pass; {@code false} to stop decoding
+         */
+        boolean onPass(int pass, int numPasses, @NonNull Bitmap image);
+    }
+
+    /**
+     * A source of an image decoded by {@link #decodeBatch(List, Options, int, BatchListener)}.
+     */
+    public static final class Source {
+        final Object source; //file name or byte array, as passed to the native code
+
+        private Source(final Object source) {
+            this.source = source;
+        }
+
+        /**
+         * @param fileName the name of a JPEG-2000 file
+         * @return the source reading the file
+         */
+        public static Source fromFile(@NonNull final String fileName) {
+            if (fileName == null) throw new IllegalArgumentException("fileName must not be null!");
+            return new Source(fileName);
+        }
+
+        /**
+         * @param data JPEG-2000 encoded data; the array is not copied, it must not be changed until it's decoded
+         * @return the source reading the array
+         */
+        public static Source fromBytes(@NonNull final byte[] data) {
+            if (data == null) throw new IllegalArgumentException("data must not be null!");
+            return new Source(data);
+        }
+    }
+
+    /**
+     * The decoding settings of {@link #decodeBatch(List, Options, int, BatchListener)}, applied to all the images of
+     * the batch. The settings have the same meaning and default values as the settings of {@code JP2Decoder}.
+     */
+    public static final class Options {
+        private int skipResolutions = 0;
+        private int layersToDecode = 0;
+        private int targetWidth = 0;
+        private int targetHeight = 0;
+        private ScaleMode scaleMode = ScaleMode.REDUCE_ONLY;
+        private Config preferredConfig = Config.ARGB_8888;
+        private ToneMapping toneMapping = null;
+        private BitmapPool bitmapPool = null;
+
+        /**
+         * @param skipResolutions the number of highest resolutions to skip
+         * @return this instance of {@code Options}
+         * @see JP2Decoder#setSkipResolutions(int)
+         */
+        public Options setSkipResolutions(final int skipResolutions) {
+            if (skipResolutions < 0) throw new IllegalArgumentException("skipResolutions cannot be a negative number!");
+            this.skipResolutions = skipResolutions;
+            return this;
+        }
+
+        /**
+         * @param layersToDecode the number of quality layers to decode; 0 for all
+         * @return this instance of {@code Options}
+         * @see JP2Decoder#setLayersToDecode(int)
+         */
+        public Options setLayersToDecode(final int layersToDecode) {
+            if (layersToDecode < 0) throw new IllegalArgumentException("layersToDecode cannot be a negative number!");
+            this.layersToDecode = layersToDecode;
+            return this;
+        }
+
+        /**
+         * @param width target width; 0 to decode at the resolution set by {@link #setSkipResolutions(int)}
+         * @param height target height; 0 to decode at the resolution set by {@link #setSkipResolutions(int)}
+         * @param scaleMode how the image is brought to the target size
+         * @return this instance of {@code Options}
+         * @see JP2Decoder#setTargetSize(int, int, ScaleMode)
+         */
+        public Options setTargetSize(final int width, final int height, @NonNull final ScaleMode scaleMode) {
+            if (width < 0 || height < 0) throw new IllegalArgumentException("target size cannot be negative!");
+            if ((width == 0) != (height == 0)) throw new IllegalArgumentException("target width and height must be both set or both 0!");
+            if (scaleMode == null) throw new IllegalArgumentException("scaleMode must not be null!");
+            this.targetWidth = width;
+            this.targetHeight = height;
+            this.scaleMode = scaleMode;
+            return this;
+        }
+
+        /**
+         * @param preferredConfig {@link Config#ARGB_8888}, {@link Config#RGB_565}, {@link Config#ALPHA_8} or
+         *                        {@link Config#RGBA_F16}
+         * @return this instance of {@code Options}
+         * @see JP2Decoder#setPreferredConfig(Config)
+         */
+        public Options setPreferredConfig(@NonNull final Config preferredConfig) {
+            if (!isSupportedConfig(preferredConfig)) throw new IllegalArgumentException("unsupported config: " + preferredConfig);
+            this.preferredConfig = preferredConfig;
+            return this;
+        }
+
+        /**
+         * @param toneMapping the tone mapping; {@code null} to truncate the samples to 8 bits
+         * @return this instance of {@code Options}
+         * @see JP2Decoder#setToneMapping(ToneMapping)
+         */
+        public Options setToneMapping(final ToneMapping toneMapping) {
+            this.toneMapping = toneMapping;
+            return this;
+        }
+
+        /**
+         * @param bitmapPool the pool to take the output bitmaps from; {@code null} to always allocate a new bitmap
+         * @return this instance of {@code Options}
+         * @see JP2Decoder#setBitmapPool(BitmapPool)
+         */
+        public Options setBitmapPool(final BitmapPool bitmapPool) {
+            this.bitmapPool = bitmapPool;
+            return this;
+        }
+
+        //each image is decoded by a single thread of the batch's pool
+        private int[] getDecodeParams() {
+            return packDecodeParams(skipResolutions, layersToDecode, 1, 0, 0, 0, 0, targetWidth, targetHeight, scaleMode,
+                    null, false);
+        }
+    }
+
+    /**
+     * Receives the images decoded by {@link #decodeBatch(List, Options, int, BatchListener)}.
+     */
+    public interface BatchListener {
+        /**
+         * Called in the thread which called {@code decodeBatch()} as soon as an image has been decoded. The images
+         * are passed in the order in which they are finished, which is not necessarily the order of the sources.
+         * @param index the index of the image's source in the list of sources
+         * @param image the decoded image; {@code null} if the source could not be read or decoded
+         * @return {@code true} to continue with the next image; {@code false} to stop the batch
+         */
+        boolean onDecoded(int index, Bitmap image);
+    }
+
+    //layout of the header array returned by the native code (image_header_t)
+    private static final int MAX_HEADER_COMPONENTS = 16;
+    private static final int MAX_RESOLUTIONS = 33;
+    private static final int HEADER_COMPONENTS_INDEX = 19;
+    private static final int HEADER_PRECINCTS_INDEX = HEADER_COMPONENTS_INDEX + 4 * MAX_HEADER_COMPONENTS;
+
     private static final byte[] JP2_RFC3745_MAGIC = new byte[]{(byte)0x00, (byte)0x00, (byte)0x00, (byte)0x0c, (byte)0x6a, (byte)0x50, (byte)0x20, (byte)0x20, (byte)0x0d, (byte)0x0a, (byte)0x87, (byte)0x0a};
     private static final byte[] JP2_MAGIC = new byte[]{(byte)0x0d, (byte)0x0a, (byte)0x87, (byte)0x0a};
     private static final byte[] J2K_CODESTREAM_MAGIC = new byte[]{(byte)0xff, (byte)0x4f, (byte)0xff, (byte)0x51};
@@ -39,9 +443,30 @@ public class JP2Decoder {
     private byte[] data = null;
     private String fileName = null;
     private InputStream is = null;
+    private long streamLength = -1;
+    private ByteBuffer buffer = null;
+    private FileDescriptor fileDescriptor = null;
+    private long fdOffset = 0;
+    private long fdLength = -1;
     private int skipResolutions = 0;
     private int layersToDecode = 0;
     private boolean premultiplication = true;
+    private int threads = 1;
+    private int regionX0 = 0, regionY0 = 0, regionX1 = 0, regionY1 = 0;
+    private int targetWidth = 0, targetHeight = 0;
+    private ScaleMode scaleMode = ScaleMode.REDUCE_ONLY;
+    private int[] components = null;
+    private Config preferredConfig = Config.ARGB_8888;
+    private ToneMapping toneMapping = null;
+    private Bitmap inBitmap = null;
+    private boolean allowTruncated = false;
+    private DecodeInfo decodeInfo = null;
+    private CancellationSignal cancellationSignal = null;
+    private long deadline = 0;
+    private ProgressListener progressListener = null;
+    private JP2Scheduler scheduler = null;
+    private BitmapPool bitmapPool = null;
+    private volatile Header asyncHeader = null; //read once for the memory estimates of decodeAsync()
 
     /**
      * Decode a JPEG-2000 image from a byte array.
@@ -52,7 +477,21 @@ public class JP2Decoder {
     }
 
     /**
-     * Decode a JPEG-2000 image file.
+     * Decode a JPEG-2000 image from a {@link ByteBuffer}. The image data are the buffer's remaining bytes, i.e. the
+     * bytes between its position and its limit. The buffer's position is not modified.<br><br>
+     *
+     * A direct buffer (e.g. a memory-mapped file) is read in place by the native decoder, as is a heap buffer with
+     * an accessible backing array. Other buffers (e.g. read-only heap buffers) have to be copied first.
+     * @param buffer the buffer containing the JPEG-2000 image
+     */
+    public JP2Decoder(@NonNull final ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Decode a JPEG-2000 image file. The file is memory-mapped if possible, so only the parts of the file that are
+     * actually needed are read from the storage. This makes reduced-resolution ({@link #setSkipResolutions(int)})
+     * and region ({@link #setRegion(int, int, int, int)}) decoding of large files considerably cheaper.
      * @param fileName the name of the JPEG-2000 file
      */
     public JP2Decoder(final String fileName) {
@@ -60,14 +499,75 @@ public class JP2Decoder {
     }
 
     /**
-     * Decode a JPEG-2000 image from a stream.
+     * Decode a JPEG-2000 image from a file descriptor, e.g. one obtained from a content provider through
+     * {@link ParcelFileDescriptor#getFileDescriptor()}. The whole file is decoded. The data are read with positional
+     * reads: only the parts of the file needed for decoding are read and the descriptor's file offset is not changed.
+     * The descriptor is not closed by the decoder.
+     * @param fd the file descriptor of a JPEG-2000 file
+     */
+    public JP2Decoder(@NonNull final FileDescriptor fd) {
+        this.fileDescriptor = fd;
+    }
+
+    /**
+     * Decode a JPEG-2000 image stored in a part of a file, e.g. an uncompressed asset in an APK. The data are read
+     * with positional reads: only the parts of the file needed for decoding are read and the descriptor's file offset
+     * is not changed. The descriptor is not closed by the decoder.
+     * @param fd the file descriptor
+     * @param offset offset of the image data in the file
+     * @param length length of the image data
+     * @see #JP2Decoder(AssetFileDescriptor)
+     */
+    public JP2Decoder(@NonNull final FileDescriptor fd, final long offset, final long length) {
+        if (offset < 0 || length < 0) throw new IllegalArgumentException("offset and length cannot be negative numbers!");
+        this.fileDescriptor = fd;
+        this.fdOffset = offset;
+        this.fdLength = length;
+    }
+
+    /**
+     * Decode a JPEG-2000 image from an asset file descriptor, e.g. obtained from
+     * {@link android.content.res.AssetManager#openFd(String)}. Only the range of the file described by
+     * the descriptor is read. The descriptor is not closed by the decoder.
+     * @param afd the asset file descriptor of a JPEG-2000 image
+     * @see #JP2Decoder(FileDescriptor, long, long)
+     */
+    public JP2Decoder(@NonNull final AssetFileDescriptor afd) {
+        this.fileDescriptor = afd.getFileDescriptor();
+        this.fdOffset = afd.getStartOffset();
+        //UNKNOWN_LENGTH (-1) means up to the end of the file
+        this.fdLength = afd.getLength();
+    }
+
+    /**
+     * Decode a JPEG-2000 image from a stream. The stream is read in chunks while the image is being decoded, its
+     * content is not kept in memory as a whole. Therefore {@link #decode()} can be called only once.<br><br>
+     *
+     * {@link #readHeader()} rewinds the stream after reading the header if it supports {@link InputStream#mark(int)}.
+     * Otherwise the whole stream is read into memory so that the image can still be decoded afterwards.<br><br>
+     *
+     * If the last tile-part of the codestream extends to the end of the data (Psot = 0), the rest of the stream is
+     * read into memory when that tile-part is reached, its length being unknown otherwise.
      * @param is the stream containing the JPEG-2000 image<br>
-     *           <strong>Note: the whole content of the stream will be read. The end of image data is not detected.</strong>
+     *           <strong>Note: the stream may be read beyond the end of the image data.</strong>
      */
     public JP2Decoder(final InputStream is) {
         this.is = is;
     }
 
+    /**
+     * Decode a JPEG-2000 image from a stream of known length. Use this variant if the length is known (e.g. from
+     * a Content-Length header), it allows the decoder to validate box and tile-part lengths before reading them.
+     * @param is the stream containing the JPEG-2000 image
+     * @param length number of bytes of image data in the stream
+     * @see #JP2Decoder(InputStream)
+     */
+    public JP2Decoder(final InputStream is, final long length) {
+        if (length < 0) throw new IllegalArgumentException("length cannot be a negative number!");
+        this.is = is;
+        this.streamLength = length;
+    }
+
     /**
      * Set the number of highest resolution levels to be discarded. The image resolution is effectively divided
      * by 2 to the power of the number of discarded levels. The reduce factor is limited by the number of stored
@@ -101,6 +601,106 @@ public class JP2Decoder {
         return this;
     }
 
+    /**
+     * Decode only a rectangular region of the image. Only the tiles and code-blocks covering the region are
+     * decoded, which saves both time and memory when only a part of a large image is needed.<br><br>
+     *
+     * The coordinates are always specified in the full-resolution image, even when combined with
+     * {@link #setSkipResolutions(int)}. The size of the output bitmap is then the size of the region reduced
+     * by the skipped resolutions. A region exceeding the image dimensions is clipped to the image.
+     * Set all coordinates to 0 to decode the whole image.<br><br>
+     *
+     * Default value: the whole image is decoded
+     * @param x0 left edge of the region (inclusive)
+     * @param y0 top edge of the region (inclusive)
+     * @param x1 right edge of the region (exclusive)
+     * @param y1 bottom edge of the region (exclusive)
+     * @return this instance of {@code JP2Decoder}
+     */
+    public JP2Decoder setRegion(final int x0, final int y0, final int x1, final int y1) {
+        checkRegion(x0, y0, x1, y1);
+        this.regionX0 = x0;
+        this.regionY0 = y0;
+        this.regionX1 = x1;
+        this.regionY1 = y1;
+        return this;
+    }
+
+    /**
+     * Decode the image for a target size. The number of resolutions to skip is chosen automatically after reading
+     * the header: the image (or the region, if set) is decoded at the lowest resolution that still covers the target
+     * size. With {@link ScaleMode#FIT} or {@link ScaleMode#EXACT} the decoded pixels are then averaged down to the
+     * final size while they are written into the bitmap, so no oversized bitmap is allocated and scaled again.<br><br>
+     *
+     * The target size replaces {@link #setSkipResolutions(int)} in {@link #decode()}. It is not used by
+     * {@link #decodeTiles(TileListener)} and {@link #openSession()}. Set the size to 0 x 0 to decode at the
+     * resolution given by {@link #setSkipResolutions(int)} again.<br><br>
+     *
+     * Default value: 0 x 0 (no target size)
+     * @param width target width in pixels
+     * @param height target height in pixels
+     * @param scaleMode how the decoded image is brought to the target size
+     * @return this instance of {@code JP2Decoder}
+     */
+    public JP2Decoder setTargetSize(final int width, final int height, @NonNull final ScaleMode scaleMode) {
+        if (width < 0 || height < 0) throw new IllegalArgumentException("target size cannot be negative!");
+        if ((width == 0) != (height == 0)) throw new IllegalArgumentException("target width and height must be both positive or both 0!");
+        if (scaleMode == null) throw new IllegalArgumentException("scaleMode must not be null!");
+        this.targetWidth = width;
+        this.targetHeight = height;
+        this.scaleMode = scaleMode;
+        return this;
+    }
+
+    /**
+     * Decode only the selected components of the image. The code-blocks of the other components are not decoded at
+     * all, so e.g. decoding only the first component of a color image takes about a third of the time. The selected
+     * components are output in the given order and interpreted by their number: 1 - grayscale, 2 - grayscale + alpha,
+     * 3 - RGB, 4 - RGBA. The indices are checked against the image when decoding; {@link #decode()} returns
+     * {@code null} if there is no such component.<br><br>
+     *
+     * Note that the inverse multi-component transform is skipped for a selection. For color images compressed with
+     * the transform (the usual case) or stored as YCC, the components are Y, Cb and Cr instead of R, G and B, so
+     * the first component is the luma of the image. Selecting all the components in their original order is the
+     * same as decoding without a selection.<br><br>
+     *
+     * The selection is used by {@link #decode()} and {@link #decodeGray()}. It is not used by
+     * {@link #decodeTiles(TileListener)} and {@link #openSession()}.<br><br>
+     *
+     * Default value: no selection (all components are decoded)
+     * @param components indices of at most 4 components to decode; none or {@code null} to decode all components
+     * @return this instance of {@code JP2Decoder}
+     * @see #decodeGray()
+     */
+    public JP2Decoder setComponents(final int... components) {
+        if (components != null && components.length > 4) throw new IllegalArgumentException("at most 4 components can be selected!");
+        if (components != null) {
+            for (int i = 0; i < components.length; i++) {
+                if (components[i] < 0) throw new IllegalArgumentException("component index cannot be a negative number!");
+                for (int j = 0; j < i; j++) {
+                    if (components[j] == components[i]) throw new IllegalArgumentException("component " + components[i] + " is selected twice!");
+                }
+            }
+        }
+        this.components = components == null || components.length == 0 ? null : components.clone();
+        return this;
+    }
+
+    /**
+     * Set the number of threads used to decode the image. Code-blocks and the inverse wavelet transform are
+     * then processed in parallel, which significantly speeds up decoding of large images on multi-core devices.
+     * Use {@link #ALL_CORES} to use one thread per available CPU core.<br><br>
+     *
+     * Default value: 1 (the image is decoded in the calling thread only)
+     * @param threads number of decoding threads, or {@link #ALL_CORES}
+     * @return this instance of {@code JP2Decoder}
+     */
+    public JP2Decoder setThreads(final int threads) {
+        if (threads < 1 && threads != ALL_CORES) throw new IllegalArgumentException("threads must be a positive number or ALL_CORES!");
+        this.threads = threads;
+        return this;
+    }
+
     /**
      * This allows you to turn off alpha pre-multiplication in the output bitmap. Normally Android bitmaps with alpha
      * channel have their RGB component pre-multiplied by the normalized alpha channel. This improves performance when
@@ -125,6 +725,174 @@ public class JP2Decoder {
         return this;
     }
 
+    /**
+     * Set the preferred config of the output bitmap, similar to {@link BitmapFactory.Options#inPreferredConfig}.
+     * The pixels are written in this format directly by the native decoder, which saves memory:
+     * <ul>
+     *     <li>{@link Config#RGB_565} - 2 bytes per pixel; used if the image has no alpha channel</li>
+     *     <li>{@link Config#ALPHA_8} - 1 byte per pixel; used if the image is grayscale without an alpha channel.
+     *     The gray value is stored as the pixel's alpha, see {@link #decodeGray()}.</li>
+     *     <li>{@link Config#RGBA_F16} - 8 bytes per pixel, API 26+; used for all images. The colors keep up to
+     *     16 bits of precision, see also {@link #decodeHighBitDepth()}.</li>
+     *     <li>{@link Config#ARGB_8888} - 4 bytes per pixel; used for all other images</li>
+     * </ul>
+     * The preference applies to {@link #decode()}, {@link #decodeTiles(TileListener)} and {@link #openSession()}.
+     * <br><br>
+     *
+     * Default value: {@link Config#ARGB_8888}
+     * @param preferredConfig {@link Config#ARGB_8888}, {@link Config#RGB_565}, {@link Config#ALPHA_8} or
+     *                        {@link Config#RGBA_F16}
+     * @return this instance of {@code JP2Decoder}
+     */
+    public JP2Decoder setPreferredConfig(@NonNull final Config preferredConfig) {
+        if (!isSupportedConfig(preferredConfig)) throw new IllegalArgumentException("unsupported config: " + preferredConfig);
+        this.preferredConfig = preferredConfig;
+        return this;
+    }
+
+    /**
+     * Set how the color components are mapped to the 8 bits per component of the output bitmap. By default the lowest
+     * bits of components with a higher precision are dropped, which makes e.g. 12-bit images using only a part of their
+     * range dark and flat. A window, an auto-stretch or a lookup table is applied instead while the pixels are written
+     * into the bitmap, without decoding the image twice.<br><br>
+     *
+     * The mapping applies to the {@link Config#ARGB_8888}, {@link Config#RGB_565} and {@link Config#ALPHA_8} output of
+     * {@link #decode()}, {@link #decodeGray()}, {@link #decodeTiles(TileListener)} and {@link #openSession()}.
+     * The alpha channel is not mapped. {@link Config#RGBA_F16} bitmaps and {@link #decodeHighBitDepth()} keep the
+     * original samples.<br><br>
+     *
+     * Default value: {@code null} (the samples are truncated to 8 bits)
+     * @param toneMapping the tone mapping; {@code null} to truncate the samples to 8 bits
+     * @return this instance of {@code JP2Decoder}
+     */
+    public JP2Decoder setToneMapping(final ToneMapping toneMapping) {
+        this.toneMapping = toneMapping;
+        return this;
+    }
+
+    /**
+     * Set a bitmap to be reused for the decoded image, similar to {@link BitmapFactory.Options#inBitmap}. The decoded
+     * pixels are written directly into the bitmap's memory, no new bitmap is allocated.<br><br>
+     *
+     * The bitmap must be mutable and its config must be the config of the decoded image: {@link Config#ARGB_8888}
+     * by default, see {@link #setPreferredConfig(Config)}. If its dimensions differ from
+     * the decoded image, it is reconfigured to the new dimensions (API 19+), provided that its allocation is large
+     * enough. If the bitmap cannot be reused, a new bitmap is allocated instead.<br><br>
+     *
+     * Default value: {@code null} (a new bitmap is always allocated)
+     * @param inBitmap the bitmap to reuse; {@code null} to always allocate a new bitmap
+     * @return this instance of {@code JP2Decoder}
+     * @see #decode(Bitmap)
+     */
+    public JP2Decoder setInBitmap(final Bitmap inBitmap) {
+        this.inBitmap = inBitmap;
+        return this;
+    }
+
+    /**
+     * Set a pool of bitmaps to take the output bitmaps from. Instead of allocating a new bitmap for each decoded
+     * image, the decoder writes the pixels into a bitmap from the pool, reconfigured to the image's dimensions if
+     * necessary (API 19+). A new bitmap is allocated only if the pool has no suitable one. Return the bitmaps to the
+     * pool when they are no longer used, see {@link BitmapPool#put(Bitmap)}.<br><br>
+     *
+     * A bitmap set by {@link #setInBitmap(Bitmap)} is used first. The pool also applies to decoding sessions opened
+     * by {@link #openSession()}. Identical requests made by {@link #decodeAsync(JP2Scheduler.Priority)} with a pool
+     * are decoded separately, so that each of them gets a bitmap of its own.<br><br>
+     *
+     * Default value: {@code null} (a new bitmap is allocated for each image)
+     * @param bitmapPool the pool, e.g. an {@link LruBitmapPool} shared by all the decoders of a gallery; {@code null}
+     *                   to always allocate a new bitmap
+     * @return this instance of {@code JP2Decoder}
+     */
+    public JP2Decoder setBitmapPool(final BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+        return this;
+    }
+
+    /**
+     * Decode truncated data, e.g. a partially downloaded file, instead of failing. The decoder then uses the
+     * packets received completely and ignores the missing ones, like {@code opj_decompress} does: the image is
+     * decoded with fewer quality layers or at a lower quality in some areas, tiles that were not received at all
+     * stay blank. Use {@link #getDecodeInfo()} to find out how many bytes and quality layers were used.<br><br>
+     *
+     * The data must contain at least the complete main header. This setting applies to {@link #decode()},
+     * {@link #decode(Bitmap)}, {@link #decodeGray()} and {@link #decodeHighBitDepth()}; decoding sessions, tiles and
+     * progressive decoding need complete data.<br><br>
+     *
+     * Default value: {@code false} (truncated data cannot be decoded)
+     * @param allowTruncated {@code true} to decode truncated data
+     * @return this instance of {@code JP2Decoder}
+     */
+    public JP2Decoder setAllowTruncated(final boolean allowTruncated) {
+        this.allowTruncated = allowTruncated;
+        return this;
+    }
+
+    /**
+     * Set a signal to cancel the decoding from another thread, e.g. when the image scrolls out of view. The native
+     * decoder checks the signal between tiles and between batches of code-blocks; a cancelled decoding stops, frees
+     * its memory and returns {@code null} ({@code false} for {@link #decodeTiles(TileListener)} and
+     * {@link #decodeProgressive(ProgressiveListener)}). A signal cancelled before the decoding starts cancels it
+     * immediately.<br><br>
+     *
+     * The signal applies to all the decoding methods and to the sessions opened by {@link #openSession()}. It may be
+     * shared by several decoders and encoders, and with other APIs: the signal is polled, its
+     * {@link CancellationSignal.OnCancelListener} is left to the caller.<br><br>
+     *
+     * Default value: {@code null} (the decoding cannot be cancelled)
+     * @param cancellationSignal the signal; {@code null} if the decoding cannot be cancelled
+     * @return this instance of {@code JP2Decoder}
+     * @see #setDeadline(long)
+     */
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    public JP2Decoder setCancellationSignal(final CancellationSignal cancellationSignal) {
+        this.cancellationSignal = cancellationSignal;
+        return this;
+    }
+
+    /**
+     * Set a time after which the decoding is cancelled, as a {@link SystemClock#uptimeMillis()} value, e.g.
+     * {@code SystemClock.uptimeMillis() + 200}. The deadline is checked like a cancellation signal, see
+     * {@link #setCancellationSignal(CancellationSignal)}; a decoding exceeding it returns {@code null}.<br><br>
+     *
+     * Default value: 0 (no deadline)
+     * @param uptimeMillis the deadline in the {@link SystemClock#uptimeMillis()} time base; 0 for no deadline
+     * @return this instance of {@code JP2Decoder}
+     */
+    public JP2Decoder setDeadline(final long uptimeMillis) {
+        if (uptimeMillis < 0) throw new IllegalArgumentException("deadline cannot be a negative number!");
+        this.deadline = uptimeMillis;
+        return this;
+    }
+
+    /**
+     * Set a listener receiving the number of tiles decoded so far, e.g. to show a progress bar for large tiled images.
+     * The listener is called by the native decoder in the decoding thread, see {@link ProgressListener}.<br><br>
+     *
+     * The listener applies to all the decoding methods and to the sessions opened by {@link #openSession()}; each
+     * pass of {@link #decodeProgressive(ProgressiveListener)} is reported separately.<br><br>
+     *
+     * Default value: {@code null} (no progress is reported)
+     * @param progressListener the listener; {@code null} to report no progress
+     * @return this instance of {@code JP2Decoder}
+     */
+    public JP2Decoder setProgressListener(final ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * Set the scheduler running the decodings started by {@link #decodeAsync(JP2Scheduler.Priority)}.<br><br>
+     *
+     * Default value: {@code null} ({@link JP2Scheduler#getDefault()} is used)
+     * @param scheduler the scheduler; {@code null} for the default one
+     * @return this instance of {@code JP2Decoder}
+     */
+    public JP2Decoder setScheduler(final JP2Scheduler scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
     /**
      * Returns true if the byte array starts with values typical for a JPEG-2000 header.
      * @param data the byte array to check
@@ -138,13 +906,320 @@ public class JP2Decoder {
         return false;
     }
 
+    /**
+     * Decode a batch of images, e.g. thumbnails of a gallery, by a pool of native worker threads. Each image is
+     * decoded by a single thread; reading the next source overlaps with decoding the previous ones, and at most two
+     * sources per thread are held in memory at a time. The decoded images are passed to the listener in the calling
+     * thread as soon as they are finished, i.e. not necessarily in the order of the sources.<br><br>
+     *
+     * This is faster than decoding the images one by one with {@link #setThreads(int)}, because the decoding of
+     * small images doesn't parallelize well within one image.
+     * @param sources the images to decode
+     * @param options the decoding settings applied to all the images
+     * @param threads number of worker threads, or {@link #ALL_CORES}
+     * @param listener receives the decoded images
+     * @return {@code true} if all the images have been passed to the listener; {@code false} if the batch was
+     * stopped by the listener or could not be started
+     */
+    public static boolean decodeBatch(@NonNull final List<Source> sources, @NonNull final Options options, final int threads,
+                                      @NonNull final BatchListener listener) {
+        if (sources == null) throw new IllegalArgumentException("sources must not be null!");
+        if (options == null) throw new IllegalArgumentException("options must not be null!");
+        if (listener == null) throw new IllegalArgumentException("listener must not be null!");
+        if (threads < 1 && threads != ALL_CORES) throw new IllegalArgumentException("threads must be a positive number or ALL_CORES!");
+        Object[] nativeSources = new Object[sources.size()];
+        for (int i = 0; i < nativeSources.length; i++) {
+            Source source = sources.get(i);
+            if (source == null) throw new IllegalArgumentException("sources must not contain null!");
+            nativeSources[i] = source.source;
+        }
+        if (nativeSources.length == 0) return true;
+        return decodeJP2Batch(nativeSources, options.getDecodeParams(), threads, new BatchCallback(options, listener));
+    }
+
+    /*
+        Called by the native code in the thread which called decodeBatch(); converts the decoded image (0 in case of
+        an error) and passes it to the listener.
+     */
+    private static final class BatchCallback {
+        private final Options options;
+        private final BatchListener listener;
+
+        BatchCallback(final Options options, final BatchListener listener) {
+            this.options = options;
+            this.listener = listener;
+        }
+
+        boolean onImage(final int index, final long image) {
+            Bitmap bitmap = toBitmap(image, null, false, true, options.preferredConfig, options.toneMapping, options.bitmapPool);
+            return listener.onDecoded(index, bitmap);
+        }
+    }
+
     /**
      * @return the decoded image; {@code null} in case of an error
      */
     public Bitmap decode() {
-        int res[] = null;
+        return decodeInternal(inBitmap, false);
+    }
+
+    /**
+     * Decode the image in the background, see {@link #decodeAsync(JP2Scheduler.Priority, JP2Scheduler.Callback)}.
+     * @param priority the priority of the request
+     * @return the handle of the request; its result is the decoded image, {@code null} in case of an error
+     */
+    public Future<Bitmap> decodeAsync(@NonNull final JP2Scheduler.Priority priority) {
+        return decodeAsync(priority, null);
+    }
+
+    /**
+     * Decode the image in the background, as {@link #decode()} would. The decoding is run by the scheduler set by
+     * {@link #setScheduler(JP2Scheduler)}, which bounds the number of decodings running at the same time, starts the
+     * {@link JP2Scheduler.Priority#VISIBLE} requests first and decodes identical requests only once. All the settings,
+     * including the progress listener, are taken when this method is called, so the decoder may be set up for another
+     * image right away; the source itself (e.g. the stream or the buffer) must not be used or changed until the
+     * request is done.<br><br>
+     *
+     * Cancelling the returned {@code Future} aborts the decoding, unless an identical request still waits for it.
+     * @param priority the priority of the request
+     * @param callback receives the decoded image in the background thread; may be {@code null}
+     * @return the handle of the request; its result is the decoded image, {@code null} in case of an error
+     */
+    public Future<Bitmap> decodeAsync(@NonNull final JP2Scheduler.Priority priority, final JP2Scheduler.Callback<Bitmap> callback) {
+        final int[] params = getDecodeParams();
+        final boolean streamSource = is != null;
+        final ProgressListener progressListener = this.progressListener;
+        final Bitmap reuse = inBitmap;
+        final boolean premultiplication = this.premultiplication;
+        final Config preferredConfig = this.preferredConfig;
+        final ToneMapping toneMapping = this.toneMapping;
+        final BitmapPool bitmapPool = this.bitmapPool;
+        JP2Scheduler.Job<Bitmap> job = new JP2Scheduler.Job<Bitmap>(getAsyncKey(params), cancellationSignal, deadline) {
+            @Override
+            long estimateMemory() {
+                //reading the header of a stream would consume it or buffer all of it
+                if (streamSource) return 0;
+                Header header = asyncHeader;
+                if (header == null) {
+                    header = readHeader();
+                    asyncHeader = header;
+                }
+                return header != null ? estimateDecodeMemory(header, params, preferredConfig) : 0;
+            }
+
+            @Override
+            Bitmap run(final long cancel) {
+                return toBitmap(decodeNative(params, cancel, progressListener), reuse, false, premultiplication, preferredConfig, toneMapping, bitmapPool);
+            }
+        };
+        return (scheduler != null ? scheduler : JP2Scheduler.getDefault()).submit(job, priority, callback);
+    }
+
+    /**
+     * Decode the image as 8-bit grayscale, e.g. for OCR or image classification. The output bitmap has the config
+     * {@link Config#ALPHA_8}: it holds one byte per pixel, the gray value is stored as the pixel's alpha. Use
+     * {@link Bitmap#copyPixelsToBuffer(java.nio.Buffer)} to get the gray values.<br><br>
+     *
+     * Unless components are selected by {@link #setComponents(int...)}, only the first component of the image is
+     * decoded: the gray channel of a grayscale image, or the luma of a color image compressed with the
+     * multi-component transform (see {@link #setComponents(int...)}). This is much faster than decoding the whole
+     * color image. If the decoded image has more components, its luma is computed from R, G and B. The alpha
+     * channel is ignored.<br><br>
+     *
+     * The bitmap set by {@link #setInBitmap(Bitmap)} is reused if its config is {@link Config#ALPHA_8}.
+     * @return the decoded grayscale image; {@code null} in case of an error
+     */
+    public Bitmap decodeGray() {
+        int[] params = getDecodeParams(components != null ? components : new int[] {0});
+        return toBitmap(decodeNative(params), inBitmap, false, false, Config.ALPHA_8, true, toneMapping, bitmapPool);
+    }
+
+    /**
+     * Decode the image at its full precision. Bitmaps hold 8 bits per color component, so components with a higher
+     * precision (e.g. 12 or 16-bit medical or satellite images) are truncated when decoded into a bitmap. This method
+     * returns all the bits instead, up to 16 bits per sample. Components with more than 16 bits are truncated to
+     * 16 bits, signed components are offset to unsigned values.<br><br>
+     *
+     * The region, skipped resolutions, quality layers, threads and components settings apply. A target size set by
+     * {@link #setTargetSize(int, int, ScaleMode)} only chooses the resolution to decode, the samples are not scaled.
+     * @return the decoded samples; {@code null} in case of an error
+     * @see HighBitDepthImage
+     */
+    public HighBitDepthImage decodeHighBitDepth() {
+        long image = decodeNative(getDecodeParams());
+        if (image == 0) return null;
+
+        try {
+            int[] info = getHighBitDepthInfo(image);
+            HighBitDepthImage ret = new HighBitDepthImage();
+            ret.width = info[0];
+            ret.height = info[1];
+            ret.numChannels = info[2];
+            ret.bitDepth = info[3];
+            long size = (long) ret.width * ret.height * ret.numChannels * 2;
+            if (size > Integer.MAX_VALUE) {
+                Log.e(TAG, "Image too large for a buffer: " + ret.width + "x" + ret.height + "x" + ret.numChannels);
+                return null;
+            }
+            ret.pixels = ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder()).asShortBuffer();
+            if (!writeToShortBuffer(image, ret.pixels)) {
+                return null;
+            }
+            return ret;
+        } finally {
+            freeImage(image);
+        }
+    }
+
+    /**
+     * Decode the image directly into an existing bitmap. The decoded pixels are written straight into the
+     * bitmap's memory, without any intermediate copy.<br><br>
+     *
+     * The bitmap must be mutable and its config must be {@link Config#ARGB_8888}, {@link Config#RGB_565}
+     * (the alpha channel is dropped), {@link Config#ALPHA_8} (the image is converted to grayscale, see
+     * {@link #decodeGray()}) or {@link Config#RGBA_F16} (API 26+). The preferred config is ignored. If its dimensions differ from the decoded image,
+     * it is reconfigured to the new dimensions (API 19+), provided that its allocation is large enough.
+     * @param target the bitmap into which the image is decoded
+     * @return {@code target} containing the decoded image; {@code null} in case of a decoding error
+     * @throws IllegalArgumentException if the image cannot be decoded into the target bitmap
+     * @see #setInBitmap(Bitmap)
+     */
+    public Bitmap decode(@NonNull final Bitmap target) {
+        if (target == null) throw new IllegalArgumentException("target bitmap must not be null!");
+        if (target.isRecycled() || !target.isMutable()) throw new IllegalArgumentException("target bitmap must be mutable and not recycled!");
+        if (!isSupportedConfig(target.getConfig())) throw new IllegalArgumentException("target bitmap config must be ARGB_8888, RGB_565, ALPHA_8 or RGBA_F16!");
+        return decodeInternal(target, true);
+    }
+
+    /**
+     * Get information about the data used by the last successful decoding of {@link #decode()},
+     * {@link #decode(Bitmap)}, {@link #decodeGray()} or {@link #decodeHighBitDepth()}, e.g. to find out whether a
+     * partially downloaded file was decoded completely.
+     * @return the decoding information; {@code null} if nothing has been decoded yet or the last decoding failed
+     * @see #setAllowTruncated(boolean)
+     */
+    public DecodeInfo getDecodeInfo() {
+        return decodeInfo;
+    }
+
+    /**
+     * Open a decoding session on the image. The session keeps the source open and its main header parsed, so that
+     * several regions or resolutions of the same image can be decoded one after another without starting from
+     * scratch each time, e.g. when displaying a large image in a zoomable view.<br><br>
+     *
+     * The session uses the quality layers, threads, pre-multiplication, preferred config, tone mapping, cancellation
+     * signal, deadline and progress listener settings of this decoder. The region and
+     * the number of skipped resolutions are specified for each decoding. A stream source is read into memory first,
+     * because the session needs random access to the data.<br><br>
+     *
+     * The session must be closed when it's no longer needed.
+     * @return a new decoding session; {@code null} in case of an error
+     */
+    public JP2DecoderSession openSession() {
+        long session = openNativeSession(false);
+        if (session == 0) return null;
+        return new JP2DecoderSession(session, layersToDecode, premultiplication, preferredConfig, toneMapping, cancellationSignal, deadline, progressListener,
+                bitmapPool);
+    }
+
+    /**
+     * Decode the image tile by tile. Each tile is passed to the listener as soon as it's decoded, then its memory is
+     * released before the next tile is decoded. The memory needed is thus bounded by the size of one tile instead of
+     * the whole image, which allows processing images too large to be decoded at once.<br><br>
+     *
+     * The skipped resolutions, quality layers, threads, pre-multiplication, preferred config and tone mapping settings
+     * apply to each tile. If a region
+     * is set, only the tiles intersecting the region are decoded, each of them whole. A stream source is read
+     * sequentially, without buffering. Images with a color palette are not supported.
+     * @param listener the listener receiving the decoded tiles
+     * @return {@code true} if all the tiles have been decoded; {@code false} in case of an error or if the listener
+     * stopped the decoding
+     * @see TileListener
+     */
+    public boolean decodeTiles(@NonNull final TileListener listener) {
+        if (listener == null) throw new IllegalArgumentException("listener must not be null!");
+        long session = openNativeSession(true);
+        if (session == 0) return false;
+        JP2DecoderSession tileSession = new JP2DecoderSession(session, layersToDecode, premultiplication, preferredConfig, toneMapping, cancellationSignal, deadline, progressListener,
+                bitmapPool);
+        try {
+            return tileSession.decodeTiles(regionX0, regionY0, regionX1, regionY1, skipResolutions, listener);
+        } finally {
+            tileSession.close();
+        }
+    }
+
+    /**
+     * Decode the image progressively, e.g. to show something immediately and refine it. The image is decoded in
+     * several passes, each of them passed to the listener. If the image has more than one quality layer, each pass
+     * adds a layer; otherwise each pass adds a resolution. See {@link #decodeProgressive(Progression, ProgressiveListener)}.
+     * @param listener the listener receiving the image after each pass
+     * @return {@code true} if all the passes have been decoded; {@code false} in case of an error or if the listener
+     * stopped the decoding
+     */
+    public boolean decodeProgressive(@NonNull final ProgressiveListener listener) {
+        return decodeProgressiveInternal(null, listener);
+    }
+
+    /**
+     * Decode the image progressively, adding quality layers or resolutions in each pass. The last pass gives the
+     * same image as {@link #decode()}.<br><br>
+     *
+     * The passes are decoded by a session (see {@link #openSession()}): the source is opened and its main header
+     * parsed only once. When quality layers are added to a region of a single-tile image, each pass decodes the
+     * compressed data already read by the previous one. The region, skipped resolutions, quality layers, threads,
+     * pre-multiplication, preferred config and tone mapping settings apply; the target size and the selected
+     * components are ignored. A stream source is read into memory first.
+     * @param progression how the image is refined in each pass
+     * @param listener the listener receiving the image after each pass
+     * @return {@code true} if all the passes have been decoded; {@code false} in case of an error or if the listener
+     * stopped the decoding
+     */
+    public boolean decodeProgressive(@NonNull final Progression progression, @NonNull final ProgressiveListener listener) {
+        if (progression == null) throw new IllegalArgumentException("progression must not be null!");
+        return decodeProgressiveInternal(progression, listener);
+    }
+
+    private boolean decodeProgressiveInternal(final Progression progression, final ProgressiveListener listener) {
+        if (listener == null) throw new IllegalArgumentException("listener must not be null!");
+        long session = openNativeSession(false);
+        if (session == 0) return false;
+        JP2DecoderSession progressiveSession = new JP2DecoderSession(session, layersToDecode, premultiplication, preferredConfig, toneMapping, cancellationSignal, deadline, progressListener,
+                bitmapPool);
+        try {
+            return progressiveSession.decodeProgressive(regionX0, regionY0, regionX1, regionY1, skipResolutions, progression, listener);
+        } finally {
+            progressiveSession.close();
+        }
+    }
+
+    /*
+        Open a native decoder session on the source. A stream is read sequentially if sequential is true, otherwise
+        it is read into memory first.
+     */
+    private long openNativeSession(final boolean sequential) {
+        long session = 0;
+        int[] params = getDecodeParams();
         if (fileName != null) {
-            res = decodeJP2File(fileName, skipResolutions, layersToDecode);
+            session = JP2DecoderSession.openFile(fileName, params);
+        } else if (fileDescriptor != null) {
+            ParcelFileDescriptor pfd = dupFileDescriptor();
+            if (pfd != null) {
+                try {
+                    //the session keeps its own duplicate of the descriptor
+                    session = JP2DecoderSession.openFileDescriptor(pfd.getFd(), fdOffset, fdLength, params);
+                } finally {
+                    closeQuietly(pfd);
+                }
+            }
+        } else if (buffer != null) {
+            if (buffer.isDirect()) {
+                session = JP2DecoderSession.openDirectBuffer(buffer, buffer.position(), buffer.remaining(), params);
+            } else {
+                session = JP2DecoderSession.openByteArray(bufferArray(), bufferArrayOffset(), buffer.remaining(), params);
+            }
+        } else if (sequential && data == null && is != null) {
+            session = JP2DecoderSession.openInputStream(is, streamLength, params);
         } else {
             if (data == null && is != null) {
                 data = readInputStream(is);
@@ -152,10 +1227,10 @@ public class JP2Decoder {
             if (data == null) {
                 Log.e(TAG, "Data is null, nothing to decode");
             } else {
-                res = decodeJP2ByteArray(data, skipResolutions, layersToDecode);
+                session = JP2DecoderSession.openByteArray(data, 0, data.length, params);
             }
         }
-        return nativeToBitmap(res);
+        return session;
     }
 
     /**
@@ -166,14 +1241,39 @@ public class JP2Decoder {
         int res[] = null;
         if (fileName != null) {
             res = readJP2HeaderFile(fileName);
+        } else if (fileDescriptor != null) {
+            ParcelFileDescriptor pfd = dupFileDescriptor();
+            if (pfd != null) {
+                try {
+                    res = readJP2HeaderFileDescriptor(pfd.getFd(), fdOffset, fdLength);
+                } finally {
+                    closeQuietly(pfd);
+                }
+            }
+        } else if (buffer != null) {
+            if (buffer.isDirect()) {
+                res = readJP2HeaderDirectBuffer(buffer, buffer.position(), buffer.remaining());
+            } else {
+                res = readJP2HeaderByteArray(bufferArray(), bufferArrayOffset(), buffer.remaining());
+            }
+        } else if (data == null && is != null && is.markSupported()) {
+            //read the header, then rewind the stream for decode()
+            is.mark(Integer.MAX_VALUE);
+            res = readJP2HeaderInputStream(is, streamLength);
+            try {
+                is.reset();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         } else {
             if (data == null && is != null) {
+                //the stream cannot be rewound, keep its content for decode()
                 data = readInputStream(is);
             }
             if (data == null) {
                 Log.e(TAG, "Data is null, nothing to decode");
             } else {
-                res = readJP2HeaderByteArray(data);
+                res = readJP2HeaderByteArray(data, 0, data.length);
             }
         }
 
@@ -204,28 +1304,299 @@ public class JP2Decoder {
     }
 
     /*
-        Get the decoded data from the native code and create a Bitmap object.
+        Duplicate the file descriptor to get its numeric value for the native code.
+        The duplicate shares the file with the original, but the original can be closed independently.
      */
-    private Bitmap nativeToBitmap(int[] data) {
-        if (data == null || data.length < 3) return null;
-        int width = data[0];
-        int height = data[1];
-        int alpha = data[2];
+    private ParcelFileDescriptor dupFileDescriptor() {
+        try {
+            return ParcelFileDescriptor.dup(fileDescriptor);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-        Bitmap bmp = Bitmap.createBitmap(width, height, Config.ARGB_8888);
-        if (!premultiplication && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            bmp.setPremultiplied(false);
+    private static void closeQuietly(final ParcelFileDescriptor pfd) {
+        try {
+            pfd.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        bmp.setPixels(data, 3, width, 0, 0, width, height);
-        bmp.setHasAlpha(alpha != 0);
+    }
 
-        return bmp;
+    /*
+        Get the array holding the data of a non-direct buffer. If the backing array is not accessible,
+        the remaining bytes are copied (only once, the copy replaces the original buffer).
+     */
+    private byte[] bufferArray() {
+        if (!buffer.hasArray()) {
+            byte[] copy = new byte[buffer.remaining()];
+            buffer.duplicate().get(copy);
+            buffer = ByteBuffer.wrap(copy);
+        }
+        return buffer.array();
+    }
+
+    //offset of the buffer's remaining data in the array returned by bufferArray()
+    private int bufferArrayOffset() {
+        return buffer.arrayOffset() + buffer.position();
+    }
+
+    /*
+        Pack the decoding parameters for the native code. The order must match decode_params_t in openjpg.cpp.
+     */
+    private int[] getDecodeParams() {
+        return getDecodeParams(components);
+    }
+
+    private int[] getDecodeParams(final int[] components) {
+        return packDecodeParams(skipResolutions, layersToDecode, threads, regionX0, regionY0, regionX1, regionY1,
+                targetWidth, targetHeight, scaleMode, components, allowTruncated);
+    }
+
+    /*
+        The key identifying identical asynchronous decodings; null if the decoding must not be shared with others:
+        the source is not a file name or a byte array, or the decoding has its own bitmap, listener or cancellation,
+        or its bitmap comes from a pool (each request then owns its bitmap and may return it to the pool).
+     */
+    private JP2Scheduler.Key getAsyncKey(final int[] params) {
+        if (inBitmap != null || bitmapPool != null || progressListener != null || cancellationSignal != null || deadline > 0) {
+            return null;
+        }
+        Object source = fileName != null ? fileName : (is == null && fileDescriptor == null && buffer == null ? data : null);
+        if (source == null) return null;
+        return new JP2Scheduler.Key(source, params, premultiplication, preferredConfig, toneMapping);
+    }
+
+    /*
+        Rough upper bound of the memory used by a decoding with the given parameters (see packDecodeParams()): the
+        32-bit samples of the decoded components plus the output bitmap of the given config. Like the native code,
+        the region is clipped to the image, and a target size chooses the resolution to decode and the output size.
+     */
+    static long estimateDecodeMemory(@NonNull final Header header, @NonNull final int[] params, final Config config) {
+        long width = header.width, height = header.height;
+        if (params[5] > params[3] && params[6] > params[4]) {
+            width = Math.max(0, Math.min(params[5], header.width) - params[3]);
+            height = Math.max(0, Math.min(params[6], header.height) - params[4]);
+        }
+        int reduce = Math.min(params[0], Math.max(header.numResolutions - 1, 0));
+        long outWidth = -1, outHeight = -1;
+        int targetWidth = params[7], targetHeight = params[8];
+        if (targetWidth > 0 && targetHeight > 0) {
+            ScaleMode scaleMode = ScaleMode.values()[params[9]];
+            if (scaleMode == ScaleMode.EXACT || width > targetWidth || height > targetHeight) {
+                //the target size, or the image fitted into it
+                double scale = Math.min((double) targetWidth / width, (double) targetHeight / height);
+                outWidth = scaleMode == ScaleMode.EXACT ? targetWidth : Math.max(1, Math.round(width * scale));
+                outHeight = scaleMode == ScaleMode.EXACT ? targetHeight : Math.max(1, Math.round(height * scale));
+            } else {
+                outWidth = width;
+                outHeight = height;
+            }
+            reduce = 0;
+            while (reduce + 1 < Math.min(header.numResolutions, 31) && ceilDivPow2(width, reduce + 1) >= outWidth
+                    && ceilDivPow2(height, reduce + 1) >= outHeight) {
+                reduce++;
+            }
+            if (scaleMode == ScaleMode.REDUCE_ONLY) outWidth = -1;
+        }
+        width = ceilDivPow2(width, Math.min(reduce, 31));
+        height = ceilDivPow2(height, Math.min(reduce, 31));
+        if (outWidth < 0) {
+            outWidth = width;
+            outHeight = height;
+        }
+        int numComponents = params[10] > 0 ? params[10] : header.numComponents;
+        return width * height * numComponents * 4L + outWidth * outHeight * bytesPerPixel(config);
+    }
+
+    private static long ceilDivPow2(final long value, final int power) {
+        return (value + (1L << power) - 1) >> power;
+    }
+
+    private static int[] packDecodeParams(final int skipResolutions, final int layersToDecode, final int threads,
+                                          final int regionX0, final int regionY0, final int regionX1, final int regionY1,
+                                          final int targetWidth, final int targetHeight, final ScaleMode scaleMode,
+                                          final int[] components, final boolean allowTruncated) {
+        int[] params = new int[] {skipResolutions, layersToDecode, threads, regionX0, regionY0, regionX1, regionY1,
+                targetWidth, targetHeight, scaleMode.ordinal(), 0, 0, 0, 0, 0, allowTruncated ? 1 : 0};
+        if (components != null) {
+            params[10] = components.length;
+            System.arraycopy(components, 0, params, 11, components.length);
+        }
+        return params;
+    }
+
+    /*
+        Decode the image in the native code, then write the decoded pixels into a Bitmap object.
+     */
+    private Bitmap decodeInternal(final Bitmap reuse, final boolean strict) {
+        return toBitmap(decodeNative(getDecodeParams()), reuse, strict, premultiplication, preferredConfig, toneMapping, bitmapPool);
+    }
+
+    /*
+        Decode the image in the native code, return the handle of the decoded image (0 in case of an error).
+     */
+    private long decodeNative(final int[] params) {
+        Cancellation cancellation = Cancellation.create(cancellationSignal, deadline);
+        try {
+            return decodeNative(params, Cancellation.handle(cancellation), progressListener);
+        } finally {
+            if (cancellation != null) cancellation.close();
+        }
+    }
+
+    private long decodeNative(final int[] params, final long cancel, final ProgressListener progressListener) {
+        long image = 0;
+        if (fileName != null) {
+            image = decodeJP2File(fileName, params, cancel, progressListener);
+        } else if (fileDescriptor != null) {
+            ParcelFileDescriptor pfd = dupFileDescriptor();
+            if (pfd != null) {
+                try {
+                    image = decodeJP2FileDescriptor(pfd.getFd(), fdOffset, fdLength, params, cancel, progressListener);
+                } finally {
+                    closeQuietly(pfd);
+                }
+            }
+        } else if (buffer != null) {
+            if (buffer.isDirect()) {
+                image = decodeJP2DirectBuffer(buffer, buffer.position(), buffer.remaining(), params, cancel, progressListener);
+            } else {
+                image = decodeJP2ByteArray(bufferArray(), bufferArrayOffset(), buffer.remaining(), params, cancel, progressListener);
+            }
+        } else if (data == null && is != null) {
+            image = decodeJP2InputStream(is, streamLength, params, cancel, progressListener);
+        } else {
+            if (data == null) {
+                Log.e(TAG, "Data is null, nothing to decode");
+            } else {
+                image = decodeJP2ByteArray(data, 0, data.length, params, cancel, progressListener);
+            }
+        }
+        decodeInfo = image != 0 ? nativeToDecodeInfo(getDecodeInfo(image)) : null;
+        return image;
+    }
+
+    /*
+        Write a decoded image into a Bitmap object and free the image. If reuse is not null, it is used as the output
+        bitmap if possible. If strict is true and it's not possible, IllegalArgumentException is thrown; the config
+        of reuse is then used regardless of the preferred config. Otherwise the bitmap is taken from the pool if it
+        is not null, or allocated.
+     */
+    static Bitmap toBitmap(final long image, final Bitmap reuse, final boolean strict, final boolean premultiplication, final Config preferredConfig,
+                           final ToneMapping toneMapping, final BitmapPool pool) {
+        return toBitmap(image, reuse, strict, premultiplication, preferredConfig, false, toneMapping, pool);
+    }
+
+    /*
+        Same as above; if exactConfig is true, the config is used even if it cannot represent the image.
+     */
+    private static Bitmap toBitmap(final long image, final Bitmap reuse, final boolean strict, final boolean premultiplication, final Config preferredConfig,
+                                   final boolean exactConfig, final ToneMapping toneMapping, final BitmapPool pool) {
+        if (image == 0) return null;
+
+        try {
+            int[] info = getImageInfo(image);
+            int width = info[0];
+            int height = info[1];
+            boolean hasAlpha = info[2] != 0;
+            boolean isGray = info[3] != 0;
+
+            Config config;
+            if (strict) {
+                config = reuse.getConfig();
+            } else if (exactConfig || isHalfFloatConfig(preferredConfig) || (preferredConfig == Config.RGB_565 && !hasAlpha)
+                    || (preferredConfig == Config.ALPHA_8 && isGray && !hasAlpha)) {
+                config = preferredConfig;
+            } else {
+                config = Config.ARGB_8888;
+            }
+
+            Bitmap bmp;
+            if (reuse != null && prepareBitmap(reuse, width, height, config)) {
+                bmp = reuse;
+            } else if (strict) {
+                throw new IllegalArgumentException(String.format("target bitmap cannot hold the decoded image (%d x %d)", width, height));
+            } else {
+                bmp = obtainBitmap(pool, width, height, config);
+            }
+            if (config != Config.ARGB_8888 && !isHalfFloatConfig(config)) {
+                //no alpha channel, there are no colors to pre-multiply
+                if (writeToBitmap(image, bmp, false, toneMapping)) return bmp;
+            } else {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    bmp.setPremultiplied(premultiplication);
+                }
+                if (writeToBitmap(image, bmp, hasAlpha && premultiplication, toneMapping)) {
+                    bmp.setHasAlpha(hasAlpha);
+                    return bmp;
+                }
+            }
+            //the bitmap is not returned to the caller, let the pool reuse it
+            if (pool != null && bmp != reuse) pool.put(bmp);
+            return null;
+        } finally {
+            freeImage(image);
+        }
+    }
+
+    /*
+        A bitmap for a decoded image: a suitable bitmap from the pool, or a new allocation.
+     */
+    private static Bitmap obtainBitmap(final BitmapPool pool, final int width, final int height, final Config config) {
+        if (pool != null) {
+            Bitmap bmp = pool.get(width, height, config);
+            if (bmp != null && prepareBitmap(bmp, width, height, config)) return bmp;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    private static boolean writeToBitmap(final long image, final Bitmap bmp, final boolean premultiply, final ToneMapping toneMapping) {
+        if (toneMapping == null) return writeToBitmap(image, bmp, premultiply, 0, 0, 0, null);
+        return writeToBitmap(image, bmp, premultiply, toneMapping.type, toneMapping.center, toneMapping.width, toneMapping.table);
+    }
+
+    //the bitmap configs the native code can write
+    private static boolean isSupportedConfig(final Config config) {
+        return config == Config.ARGB_8888 || config == Config.RGB_565 || config == Config.ALPHA_8 || isHalfFloatConfig(config);
+    }
+
+    //RGBA_F16 exists since API 26
+    private static boolean isHalfFloatConfig(final Config config) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && config == Config.RGBA_F16;
+    }
+
+    //the size of a pixel of the bitmap configs the native code can write
+    static int bytesPerPixel(final Config config) {
+        return config == Config.ALPHA_8 ? 1 : config == Config.RGB_565 ? 2 : isHalfFloatConfig(config) ? 8 : 4;
+    }
+
+    //validate the region coordinates, all zeros means the whole image
+    static void checkRegion(final int x0, final int y0, final int x1, final int y1) {
+        if (x0 != 0 || y0 != 0 || x1 != 0 || y1 != 0) {
+            if (x0 < 0 || y0 < 0) throw new IllegalArgumentException("region coordinates cannot be negative numbers!");
+            if (x1 <= x0 || y1 <= y0) throw new IllegalArgumentException("region must not be empty!");
+        }
+    }
+
+    /*
+        Check if the bitmap can be used as the output of the decoder, reconfigure it if necessary.
+     */
+    private static boolean prepareBitmap(@NonNull final Bitmap bmp, final int width, final int height, final Config config) {
+        if (bmp.isRecycled() || !bmp.isMutable() || bmp.getConfig() != config) return false;
+        if (bmp.getWidth() == width && bmp.getHeight() == height) return true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && bmp.getAllocationByteCount() >= (long)width * height * bytesPerPixel(config)) {
+            bmp.reconfigure(width, height, config);
+            return true;
+        }
+        return false;
     }
 
     /*
         Get the header data from the native code
      */
-    private static Header nativeToHeader(int[] data) {
+    static Header nativeToHeader(int[] data) {
         if (data == null || data.length < 5) return null;
         Header ret = new Header();
         ret.width = data[0];
@@ -233,6 +1604,50 @@ public class JP2Decoder {
         ret.hasAlpha = data[2] != 0;
         ret.numResolutions = data[3];
         ret.numQualityLayers = data[4];
+        if (data.length < HEADER_PRECINCTS_INDEX + 2 * MAX_RESOLUTIONS) return ret;
+        ret.numComponents = data[5];
+        ret.tileX0 = data[6];
+        ret.tileY0 = data[7];
+        ret.tileWidth = data[8];
+        ret.tileHeight = data[9];
+        ret.numTilesX = data[10];
+        ret.numTilesY = data[11];
+        ret.codeBlockWidth = data[12];
+        ret.codeBlockHeight = data[13];
+        ProgressionOrder[] orders = ProgressionOrder.values();
+        ret.progressionOrder = data[14] >= 0 && data[14] < orders.length ? orders[data[14]] : null;
+        ret.reversible = data[15] != 0;
+        ret.multiComponentTransform = data[16] != 0;
+        ret.hasTLM = data[17] != 0;
+        ret.hasPLT = data[18] != 0;
+        ret.components = new Component[Math.min(ret.numComponents, MAX_HEADER_COMPONENTS)];
+        for (int i = 0; i < ret.components.length; i++) {
+            Component component = new Component();
+            component.precision = data[HEADER_COMPONENTS_INDEX + 4 * i];
+            component.dx = data[HEADER_COMPONENTS_INDEX + 4 * i + 1];
+            component.dy = data[HEADER_COMPONENTS_INDEX + 4 * i + 2];
+            component.signed = data[HEADER_COMPONENTS_INDEX + 4 * i + 3] != 0;
+            ret.components[i] = component;
+        }
+        int numPrecincts = Math.max(0, Math.min(ret.numResolutions, MAX_RESOLUTIONS));
+        ret.precinctWidths = new int[numPrecincts];
+        ret.precinctHeights = new int[numPrecincts];
+        for (int i = 0; i < numPrecincts; i++) {
+            ret.precinctWidths[i] = data[HEADER_PRECINCTS_INDEX + 2 * i];
+            ret.precinctHeights[i] = data[HEADER_PRECINCTS_INDEX + 2 * i + 1];
+        }
+        return ret;
+    }
+
+    /*
+        Get the decoding information from the native code
+     */
+    private static DecodeInfo nativeToDecodeInfo(long[] data) {
+        if (data == null || data.length < 3) return null;
+        DecodeInfo ret = new DecodeInfo();
+        ret.bytesUsed = data[0];
+        ret.layersUsed = (int)data[1];
+        ret.truncated = data[2] != 0;
         return ret;
     }
 
@@ -245,8 +1660,21 @@ public class JP2Decoder {
         return true;
     }
 
-    private static native int[] decodeJP2File(String filename, int reduce, int layers);
-    private static native int[] decodeJP2ByteArray(byte[] data, int reduce, int layers);
+    private static native boolean decodeJP2Batch(Object[] sources, int[] params, int threads, Object callback);
+    private static native long decodeJP2File(String filename, int[] params, long cancel, ProgressListener progressListener);
+    private static native long decodeJP2ByteArray(byte[] data, int offset, int length, int[] params, long cancel, ProgressListener progressListener);
+    private static native long decodeJP2DirectBuffer(ByteBuffer buffer, int offset, int length, int[] params, long cancel, ProgressListener progressListener);
+    private static native long decodeJP2FileDescriptor(int fd, long offset, long length, int[] params, long cancel, ProgressListener progressListener);
+    private static native long decodeJP2InputStream(InputStream is, long length, int[] params, long cancel, ProgressListener progressListener);
+    private static native int[] getImageInfo(long image);
+    private static native long[] getDecodeInfo(long image);
+    private static native boolean writeToBitmap(long image, Bitmap bmp, boolean premultiply, int toneMapping, float center, float width, byte[] table);
+    private static native int[] getHighBitDepthInfo(long image);
+    private static native boolean writeToShortBuffer(long image, ShortBuffer buffer);
+    private static native void freeImage(long image);
     private static native int[] readJP2HeaderFile(String filename);
-    private static native int[] readJP2HeaderByteArray(byte[] data);
+    private static native int[] readJP2HeaderByteArray(byte[] data, int offset, int length);
+    private static native int[] readJP2HeaderDirectBuffer(ByteBuffer buffer, int offset, int length);
+    private static native int[] readJP2HeaderFileDescriptor(int fd, long offset, long length);
+    private static native int[] readJP2HeaderInputStream(InputStream is, long length);
 }
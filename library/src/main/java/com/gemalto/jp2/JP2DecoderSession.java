@@ -0,0 +1,195 @@
+package com.gemalto.jp2;
+
+import android.graphics.Bitmap;
+import android.os.CancellationSignal;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A decoding session on a single JPEG-2000 image, opened by {@link JP2Decoder#openSession()}. The source and the
+ * parsed main header are kept between decodings, so decoding another region or resolution of the image doesn't
+ * start from scratch.<br><br>
+ *
+ * For single-tile J2K and JP2 images, the session decodes with the same codec instance every time. For tiled images
+ * and JP2 files with a palette, channel definitions or an ICC profile, OpenJPEG cannot decode twice with one codec;
+ * the main header is then read again from the already open source.<br><br>
+ *
+ * The methods of a session are synchronized, decodings with one session run one after another. Use one session
+ * per thread to decode in parallel. Close the session to release the native resources.
+ */
+public class JP2DecoderSession implements Closeable {
+    private long session;
+    private final int layersToDecode;
+    private final boolean premultiplication;
+    private final Bitmap.Config preferredConfig;
+    private final JP2Decoder.ToneMapping toneMapping;
+    private final CancellationSignal cancellationSignal;
+    private final long deadline;
+    private final ProgressListener progressListener;
+    private final BitmapPool bitmapPool;
+    private JP2Decoder.Header header = null;
+
+    JP2DecoderSession(final long session, final int layersToDecode, final boolean premultiplication, final Bitmap.Config preferredConfig,
+                      final JP2Decoder.ToneMapping toneMapping, final CancellationSignal cancellationSignal, final long deadline,
+                      final ProgressListener progressListener, final BitmapPool bitmapPool) {
+        this.session = session;
+        this.layersToDecode = layersToDecode;
+        this.premultiplication = premultiplication;
+        this.preferredConfig = preferredConfig;
+        this.toneMapping = toneMapping;
+        this.cancellationSignal = cancellationSignal;
+        this.deadline = deadline;
+        this.progressListener = progressListener;
+        this.bitmapPool = bitmapPool;
+    }
+
+    /**
+     * @return the header information of the image; {@code null} in case of an error
+     * @throws IllegalStateException if the session has been closed
+     */
+    public synchronized JP2Decoder.Header getHeader() {
+        checkOpen();
+        if (header == null) {
+            header = JP2Decoder.nativeToHeader(getHeader(session));
+        }
+        return header;
+    }
+
+    /**
+     * Decode a rectangular region of the image. The coordinates are specified in the full-resolution image, the size
+     * of the output bitmap is the size of the region reduced by the skipped resolutions. A region exceeding the image
+     * dimensions is clipped to the image. Set all coordinates to 0 to decode the whole image.
+     * @param x0 left edge of the region (inclusive)
+     * @param y0 top edge of the region (inclusive)
+     * @param x1 right edge of the region (exclusive)
+     * @param y1 bottom edge of the region (exclusive)
+     * @param skipResolutions the number of highest resolutions to skip
+     * @return the decoded region; {@code null} in case of an error
+     * @throws IllegalStateException if the session has been closed
+     * @see JP2Decoder#setRegion(int, int, int, int)
+     * @see JP2Decoder#setSkipResolutions(int)
+     */
+    public Bitmap decodeRegion(final int x0, final int y0, final int x1, final int y1, final int skipResolutions) {
+        return decodeRegion(x0, y0, x1, y1, skipResolutions, layersToDecode);
+    }
+
+    /**
+     * Decode the whole image at a reduced resolution.
+     * @param skipResolutions the number of highest resolutions to skip
+     * @return the decoded image; {@code null} in case of an error
+     * @throws IllegalStateException if the session has been closed
+     * @see JP2Decoder#setSkipResolutions(int)
+     */
+    public Bitmap decodeResolution(final int skipResolutions) {
+        return decodeRegion(0, 0, 0, 0, skipResolutions);
+    }
+
+    /**
+     * Close the session and release its native resources. Closing a closed session has no effect.
+     */
+    @Override
+    public synchronized void close() {
+        if (session != 0) {
+            close(session);
+            session = 0;
+        }
+    }
+
+    /*
+        Decode a region with the given number of quality layers (0 = all).
+     */
+    private synchronized Bitmap decodeRegion(final int x0, final int y0, final int x1, final int y1, final int skipResolutions, final int layers) {
+        JP2Decoder.checkRegion(x0, y0, x1, y1);
+        if (skipResolutions < 0) throw new IllegalArgumentException("skipResolutions cannot be a negative number!");
+        checkOpen();
+        long image;
+        Cancellation cancellation = Cancellation.create(cancellationSignal, deadline);
+        try {
+            image = decode(session, skipResolutions, layers, x0, y0, x1, y1, Cancellation.handle(cancellation), progressListener);
+        } finally {
+            if (cancellation != null) cancellation.close();
+        }
+        return JP2Decoder.toBitmap(image, null, false, premultiplication, preferredConfig, toneMapping, bitmapPool);
+    }
+
+    /*
+        Decode a region in several passes, adding quality layers or resolutions in each pass, and pass the image to
+        the listener after each of them. If progression is null, quality layers are added if the image has more than
+        one, resolutions otherwise.
+     */
+    synchronized boolean decodeProgressive(final int x0, final int y0, final int x1, final int y1, final int skipResolutions,
+                                           JP2Decoder.Progression progression, final JP2Decoder.ProgressiveListener listener) {
+        JP2Decoder.Header header = getHeader();
+        if (header == null) return false;
+        int maxLayers = layersToDecode > 0 ? Math.min(layersToDecode, header.numQualityLayers) : header.numQualityLayers;
+        int minSkip = Math.min(skipResolutions, header.numResolutions - 1);
+        if (progression == null) {
+            progression = maxLayers > 1 ? JP2Decoder.Progression.QUALITY_LAYERS : JP2Decoder.Progression.RESOLUTIONS;
+        }
+        int numPasses = progression == JP2Decoder.Progression.QUALITY_LAYERS ? maxLayers : header.numResolutions - minSkip;
+        for (int pass = 1; pass <= numPasses; pass++) {
+            Bitmap bmp;
+            if (progression == JP2Decoder.Progression.QUALITY_LAYERS) {
+                bmp = decodeRegion(x0, y0, x1, y1, minSkip, pass);
+            } else {
+                bmp = decodeRegion(x0, y0, x1, y1, header.numResolutions - pass, layersToDecode);
+            }
+            if (bmp == null || !listener.onPass(pass, numPasses, bmp)) return false;
+        }
+        return true;
+    }
+
+    /*
+        Decode the tiles intersecting a region one by one, pass them to the listener. The bitmap is reused for all tiles.
+     */
+    synchronized boolean decodeTiles(final int x0, final int y0, final int x1, final int y1, final int skipResolutions, final JP2Decoder.TileListener listener) {
+        checkOpen();
+        Cancellation cancellation = Cancellation.create(cancellationSignal, deadline);
+        try {
+            return decodeTiles(session, skipResolutions, x0, y0, x1, y1, new TileCallback(listener, premultiplication, preferredConfig, toneMapping),
+                    Cancellation.handle(cancellation), progressListener);
+        } finally {
+            if (cancellation != null) cancellation.close();
+        }
+    }
+
+    //called by the native code for each decoded tile
+    private static class TileCallback {
+        private final JP2Decoder.TileListener listener;
+        private final boolean premultiplication;
+        private final Bitmap.Config preferredConfig;
+        private final JP2Decoder.ToneMapping toneMapping;
+        private Bitmap bitmap = null;
+
+        TileCallback(final JP2Decoder.TileListener listener, final boolean premultiplication, final Bitmap.Config preferredConfig,
+                     final JP2Decoder.ToneMapping toneMapping) {
+            this.listener = listener;
+            this.premultiplication = premultiplication;
+            this.preferredConfig = preferredConfig;
+            this.toneMapping = toneMapping;
+        }
+
+        boolean onTile(final int tileIndex, final int x, final int y, final long image) {
+            Bitmap tile = JP2Decoder.toBitmap(image, bitmap, false, premultiplication, preferredConfig, toneMapping, null);
+            if (tile == null) return false;
+            bitmap = tile;
+            return listener.onTile(tileIndex, x, y, tile);
+        }
+    }
+
+    private void checkOpen() {
+        if (session == 0) throw new IllegalStateException("the session has been closed!");
+    }
+
+    static native long openFile(String filename, int[] params);
+    static native long openByteArray(byte[] data, int offset, int length, int[] params);
+    static native long openDirectBuffer(ByteBuffer buffer, int offset, int length, int[] params);
+    static native long openFileDescriptor(int fd, long offset, long length, int[] params);
+    static native long openInputStream(InputStream is, long length, int[] params);
+    private static native int[] getHeader(long session);
+    private static native long decode(long session, int reduce, int layers, int x0, int y0, int x1, int y1, long cancel, ProgressListener progressListener);
+    private static native boolean decodeTiles(long session, int reduce, int x0, int y0, int x1, int y1, Object callback, long cancel, ProgressListener progressListener);
+    private static native void close(long session);
+}
@@ -1,16 +1,23 @@
 package com.gemalto.jp2;
 
 import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * JPEG-2000 bitmap encoder. Output properties:
@@ -37,10 +44,18 @@ public class JP2Encoder {
     @IntDef({FORMAT_J2K, FORMAT_JP2})
     public @interface OutputFormat {}
 
+    /** Special value for {@link #setThreads(int)}: use as many encoding threads as there are CPU cores. */
+    public static final int ALL_CORES = -1;
+
     private int numResolutions = DEFAULT_NUM_RESOLUTIONS;
     private float[] compressionRatios = null;
     private float[] qualityValues = null;
     private int outputFormat = FORMAT_JP2;
+    private int threads = 1;
+    private CancellationSignal cancellationSignal = null;
+    private long deadline = 0;
+    private ProgressListener progressListener = null;
+    private JP2Scheduler scheduler = null;
 
     static {
         System.loadLibrary("openjpeg");
@@ -190,6 +205,80 @@ public class JP2Encoder {
         return this;
     }
 
+    /**
+     * Set the number of threads used to encode the image. Code-blocks are then encoded in parallel, which
+     * significantly speeds up encoding of large images on multi-core devices. The output does not depend
+     * on the number of threads. Use {@link #ALL_CORES} to use one thread per available CPU core.<br><br>
+     *
+     * Default value: 1 (the image is encoded in the calling thread only)
+     * @param threads number of encoding threads, or {@link #ALL_CORES}
+     * @return this {@code JP2Encoder} instance
+     */
+    public JP2Encoder setThreads(int threads) {
+        if (threads < 1 && threads != ALL_CORES) throw new IllegalArgumentException("threads must be a positive number or ALL_CORES!");
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Set a signal to cancel the encoding from another thread. The native encoder checks the signal between tiles and
+     * between batches of code-blocks; a cancelled encoding stops, frees its memory and returns {@code null}
+     * ({@code false} or 0 for the other {@code encode} methods). A partially written output file is deleted.
+     * A signal cancelled before the encoding starts cancels it immediately.<br><br>
+     *
+     * Default value: {@code null} (the encoding cannot be cancelled)
+     * @param cancellationSignal the signal; {@code null} if the encoding cannot be cancelled
+     * @return this {@code JP2Encoder} instance
+     * @see #setDeadline(long)
+     */
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    public JP2Encoder setCancellationSignal(CancellationSignal cancellationSignal) {
+        this.cancellationSignal = cancellationSignal;
+        return this;
+    }
+
+    /**
+     * Set a time after which the encoding is cancelled, as a {@link SystemClock#uptimeMillis()} value. The deadline
+     * is checked like a cancellation signal, see {@link #setCancellationSignal(CancellationSignal)}.<br><br>
+     *
+     * Default value: 0 (no deadline)
+     * @param uptimeMillis the deadline in the {@link SystemClock#uptimeMillis()} time base; 0 for no deadline
+     * @return this {@code JP2Encoder} instance
+     */
+    public JP2Encoder setDeadline(long uptimeMillis) {
+        if (uptimeMillis < 0) throw new IllegalArgumentException("deadline cannot be a negative number!");
+        this.deadline = uptimeMillis;
+        return this;
+    }
+
+    /**
+     * Set a listener notified of the progress of the encoding, e.g. to show a progress bar while a large image is
+     * encoded. The progress is reported in 100 steps: the wavelet transform, the code-blocks as they are encoded
+     * (the bulk of the work), the rate allocation and the written image. The listener is called by the native encoder
+     * in the encoding thread, see {@link ProgressListener}. Use {@link #setCancellationSignal(CancellationSignal)}
+     * or {@link #setDeadline(long)} to stop a long encoding.<br><br>
+     *
+     * Default value: {@code null} (no progress is reported)
+     * @param progressListener the listener; {@code null} to report no progress
+     * @return this {@code JP2Encoder} instance
+     */
+    public JP2Encoder setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * Set the scheduler running the encodings started by {@link #encodeAsync(JP2Scheduler.Priority)}.<br><br>
+     *
+     * Default value: {@code null} ({@link JP2Scheduler#getDefault()} is used)
+     * @param scheduler the scheduler; {@code null} for the default one
+     * @return this {@code JP2Encoder} instance
+     */
+    public JP2Encoder setScheduler(JP2Scheduler scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
     /**
      * Encode to JPEG-2000, return the result as a byte array.
      * @return the JPEG-2000 encoded data
@@ -198,6 +287,54 @@ public class JP2Encoder {
         return encodeInternal(bmp);
     }
 
+    /**
+     * Encode to JPEG-2000 in the background, see {@link #encodeAsync(JP2Scheduler.Priority, JP2Scheduler.Callback)}.
+     * @param priority the priority of the request
+     * @return the handle of the request; its result is the JPEG-2000 encoded data, {@code null} in case of an error
+     */
+    public Future<byte[]> encodeAsync(@NonNull JP2Scheduler.Priority priority) {
+        return encodeAsync(priority, null);
+    }
+
+    /**
+     * Encode to JPEG-2000 in the background, as {@link #encode()} would. The encoding is run by the scheduler set by
+     * {@link #setScheduler(JP2Scheduler)}, see {@link JP2Decoder#decodeAsync(JP2Scheduler.Priority, JP2Scheduler.Callback)}.
+     * Identical requests (the same bitmap, unchanged, with the same settings) are encoded only once and receive the
+     * same array. The request uses the encoder's settings at the time of this call; the bitmap must not be changed
+     * until the request is done.
+     * @param priority the priority of the request
+     * @param callback receives the encoded data in the background thread; may be {@code null}
+     * @return the handle of the request; its result is the JPEG-2000 encoded data, {@code null} in case of an error
+     */
+    public Future<byte[]> encodeAsync(@NonNull JP2Scheduler.Priority priority, JP2Scheduler.Callback<byte[]> callback) {
+        final Bitmap bmp = this.bmp;
+        final int outputFormat = this.outputFormat;
+        final int numResolutions = this.numResolutions;
+        final float[] compressionRatios = this.compressionRatios != null ? this.compressionRatios.clone() : null;
+        final float[] qualityValues = this.qualityValues != null ? this.qualityValues.clone() : null;
+        final int threads = this.threads;
+        final ProgressListener progressListener = this.progressListener;
+        JP2Scheduler.Key key = null;
+        if (progressListener == null && cancellationSignal == null && deadline <= 0) {
+            key = new JP2Scheduler.Key(bmp, new int[] {bmp.getGenerationId(), outputFormat, numResolutions},
+                    Arrays.toString(compressionRatios), Arrays.toString(qualityValues));
+        }
+        JP2Scheduler.Job<byte[]> job = new JP2Scheduler.Job<byte[]>(key, cancellationSignal, deadline) {
+            @Override
+            long estimateMemory() {
+                //the copied pixels, the 32-bit samples of the image components and the output
+                return (long) bmp.getWidth() * bmp.getHeight() * (bmp.hasAlpha() ? 24 : 20);
+            }
+
+            @Override
+            byte[] run(long cancel) {
+                return encodeInternal(bmp, outputFormat, numResolutions, compressionRatios, qualityValues, threads, cancel,
+                        progressListener);
+            }
+        };
+        return (scheduler != null ? scheduler : JP2Scheduler.getDefault()).submit(job, priority, callback);
+    }
+
     /**
      * Encode to JPEG-2000, store the result into a file.
      * @param fileName the name of the output file
@@ -221,12 +358,24 @@ public class JP2Encoder {
     }
 
     private byte[] encodeInternal(Bitmap bmp) {
+        Cancellation cancellation = Cancellation.create(cancellationSignal, deadline);
+        try {
+            return encodeInternal(bmp, outputFormat, numResolutions, compressionRatios, qualityValues, threads,
+                    Cancellation.handle(cancellation), progressListener);
+        } finally {
+            if (cancellation != null) cancellation.close();
+        }
+    }
+
+    private static byte[] encodeInternal(Bitmap bmp, int outputFormat, int numResolutions, float[] compressionRatios,
+                                         float[] qualityValues, int threads, long cancel, ProgressListener progressListener) {
         if (bmp == null) return null;
         int [] pixels = new int [bmp.getWidth() * bmp.getHeight()];
         bmp.getPixels(pixels, 0, bmp.getWidth(), 0, 0, bmp.getWidth(), bmp.getHeight());
         /* debug */ long start = 0;
         /* debug */ if (BuildConfig.DEBUG) start = System.currentTimeMillis();
-        byte[] ret = encodeJP2ByteArray(pixels, bmp.hasAlpha(), bmp.getWidth(), bmp.getHeight(), outputFormat, numResolutions, compressionRatios, qualityValues);
+        byte[] ret = encodeJP2ByteArray(pixels, bmp.hasAlpha(), bmp.getWidth(), bmp.getHeight(), outputFormat, numResolutions, compressionRatios, qualityValues, threads,
+                cancel, progressListener);
         /* debug */ if (BuildConfig.DEBUG) Log.d(TAG, "converting to JP2: " + (System.currentTimeMillis() - start) + " ms");
         return ret;
     }
@@ -237,7 +386,14 @@ public class JP2Encoder {
         bmp.getPixels(pixels, 0, bmp.getWidth(), 0, 0, bmp.getWidth(), bmp.getHeight());
         /* debug */ long start = 0;
         /* debug */ if (BuildConfig.DEBUG) start = System.currentTimeMillis();
-        int ret = encodeJP2File(fileName, pixels, bmp.hasAlpha(), bmp.getWidth(), bmp.getHeight(), outputFormat, numResolutions, compressionRatios, qualityValues);
+        int ret;
+        Cancellation cancellation = Cancellation.create(cancellationSignal, deadline);
+        try {
+            ret = encodeJP2File(fileName, pixels, bmp.hasAlpha(), bmp.getWidth(), bmp.getHeight(), outputFormat, numResolutions, compressionRatios, qualityValues, threads,
+                    Cancellation.handle(cancellation), progressListener);
+        } finally {
+            if (cancellation != null) cancellation.close();
+        }
         /* debug */ if (BuildConfig.DEBUG) Log.d(TAG, "converting to JP2: " + (System.currentTimeMillis() - start) + " ms");
         return ret == EXIT_SUCCESS;
     }
@@ -275,6 +431,6 @@ public class JP2Encoder {
         return ret;
     }
 
-    private static native int encodeJP2File(String filename, int[] pixels, boolean hasAlpha, int width, int height, int fileFormat, int numResolutions, float[] compressionRatios, float[] qualityValues);
-    private static native byte[] encodeJP2ByteArray(int[] pixels, boolean hasAlpha, int width, int height, int fileFormat, int numResolutions, float[] compressionRatios, float[] qualityValues);
+    private static native int encodeJP2File(String filename, int[] pixels, boolean hasAlpha, int width, int height, int fileFormat, int numResolutions, float[] compressionRatios, float[] qualityValues, int threads, long cancel, ProgressListener progressListener);
+    private static native byte[] encodeJP2ByteArray(int[] pixels, boolean hasAlpha, int width, int height, int fileFormat, int numResolutions, float[] compressionRatios, float[] qualityValues, int threads, long cancel, ProgressListener progressListener);
 }
@@ -0,0 +1,405 @@
+package com.gemalto.jp2;
+
+import android.os.CancellationSignal;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the decodings and encodings started by {@link JP2Decoder#decodeAsync(Priority, Callback)} and
+ * {@link JP2Encoder#encodeAsync(Priority, Callback)} in background threads.<br><br>
+ *
+ * The number of threads is bounded, by default to the number of CPU cores, so that several screens requesting images
+ * at the same time don't over-subscribe the cores. Queued requests are started by priority, then in the order in
+ * which they were made. Before an image is decoded, its memory use is estimated from its header; an operation waits
+ * while the operations already running would exceed the memory budget together with it.<br><br>
+ *
+ * Identical requests made while the first one is still queued or running are de-duplicated: the image is decoded
+ * once and all the requests receive the same {@code Bitmap}. Requests are identical if they decode the same file
+ * name or the same byte array with the same settings; decodings reusing a bitmap, taking it from a {@link BitmapPool},
+ * reporting progress or having their own cancellation signal or deadline are never de-duplicated.
+ */
+public final class JP2Scheduler {
+    private static final String TAG = "JP2Scheduler";
+    private static final long KEEP_ALIVE_MS = 30000;
+
+    private static JP2Scheduler defaultScheduler = null;
+
+    private final int maxThreads;
+    private final long memoryBudget;
+    private final PriorityQueue<Task<?>> queue = new PriorityQueue<>();
+    private final Map<Key, Task<?>> inFlight = new HashMap<>();
+    private int threads = 0;
+    private int idleThreads = 0;
+    private long memoryUsed = 0;
+    private long sequence = 0;
+
+    /**
+     * The priority of an asynchronous request.
+     */
+    public enum Priority {
+        /**
+         * The result is needed right now, e.g. an image on the screen; started before any {@link #PREFETCH} request.
+         */
+        VISIBLE,
+        /**
+         * The result will probably be needed soon, e.g. an image just off the screen.
+         */
+        PREFETCH,
+    }
+
+    /**
+     * Receives the result of an asynchronous request.
+     * @param <T> the type of the result
+     */
+    public interface Callback<T> {
+        /**
+         * Called in the background thread once the request is done; post the result to the UI thread if needed.
+         * Not called if the request has been cancelled.
+         * @param result the decoded image or the encoded data; {@code null} in case of an error
+         */
+        void onResult(T result);
+    }
+
+    /**
+     * @param maxThreads the maximum number of operations running at the same time
+     * @param memoryBudget the memory, in bytes, which the running operations may use together; a single operation
+     *                     exceeding the budget is run alone
+     */
+    public JP2Scheduler(final int maxThreads, final long memoryBudget) {
+        if (maxThreads < 1) throw new IllegalArgumentException("maxThreads must be a positive number!");
+        if (memoryBudget < 1) throw new IllegalArgumentException("memoryBudget must be a positive number!");
+        this.maxThreads = maxThreads;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * The scheduler used unless another one is set by {@link JP2Decoder#setScheduler(JP2Scheduler)} or
+     * {@link JP2Encoder#setScheduler(JP2Scheduler)}. It runs one thread per CPU core; its memory budget is a quarter
+     * of the maximum Java heap size, which is the only memory limit of the app known without a {@code Context}.
+     * @return the default scheduler
+     */
+    public static synchronized JP2Scheduler getDefault() {
+        if (defaultScheduler == null) {
+            Runtime runtime = Runtime.getRuntime();
+            defaultScheduler = new JP2Scheduler(runtime.availableProcessors(), runtime.maxMemory() / 4);
+        }
+        return defaultScheduler;
+    }
+
+    /*
+        An operation run by the scheduler. The cancellation signal and the deadline of the operation are combined into
+        the token passed to run(), which the scheduler also cancels when all the requests are cancelled.
+     */
+    abstract static class Job<T> {
+        final Key key; //null if the job must not be de-duplicated
+        final CancellationSignal cancellationSignal;
+        final long deadline;
+
+        Job(final Key key, final CancellationSignal cancellationSignal, final long deadline) {
+            this.key = key;
+            this.cancellationSignal = cancellationSignal;
+            this.deadline = deadline;
+        }
+
+        //the memory, in bytes, which the job is expected to use; called in the background thread
+        abstract long estimateMemory();
+
+        abstract T run(long cancel);
+    }
+
+    /*
+        Identifies identical jobs: the source (a file name compared by value, anything else by identity) and the
+        settings.
+     */
+    static final class Key {
+        private final Object source;
+        private final int[] params;
+        private final Object[] options;
+
+        Key(final Object source, final int[] params, final Object... options) {
+            this.source = source;
+            this.params = params;
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            boolean sameSource = source instanceof String ? source.equals(key.source) : source == key.source;
+            return sameSource && Arrays.equals(params, key.params) && Arrays.equals(options, key.options);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = source instanceof String ? source.hashCode() : System.identityHashCode(source);
+            return (hash * 31 + Arrays.hashCode(params)) * 31 + Arrays.hashCode(options);
+        }
+    }
+
+    <T> Future<T> submit(@NonNull final Job<T> job, @NonNull final Priority priority, final Callback<T> callback) {
+        if (priority == null) throw new IllegalArgumentException("priority must not be null!");
+        Request<T> request;
+        synchronized (this) {
+            @SuppressWarnings("unchecked")
+            Task<T> task = job.key != null ? (Task<T>) inFlight.get(job.key) : null;
+            if (task == null) {
+                task = new Task<>(job, priority, sequence++);
+                if (job.key != null) inFlight.put(job.key, task);
+                queue.add(task);
+                if (threads < maxThreads && queue.size() > idleThreads) startThread();
+                notifyAll();
+            } else if (task.queued && priority.ordinal() < task.priority.ordinal()) {
+                //a duplicate with a higher priority promotes the queued task
+                queue.remove(task);
+                task.priority = priority;
+                queue.add(task);
+            }
+            request = new Request<>(task, callback);
+            task.requests.add(request);
+        }
+        return request;
+    }
+
+    private void startThread() {
+        threads++;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                work();
+            }
+        }, "JP2Scheduler-" + threads);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void work() {
+        for (;;) {
+            Task<?> task = takeTask();
+            if (task == null) return;
+            long memory;
+            try {
+                memory = task.job.estimateMemory();
+            } catch (RuntimeException e) {
+                memory = 0;
+            }
+            if (!reserveMemory(task, memory)) {
+                task.cancellation.close();
+                continue;
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    memoryUsed -= memory;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    //the next task to run; null if the thread has been idle for KEEP_ALIVE_MS and should exit
+    private synchronized Task<?> takeTask() {
+        long idleUntil = SystemClock.uptimeMillis() + KEEP_ALIVE_MS;
+        while (queue.isEmpty()) {
+            long timeout = idleUntil - SystemClock.uptimeMillis();
+            if (timeout <= 0) {
+                threads--;
+                return null;
+            }
+            idleThreads++;
+            try {
+                wait(timeout);
+            } catch (InterruptedException ignored) {
+            } finally {
+                idleThreads--;
+            }
+        }
+        Task<?> task = queue.poll();
+        task.queued = false;
+        task.cancellation = Cancellation.create(task.job.cancellationSignal, task.job.deadline, true);
+        return task;
+    }
+
+    //wait until the task fits into the memory budget; return false if the task has been cancelled meanwhile
+    private synchronized boolean reserveMemory(final Task<?> task, final long memory) {
+        while (memoryUsed > 0 && memoryUsed + memory > memoryBudget && !task.cancelled) {
+            try {
+                wait();
+            } catch (InterruptedException ignored) {
+            }
+        }
+        if (task.cancelled) return false;
+        memoryUsed += memory;
+        return true;
+    }
+
+    private synchronized void finished(final Task<?> task) {
+        if (task.job.key != null && inFlight.get(task.job.key) == task) inFlight.remove(task.job.key);
+    }
+
+    //called with the scheduler locked when a request has been cancelled
+    private void cancelled(final Task<?> task) {
+        for (Request<?> request : task.requests) {
+            if (!request.isCancelled()) return;
+        }
+        //nobody waits for the result anymore
+        task.cancelled = true;
+        finished(task);
+        if (task.queued) {
+            queue.remove(task);
+        } else if (task.cancellation != null) {
+            task.cancellation.cancel();
+        }
+        notifyAll();
+    }
+
+    /*
+        A queued or running job and the requests waiting for its result.
+     */
+    private final class Task<T> implements Comparable<Task<?>> {
+        final Job<T> job;
+        final long order;
+        final List<Request<T>> requests = new ArrayList<>();
+        Priority priority;
+        boolean queued = true;
+        boolean cancelled = false;
+        Cancellation cancellation = null;
+
+        Task(final Job<T> job, final Priority priority, final long order) {
+            this.job = job;
+            this.priority = priority;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(final Task<?> other) {
+            if (priority != other.priority) return priority.ordinal() - other.priority.ordinal();
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+
+        void run() {
+            T result = null;
+            Throwable error = null;
+            try {
+                result = job.run(Cancellation.handle(cancellation));
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                cancellation.close();
+                finished(this);
+            }
+            finish(result, error);
+        }
+
+        void finish(final T result, final Throwable error) {
+            List<Request<T>> waiting;
+            synchronized (JP2Scheduler.this) {
+                waiting = new ArrayList<>(requests);
+            }
+            for (Request<T> request : waiting) {
+                request.finish(result, error);
+            }
+        }
+    }
+
+    /*
+        The handle of one request. Several requests share a task if they are identical; the task is cancelled when
+        all of them are.
+     */
+    private final class Request<T> implements Future<T> {
+        private final Task<T> task;
+        private final Callback<T> callback;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private boolean cancelled = false;
+        private T result = null;
+        private Throwable error = null;
+
+        Request(final Task<T> task, final Callback<T> callback) {
+            this.task = task;
+            this.callback = callback;
+        }
+
+        void finish(final T result, final Throwable error) {
+            synchronized (JP2Scheduler.this) {
+                if (cancelled || done.getCount() == 0) return;
+                this.result = result;
+                this.error = error;
+                done.countDown();
+            }
+            if (callback == null) return;
+            try {
+                callback.onResult(error == null ? result : null);
+            } catch (RuntimeException e) {
+                //don't let one callback keep the other requests of the task from finishing
+                Log.e(TAG, "Callback failed", e);
+            }
+        }
+
+        /**
+         * Cancel the request. A queued operation is removed from the queue; a running one is aborted by the native
+         * code, unless another identical request still waits for its result.
+         * @param mayInterruptIfRunning ignored, a running operation is always aborted
+         * @return {@code false} if the request was already done or cancelled; {@code true} otherwise
+         */
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            synchronized (JP2Scheduler.this) {
+                if (cancelled || done.getCount() == 0) return false;
+                cancelled = true;
+                done.countDown();
+                cancelled(task);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized (JP2Scheduler.this) {
+                return cancelled;
+            }
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            done.await();
+            return getResult();
+        }
+
+        @Override
+        public T get(final long timeout, @NonNull final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) throw new TimeoutException();
+            return getResult();
+        }
+
+        private T getResult() throws ExecutionException {
+            synchronized (JP2Scheduler.this) {
+                if (cancelled) throw new CancellationException();
+                if (error != null) throw new ExecutionException(error);
+                return result;
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.gemalto.jp2;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A {@link BitmapPool} bounded by the total size of its bitmaps in bytes. When the pool is full, the least recently
+ * returned bitmaps are recycled first.<br><br>
+ *
+ * A bitmap of the requested dimensions and config is preferred. On API 19+, a bitmap of the same config with a larger
+ * allocation is reconfigured by the decoder instead; bitmaps more than {@value #MAX_OVERSIZE} times larger than the
+ * image are not used, so that a thumbnail doesn't hold a full-screen allocation. The bitmaps are indexed by their
+ * dimensions and by their allocation size, so that a lookup doesn't depend on the number of pooled bitmaps.
+ */
+public class LruBitmapPool implements BitmapPool {
+    /**
+     * The maximum ratio of the allocation of a reused bitmap to the size of the decoded image.
+     */
+    public static final int MAX_OVERSIZE = 4;
+
+    private final long maxSize;
+    //Bitmap doesn't override equals(), the bitmaps are mapped by identity; least recently returned first
+    private final LinkedHashMap<Bitmap, Entry> entries = new LinkedHashMap<>();
+    //the bitmaps of each config and dimensions, most recently returned last
+    private final Map<SizeKey, ArrayDeque<Entry>> bySize = new HashMap<>();
+    //the bitmaps of each config by their allocation size, most recently returned last
+    private final Map<Config, TreeMap<Long, ArrayDeque<Entry>>> byAllocation = new EnumMap<>(Config.class);
+    private long size = 0;
+
+    /**
+     * @param maxSize the maximum total size of the pooled bitmaps in bytes
+     */
+    public LruBitmapPool(final long maxSize) {
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize must be a positive number!");
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public synchronized Bitmap get(final int width, final int height, @NonNull final Config config) {
+        ArrayDeque<Entry> sameSize = bySize.get(new SizeKey(config, width, height));
+        Entry entry = sameSize != null ? sameSize.peekLast() : null;
+        if (entry == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            //the smallest allocation which can be reconfigured to the requested dimensions
+            long needed = (long) width * height * JP2Decoder.bytesPerPixel(config);
+            TreeMap<Long, ArrayDeque<Entry>> allocations = byAllocation.get(config);
+            Map.Entry<Long, ArrayDeque<Entry>> smallest = allocations != null ? allocations.ceilingEntry(needed) : null;
+            if (smallest != null && smallest.getKey() <= needed * MAX_OVERSIZE) entry = smallest.getValue().peekLast();
+        }
+        if (entry == null) return null;
+        remove(entry);
+        return entry.bitmap;
+    }
+
+    @Override
+    public synchronized void put(@NonNull final Bitmap bitmap) {
+        if (bitmap == null) throw new IllegalArgumentException("bitmap must not be null!");
+        //immutable bitmaps cannot be decoded into; a bitmap shared by identical requests may be returned twice
+        if (bitmap.isRecycled() || !bitmap.isMutable() || entries.containsKey(bitmap)) return;
+        //a bitmap of a config unknown to the public API (getConfig() returns null) cannot be requested
+        Config config = bitmap.getConfig();
+        if (config == null) return;
+        long bytes = byteCount(bitmap);
+        if (bytes > maxSize) {
+            bitmap.recycle();
+            return;
+        }
+        Entry entry = new Entry(bitmap, new SizeKey(config, bitmap.getWidth(), bitmap.getHeight()), bytes);
+        entries.put(bitmap, entry);
+        ArrayDeque<Entry> sameSize = bySize.get(entry.key);
+        if (sameSize == null) {
+            sameSize = new ArrayDeque<>();
+            bySize.put(entry.key, sameSize);
+        }
+        sameSize.addLast(entry);
+        TreeMap<Long, ArrayDeque<Entry>> allocations = byAllocation.get(config);
+        if (allocations == null) {
+            allocations = new TreeMap<>();
+            byAllocation.put(config, allocations);
+        }
+        ArrayDeque<Entry> sameAllocation = allocations.get(bytes);
+        if (sameAllocation == null) {
+            sameAllocation = new ArrayDeque<>();
+            allocations.put(bytes, sameAllocation);
+        }
+        sameAllocation.addLast(entry);
+        size += bytes;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Recycle all the bitmaps in the pool, e.g. when the app is asked to trim its memory.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * @return the total size of the pooled bitmaps in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the maximum total size of the pooled bitmaps in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    private void trimToSize(final long maxSize) {
+        while (size > maxSize) {
+            Entry eldest = entries.values().iterator().next();
+            remove(eldest);
+            eldest.bitmap.recycle();
+        }
+    }
+
+    //the indexes are updated with the dimensions and the size recorded by put(), whatever the bitmap has now
+    private void remove(final Entry entry) {
+        entries.remove(entry.bitmap);
+        ArrayDeque<Entry> sameSize = bySize.get(entry.key);
+        sameSize.remove(entry);
+        if (sameSize.isEmpty()) bySize.remove(entry.key);
+        TreeMap<Long, ArrayDeque<Entry>> allocations = byAllocation.get(entry.key.config);
+        ArrayDeque<Entry> sameAllocation = allocations.get(entry.bytes);
+        sameAllocation.remove(entry);
+        if (sameAllocation.isEmpty()) allocations.remove(entry.bytes);
+        if (allocations.isEmpty()) byAllocation.remove(entry.key.config);
+        size -= entry.bytes;
+    }
+
+    private static long byteCount(final Bitmap bitmap) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+    }
+
+    /*
+        A pooled bitmap with the dimensions and the size it had when it was returned.
+     */
+    private static final class Entry {
+        final Bitmap bitmap;
+        final SizeKey key;
+        final long bytes;
+
+        Entry(final Bitmap bitmap, final SizeKey key, final long bytes) {
+            this.bitmap = bitmap;
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+
+    /*
+        The config and the dimensions of a bitmap.
+     */
+    private static final class SizeKey {
+        final Config config;
+        final int width;
+        final int height;
+
+        SizeKey(final Config config, final int width, final int height) {
+            this.config = config;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof SizeKey)) return false;
+            SizeKey key = (SizeKey) o;
+            return config == key.config && width == key.width && height == key.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return (config.hashCode() * 31 + width) * 31 + height;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.gemalto.jp2;
+
+/**
+ * Receives the progress of a decoding or an encoding, see {@link JP2Decoder#setProgressListener(ProgressListener)}
+ * and {@link JP2Encoder#setProgressListener(ProgressListener)}.<br><br>
+ *
+ * The progress is reported by the native code in the thread which called the decoding or encoding method. A decoding
+ * is reported after each decoded tile. An encoding is reported in 100 steps per tile (the encoder writes a single
+ * tile): the wavelet transform, then the code-blocks as they are encoded, the rate allocation and the written tile.
+ * The reports are rate-limited: the first one is made right away, then a report follows the previous one after at
+ * least 50 ms, except for the last step, which is always reported.
+ */
+public interface ProgressListener {
+    /**
+     * Called after a tile has been decoded or a step of an encoding is done. A runtime exception thrown by the
+     * listener stops the decoding or encoding and is thrown by the decoding or encoding method.
+     * @param tilesDone the number of tiles decoded so far; for an encoding, the number of steps done
+     * @param totalTiles the number of tiles to decode; when a region is decoded, only the tiles intersecting the
+     *                   region. For an encoding, the number of steps, 100 per tile
+     */
+    void onProgress(int tilesDone, int totalTiles);
+}
@@ -1,7 +1,6 @@
 package com.gemalto.jp2.test;
 
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.ViewTreeObserver;
@@ -10,6 +9,7 @@ import android.widget.ImageView;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.gemalto.jp2.JP2Decoder;
+import com.gemalto.jp2.JP2Scheduler;
 
 import java.io.Closeable;
 import java.io.IOException;
@@ -29,7 +29,7 @@ public class MainActivity extends AppCompatActivity {
             public void onGlobalLayout() {
                 //we want to decode the JP2 only when the layout is created and we know the ImageView size
                 imgView.getViewTreeObserver().removeGlobalOnLayoutListener(this);
-                new DecodeJp2AsyncTask(imgView).execute();
+                decodeJp2(imgView);
             }
         });
     }
@@ -44,78 +44,54 @@ public class MainActivity extends AppCompatActivity {
 
 
     /**
-     * This is an example of how to take advantage of the {@link JP2Decoder#setSkipResolutions(int)} method in a multi-resolution JP2 image.
-     * We take the size of the ImageView component, the resolution of the image, the number of available resolutions, and we determine how many
-     * of them we can skip without losing any detail.
+     * This is an example of how to take advantage of the multiple resolutions of a JP2 image with the
+     * {@link JP2Decoder#setTargetSize(int, int, JP2Decoder.ScaleMode)} method. We pass the size of the ImageView component, and the decoder
+     * determines how many resolutions it can skip without losing any detail.
      *
-     * We know that each successive JP2 resolution is half of the previous resolution. So if the first (highest) resolution is 4000x3000, then
+     * Each successive JP2 resolution is half of the previous resolution. So if the first (highest) resolution is 4000x3000, then
      * the next resolution (if present) will be 2000x1500, the next one 1000x750, and so on.
      *
-     * Therefore if the ImageView size is 1800x1800 for example, we know that we can skip one resolution. (The 2000x1500 version is bigger - at least
-     * in one dimension - than 1800x1800. The 1000x750 is smaller and we would lose image details.)
+     * Therefore if the ImageView size is 1800x1800 for example, the decoder skips one resolution. (The 2000x1500 version is bigger - at least
+     * in one dimension - than 1800x1800. The 1000x750 is smaller and we would lose image details.) The 2000x1500 image is then scaled down
+     * to 1800x1350 to fit the view exactly.
+     *
+     * The image is decoded in the background by {@link JP2Decoder#decodeAsync(JP2Scheduler.Priority, JP2Scheduler.Callback)}; the
+     * library's scheduler limits the number of images decoded at the same time to the number of CPU cores.
      */
-    private class DecodeJp2AsyncTask extends AsyncTask<Void, Void, Bitmap> {
-        private ImageView view;
-        private int width, height;
-
-        public DecodeJp2AsyncTask(final ImageView view) {
-            this.view = view;
-            //get the size of the ImageView
-            width = view.getWidth();
-            height = view.getHeight();
+    private void decodeJp2(final ImageView view) {
+        //get the size of the ImageView
+        final int width = view.getWidth();
+        final int height = view.getHeight();
+        Log.d(TAG, String.format("View resolution: %d x %d", width, height));
+        final InputStream in;
+        try {
+            in = getAssets().open("balloon.jp2");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
         }
 
-        @Override
-        protected Bitmap doInBackground(final Void... voids) {
-            Log.d(TAG, String.format("View resolution: %d x %d", width, height));
-            Bitmap ret = null;
-            InputStream in = null;
-            try {
-                in = getAssets().open("balloon.jp2");
-
-                //create a new JP2 decoder object
-                JP2Decoder decoder = new JP2Decoder(in);
-
-                //read image information only, but don't decode the actual image
-                JP2Decoder.Header header = decoder.readHeader();
-
-                //get the size of the image
-                int imgWidth = header.width;
-                int imgHeight = header.height;
-                Log.d(TAG, String.format("JP2 resolution: %d x %d", imgWidth, imgHeight));
+        //create a new JP2 decoder object
+        JP2Decoder decoder = new JP2Decoder(in);
 
-                //we halve the resolution until we go under the ImageView size or until we run out of the available JP2 image resolutions
-                int skipResolutions = 1;
-                while (skipResolutions < header.numResolutions) {
-                    imgWidth >>= 1;
-                    imgHeight >>= 1;
-                    if (imgWidth < width && imgHeight < height) break;
-                    else skipResolutions++;
-                }
+        //the decoder chooses the number of resolutions to skip and fits the image into the ImageView
+        decoder.setTargetSize(width, height, JP2Decoder.ScaleMode.FIT);
 
-                //we break the loop when skipResolutions goes over the correct value
-                skipResolutions--;
-                Log.d(TAG, String.format("Skipping %d resolutions", skipResolutions));
-
-                //set the number of resolutions to skip
-                if (skipResolutions > 0) decoder.setSkipResolutions(skipResolutions);
-
-                //decode the image
-                ret = decoder.decode();
-                Log.d(TAG, String.format("Decoded at resolution: %d x %d", ret.getWidth(), ret.getHeight()));
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
+        //decode the image in the background; the image is on the screen, so it's decoded before any prefetched images
+        decoder.decodeAsync(JP2Scheduler.Priority.VISIBLE, new JP2Scheduler.Callback<Bitmap>() {
+            @Override
+            public void onResult(final Bitmap bitmap) {
                 close(in);
+                if (bitmap == null) return;
+                Log.d(TAG, String.format("Decoded at resolution: %d x %d", bitmap.getWidth(), bitmap.getHeight()));
+                //the callback is called in a background thread
+                view.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        view.setImageBitmap(bitmap);
+                    }
+                });
             }
-            return ret;
-        }
-
-        @Override
-        protected void onPostExecute(final Bitmap bitmap) {
-            if (bitmap != null) {
-                view.setImageBitmap(bitmap);
-            }
-        }
+        });
     }
 }